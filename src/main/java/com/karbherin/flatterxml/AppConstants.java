@@ -1,5 +1,24 @@
 package com.karbherin.flatterxml;
 
 public class AppConstants {
-    public enum CascadePolicy {NONE, OUT, XSD, DEF}
+    /**
+     * Treatment of the fields of ancestor records in the rows of descendant records.
+     * NONE does not cascade, OUT cascades all the output fields, XSD the fields defined in the XSDs and DEF
+     * the fields defined by the user. KEY cascades no data. Instead every row is given a numeric id in a
+     * row_id field, and the rows of child records carry the id of their parent record.
+     */
+    public enum CascadePolicy {NONE, OUT, XSD, DEF, KEY}
+
+    /**
+     * Treatment of delimited output values that contain the delimiter.
+     * NONE writes values as they are, QUOTE encloses them in double quotes as per RFC 4180
+     * and ESCAPE precedes the delimiter and the escape character with a backslash.
+     */
+    public enum QuoteMode {NONE, QUOTE, ESCAPE}
+
+    /**
+     * Format of the output files. CSV writes delimited text files, ARROW writes Arrow IPC files
+     * and ARROW_STREAM writes Arrow IPC streams.
+     */
+    public enum OutputFormat {CSV, ARROW, ARROW_STREAM, JSONL, JSONL_NESTED, JDBC, PGCOPY}
 }
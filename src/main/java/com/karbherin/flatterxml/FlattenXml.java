@@ -1,11 +1,20 @@
 package com.karbherin.flatterxml;
 
+import com.karbherin.flatterxml.feeder.XmlRecordEmitter;
 import com.karbherin.flatterxml.helper.XmlHelpers;
+import com.karbherin.flatterxml.model.CascadeTemplate;
 import com.karbherin.flatterxml.model.SchemaElementWithAttributes;
 import com.karbherin.flatterxml.model.Pair;
 import com.karbherin.flatterxml.model.RecordFieldsCascade;
 import com.karbherin.flatterxml.model.RecordDefinitions;
+import com.karbherin.flatterxml.model.RecordFilter;
+import com.karbherin.flatterxml.model.RecordProjection;
+import com.karbherin.flatterxml.model.RecordTypeHierarchy;
 import com.karbherin.flatterxml.output.RecordHandler;
+import com.karbherin.flatterxml.output.TypedRecord;
+import com.karbherin.flatterxml.output.TypedRecordHandler;
+import com.karbherin.flatterxml.xsd.RecordValidator;
+import com.karbherin.flatterxml.xsd.SchemaIndex;
 import com.karbherin.flatterxml.xsd.XmlSchema;
 import com.karbherin.flatterxml.xsd.XsdElement;
 
@@ -32,11 +41,13 @@ public class FlattenXml {
     private final String recordTagGiven;
     private QName recordTag = null;  // Will be populated from recordTagGiven
     private final XMLEventReader reader;
-    private final List<XmlSchema> xsds = new ArrayList<>();
+    private final SchemaIndex schemaIndex;
     private final CascadePolicy cascadePolicy;
     private StartElement rootElement;
     private final RecordDefinitions recordCascadesRegistry;
     private final RecordDefinitions outputRecordFieldsSeq;
+    // Only the records in the output definitions are written, and elements not needed for them are skipped
+    private final RecordProjection projection;
 
     // Maps namespace URIs in the xmlns declarations to prefixes
     private final Map<String, Namespace> xmlnsUriToPrefix = new HashMap<>();
@@ -51,7 +62,32 @@ public class FlattenXml {
     private boolean tracking = false;
     private boolean inElement = false;
     private RecordFieldsCascade currRecordCascade = null;
-    private RecordFieldsCascade reuseRecordCascade = null;
+
+    // Cascade fields of each record type, compiled on the first record of the type
+    private final Map<QName, CascadeTemplate> cascadeTemplates = new HashMap<>();
+    // Value arrays released by the records at each level of nesting, reused by the next records at the level
+    private final List<Deque<String[]>> cascadeValuePools = new ArrayList<>();
+    // Typed records of each record type under each chain of ancestors, reused when the record handler takes
+    // converted values. Types of the cascaded columns depend on the ancestors.
+    private final TypedRecordNode typedRecords = new TypedRecordNode();
+
+    // Filtering and validation of each top-level record before it is flattened. The events of a record read ahead
+    // for them are replayed if the record is to be flattened.
+    private final RecordFilter recordFilter;
+    private final RecordValidator.WorkerValidator recordValidator;
+    private final List<XMLEvent> recordEvents = new ArrayList<>();
+    private final Deque<XMLEvent> acceptedEvents = new ArrayDeque<>();
+    // Location in the XML file of the next record, to report the records rejected. Records fed to a worker by an
+    // emitter are located only by the processing instructions the emitter sends ahead of them, if any.
+    private final boolean recordFeed;
+    private long recordsRead = 0L;
+    private long fedRecordNumber = 0L;
+    private int fedRecordLine = 0;
+
+    // Row ids when cascading keys. Ids of a worker are prefixed with the worker number in the high bits.
+    private static final int ROW_SEQ_BITS = 43;
+    private final long rowIdBase;
+    private long rowSeq = 0L;
 
     // Output
     private final RecordHandler recordHandler;
@@ -65,7 +101,9 @@ public class FlattenXml {
                        CascadePolicy cascadePolicy,
                        RecordDefinitions recordCascadesRegistry,
                        RecordDefinitions outputRecordFieldsSeq,
-                       List<XmlSchema> xsds, RecordHandler recordHandler)
+                       SchemaIndex schemaIndex, RecordHandler recordHandler, int workerNumber,
+                       RecordFilter recordFilter, RecordValidator recordValidator, boolean recordFeed,
+                       boolean projectOutput)
             throws XMLStreamException {
 
         this.recordTagGiven = recordTag;
@@ -73,8 +111,15 @@ public class FlattenXml {
         this.recordCascadesRegistry = recordCascadesRegistry;
         this.cascadePolicy = cascadePolicy;
         this.recordHandler = recordHandler;
-        this.xsds.addAll(xsds);
+        this.schemaIndex = schemaIndex;
         this.outputRecordFieldsSeq = outputRecordFieldsSeq;
+        this.rowIdBase = (long) workerNumber << ROW_SEQ_BITS;
+        this.recordFilter = recordFilter;
+        this.projection = projectOutput
+                ? new RecordProjection(outputRecordFieldsSeq, recordCascadesRegistry, cascadePolicy, schemaIndex)
+                : null;
+        this.recordValidator = recordValidator == null ? null : recordValidator.newWorkerValidator();
+        this.recordFeed = recordFeed;
         recordHandler.setXmlnsUriToPrefix(xmlnsUriToPrefix);
     }
 
@@ -86,7 +131,7 @@ public class FlattenXml {
      */
     public long parseFlatten() throws XMLStreamException, IOException {
         long recCounter = 0L;
-        while (reader.hasNext()) {
+        while (hasNextEvent()) {
             recCounter += parseFlatten(Long.MAX_VALUE);
         }
         return recCounter;
@@ -117,17 +162,22 @@ public class FlattenXml {
         // Batch record counter
         batchRecCounter = 0L;
 
-        while (reader.hasNext() && batchRecCounter < firstNRecs) {
+        while (hasNextEvent() && batchRecCounter < firstNRecs) {
             final XMLEvent ev;
 
             try {
-                ev = reader.nextEvent();
+                ev = nextEvent();
             } catch (XMLStreamException ex) {
                 throw decorateParseError(ex);
             }
 
             if (ev.isEndDocument()) break;
 
+            if (ev.isProcessingInstruction()) {
+                readRecordLocation((ProcessingInstruction) ev);
+                continue;
+            }
+
             if (ev.isStartElement()) {                  // Start tag
 
                 StartElement el = ev.asStartElement();
@@ -169,8 +219,18 @@ public class FlattenXml {
                 }
 
                 if (tagName.equals(recordTag)) {
+                    if (!tracking && (recordFilter != null || recordValidator != null) && !acceptRecord(ev)) {
+                        // Record is skipped as a whole, as if its end tag was just passed
+                        prevEv = recordEvents.get(recordEvents.size() - 1);
+                        continue;
+                    }
                     // Start tag of the top-level record. Parsing starts here.
                     tracking = true;
+                } else if (tracking && projection != null && projection.canSkip(tagName, tagPath.peek().getName())) {
+                    // Nothing under the element is written. Skipped as if its end tag was just passed.
+                    prevEv = skipElement();
+                    inElement = false;
+                    continue;
                 }
 
                 if (tracking) {
@@ -196,7 +256,7 @@ public class FlattenXml {
 
                     // A structural envelope does not contain its own data. Remove it from stack.
                     tagStack.pop();
-                    reuseRecordCascade = popCascadingRecord();
+                    popCascadingRecord();
                 } else {
                     tagStack.push(ev);
                     inElement = false;
@@ -239,33 +299,130 @@ public class FlattenXml {
         return batchRecCounter;
     }
 
+    private boolean hasNextEvent() {
+        return !acceptedEvents.isEmpty() || reader.hasNext();
+    }
+
+    private XMLEvent nextEvent() throws XMLStreamException {
+        return acceptedEvents.isEmpty() ? reader.nextEvent() : acceptedEvents.poll();
+    }
+
+    /**
+     * Reads past the end of the element just started without processing the events under it.
+     * @return end tag of the element
+     */
+    private XMLEvent skipElement() throws XMLStreamException, IOException {
+        for (int depth = 1; ; ) {
+            XMLEvent ev;
+            try {
+                ev = nextEvent();
+            } catch (XMLStreamException ex) {
+                throw decorateParseError(ex);
+            }
+            if (ev.isStartElement()) {
+                depth++;
+            } else if (ev.isEndElement() && --depth == 0) {
+                return ev;
+            }
+        }
+    }
+
+    /**
+     * Reads the rest of a top-level record, then filters and validates it.
+     * Events of the record are replayed to be flattened if it satisfies the filter and is valid.
+     * @param recordStart - start tag of the record
+     * @return true if the record is to be flattened, false if it is skipped
+     */
+    private boolean acceptRecord(XMLEvent recordStart) throws XMLStreamException, IOException {
+        recordEvents.clear();
+        recordEvents.add(recordStart);
+        for (int depth = 1; depth > 0; ) {
+            XMLEvent ev;
+            try {
+                ev = reader.nextEvent();
+            } catch (XMLStreamException ex) {
+                throw decorateParseError(ex);
+            }
+            if (ev.isStartElement()) {
+                depth++;
+            } else if (ev.isEndElement()) {
+                depth--;
+            }
+            recordEvents.add(ev);
+        }
+
+        if (recordFilter != null && !recordFilter.test(recordEvents)) {
+            // Not counted as read, as if the record was not in the XML
+            recordFilter.countReject();
+            return false;
+        }
+        // Records read by the worker are numbered as in the XML file only if it reads the whole file
+        ++recordsRead;
+        long recordNumber = recordFeed ? fedRecordNumber : recordsRead;
+        int recordLine = recordFeed ? fedRecordLine : lineNumber(recordStart);
+        fedRecordNumber = 0L;
+        fedRecordLine = 0;
+
+        if (recordValidator != null && !recordValidator.validate(recordEvents, recordNumber, recordLine)) {
+            // Rejected records are counted as read
+            ++batchRecCounter;
+            ++totalRecordCounter;
+            return false;
+        }
+        acceptedEvents.addAll(recordEvents.subList(1, recordEvents.size()));
+        return true;
+    }
+
+    /**
+     * Takes the location in the XML file of the next record from the processing instruction an emitter sends
+     * ahead of it. Other processing instructions are ignored.
+     */
+    private void readRecordLocation(ProcessingInstruction pi) {
+        if (!XmlRecordEmitter.RECORD_LOCATION_TARGET.equals(pi.getTarget())) {
+            return;
+        }
+        String[] location = pi.getData().trim().split("\\s+");
+        fedRecordNumber = Long.parseLong(location[0]);
+        fedRecordLine = Integer.parseInt(location[1]);
+    }
+
+    private static int lineNumber(XMLEvent ev) {
+        Location location = ev.getLocation();
+        return location == null || location.getLineNumber() < 1 ? 0 : location.getLineNumber();
+    }
+
     private void pushNewCascadingRecord(StartElement el) {
-        cascadingStack.push(new RecordFieldsCascade(el, Collections.emptyList(), cascadePolicy, null,
-                xsds, xmlnsUriToPrefix));
+        cascadingStack.push(new RecordFieldsCascade(
+                new CascadeTemplate(el.getName(), Collections.emptyList(), cascadePolicy, schemaIndex,
+                        xmlnsUriToPrefix),
+                null, new String[0]));
     }
 
     private void pushNewNestedCascadingRecord() {
         if (cascadePolicy != CascadePolicy.NONE
                 && !currRecordCascade.recordName().equals( tagPath.peek().getName() )) {
 
-            if (reuseRecordCascade != null &&
-                    reuseRecordCascade.recordName().equals(tagPath.peek().getName())) {
-                // Reuse parent cascades if the record continues to be the same.
-                // The cascading templates will be reused.
-                currRecordCascade = reuseRecordCascade.clearCurrentRecordCascades();
-            } else {
-                // Cascade fields and values from parent record to this new record.
-                currRecordCascade = newRecordCascade(tagPath.peek(), currRecordCascade);
+            // Cascade fields and values from parent record to this new record.
+            currRecordCascade = newRecordCascade(tagPath.peek(), currRecordCascade);
+            if (cascadePolicy == CascadePolicy.KEY) {
+                // Only the records within the tracked record are written and given ids
+                currRecordCascade.setRowId(tracking ? rowIdBase + ++rowSeq : 0L);
             }
             cascadingStack.push(currRecordCascade);
         }
     }
 
-    private RecordFieldsCascade popCascadingRecord() {
+    private void popCascadingRecord() {
         if (cascadePolicy == CascadePolicy.NONE) {
-            return null;
+            return;
+        }
+        RecordFieldsCascade recordCascade = cascadingStack.pop();
+        if (recordCascade.recordLevel() > 0) {
+            // The record and its children are done. Its values can be reused by the next record at its level.
+            cascadeValuePools.get(recordCascade.recordLevel()).push(recordCascade.releaseValues());
         }
-        return cascadingStack.pop().clearToCascadeToChildList();
+        // Further data belongs to the parent record
+        currRecordCascade = cascadingStack.peek();
     }
 
     private void addCascadingData() {
@@ -341,21 +498,13 @@ public class FlattenXml {
             // 1. Align data from XML with the desired output fields sequence
             records = alignFieldsToSchema(pairStack, outputFieldsSeq);
 
-        } else {
+        } else if (projection == null) {
             // 2: Align data from XML with the sequence of fields in XSDs
 
             // Lookup schema for a list of fields a record can legitimately have
-            XsdElement schemaEl = xsds.stream()
-                    .map(xsd -> xsd.getElementByName(recordName))
-                    .filter(xsd -> xsd != null)
-                    .findFirst().orElse(null);
-
-            if (schemaEl != null) {
-                // Collect the list of fields a record should have
-                List<SchemaElementWithAttributes> recordSchemaFields = schemaEl.getChildElements().stream()
-                        .filter(ch -> !XmlSchema.COMPLEX_TYPE.equals(ch.getType()))
-                        .collect(Collectors.toList());
+            List<XsdElement> recordSchemaFields = schemaIndex.getFieldElements(recordName);
 
+            if (recordSchemaFields != null) {
                 // Align with fields sequence in XSD
                 records = alignFieldsToSchema(pairStack, recordSchemaFields);
             }
@@ -369,12 +518,40 @@ public class FlattenXml {
 
         // Write record to file if there are no errors.
         if (records != null) {
+            RecordFieldsCascade recordCascade = cascadingStack.peek();
             for (List<Pair<String, String>> record : records) {
-                recordHandler.write(recordName, record, cascadingStack.peek());
+                if (cascadePolicy == CascadePolicy.KEY && recordCascade.getRowId() != 0L) {
+                    // Rows replicated for repeated fields share the id of their record
+                    record.add(0, new Pair<>(ROW_ID_FIELD, Long.toString(recordCascade.getRowId())));
+                }
+                if (recordHandler instanceof TypedRecordHandler) {
+                    writeTypedRecord(recordName, record, recordCascade);
+                } else {
+                    recordHandler.write(recordName, record, recordCascade);
+                }
             }
         }
     }
 
+    private void writeTypedRecord(QName recordName, List<Pair<String, String>> record,
+                                  RecordFieldsCascade recordCascade) throws IOException {
+        TypedRecordHandler typedHandler = (TypedRecordHandler) recordHandler;
+        // Values are converted here, by the worker, once for all the outputs of the handler
+        TypedRecordNode node = typedRecords;
+        for (RecordTypeHierarchy level = recordCascade; ; level = level.parentRecordType()) {
+            node = node.children.computeIfAbsent(level.recordName(), name -> new TypedRecordNode());
+            if (level.parentRecordType() == level) {
+                break;
+            }
+        }
+        if (node.typedRecord == null) {
+            node.typedRecord = typedHandler.newTypedRecord(recordName, recordCascade);
+        }
+        TypedRecord typedRecord = node.typedRecord;
+        typedRecord.set(record, recordCascade.getCascadedAncestorFields());
+        typedHandler.write(recordName, typedRecord, recordCascade);
+    }
+
     private List<Pair<String, String>> extractAttributesData(StartElement dataElem,
                                                              SchemaElementWithAttributes schemaElem) {
 
@@ -501,9 +678,16 @@ public class FlattenXml {
     }
 
     private RecordFieldsCascade newRecordCascade(StartElement tag, RecordFieldsCascade parentRecCascade) {
-        return new RecordFieldsCascade(
-                tag, recordCascadesRegistry.getRecordFields(tag.getName()), cascadePolicy, parentRecCascade,
-                xsds, xmlnsUriToPrefix);
+        CascadeTemplate template = cascadeTemplates.computeIfAbsent(tag.getName(), recordName ->
+                new CascadeTemplate(recordName, recordCascadesRegistry.getRecordFields(recordName), cascadePolicy,
+                        schemaIndex, xmlnsUriToPrefix));
+
+        int level = parentRecCascade.recordLevel() + 1;
+        while (cascadeValuePools.size() <= level) {
+            cascadeValuePools.add(new ArrayDeque<>());
+        }
+        String[] values = cascadeValuePools.get(level).poll();
+        return new RecordFieldsCascade(template, parentRecCascade, values == null ? new String[0] : values);
     }
 
     private XMLStreamException decorateParseError(XMLStreamException ex) throws IOException {
@@ -541,6 +725,15 @@ public class FlattenXml {
         return xmlnsUriToPrefix;
     }
 
+    /**
+     * Typed record of a record type under a chain of ancestors, reached through the record type and then its
+     * ancestors from the parent up.
+     */
+    private static final class TypedRecordNode {
+        private final Map<QName, TypedRecordNode> children = new HashMap<>();
+        private TypedRecord typedRecord = null;
+    }
+
     public static class FlattenXmlBuilder {
         private InputStream xmlStream;
         private String recordTag = null;
@@ -548,7 +741,13 @@ public class FlattenXml {
         private RecordDefinitions recordCascadeFieldsSeq = RecordDefinitions.newInstance();
         private RecordDefinitions recordOutputFieldsSeq = RecordDefinitions.newInstance();
         private List<XmlSchema> xsds = Collections.emptyList();
+        private SchemaIndex schemaIndex = null;
         private RecordHandler recordHandler;
+        private int workerNumber = 0;
+        private RecordFilter recordFilter = null;
+        private RecordValidator recordValidator = null;
+        private boolean recordFeed = false;
+        private boolean projectOutput = false;
 
         public FlattenXmlBuilder setXmlStream(InputStream xmlStream) {
             this.xmlStream = xmlStream;
@@ -600,11 +799,70 @@ public class FlattenXml {
             return this;
         }
 
+        /**
+         * @param schemaIndex - index of the elements in the XSDs, built once and shared by the workers.
+         *                      Built from the XSD files if not set
+         * @return this builder
+         */
+        public FlattenXmlBuilder setSchemaIndex(SchemaIndex schemaIndex) {
+            this.schemaIndex = schemaIndex;
+            return this;
+        }
+
         public FlattenXmlBuilder setRecordWriter(RecordHandler recordHandler) {
             this.recordHandler = recordHandler;
             return this;
         }
 
+        /**
+         * @param workerNumber - number of the worker, from 0, that prefixes the row ids when cascading keys
+         * @return this builder
+         */
+        public FlattenXmlBuilder setWorkerNumber(int workerNumber) {
+            this.workerNumber = workerNumber;
+            return this;
+        }
+
+        /**
+         * @param recordFilter - filter of the top-level records. Records that do not satisfy it are skipped without
+         *                     being flattened. No filtering if null
+         * @return this builder
+         */
+        public FlattenXmlBuilder setRecordFilter(RecordFilter recordFilter) {
+            this.recordFilter = recordFilter;
+            return this;
+        }
+
+        /**
+         * @param recordValidator - validator of the top-level records, shared by the workers. Records that are not
+         *                        valid are written to its reject file and are not flattened. No validation if null
+         * @return this builder
+         */
+        public FlattenXmlBuilder setRecordValidator(RecordValidator recordValidator) {
+            this.recordValidator = recordValidator;
+            return this;
+        }
+
+        /**
+         * @param recordFeed - the XML stream is a feed of records from an emitter rather than the XML file. Records
+         *                   rejected are located in the XML file only if the emitter marks their locations
+         * @return this builder
+         */
+        public FlattenXmlBuilder setRecordFeed(boolean recordFeed) {
+            this.recordFeed = recordFeed;
+            return this;
+        }
+
+        /**
+         * @param projectOutput - write only the records in the output definitions and skip the elements that the
+         *                      XSDs show are not needed for them, rather than fall back to the XSDs for other records
+         * @return this builder
+         */
+        public FlattenXmlBuilder setProjectOutput(boolean projectOutput) {
+            this.projectOutput = projectOutput;
+            return this;
+        }
+
         private void validate() {
             if (cascadePolicy == CascadePolicy.XSD && xsds.isEmpty()) {
                 throw new IllegalArgumentException(
@@ -635,15 +893,21 @@ public class FlattenXml {
                     cascadePolicy = CascadePolicy.XSD;
                 }
             }
-            if (! recordCascadeFieldsSeq.getRecords().isEmpty()) {
+            if (cascadePolicy != CascadePolicy.KEY && !recordCascadeFieldsSeq.getRecords().isEmpty()) {
                 cascadePolicy = CascadePolicy.DEF;
             }
+            if (projectOutput && recordOutputFieldsSeq.getRecords().isEmpty()) {
+                throw new IllegalArgumentException(
+                        "Output cannot be projected if the output fields of the records are not defined");
+            }
 
 
             // Input XML file, tag that identifies a record
             return new FlattenXml(xmlStream, recordTag,
                     // Cascading data from parent record to child records
-                    cascadePolicy, recordCascadeFieldsSeq, recordOutputFieldsSeq, xsds, recordHandler);
+                    cascadePolicy, recordCascadeFieldsSeq, recordOutputFieldsSeq,
+                    schemaIndex == null ? SchemaIndex.of(xsds) : schemaIndex, recordHandler, workerNumber,
+                    recordFilter, recordValidator, recordFeed, projectOutput);
         }
     }
 }
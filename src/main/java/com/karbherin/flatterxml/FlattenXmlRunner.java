@@ -10,19 +10,32 @@ import static com.karbherin.flatterxml.helper.XmlHelpers.*;
 import static com.karbherin.flatterxml.output.RecordHandler.GeneratedResult;
 
 import com.karbherin.flatterxml.helper.Utils;
+import com.karbherin.flatterxml.model.RecordDefinitions;
+import com.karbherin.flatterxml.model.RecordFilter;
+import com.karbherin.flatterxml.output.ArrowFileWriter;
 import com.karbherin.flatterxml.output.DelimitedFileWriter;
+import com.karbherin.flatterxml.output.JdbcWriter;
+import com.karbherin.flatterxml.output.JsonLinesWriter;
+import com.karbherin.flatterxml.output.PgCopyWriter;
+import com.karbherin.flatterxml.output.RecordHandler;
 import com.karbherin.flatterxml.output.StatusReporter;
+import com.karbherin.flatterxml.xsd.RecordValidator;
 import com.karbherin.flatterxml.xsd.XmlSchema;
+import org.xml.sax.SAXException;
 import org.apache.commons.cli.*;
 
+import javax.xml.namespace.QName;
 import javax.xml.stream.XMLStreamException;
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 /**
@@ -40,17 +53,31 @@ public class FlattenXmlRunner {
 
     private final Options options = new Options();
     private final FlattenXml.FlattenXmlBuilder setup;
-    private DelimitedFileWriter recordHandler;
+    private RecordHandler recordHandler;
     private String delimiter = "|";
     private String newlineReplacement = "~";
+    private QuoteMode quoteMode = QuoteMode.NONE;
+    private OutputFormat outputFormat = OutputFormat.CSV;
     private String outDir = "csvs";
     private int numWorkers = 1;
     private boolean streamRecStrings = false;
+    private boolean mergeParts = true;
+    // Output files do not roll over into segments unless a segment size or number of records is given
+    private long segmentBytes = Long.MAX_VALUE;
+    private long segmentRecords = Long.MAX_VALUE;
+    // Database the records are loaded into with the JDBC output format
+    private String jdbcUrl = null;
     private String recordTag = null;
     private CascadePolicy cascadePolicy = CascadePolicy.NONE;
     private File recordCascadeFieldsDefFile = null;
     private File recordOutputFieldsDefFile = null;
     private List<XmlSchema> xsds = Collections.emptyList();
+    // Flattens only the records satisfying the filter, if given
+    private RecordFilter recordFilter = null;
+    // Writes only the records in the output fields YAML, skipping the elements not needed for them
+    private boolean projectOutput = false;
+    // Validates each record in the workers, if asked for
+    private RecordValidator recordValidator = null;
     private long firstNRecs;
     private long batchSize;
     private String xmlFilePath;
@@ -75,15 +102,33 @@ public class FlattenXmlRunner {
                 "Report progress after a batch. Defaults to 100");
         options.addOption("f", "output-fields", true,
                 "Desired output fields for each record(complex) type in a YAML file");
+        options.addOption("a", "project-output", false,
+                "Write only the records in the output fields YAML, and skip the elements the XSDs show" +
+                "\nare neither needed for them nor hold any of them. Requires -f");
         options.addOption("c", "cascades", true,
                 "Data for tags under a record(complex) type element is cascaded to child records." +
-                        "\nNONE|OUT|XSD|<cascade-fields-yaml>.\n" +
+                        "\nNONE|OUT|XSD|KEY|<cascade-fields-yaml>.\n" +
                         "NONE - do not cascade\n" +
-                        "OUT - cascade all output fields on a record\n" +
+                        "OUT - cascade all output fields seen so far on the records of the type\n" +
                         "XSD - cascade fields defined in XSD for a record\n" +
+                        "KEY - give every row a row_id and cascade only the parent's row_id\n" +
                         "<cascade-fields-yaml> - cascade user defined fields in the yaml file" );
         options.addOption("x", "xsd", true,
                 "XSD files. Comma separated list.\nFormat: emp_ns.xsd,phone_ns.xsd,...");
+        options.addOption("y", "prune-xsd", false,
+                "Keep only the elements in the XSDs under the record tag, or under the record types" +
+                "\nin the output fields YAML. Saves memory and time on large XSDs");
+        options.addOption("z", "xsd-cache", true,
+                "Cache file of the parsed XSDs. Loaded in place of parsing the XSDs if none of the XSDs" +
+                "\nor the XSDs they import changed, rewritten otherwise");
+        options.addOption("e", "filter", true,
+                "Flatten only the records satisfying a filter.\nFormat: record-tag[path op value and ...]" +
+                "\nOp is one of = != < <= > >=. Quoted values compare as text, others as numbers." +
+                "\nExample: employee[department='sales' and contact/phones/phone/phone-type='cell']");
+        options.addOption("v", "validate", true,
+                "Validate each record against the XSDs in the workers and write the records not valid to" +
+                "\nthis reject file instead of flattening them. Requires -x. Record elements must be declared" +
+                "\nat the top level of the XSDs. With -s, rejects are located by their line in the record");
         options.addOption("w", "workers", true,
                 "Number of parallel workers. Defaults to 1");
         options.addOption("s", "stream-record-strings", true,
@@ -92,6 +137,37 @@ public class FlattenXmlRunner {
                 "\nDefaults to streaming records as events");
         options.addOption("l", "newline", true,
                 "Replacement character for newline character in the data");
+        options.addOption("q", "quote", true,
+                "Treatment of values containing the delimiter.\nNONE|QUOTE|ESCAPE.\n" +
+                        "NONE - write values as they are\n" +
+                        "QUOTE - enclose values in double quotes as per RFC 4180\n" +
+                        "ESCAPE - precede delimiters and backslashes in values with a backslash\n" +
+                        "CSV output format only");
+        options.addOption("k", "keep-parts", false,
+                "Retain the part files written by each worker, suffixed with _part1, _part2, etc." +
+                "\nDefaults to concatenating the parts into one file per record type" +
+                "\nCSV, JSONL and JSONL_NESTED output formats only");
+        options.addOption("t", "output-format", true,
+                "Format of the output files.\nCSV|ARROW|ARROW_STREAM|JSONL|JSONL_NESTED|JDBC|PGCOPY.\n" +
+                        "Defaults to CSV\n" +
+                        "ARROW - Arrow IPC file per record type\n" +
+                        "ARROW_STREAM - Arrow IPC stream per record type\n" +
+                        "JSONL - JSON Lines file per record type\n" +
+                        "JSONL_NESTED - JSON Lines with cascaded fields nested in an object per ancestor\n" +
+                        "JDBC - Load a database table per record type. Requires -j\n" +
+                        "PGCOPY - PostgreSQL binary COPY file per record type, typed as per the XSDs");
+        options.addOption("j", "jdbc-url", true,
+                "JDBC URL of the database to load with the JDBC output format, including any credentials." +
+                "\nIts driver must be on the classpath");
+        options.addOption("b", "segment-bytes", true,
+                "Roll output files over into segments of this size, suffixed with _seg1, _seg2, etc." +
+                "\nSize in bytes or with a K, M or G suffix. Completed segments are listed in segments.manifest" +
+                "\nWith output fields defined, each worker fills segments of its own, and the partly filled" +
+                " last segments of the workers are packed together when the output is closed");
+        options.addOption("m", "segment-records", true,
+                "Roll output files over into segments of at most this number of records" +
+                "\nApplies to the segments of each worker as -b does" +
+                "\nCSV, JSONL and JSONL_NESTED output formats only, as for -b");
 
         setup = new FlattenXml.FlattenXmlBuilder();
     }
@@ -132,6 +208,54 @@ public class FlattenXmlRunner {
             }
         }
 
+        // Retain the part files of workers
+        if (cmd.hasOption("k")) {
+            mergeParts = false;
+        }
+
+        // Format of the output files
+        if (cmd.hasOption("t")) {
+            try {
+                outputFormat = OutputFormat.valueOf(cmd.getOptionValue("t").trim().toUpperCase());
+            } catch (IllegalArgumentException ex) {
+                throw new IllegalArgumentException(
+                        "Output format must be one of " + Arrays.toString(OutputFormat.values()), ex);
+            }
+        }
+        if (cmd.hasOption("j")) {
+            jdbcUrl = cmd.getOptionValue("j").trim();
+        }
+        if (outputFormat == OutputFormat.JDBC && jdbcUrl == null) {
+            throw new IllegalArgumentException("JDBC URL of the database must be provided with -j");
+        }
+        // Options the output format would ignore are rejected
+        boolean sharded = outputFormat == OutputFormat.CSV
+                || outputFormat == OutputFormat.JSONL || outputFormat == OutputFormat.JSONL_NESTED;
+        for (String option: new String[]{"k", "b", "m"}) {
+            if (cmd.hasOption(option) && !sharded) {
+                throw new IllegalArgumentException(
+                        "Option -" + option + " applies only to the CSV, JSONL and JSONL_NESTED output formats");
+            }
+        }
+        if (cmd.hasOption("q") && outputFormat != OutputFormat.CSV) {
+            throw new IllegalArgumentException("Option -q applies only to the CSV output format");
+        }
+
+        // Roll output files over into segments
+        try {
+            if (cmd.hasOption("b")) {
+                segmentBytes = parseSize(cmd.getOptionValue("b"));
+            }
+            if (cmd.hasOption("m")) {
+                segmentRecords = Long.parseLong(cmd.getOptionValue("m").trim());
+            }
+        } catch (NumberFormatException ex) {
+            throw new NumberFormatException("Options -b and -m should be numeric");
+        }
+        if (segmentBytes < 1 || segmentRecords < 1) {
+            throw new IllegalArgumentException("Segment size and number of records cannot be less than 1");
+        }
+
         // Multiplex records as a string blob to multiple XML flattening workers
         if (cmd.hasOption("s")) {
             streamRecStrings = true;
@@ -158,6 +282,10 @@ public class FlattenXmlRunner {
 
                 // Cascading fields defined in XSD for a record
                 cascadePolicy = CascadePolicy.XSD;
+            } else if (cOptionValue.equalsIgnoreCase(CascadePolicy.KEY.toString())) {
+
+                // Cascading only the row id of the parent record
+                cascadePolicy = CascadePolicy.KEY;
             } else if (cOptionValue.equalsIgnoreCase(CascadePolicy.NONE.toString())) {
 
                 // No cascading
@@ -170,10 +298,35 @@ public class FlattenXmlRunner {
             }
         }
 
+        if (cmd.hasOption("a")) {
+            if (recordOutputFieldsDefFile == null) {
+                throw new IllegalArgumentException("Output cannot be projected if the output fields are not defined");
+            }
+            projectOutput = true;
+        }
+
+        if (cmd.hasOption("e")) {
+            recordFilter = RecordFilter.parse(cmd.getOptionValue("e"));
+        }
+
         // Read a list of comma separate XSD filenames
         if (cmd.hasOption("x")) {
             String[] xmlFiles = cmd.getOptionValue("x").split(",");
-            xsds = parseXsds(xmlFiles);
+            Set<QName> reachableFrom = cmd.hasOption("y") ? recordTypesOfInterest() : Collections.emptySet();
+            xsds = cmd.hasOption("z")
+                    ? parseXsds(xmlFiles, reachableFrom, new File(cmd.getOptionValue("z")))
+                    : parseXsds(xmlFiles, reachableFrom);
+
+            // Schema for validation is compiled once for all the workers
+            if (cmd.hasOption("v")) {
+                try {
+                    recordValidator = RecordValidator.newInstance(xmlFiles, new File(cmd.getOptionValue("v")));
+                } catch (SAXException ex) {
+                    throw new IllegalArgumentException("XSDs could not be compiled for validating the records", ex);
+                }
+            }
+        } else if (cmd.hasOption("v")) {
+            throw new IllegalArgumentException("Records cannot be validated if XSD files are not provided");
         }
 
         // Replace new line characters in the character data of elements
@@ -185,6 +338,15 @@ public class FlattenXmlRunner {
             newlineReplacement = "~";
         }
 
+        // Quote or escape the values containing the delimiter
+        if (cmd.hasOption("q")) {
+            try {
+                quoteMode = QuoteMode.valueOf(cmd.getOptionValue("q").trim().toUpperCase());
+            } catch (IllegalArgumentException ex) {
+                throw new IllegalArgumentException("Quote mode must be one of NONE, QUOTE or ESCAPE", ex);
+            }
+        }
+
         try {
             firstNRecs = cmd.hasOption("n") ? Long.parseLong(cmd.getOptionValue("n")) : 0;
             batchSize = cmd.hasOption("p") && cmd.getOptionValue("p") != null
@@ -210,7 +372,10 @@ public class FlattenXmlRunner {
                 .setCascadePolicy(cascadePolicy)
                 .setRecordCascadeFieldsSeq(recordCascadeFieldsDefFile)
                 .setRecordOutputFieldsSeq(recordOutputFieldsDefFile)
-                .setXsdFiles(xsds);
+                .setXsdFiles(xsds)
+                .setRecordFilter(recordFilter)
+                .setRecordValidator(recordValidator)
+                .setProjectOutput(projectOutput);
 
         InputStream xmlStream = new FileInputStream(xmlFilePath);
         setup.setXmlStream(xmlStream);
@@ -250,6 +415,8 @@ public class FlattenXmlRunner {
         }
 
         recordHandler.closeAllFileStreams();
+        reportFilteredRecords();
+        closeRecordValidator();
         filesGenerated = recordHandler.getFilesWritten();
         rootTagName =  flattener.getRootElement().getName().getLocalPart();
         displayFilesGenerated(filesGenerated, rootTagName);
@@ -277,23 +444,30 @@ public class FlattenXmlRunner {
             emitter = new XmlRecordStringEmitter.XmlByteStreamEmitterBuilder()
                     .setXmlFile(xmlFilePath)
                     .setNumProducers(numProducers)
+                    // Records are filtered on their text before they are sent to the workers
+                    .setRecordFilter(recordFilter)
                     .create();
         } else {
             System.out.println("Employing event streaming for dispatching XML records to workers");
             emitter = new XmlRecordEventEmitter.XmlEventEmitterBuilder()
                     .setXmlFile(xmlFilePath)
+                    // Records rejected by the workers are reported with their locations in the XML file
+                    .setMarkRecordLocations(recordValidator != null)
                     .create();
         }
 
         XmlFlattenerWorkerFactory workerFactory = XmlFlattenerWorkerFactory.newInstance(
                 xmlFilePath, outDir, delimiter, recordTag, recordHandler,
                 cascadePolicy, xsds, recordCascadeFieldsDefFile, recordOutputFieldsDefFile,
+                streamRecStrings ? null : recordFilter, recordValidator, projectOutput,
                 batchSize, statusReporter);
 
         XmlEventWorkerPool workerPool = new XmlEventWorkerPool();
         workerPool.execute(numWorkers, emitter, workerFactory);
         statusReporter.showProgress();
         recordHandler.closeAllFileStreams();
+        reportFilteredRecords();
+        closeRecordValidator();
         rootTagName = emitter.getRootTag().getLocalPart();
 
         System.out.println();
@@ -306,15 +480,29 @@ public class FlattenXmlRunner {
         displayFilesGenerated(filesGenerated, rootTagName);
     }
 
+    private void reportFilteredRecords() {
+        if (recordFilter != null) {
+            System.out.printf("%n%d records did not satisfy the filter %s%n",
+                    recordFilter.getRejectCount(), recordFilter);
+        }
+    }
+
+    private void closeRecordValidator() throws IOException {
+        if (recordValidator == null) {
+            return;
+        }
+        recordValidator.close();
+        System.out.printf("%n%d records were not valid and were written to %s%n",
+                recordValidator.getRejectCount(), recordValidator.getRejectFile());
+    }
+
     private  Collection<GeneratedResult> run(String[] args)
             throws InterruptedException, XMLStreamException, IOException {
         cmd = parseCliArgs(args);
         assignOptions();
 
         // Create output record handler
-        recordHandler = new DelimitedFileWriter(delimiter, outDir,
-                outputRecordsDefined(),
-                statusReporter, newlineReplacement);
+        recordHandler = createRecordHandler();
         setup.setRecordWriter(recordHandler);
 
         if (numWorkers == 1) {
@@ -373,11 +561,87 @@ public class FlattenXmlRunner {
         }
     }
 
+    private RecordHandler createRecordHandler() {
+        switch (outputFormat) {
+            case ARROW:
+            case ARROW_STREAM:
+                return new ArrowFileWriter.ArrowFileWriterBuilder()
+                        .setOutDir(outDir)
+                        .setStatusReporter(statusReporter)
+                        .setStreamFormat(outputFormat == OutputFormat.ARROW_STREAM)
+                        .create();
+            case JSONL:
+            case JSONL_NESTED:
+                return new JsonLinesWriter.JsonLinesWriterBuilder()
+                        .setOutDir(outDir)
+                        .setStatusReporter(statusReporter)
+                        .setNestCascades(outputFormat == OutputFormat.JSONL_NESTED)
+                        .setMergeParts(mergeParts)
+                        .setSegmentSize(segmentBytes)
+                        .setSegmentRecords(segmentRecords)
+                        .create();
+            case JDBC:
+                return new JdbcWriter.JdbcWriterBuilder()
+                        .setJdbcUrl(jdbcUrl)
+                        .setStatusReporter(statusReporter)
+                        .create();
+            case PGCOPY:
+                return new PgCopyWriter.PgCopyWriterBuilder()
+                        .setOutDir(outDir)
+                        .setStatusReporter(statusReporter)
+                        .setXsds(xsds)
+                        .create();
+            default:
+                return new DelimitedFileWriter.DelimitedFileWriterBuilder()
+                        .setDelimiter(delimiter)
+                        .setOutDir(outDir)
+                        .setOutFieldsDefined(outputRecordsDefined())
+                        .setStatusReporter(statusReporter)
+                        .setNewlineReplacement(newlineReplacement)
+                        .setQuoteMode(quoteMode)
+                        .setMergeParts(mergeParts)
+                        .setSegmentSize(segmentBytes)
+                        .setSegmentRecords(segmentRecords)
+                        .create();
+        }
+    }
+
     private boolean outputRecordsDefined() {
         return recordOutputFieldsDefFile != null && recordCascadeFieldsDefFile != null ||
                 !xsds.isEmpty();
     }
 
+    /**
+     * @return record tag and the record types in the output fields YAML, to prune the XSDs to
+     */
+    private Set<QName> recordTypesOfInterest() throws IOException {
+        Set<QName> recordTypes = new HashSet<>();
+        if (recordTag != null) {
+            recordTypes.add(parsePrefixTag(recordTag));
+        }
+        if (recordOutputFieldsDefFile != null) {
+            recordTypes.addAll(RecordDefinitions.newInstance(recordOutputFieldsDefFile).getRecords());
+        }
+        return recordTypes;
+    }
+
+    /**
+     * @param size - number of bytes, optionally suffixed with K, M or G
+     * @return number of bytes
+     */
+    private static long parseSize(String size) {
+        String value = size.trim().toUpperCase();
+        int shift = value.endsWith("K") ? 10 : value.endsWith("M") ? 20 : value.endsWith("G") ? 30 : 0;
+        if (shift > 0) {
+            value = value.substring(0, value.length() - 1);
+        }
+        try {
+            return Math.multiplyExact(Long.parseLong(value), 1L << shift);
+        } catch (ArithmeticException ex) {
+            throw new IllegalArgumentException("Segment size is too large: " + size, ex);
+        }
+    }
+
     private static void createOutputDirectory(String outDir) throws IOException {
         // Create output directory path
         Files.createDirectories(Paths.get(outDir));
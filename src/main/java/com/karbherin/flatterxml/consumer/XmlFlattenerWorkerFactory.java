@@ -2,8 +2,11 @@ package com.karbherin.flatterxml.consumer;
 
 import com.karbherin.flatterxml.FlattenXml;
 import com.karbherin.flatterxml.model.RecordDefinitions;
+import com.karbherin.flatterxml.model.RecordFilter;
 import com.karbherin.flatterxml.output.StatusReporter;
 import com.karbherin.flatterxml.output.RecordHandler;
+import com.karbherin.flatterxml.xsd.RecordValidator;
+import com.karbherin.flatterxml.xsd.SchemaIndex;
 import com.karbherin.flatterxml.xsd.XmlSchema;
 
 import static com.karbherin.flatterxml.AppConstants.*;
@@ -18,11 +21,15 @@ public class XmlFlattenerWorkerFactory implements XmlEventWorkerFactory {
 
     private final String recordTag;
     private final List<XmlSchema> xsds;
+    private final SchemaIndex schemaIndex;
     private final CascadePolicy cascadePolicy;
     private final RecordDefinitions recordCascadeFieldsSeq;
     private final RecordDefinitions recordOutputFieldsSeq;
     private final long batchSize;
     private final StatusReporter statusReporter;
+    private final RecordFilter recordFilter;
+    private final RecordValidator recordValidator;
+    private final boolean projectOutput;
     private int workerNumber = 0;
     private RecordHandler recordHandler;
 
@@ -31,16 +38,23 @@ public class XmlFlattenerWorkerFactory implements XmlEventWorkerFactory {
                                       List<XmlSchema> xsds,
                                       RecordDefinitions recordCascadeFieldsSeq,
                                       RecordDefinitions recordOutputFieldsSeq,
+                                      RecordFilter recordFilter, RecordValidator recordValidator,
+                                      boolean projectOutput,
                                       long batchSize, StatusReporter statusReporter) {
 
         this.recordTag = recordTag;
         this.xsds = xsds;
+        // Indexed once for all the workers
+        this.schemaIndex = SchemaIndex.of(xsds);
         this.cascadePolicy = cascadePolicy;
         this.recordCascadeFieldsSeq = recordCascadeFieldsSeq;
         this.recordOutputFieldsSeq = recordOutputFieldsSeq;
         this.batchSize = batchSize;
         this.statusReporter = statusReporter;
         this.recordHandler = recordHandler;
+        this.recordFilter = recordFilter;
+        this.recordValidator = recordValidator;
+        this.projectOutput = projectOutput;
     }
 
     public static XmlFlattenerWorkerFactory newInstance(String xmlFilePath, String outDir, String delimiter,
@@ -49,6 +63,9 @@ public class XmlFlattenerWorkerFactory implements XmlEventWorkerFactory {
                                                         List<XmlSchema> xsds,
                                                         File recordCascadeFieldsDefFile,
                                                         File recordOutputFieldsDefFile,
+                                                        RecordFilter recordFilter,
+                                                        RecordValidator recordValidator,
+                                                        boolean projectOutput,
                                                         long batchSize, StatusReporter statusReporter)
             throws IOException {
 
@@ -66,6 +83,7 @@ public class XmlFlattenerWorkerFactory implements XmlEventWorkerFactory {
 
         return new XmlFlattenerWorkerFactory(recordTag, recordHandler,
                 cascadePolicy, xsds, recordCascadeFieldsSeq, recordOutputFieldsSeq,
+                recordFilter, recordValidator, projectOutput,
                 batchSize, statusReporter);
     }
 
@@ -80,10 +98,17 @@ public class XmlFlattenerWorkerFactory implements XmlEventWorkerFactory {
         final FlattenXml.FlattenXmlBuilder setup = new FlattenXml.FlattenXmlBuilder()
                 .setRecordTag(recordTag)
                 .setXsdFiles(xsds)
+                .setSchemaIndex(schemaIndex)
                 .setCascadePolicy(cascadePolicy)
                 .setRecordCascadeFieldsSeq(recordCascadeFieldsSeq)
                 .setRecordOutputFieldsSeq(recordOutputFieldsSeq)
                 .setRecordWriter(recordHandler)
+                .setWorkerNumber(workerNum - 1)
+                // Schema is compiled once and each worker filters and validates its own records
+                .setRecordFilter(recordFilter)
+                .setRecordValidator(recordValidator)
+                .setRecordFeed(true)
+                .setProjectOutput(projectOutput)
                 .setXmlStream(Channels.newInputStream(channel));
 
         // Return the worker to run in a thread
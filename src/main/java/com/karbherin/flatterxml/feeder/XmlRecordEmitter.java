@@ -7,6 +7,13 @@ import java.nio.channels.Pipe;
 
 public interface XmlRecordEmitter {
 
+    /**
+     * Target of the processing instruction an emitter can send ahead of each record, with the number of the record
+     * in the XML file and the line its start tag is on, such as {@code <?flatter-xml-record 5 92?>}.
+     * A worker reads its records from a pipe and cannot otherwise tell where they are in the XML file.
+     */
+    String RECORD_LOCATION_TARGET = "flatter-xml-record";
+
     /**
      * Register a pipe to an events worker.
      * @param channel
@@ -15,6 +15,7 @@ import java.util.List;
 public class XmlRecordEventEmitter implements XmlRecordEmitter {
 
     private final XMLOutputFactory outputFactory = XMLOutputFactory.newFactory();
+    private final XMLEventFactory eventFactory = XMLEventFactory.newFactory();
     private final List<XMLEventWriter> channels = new ArrayList<>();
     private final List<OutputStream> pipes = new ArrayList<>();
     private final String xmlFile;
@@ -22,9 +23,12 @@ public class XmlRecordEventEmitter implements XmlRecordEmitter {
     private long firstNRecs;
     private QName rootTag = null;
     private QName recordTag = null;
+    private final boolean markRecordLocations;
 
     // Return number of records processed
     private long recCounter = 0;
+    // Records read from the XML file, including the ones skipped
+    private long recordsRead = 0;
 
     /**
      * Split the XML file and distribute the records into multiple XMLs.
@@ -32,13 +36,15 @@ public class XmlRecordEventEmitter implements XmlRecordEmitter {
      * @param xmlFile
      * @param skipRecs   - 0 disables skipping records
      * @param firstNRecs - 0 disables limiting to first N records
+     * @param markRecordLocations - sends the location of each record in the XML file ahead of it
      * @throws IOException
      * @throws XMLStreamException
      */
-    private XmlRecordEventEmitter(String xmlFile, long skipRecs, long firstNRecs) {
+    private XmlRecordEventEmitter(String xmlFile, long skipRecs, long firstNRecs, boolean markRecordLocations) {
         this.xmlFile = xmlFile;
         this.skipRecs = skipRecs;
         this.firstNRecs = firstNRecs;
+        this.markRecordLocations = markRecordLocations;
     }
 
     /**
@@ -122,8 +128,16 @@ public class XmlRecordEventEmitter implements XmlRecordEmitter {
                     sendToAllChannels(ev);
                 }
 
+                if (!tracking && startTag.equals(recordTag)) {
+                    recordsRead++;
+                }
+
                 if (startTag.equals(recordTag) && skipRecs == 0 && firstNRecs-- > 0) {
                     tracking = true;
+                    if (markRecordLocations) {
+                        channel.add(eventFactory.createProcessingInstruction(RECORD_LOCATION_TARGET,
+                                recordsRead + " " + ev.getLocation().getLineNumber()));
+                    }
                 }
             }
 
@@ -188,6 +202,7 @@ public class XmlRecordEventEmitter implements XmlRecordEmitter {
         private String xmlFile;
         private long skipRecs = 0;
         private long firstNRecs = Long.MAX_VALUE;
+        private boolean markRecordLocations = false;
 
         public XmlEventEmitterBuilder setXmlFile(String xmlFile) {
             this.xmlFile = xmlFile;
@@ -204,8 +219,18 @@ public class XmlRecordEventEmitter implements XmlRecordEmitter {
             return this;
         }
 
+        /**
+         * @param markRecordLocations - sends a {@link #RECORD_LOCATION_TARGET} processing instruction ahead of
+         *                            each record, for the workers to report where the records they reject are
+         * @return
+         */
+        public XmlEventEmitterBuilder setMarkRecordLocations(boolean markRecordLocations) {
+            this.markRecordLocations = markRecordLocations;
+            return this;
+        }
+
         public XmlRecordEventEmitter create() {
-            return new XmlRecordEventEmitter(xmlFile, skipRecs, firstNRecs);
+            return new XmlRecordEventEmitter(xmlFile, skipRecs, firstNRecs, markRecordLocations);
         }
     }
 
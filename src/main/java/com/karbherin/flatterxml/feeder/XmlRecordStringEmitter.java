@@ -2,6 +2,7 @@ package com.karbherin.flatterxml.feeder;
 
 import com.karbherin.flatterxml.helper.XmlHelpers;
 import com.karbherin.flatterxml.model.Pair;
+import com.karbherin.flatterxml.model.RecordFilter;
 import static com.karbherin.flatterxml.helper.ParsingHelpers.*;
 
 import javax.xml.namespace.QName;
@@ -28,6 +29,8 @@ public class XmlRecordStringEmitter implements XmlRecordEmitter {
     private long firstNRecs;
     private final Charset charset;
     private final int numProducers;
+    // Records not satisfying the filter are dropped before they are sent to the workers
+    private final RecordFilter recordFilter;
 
     // Return number of records processed
     private final AtomicLong recCounter = new AtomicLong(0);
@@ -47,12 +50,13 @@ public class XmlRecordStringEmitter implements XmlRecordEmitter {
     private static final int ALIGN_WORD_SIZE = 4;
 
     private XmlRecordStringEmitter(String xmlFile, long skipRecs, long firstNRecs, Charset charset,
-                                   int numProducers) throws IOException {
+                                   int numProducers, RecordFilter recordFilter) throws IOException {
         this.xmlFile = xmlFile;
         this.skipRecs = skipRecs;
         this.firstNRecs = firstNRecs;
         this.charset = charset;
         this.numProducers = numProducers;
+        this.recordFilter = recordFilter;
 
         xmlFilePath = Paths.get(xmlFile);
         fileSize = xmlFilePath.toFile().length();
@@ -123,7 +127,7 @@ public class XmlRecordStringEmitter implements XmlRecordEmitter {
         CharsetDecoder decoder = newDecoder();
         SeekableByteChannel reader = Files.newByteChannel(xmlFilePath, StandardOpenOption.READ);
         int workersPerProducer = channels.size() / numProducers;
-        XmlScanner scanner = new XmlScanner(reader, decoder, allocateWorkers(0), chunkSize);
+        XmlScanner scanner = newScanner(reader, decoder, allocateWorkers(0), chunkSize);
         String str = scanner.next();
 
         // Identify root tag
@@ -151,7 +155,7 @@ public class XmlRecordStringEmitter implements XmlRecordEmitter {
                     : chunkSize;
 
             workerReader.position(startPoint);
-            XmlScanner workerScanner = new XmlScanner(workerReader, workerDecoder, allocateWorkers(t), chunkLength);
+            XmlScanner workerScanner = newScanner(workerReader, workerDecoder, allocateWorkers(t), chunkLength);
             lastWorkerScanner = workerScanner;
 
             Thread worker = new Thread(recordsWorker(workerScanner, workerCounter));
@@ -204,7 +208,10 @@ public class XmlRecordStringEmitter implements XmlRecordEmitter {
             if (coord != TAG_NOTFOUND_COORDS) {
                 str = scanner.compose(str, coord.getVal());
 
-                if (skipRecs == 0 && firstNRecs-- > 0) {
+                if (skipRecs == 0 && firstNRecs > 0 && !acceptRecord(scanner)) {
+                    // Record is dropped without counting it in the first N records
+                    scanner.discardComposed();
+                } else if (skipRecs == 0 && firstNRecs-- > 0) {
                     // Write the record to active channel
                     scanner.sendToChannel();
                     recCounter.incrementAndGet();
@@ -301,9 +308,36 @@ public class XmlRecordStringEmitter implements XmlRecordEmitter {
 
         if (coord != TAG_NOTFOUND_COORDS) {
             scanner.compose(str, coord.getVal());
-            scanner.sendToChannel();
-            recCounter.incrementAndGet();
+            if (acceptRecord(scanner)) {
+                scanner.sendToChannel();
+                recCounter.incrementAndGet();
+            } else {
+                scanner.discardComposed();
+            }
+        }
+    }
+
+    /**
+     * Tests the record composed for writing against the filter, searching its decoded text for the elements
+     * filtered on.
+     * @param scanner
+     * @return true if the record is to be sent to a worker
+     */
+    private boolean acceptRecord(XmlScanner scanner) {
+        if (recordFilter == null || recordFilter.test(scanner.composed())) {
+            return true;
         }
+        recordFilter.countReject();
+        return false;
+    }
+
+    /**
+     * Creates a scanner that retains the text of the records composed if they are to be filtered.
+     */
+    private XmlScanner newScanner(ReadableByteChannel reader, CharsetDecoder decoder,
+                                  List<Pipe.SinkChannel> workers, long bytesReadLimit) {
+        XmlScanner scanner = new XmlScanner(reader, decoder, workers, bytesReadLimit);
+        return recordFilter == null ? scanner : scanner.retainComposedText();
     }
 
     /**
@@ -371,6 +405,7 @@ public class XmlRecordStringEmitter implements XmlRecordEmitter {
         private long firstNRecs = Long.MAX_VALUE;
         private Charset charset = Charset.defaultCharset();
         private int numProducers = 1;
+        private RecordFilter recordFilter = null;
 
         public XmlByteStreamEmitterBuilder setXmlFile(String xmlFile) {
             this.xmlFile = xmlFile;
@@ -402,8 +437,13 @@ public class XmlRecordStringEmitter implements XmlRecordEmitter {
             return this;
         }
 
+        public XmlByteStreamEmitterBuilder setRecordFilter(RecordFilter recordFilter) {
+            this.recordFilter = recordFilter;
+            return this;
+        }
+
         public XmlRecordStringEmitter create() throws IOException {
-            return new XmlRecordStringEmitter(xmlFile, skipRecs, firstNRecs, charset, numProducers);
+            return new XmlRecordStringEmitter(xmlFile, skipRecs, firstNRecs, charset, numProducers, recordFilter);
         }
     }
 
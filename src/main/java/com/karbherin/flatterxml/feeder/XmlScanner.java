@@ -31,6 +31,7 @@ class XmlScanner {
     private WritableByteChannel channel; //
     private int channelNum = 0;
     private ByteBuffer composeBuffer = ByteBuffer.allocate(COMPOSE_BUFFER_SIZE); // Buffer to compose a writing
+    private StringBuilder composedText = null; // Decoded text composed, if retained
 
     private static final int READ_BUFFER_SIZE = 2048;
     private static final int COMPOSE_BUFFER_SIZE = 2048;
@@ -98,6 +99,9 @@ class XmlScanner {
         }
 
         composeBuffer.put(dataBytes);
+        if (composedText != null) {
+            composedText.append(data, 0, cut);
+        }
         return data.substring(cut) + next();
     }
 
@@ -109,10 +113,34 @@ class XmlScanner {
     public XmlScanner sendToChannel() throws IOException {
         composeBuffer.flip();
         channel.write(composeBuffer);
-        composeBuffer.clear();
+        clearComposed();
         return this;
     }
 
+    /**
+     * Retains the decoded text composed, as well as its bytes, to look into the text before sending it.
+     * @return
+     */
+    public XmlScanner retainComposedText() {
+        composedText = new StringBuilder(COMPOSE_BUFFER_SIZE);
+        return this;
+    }
+
+    /**
+     * Text composed for writing so far, as decoded when it was read. Valid until the composition is sent.
+     * @return
+     */
+    public CharSequence composed() {
+        return composedText;
+    }
+
+    /**
+     * Drops the contents of composition buffer without sending them.
+     */
+    public void discardComposed() {
+        clearComposed();
+    }
+
     /**
      * Start document and end document events are sent to all workers.
      * Send the contents of composition buffer to all channels.
@@ -125,7 +153,7 @@ class XmlScanner {
             composeBuffer.flip();
             channel.write(composeBuffer);
         }
-        composeBuffer.clear();
+        clearComposed();
         return this;
     }
 
@@ -158,6 +186,13 @@ class XmlScanner {
         return charBuf.array();
     }
 
+    private void clearComposed() {
+        composeBuffer.clear();
+        if (composedText != null) {
+            composedText.setLength(0);
+        }
+    }
+
     private void resizeComposeBuffer(int dataLength) {
         // Allocate new buffer capacity
         int capacity = composeBuffer.capacity();
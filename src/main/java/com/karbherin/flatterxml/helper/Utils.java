@@ -3,15 +3,9 @@ package com.karbherin.flatterxml.helper;
 import com.karbherin.flatterxml.model.Pair;
 
 import java.util.*;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
-import static java.util.Collections.*;
-import static java.util.Comparator.comparing;
-import static java.util.Optional.ofNullable;
-import static java.util.stream.Collectors.toList;
-
 public class Utils {
     public static<T> Stream<T> iteratorStream(Iterator<T> iterator) {
         return StreamSupport.stream(
@@ -42,63 +36,134 @@ public class Utils {
         }
     }
 
+    /**
+     * Merges column sequences into one sequence holding all the columns.
+     * Columns are the nodes of a graph with an edge from each column to the column following it
+     * in a sequence, weighted by the counts of the sequences. Among the successors of a column
+     * the heavier ones come first, unless a successor also follows another successor.
+     * The merged sequence is the topological order of a depth first traversal from the first columns.
+     * Runs in time linear in the total length of the sequences plus the successors of successors,
+     * without recursion.
+     * @param seqs   - column sequences
+     * @param counts - weight of each sequence, such as its number of records
+     * @return merged sequence of columns
+     */
     public static List<String> collapseSequences(List<String[]> seqs, List<Integer> counts) {
-        List<String> collapsed = new ArrayList<>();
-        Map<String, Map<String, Integer>> successors = new HashMap<>();
+        // Column ids. Id 0 is the start of every sequence.
+        Map<String, Integer> ids = new HashMap<>();
+        List<String> names = new ArrayList<>();
+        names.add(null);
+
+        // Edges in the order they are first seen: {(from, to): edge}
+        Map<Long, Integer> edgeIds = new HashMap<>();
+        List<List<Integer>> outEdges = new ArrayList<>();
+        outEdges.add(new ArrayList<>());
+        int[] edgeTo = new int[16];
+        long[] edgeCount = new long[16];
+        int numEdges = 0;
+        // Edge last taken from each column. Sequences tend to repeat, making the edge map lookup rare.
+        int[] lastEdge = new int[16];
+        Arrays.fill(lastEdge, -1);
 
         for (int i = 0; i < seqs.size(); i++) {
-            String[] seq = seqs.get(i);
-            String precede = null;
-            for (String successor : seq) {
-                successors.putIfAbsent(precede, new LinkedHashMap<>());
-                Map<String, Integer> nextTokens = successors.get(precede);
+            int precede = 0;
+            long count = counts.get(i);
+            for (String col : seqs.get(i)) {
+                Integer successor = ids.get(col);
+                if (successor == null) {
+                    successor = names.size();
+                    ids.put(col, successor);
+                    names.add(col);
+                    outEdges.add(new ArrayList<>());
+                    if (successor == lastEdge.length) {
+                        lastEdge = Arrays.copyOf(lastEdge, successor * 2);
+                        Arrays.fill(lastEdge, successor, lastEdge.length, -1);
+                    }
+                }
 
-                nextTokens.put(successor, counts.get(i) + nextTokens.getOrDefault(successor, 0));
+                int edge = lastEdge[precede];
+                if (edge < 0 || edgeTo[edge] != successor) {
+                    edge = edgeFor(edgeIds, precede, successor);
+                }
+                if (edge < 0) {
+                    if (numEdges == edgeTo.length) {
+                        edgeTo = Arrays.copyOf(edgeTo, numEdges * 2);
+                        edgeCount = Arrays.copyOf(edgeCount, numEdges * 2);
+                    }
+                    edge = numEdges++;
+                    edgeIds.put((long) precede << 32 | successor, edge);
+                    edgeTo[edge] = successor;
+                    outEdges.get(precede).add(edge);
+                }
+                edgeCount[edge] += count;
+                lastEdge[precede] = edge;
                 precede = successor;
             }
         }
 
-        Map<String, List<String>> successors2 = successors.entrySet().stream()
-                .collect(Collectors.toMap(
-                        e -> e.getKey(),
-                        e -> {
-                            Set<String> exclude = new HashSet<>();
-                            List<String> list = e.getValue().entrySet().stream()
-                                    .sorted(reverseOrder(comparing(Map.Entry::getValue)))
-                                    .map(ent -> {
-                                        exclude.addAll(ofNullable(successors.get(ent.getKey()))
-                                                .orElse(emptyMap())
-                                                .keySet());
-                                        return ent.getKey();
-                                    })
-                                    .filter(col -> !exclude.contains(col))
-                                    .collect(toList());
-                            Collections.reverse(list);
-                            return list;
-                        }
-                ));
-        Deque<String> postOrder = new ArrayDeque<>();
-        dfsSuccessors(successors2, postOrder, collapsed, null);
-
-        for (int i = 0; !postOrder.isEmpty(); i++) {
-            collapsed.set(i, postOrder.pop());
+        // Order the successors of each column by weight. A successor that follows a heavier or
+        // equally weighted successor is left to be reached through it.
+        int numCols = names.size();
+        int[][] successors = new int[numCols][];
+        int[] excludedBy = new int[numCols];
+        final long[] weights = edgeCount;
+        for (int col = 0; col < numCols; col++) {
+            List<Integer> byWeight = new ArrayList<>(outEdges.get(col));
+            byWeight.sort((e1, e2) -> Long.compare(weights[e2], weights[e1]));
+
+            int stamp = col + 1;
+            int[] kept = new int[byWeight.size()];
+            int numKept = 0;
+            for (int edge : byWeight) {
+                int next = edgeTo[edge];
+                for (int nextEdge : outEdges.get(next)) {
+                    excludedBy[edgeTo[nextEdge]] = stamp;
+                }
+                if (excludedBy[next] != stamp) {
+                    kept[numKept++] = next;
+                }
+            }
+
+            // Lightest successor is visited first and ends up last in the topological order
+            successors[col] = new int[numKept];
+            for (int k = 0; k < numKept; k++) {
+                successors[col][k] = kept[numKept - 1 - k];
+            }
         }
-        return collapsed;
+
+        // Iterative depth first traversal from the start, recording columns in post order
+        boolean[] marked = new boolean[numCols];
+        int[] stackCol = new int[numCols + 1];
+        int[] stackNext = new int[numCols + 1];
+        int top = 0;
+        stackCol[0] = 0;
+        stackNext[0] = 0;
+        List<String> postOrder = new ArrayList<>();
+        while (top >= 0) {
+            int col = stackCol[top];
+            if (stackNext[top] < successors[col].length) {
+                int next = successors[col][stackNext[top]++];
+                if (!marked[next]) {
+                    marked[next] = true;
+                    top++;
+                    stackCol[top] = next;
+                    stackNext[top] = 0;
+                }
+            } else {
+                if (col != 0) {
+                    postOrder.add(names.get(col));
+                }
+                top--;
+            }
+        }
+
+        Collections.reverse(postOrder);
+        return postOrder;
     }
 
-    private static void dfsSuccessors(Map<String, List<String>> successors,
-                                      Deque<String> postOrder,
-                                      List<String> marked,
-                                      String startWith) {
-
-        successors.getOrDefault(startWith, emptyList())
-                .stream()
-                .filter(col -> marked.indexOf(col) < 0)
-                .forEach(nextCol -> {
-                    marked.add(nextCol);
-                    dfsSuccessors(successors, postOrder, marked, nextCol);
-                    postOrder.push(nextCol);
-                });
+    private static int edgeFor(Map<Long, Integer> edgeIds, int from, int to) {
+        Integer edge = edgeIds.get((long) from << 32 | to);
+        return edge == null ? -1 : edge;
     }
 
     public static <T, N extends Number> N pathExists(Map<T, Map<T, N>> graph, T src, T tgt, N zeroWeight) {
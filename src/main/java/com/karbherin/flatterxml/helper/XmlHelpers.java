@@ -1,5 +1,6 @@
 package com.karbherin.flatterxml.helper;
 
+import com.karbherin.flatterxml.xsd.SchemaCache;
 import com.karbherin.flatterxml.xsd.XmlSchema;
 import org.xml.sax.SAXException;
 
@@ -13,6 +14,7 @@ import javax.xml.stream.events.StartElement;
 import javax.xml.stream.events.XMLEvent;
 import javax.xml.transform.Source;
 import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
 import javax.xml.validation.SchemaFactory;
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -30,6 +32,7 @@ public class XmlHelpers {
     public static final String COMMA_DELIM = ",";
     public static final String EMPTY = "";
     public static final String ELEM_ATTR_FMT = "%s[%s]";
+    public static final String ROW_ID_FIELD = "row_id";
 
     /**
      * Stringifies of attributes on an XML start tag.
@@ -183,27 +186,62 @@ public class XmlHelpers {
     }
 
     public static void validateXml(String xmlFile, String xsdFiles[]) throws SAXException, IOException {
+        compileXsds(xsdFiles).newValidator().validate(new StreamSource(new File(xmlFile)));
+    }
+
+    /**
+     * Compiles XSD files into a schema to validate XML against. The schema is thread-safe and can be shared.
+     * @param xsdFiles - XSD files
+     * @return compiled schema
+     * @throws SAXException - if an XSD is not valid
+     */
+    public static Schema compileXsds(String[] xsdFiles) throws SAXException {
         Source[] xsds = new StreamSource[xsdFiles.length];
         Arrays.asList(xsdFiles).stream().map(f -> new StreamSource(f)).collect(Collectors.toList()).toArray(xsds);
-        SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI)
-                .newSchema(xsds)
-                .newValidator().validate(new StreamSource(new File(xmlFile)));
+        return SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI).newSchema(xsds);
     }
 
     public static List<XmlSchema> parseXsds(String[] xsdFiles)
             throws FileNotFoundException, XMLStreamException {
+        return parseXsds(xsdFiles, Collections.emptySet());
+    }
+
+    /**
+     * @param xsdFiles      - XSD files
+     * @param reachableFrom - record types of interest to keep only the elements reachable from, all if empty
+     * @return parsed XSDs with their references resolved
+     */
+    public static List<XmlSchema> parseXsds(String[] xsdFiles, Set<QName> reachableFrom)
+            throws FileNotFoundException, XMLStreamException {
 
         List<XmlSchema> xsds = new ArrayList<>();
         if (xsdFiles != null) {
-            for (String xsd : xsdFiles) {
-                xsds.add(new XmlSchema().parse(xsd));
-            }
+            xsds.addAll(XmlSchema.parse(Arrays.stream(xsdFiles).map(File::new).collect(Collectors.toList()),
+                    reachableFrom));
         }
 
         XmlSchema.resolveReferences(xsds);
         return xsds;
     }
 
+    /**
+     * Loads the XSDs from a cache of the parsed XSDs, or parses them and writes the cache if any of them changed.
+     * @param xsdFiles      - XSD files
+     * @param reachableFrom - record types of interest to keep only the elements reachable from, all if empty
+     * @param cacheFile     - cache of the parsed XSDs, see {@link SchemaCache}
+     * @return parsed XSDs with their references resolved
+     */
+    public static List<XmlSchema> parseXsds(String[] xsdFiles, Set<QName> reachableFrom, File cacheFile)
+            throws IOException, XMLStreamException {
+
+        List<XmlSchema> xsds = SchemaCache.load(xsdFiles, reachableFrom, cacheFile);
+        if (xsds == null) {
+            xsds = parseXsds(xsdFiles, reachableFrom);
+            SchemaCache.save(xsds, reachableFrom, cacheFile);
+        }
+        return xsds;
+    }
+
     @SuppressWarnings("unchecked")
     public static Iterator<Attribute> attributesIterator(StartElement el) {
         return (Iterator<Attribute>) el.getAttributes();
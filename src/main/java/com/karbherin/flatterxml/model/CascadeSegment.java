@@ -0,0 +1,132 @@
+package com.karbherin.flatterxml.model;
+
+import com.karbherin.flatterxml.helper.XmlHelpers;
+
+import java.util.*;
+
+/**
+ * Fields that a record cascades to its descendants, linked to the segments of its ancestors.
+ * A record's segment is shared by all its child records, and the segments of the ancestors by all the descendants,
+ * so entering a child record does not copy any fields. The fields are named with the record name as the prefix.
+ * Iterating the chain yields the fields of the nearest record first, as in the cascaded output columns.
+ */
+public final class CascadeSegment implements Iterable<Pair<String, String>> {
+
+    public static final CascadeSegment EMPTY = new CascadeSegment(Collections.emptyList(), null);
+
+    private final List<String> columns;
+    private String[] values;
+    private final CascadeSegment ancestors;
+
+    /**
+     * @param fields    - cascaded fields and their values
+     * @param ancestors - segment of the parent record, null for the root
+     */
+    public CascadeSegment(List<Pair<String, String>> fields, CascadeSegment ancestors) {
+        this.columns = new ArrayList<>(fields.size());
+        this.values = new String[fields.size()];
+        for (Pair<String, String> field: fields) {
+            values[columns.size()] = field.getVal();
+            columns.add(field.getKey());
+        }
+        this.ancestors = ancestors;
+    }
+
+    /**
+     * @param columns   - column names, which may grow along with the values
+     * @param values    - values of the columns, null or absent for empty values
+     * @param ancestors - segment of the parent record, null for the root
+     */
+    CascadeSegment(List<String> columns, String[] values, CascadeSegment ancestors) {
+        this.columns = columns;
+        this.values = values;
+        this.ancestors = ancestors;
+    }
+
+    /**
+     * @param cascadedFields - cascaded fields of any kind
+     * @return the chain itself if the fields are a chain, a single segment of the fields otherwise
+     */
+    @SuppressWarnings("unchecked")
+    public static CascadeSegment of(Iterable<Pair<String, String>> cascadedFields) {
+        if (cascadedFields instanceof CascadeSegment) {
+            return (CascadeSegment) cascadedFields;
+        }
+        List<Pair<String, String>> fields;
+        if (cascadedFields instanceof List) {
+            fields = (List<Pair<String, String>>) cascadedFields;
+        } else {
+            fields = new ArrayList<>();
+            cascadedFields.forEach(fields::add);
+        }
+        return new CascadeSegment(fields, null);
+    }
+
+    public int size() {
+        return columns.size();
+    }
+
+    public String column(int index) {
+        return columns.get(index);
+    }
+
+    /**
+     * @throws IllegalStateException if the segment's values were released for another record
+     */
+    public String value(int index) {
+        if (values == null) {
+            throw new IllegalStateException("Values of the cascaded fields were released for another record");
+        }
+        String value = index < values.length ? values[index] : null;
+        return value == null ? XmlHelpers.EMPTY : value;
+    }
+
+    void setValue(int index, String value) {
+        values[index] = value;
+    }
+
+    void setValues(String[] values) {
+        this.values = values;
+    }
+
+    /**
+     * Drops the values, whose array is reused for another record. The segment cannot be read any more.
+     */
+    void release() {
+        this.values = null;
+    }
+
+    /**
+     * @return segment of the parent record, null at the end of the chain
+     */
+    public CascadeSegment ancestors() {
+        return ancestors;
+    }
+
+    @Override
+    public Iterator<Pair<String, String>> iterator() {
+        return new Iterator<Pair<String, String>>() {
+            private CascadeSegment segment = CascadeSegment.this;
+            private int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                while (segment != null && index == segment.size()) {
+                    segment = segment.ancestors;
+                    index = 0;
+                }
+                return segment != null;
+            }
+
+            @Override
+            public Pair<String, String> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Pair<String, String> field = new Pair<>(segment.column(index), segment.value(index));
+                index++;
+                return field;
+            }
+        };
+    }
+}
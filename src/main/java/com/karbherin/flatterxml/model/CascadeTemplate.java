@@ -0,0 +1,131 @@
+package com.karbherin.flatterxml.model;
+
+import static com.karbherin.flatterxml.AppConstants.*;
+import static com.karbherin.flatterxml.helper.XmlHelpers.*;
+
+import com.karbherin.flatterxml.xsd.SchemaIndex;
+import com.karbherin.flatterxml.xsd.XsdAttribute;
+import com.karbherin.flatterxml.xsd.XsdElement;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.events.Namespace;
+import java.util.*;
+
+/**
+ * Fields that the records of a record type cascade to their child records, compiled once for the record type.
+ * Each field has a slot in the values of a record, looked up by the local names of the element, or the element
+ * and attribute. Column names are prefixed with the record name. Fields are defined by the user or by the XSDs.
+ * With the OUT cascade policy, fields are added to the template as they are first seen in a record of the type.
+ * The template is shared by all the records of the type, so the columns cascaded from a record are the fields seen
+ * so far on any record of its type, rather than those of the record alone. Fields the record does not have are
+ * cascaded empty. Records are written with the columns of their types at the time, and header variants of a table
+ * are normalized to the union of the columns.
+ */
+public final class CascadeTemplate {
+
+    private final QName recordName;
+    private final CascadePolicy cascadePolicy;
+    private final String columnPrefix;
+    private final List<String> columns = new ArrayList<>();
+    private final Map<String, Integer> slots = new HashMap<>();
+
+    /**
+     * @param recordName       - record type
+     * @param cascadeFields    - fields to cascade defined by the user, empty to follow the cascade policy
+     * @param cascadePolicy    - cascade policy
+     * @param schemaIndex      - elements of the XSD schemas to use as a reference for cascading fields
+     * @param xmlnsUriToPrefix - namespace prefixes of the document
+     */
+    public CascadeTemplate(QName recordName, List<RecordDefinitions.Field> cascadeFields,
+                           CascadePolicy cascadePolicy, SchemaIndex schemaIndex,
+                           Map<String, Namespace> xmlnsUriToPrefix) {
+        this.recordName = recordName;
+        this.cascadePolicy = cascadePolicy;
+        this.columnPrefix = toPrefixedTag(recordName) + ".";
+
+        // If caller explicitly specifies a fields cascade file then that is given priority.
+        if (cascadeFields != null && !cascadeFields.isEmpty()) {
+            for (RecordDefinitions.Field field: cascadeFields) {
+                String fieldLocalName = field.getName().getLocalPart();
+                if (slots.containsKey(fieldLocalName)) {
+                    continue;
+                }
+                String fieldName = toPrefixedTag(field.getName(), xmlnsUriToPrefix);
+                addSlot(fieldLocalName, fieldName);
+                for (QName attr : field.getAttributes()) {
+                    addSlot(String.format(ELEM_ATTR_FMT, fieldLocalName, attr.getLocalPart()),
+                            String.format(ELEM_ATTR_FMT, fieldName, toPrefixedTag(attr, xmlnsUriToPrefix)));
+                }
+            }
+            return;
+        }
+
+        // Cascade all fields in XSDs.
+        List<XsdElement> schemaFields = schemaIndex.getFieldElements(recordName);
+        if (cascadePolicy == CascadePolicy.XSD && schemaFields != null) {
+            for (XsdElement elem: schemaFields) {
+                String elemLocalName = elem.getName().getLocalPart();
+                if (slots.containsKey(elemLocalName)) {
+                    continue;
+                }
+                String elemName = toPrefixedTag(elem.getName(), xmlnsUriToPrefix);
+                addSlot(elemLocalName, elemName);
+                for (XsdAttribute attr : elem.getElementAttributes()) {
+                    addSlot(String.format(ELEM_ATTR_FMT, elemLocalName, attr.getName().getLocalPart()),
+                            String.format(ELEM_ATTR_FMT, elemName, toPrefixedTag(attr.getName(), xmlnsUriToPrefix)));
+                }
+            }
+        }
+    }
+
+    /**
+     * @param localName - local name of the element, or element[attribute]
+     * @return slot of the field, null if the field is not cascaded
+     */
+    Integer slot(String localName) {
+        return slots.get(localName);
+    }
+
+    /**
+     * Adds a field first seen in a record, if all the fields on the records are cascaded.
+     * @param localName - local name of the element, or element[attribute]
+     * @param fieldName - prefixed name of the element, or element[attribute]
+     * @return slot of the field, null if the field is not cascaded
+     */
+    Integer slotOfNewField(String localName, String fieldName) {
+        return cascadePolicy == CascadePolicy.OUT ? addSlot(localName, fieldName) : null;
+    }
+
+    private int addSlot(String localName, String fieldName) {
+        int slot = columns.size();
+        slots.put(localName, slot);
+        columns.add(columnPrefix + fieldName);
+        return slot;
+    }
+
+    public QName recordName() {
+        return recordName;
+    }
+
+    public CascadePolicy cascadePolicy() {
+        return cascadePolicy;
+    }
+
+    /**
+     * @return number of fields cascaded, the size of the values of a record
+     */
+    public int width() {
+        return columns.size();
+    }
+
+    /**
+     * @return column names of the fields, prefixed with the record name
+     */
+    List<String> columns() {
+        return columns;
+    }
+
+    String columnPrefix() {
+        return columnPrefix;
+    }
+}
@@ -2,6 +2,10 @@ package com.karbherin.flatterxml.model;
 
 public interface CascadedAncestorFields extends RecordTypeHierarchy {
 
+    /**
+     * @return fields cascaded from the ancestors. Valid only until the record is done, as the arrays holding the
+     * values are reused for the next records
+     */
     Iterable<Pair<String, String>> getCascadedAncestorFields();
 
 }
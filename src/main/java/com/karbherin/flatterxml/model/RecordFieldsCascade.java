@@ -4,38 +4,42 @@ import static com.karbherin.flatterxml.AppConstants.*;
 import static com.karbherin.flatterxml.helper.XmlHelpers.*;
 
 import com.karbherin.flatterxml.helper.Utils;
-import com.karbherin.flatterxml.xsd.XmlSchema;
-import com.karbherin.flatterxml.xsd.XsdAttribute;
 
 import javax.xml.namespace.QName;
 import javax.xml.stream.events.Attribute;
-import javax.xml.stream.events.Namespace;
 import javax.xml.stream.events.StartElement;
 import java.util.*;
-import java.util.stream.Collectors;
 
 public final class RecordFieldsCascade implements RecordTypeHierarchy, CascadedAncestorFields {
-    private final QName recordName;
-    private final List<Pair<String, String>> cascadePairList = new ArrayList<>();
-    private final Map<String, Integer> positions;
+    private final CascadeTemplate template;
+    // Values of the fields in the slots of the template, null if not set yet
+    private String[] values;
     private final RecordFieldsCascade parent;
-    private List<Pair<String, String>> toCascadeToChild = null;
+    private final CascadeSegment segment;
     private final int level;
 
-    public RecordFieldsCascade(StartElement recordName, List<RecordDefinitions.Field> cascadingFields,
-                               CascadePolicy cascadePolicy,
-                               RecordFieldsCascade parent, List<XmlSchema> xsds,
-                               Map<String, Namespace> xmlnsUriToPrefix) {
-        this.recordName = recordName.getName();
-        if (cascadingFields == null) {
-            positions = setupCascadeFields(Collections.emptyList(), cascadePolicy, xsds, xmlnsUriToPrefix);
-        } else {
-            positions = setupCascadeFields(cascadingFields, cascadePolicy, xsds, xmlnsUriToPrefix);
-        }
+    // Row ids of records when cascading keys instead of data
+    private final boolean keyed;
+    private final CascadeSegment keySegment;
+    private long rowId = 0L;
+
+    /**
+     * @param template - fields of the record type to cascade to child records
+     * @param parent   - cascade of the parent record, null for the root
+     * @param values   - array to hold the values of the record's fields, cleared and grown to the template's width
+     */
+    public RecordFieldsCascade(CascadeTemplate template, RecordFieldsCascade parent, String[] values) {
+        this.template = template;
+        this.values = values.length < template.width() ? new String[template.width()] : values;
+        Arrays.fill(this.values, null);
 
         this.parent = parent == null ? this : parent;
         this.level  = parent == null ? 0    : parent.level+1;
-        cascadeFromParent();
+        // Parent's segment, already linked to the ancestors, is shared rather than copied
+        this.segment = new CascadeSegment(template.columns(), this.values, parent == null ? null : parent.segment);
+        this.keyed  = template.cascadePolicy() == CascadePolicy.KEY;
+        this.keySegment = keyed ? new CascadeSegment(Collections.singletonList(template.columnPrefix() + ROW_ID_FIELD),
+                new String[1], null) : null;
     }
 
     /**
@@ -45,152 +49,85 @@ public final class RecordFieldsCascade implements RecordTypeHierarchy, CascadedA
      * @param policy   - Cascading policy can be NONE, ALL, XSD when explicit fields are not provided
      */
     public void addCascadingData(StartElement elem, String tagValue, CascadePolicy policy) {
-        String tagName = toPrefixedTag(elem.getName());
         String tagLocalName = elem.getName().getLocalPart();
-        Integer pos = positions.get(tagLocalName);
+        Integer pos = template.slot(tagLocalName);
         if (pos != null) {
-            Pair<String, String> field = cascadePairList.get(pos);
-            if (!Utils.isEmpty(field.getVal())) {
+            if (pos < values.length && !Utils.isEmpty(values[pos])) {
                 return;
             }
             // Capture the data value at the designated location
-            field.setVal(tagValue);
+            setValue(pos, tagValue);
         } else if (policy == CascadePolicy.OUT) {
-            positions.put(tagLocalName, cascadePairList.size());
             // Append the tag-value pair only if policy is cascade ALL
-            cascadePairList.add(new Pair<>(tagName, tagValue));
+            setValue(template.slotOfNewField(tagLocalName, toPrefixedTag(elem.getName())), tagValue);
         }
 
         for (Iterator<Attribute> it = attributesIterator(elem); it.hasNext(); ) {
             Attribute attr = it.next();
             QName attrName = attr.getName();
-            String attrLocalName = attrName.getLocalPart();
-            String fullAttrLocalName = String.format(ELEM_ATTR_FMT, tagLocalName, attrLocalName);
-            String fullAttrQualifiedName = String.format(ELEM_ATTR_FMT, tagName, toPrefixedTag(attrName));
-            pos = positions.get(fullAttrLocalName);
+            String fullAttrLocalName = String.format(ELEM_ATTR_FMT, tagLocalName, attrName.getLocalPart());
+            pos = template.slot(fullAttrLocalName);
 
             if (pos != null) {
                 // Capture the data value at the designated location
-                cascadePairList.get(pos).setVal(attr.getValue());
+                setValue(pos, attr.getValue());
             } else if (policy == CascadePolicy.OUT) {
-                positions.put(fullAttrLocalName, cascadePairList.size());
                 // Append the tag-value pair only if policy is cascade ALL
-                cascadePairList.add(new Pair<>(fullAttrQualifiedName, attr.getValue()));
+                setValue(template.slotOfNewField(fullAttrLocalName, String.format(ELEM_ATTR_FMT,
+                        toPrefixedTag(elem.getName()), toPrefixedTag(attrName))), attr.getValue());
             }
         }
     }
 
-    /**
-     * Method to initially setup cascading fields that are provided by user.
-     * These will act as a template for actual field and value cascades.
-     * Fields to cascade are specified by client or by XSD. Make the list unmodifiable.
-     * @param cascadeFields - list of fields to cascade
-     * @param xsds          - XSD schemas to use as a reference for cascading fields
-     * @return A mapping the cascaded field names and their position in the output
-     */
-    private Map<String, Integer> setupCascadeFields(List<RecordDefinitions.Field> cascadeFields,
-                                                    CascadePolicy cascadePolicy,
-                                                    List<XmlSchema> xsds, Map<String, Namespace> xmlnsUriToPrefix) {
-
-        Map<String, Integer> primaryTagList = new HashMap<>();
-        final OpenCan<Integer> mutablePos = new OpenCan<>(0);
-
-        // If caller explicitly specifies a fields cascade file then that is given priority.
-        if (!cascadeFields.isEmpty()) {
-            cascadeFields.stream()
-                    .filter(field -> !primaryTagList.containsKey(field.getName().getLocalPart()))
-                    .forEach(field -> {
-                        String fieldLocalName = field.getName().getLocalPart();
-                        String fieldName = toPrefixedTag(field.getName(), xmlnsUriToPrefix);
-                        primaryTagList.put(fieldLocalName, mutablePos.val++);
-                        cascadePairList.add(new Pair<>(fieldName, EMPTY));
-
-                        for (QName attr : field.getAttributes()) {
-                            primaryTagList.put(String.format(ELEM_ATTR_FMT,
-                                    fieldLocalName, attr.getLocalPart()), mutablePos.val++);
-                            cascadePairList.add(new Pair<>(String.format(ELEM_ATTR_FMT,
-                                    fieldName, toPrefixedTag(attr, xmlnsUriToPrefix)), EMPTY));
-                        }
-                    });
-            return primaryTagList;
-        }
-
-        // Cascade all fields in XSDs.
-        if (cascadePolicy == CascadePolicy.XSD) {
-            // Find the element in all the XSDs
-            xsds.stream()
-                    .map(xsd -> xsd.getElementByName(recordName))
-                    .filter(Objects::nonNull)
-                    .findFirst()
-                    .ifPresent(schemaRec ->
-                            schemaRec.getChildElements().stream()
-                                    .filter(field -> !field.getType().equals(XmlSchema.COMPLEX_TYPE))
-                                    .filter(elem -> !primaryTagList.containsKey(elem.getName().getLocalPart()))
-                                    .forEach(elem -> {
-                                        String elemLocalName = elem.getName().getLocalPart();
-                                        String elemName = toPrefixedTag(elem.getName(), xmlnsUriToPrefix);
-                                        primaryTagList.put(elemLocalName, mutablePos.val++);
-                                        cascadePairList.add(new Pair<>(elemName, EMPTY));
-
-                                        for (XsdAttribute attr : elem.getElementAttributes()) {
-                                            primaryTagList.put(String.format(ELEM_ATTR_FMT,
-                                                    elemLocalName, attr.getName().getLocalPart()), mutablePos.val++);
-                                            cascadePairList.add(new Pair<>(String.format(ELEM_ATTR_FMT,
-                                                    elemName, toPrefixedTag(attr.getName(), xmlnsUriToPrefix)), EMPTY));
-                                        }
-                                    }));
+    private void setValue(int slot, String value) {
+        if (slot >= values.length) {
+            // Template has grown with a field first seen in this record
+            values = Arrays.copyOf(values, Math.max(template.width(), 2 * values.length));
+            segment.setValues(values);
         }
-
-        return primaryTagList;
+        values[slot] = value;
     }
 
     /**
-     * Cascades fields and their values from ancestral containers into current record.
+     * The record's segment cannot be read after its values are released.
+     * @return array holding the values, to be reused for another record once this record and its children are done
      */
-    public void cascadeFromParent() {
-
-        if (parent.toCascadeToChild != null) {
-            return;
-        }
-
-        // Current record fields are formatted as RecordName.RecordField
-        parent.toCascadeToChild = parent.cascadePairList.stream()
-                .map(fv -> new Pair<>(
-                    String.format("%s.%s", toPrefixedTag(parent.recordName),
-                        fv.getKey()), fv.getVal()))
-                .collect(Collectors.toList());
-
-        // Parent record fields were already formatted as ParentRecordName.ParentRecordField
-        parent.toCascadeToChild.addAll(parent.parent.toCascadeToChild);
+    public String[] releaseValues() {
+        String[] released = values;
+        values = null;
+        segment.release();
+        return released;
     }
 
     /**
-     * Clear only the current record cascades and retain parent record's cascades.
-     * @return Cascading fields for the record after clearing the values of all cascaded fields
+     * Assigns the id of the record's rows, when cascading keys. Zero if the record's rows are not written.
+     * @param rowId - id unique to the record
+     * @return this record cascade
      */
-    public RecordFieldsCascade clearCurrentRecordCascades() {
-        for (Pair<String, String> qNameStringPair : cascadePairList) {
-            qNameStringPair.setVal(EMPTY);
-        }
+    public RecordFieldsCascade setRowId(long rowId) {
+        this.rowId = rowId;
+        keySegment.setValue(0, Long.toString(rowId));
         return this;
     }
 
-    /**
-     * Clear the list of fields and values to cascade to child.
-     */
-    public RecordFieldsCascade clearToCascadeToChildList() {
-        this.toCascadeToChild = null;
-        return this;
+    public long getRowId() {
+        return rowId;
     }
 
+    /**
+     * @return Cascaded fields of the ancestors. When cascading keys, only the row id of the parent record
+     */
     @Override
-    public List<Pair<String, String>> getCascadedAncestorFields() {
-        return parent.toCascadeToChild;
+    public CascadeSegment getCascadedAncestorFields() {
+        if (keyed) {
+            return parent.rowId == 0L ? CascadeSegment.EMPTY : parent.keySegment;
+        }
+        return parent.segment;
     }
 
     @Override
     public QName recordName() {
-        return recordName;
+        return template.recordName();
     }
 
     @Override
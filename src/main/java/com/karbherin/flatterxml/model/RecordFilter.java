@@ -0,0 +1,476 @@
+package com.karbherin.flatterxml.model;
+
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.karbherin.flatterxml.helper.XmlHelpers.PREFIX_SEP;
+import static com.karbherin.flatterxml.helper.XmlHelpers.toPrefixedTag;
+
+/**
+ * Predicate on the top-level records, to flatten only the records of interest.
+ * Format: record-tag[path op value and path op value ...]
+ * Path is a child element of the record, or a descendant as in contact/phones/phone/phone-type,
+ * optionally followed by an attribute as in @status or identifiers/@id-doc-type.
+ * Op is one of = != &lt; &lt;= &gt; &gt;=. A quoted value is compared as text, so ISO dates compare in their order,
+ * an unquoted value as a number. Example: employee[department='sales' and salary&gt;=100000]
+ * A condition holds if any element on its path has a value that compares so. Names without a prefix match
+ * elements of any namespace. The record is the element closed last, as records are cut at their end tags.
+ * Records of other tags are not filtered. Elements and end tags ahead of the record's element are ignored.
+ * Evaluated on the text of a record as it is read from the file, or on its events. Thread-safe.
+ */
+public final class RecordFilter {
+
+    private static final Pattern FILTER = Pattern.compile("\\s*([^\\s\\[\\]]+)\\s*\\[(.+)]\\s*");
+    // Conditions one after the other, each followed by an "and" but the last
+    private static final Pattern CONDITION = Pattern.compile(
+            "\\G\\s*([^\\s=!<>'\"]+)\\s*(=|!=|<=|>=|<|>)\\s*('[^']*'|\"[^\"]*\"|[^\\s'\"]+)\\s*(and\\s+|$)");
+
+    private final String filterText;
+    private final String recordName;
+    private final List<Condition> conditions;
+    private final LongAdder rejectCount = new LongAdder();
+
+    private RecordFilter(String filterText, String recordName, List<Condition> conditions) {
+        this.filterText = filterText;
+        this.recordName = recordName;
+        this.conditions = conditions;
+    }
+
+    /**
+     * @param filter - filter in the format record-tag[path op value and ...]
+     * @return parsed filter
+     * @throws IllegalArgumentException - if the filter is not in the format
+     */
+    public static RecordFilter parse(String filter) {
+        Matcher matcher = FILTER.matcher(filter);
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Record filter is not in the format record-tag[path op value]: "
+                    + filter);
+        }
+        List<Condition> conditions = new ArrayList<>();
+        Matcher condition = CONDITION.matcher(matcher.group(2));
+        boolean last = false;
+        while (!last && condition.find()) {
+            conditions.add(Condition.parse(condition, filter));
+            last = condition.group(4).isEmpty();
+        }
+        if (!last) {
+            throw new IllegalArgumentException(
+                    "Conditions of the record filter are not in the format path op value and ...: " + filter);
+        }
+        return new RecordFilter(filter.trim(), matcher.group(1), conditions);
+    }
+
+    /**
+     * @param record - events of a record from its start tag to its end tag
+     * @return true if the record is to be flattened
+     */
+    public boolean test(List<XMLEvent> record) {
+        for (int i = record.size() - 1; i >= 0; i--) {
+            if (record.get(i).isEndElement()) {
+                if (!nameMatches(recordName, toPrefixedTag(record.get(i).asEndElement().getName()))) {
+                    return true;
+                }
+                break;
+            }
+        }
+        Evaluation eval = new Evaluation();
+        for (XMLEvent ev: record) {
+            if (ev.isStartElement()) {
+                StartElement el = ev.asStartElement();
+                eval.start(toPrefixedTag(el.getName()), attr -> attributeValue(el, attr));
+            } else if (ev.isCharacters()) {
+                eval.text(ev.asCharacters().getData());
+            } else if (ev.isEndElement()) {
+                eval.end();
+            }
+            if (eval.isDone()) {
+                break;
+            }
+        }
+        return eval.result();
+    }
+
+    /**
+     * @param record - text of a record as in the XML file, tested without copying it.
+     *                 Text and elements around the record's element are ignored
+     * @return true if the record is to be flattened
+     */
+    public boolean test(CharSequence record) {
+        String lastEndTag = lastEndTag(record);
+        if (lastEndTag != null && !nameMatches(recordName, lastEndTag)) {
+            return true;
+        }
+        Evaluation eval = new Evaluation();
+        int pos = 0;
+        while (pos < record.length() && !eval.isDone()) {
+            int open = indexOf(record, "<", pos);
+            if (open < 0) {
+                break;
+            }
+            if (open > pos && eval.depth() > 0) {
+                eval.text(unescape(record.subSequence(pos, open).toString()));
+            }
+
+            if (startsWith(record, "<!--", open)) {
+                pos = skipPast(record, "-->", open);
+            } else if (startsWith(record, "<![CDATA[", open)) {
+                int end = indexOf(record, "]]>", open);
+                eval.text(record.subSequence(open + 9, end < 0 ? record.length() : end).toString());
+                pos = skipPast(record, "]]>", open);
+            } else if (startsWith(record, "<?", open) || startsWith(record, "<!", open)) {
+                pos = skipPast(record, ">", open);
+            } else if (startsWith(record, "</", open)) {
+                eval.end();
+                pos = skipPast(record, ">", open);
+            } else {
+                int end = tagEnd(record, open);
+                String tag = record.subSequence(open + 1, end).toString();
+                boolean empty = tag.endsWith("/");
+                Map<String, String> attributes = new HashMap<>();
+                String name = parseTag(empty ? tag.substring(0, tag.length() - 1) : tag, attributes);
+                eval.start(name, attr -> attributeValue(attributes, attr));
+                if (empty) {
+                    eval.end();
+                }
+                pos = end + 1;
+            }
+        }
+        return eval.result();
+    }
+
+    public String getRecordName() {
+        return recordName;
+    }
+
+    /**
+     * @return number of records that did not satisfy the filter, counted by the callers as they drop them
+     */
+    public long getRejectCount() {
+        return rejectCount.sum();
+    }
+
+    public void countReject() {
+        rejectCount.increment();
+    }
+
+    @Override
+    public String toString() {
+        return filterText;
+    }
+
+    private static boolean nameMatches(String pattern, String name) {
+        if (pattern.equals(name)) {
+            return true;
+        }
+        // Pattern without a prefix matches the name in any namespace
+        return !pattern.contains(PREFIX_SEP) && name.substring(name.indexOf(PREFIX_SEP) + 1).equals(pattern);
+    }
+
+    private static String attributeValue(StartElement el, String attrPattern) {
+        for (Iterator<?> it = el.getAttributes(); it.hasNext(); ) {
+            Attribute attr = (Attribute) it.next();
+            if (nameMatches(attrPattern, toPrefixedTag(attr.getName()))) {
+                return attr.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static String attributeValue(Map<String, String> attributes, String attrPattern) {
+        for (Map.Entry<String, String> attr: attributes.entrySet()) {
+            if (nameMatches(attrPattern, attr.getKey())) {
+                return attr.getValue();
+            }
+        }
+        return null;
+    }
+
+    // Name in the last end tag of the text
+    private static String lastEndTag(CharSequence text) {
+        for (int open = text.length() - 2; open >= 0; open--) {
+            if (startsWith(text, "</", open)) {
+                int end = open + 2;
+                while (end < text.length() && text.charAt(end) != '>' && !Character.isWhitespace(text.charAt(end))) {
+                    end++;
+                }
+                return text.subSequence(open + 2, end).toString();
+            }
+        }
+        return null;
+    }
+
+    private static int indexOf(CharSequence text, String target, int from) {
+        for (int i = from; i <= text.length() - target.length(); i++) {
+            if (startsWith(text, target, i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(CharSequence text, String prefix, int at) {
+        if (at + prefix.length() > text.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (text.charAt(at + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int skipPast(CharSequence text, String terminator, int from) {
+        int end = indexOf(text, terminator, from);
+        return end < 0 ? text.length() : end + terminator.length();
+    }
+
+    // End of a start tag, skipping a > in the quoted attribute values
+    private static int tagEnd(CharSequence text, int open) {
+        char quote = 0;
+        for (int i = open + 1; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == '>') {
+                return i;
+            }
+        }
+        return text.length() - 1;
+    }
+
+    // Name of the tag, with its attributes put in the map
+    private static String parseTag(String tag, Map<String, String> attributes) {
+        int nameEnd = 0;
+        while (nameEnd < tag.length() && !Character.isWhitespace(tag.charAt(nameEnd))) {
+            nameEnd++;
+        }
+        int pos = nameEnd;
+        while (pos < tag.length()) {
+            int eq = tag.indexOf('=', pos);
+            if (eq < 0) {
+                break;
+            }
+            String attrName = tag.substring(pos, eq).trim();
+            int valueStart = eq + 1;
+            while (valueStart < tag.length() && Character.isWhitespace(tag.charAt(valueStart))) {
+                valueStart++;
+            }
+            if (valueStart >= tag.length()) {
+                break;
+            }
+            char quote = tag.charAt(valueStart);
+            int valueEnd = tag.indexOf(quote, valueStart + 1);
+            if (valueEnd < 0) {
+                break;
+            }
+            attributes.put(attrName, unescape(tag.substring(valueStart + 1, valueEnd)));
+            pos = valueEnd + 1;
+        }
+        return tag.substring(0, nameEnd);
+    }
+
+    private static String unescape(String text) {
+        int amp = text.indexOf('&');
+        if (amp < 0) {
+            return text;
+        }
+        StringBuilder sb = new StringBuilder(text.length());
+        int pos = 0;
+        while (amp >= 0) {
+            int semi = text.indexOf(';', amp);
+            if (semi < 0) {
+                break;
+            }
+            sb.append(text, pos, amp);
+            String entity = text.substring(amp + 1, semi);
+            switch (entity) {
+                case "lt": sb.append('<'); break;
+                case "gt": sb.append('>'); break;
+                case "amp": sb.append('&'); break;
+                case "quot": sb.append('"'); break;
+                case "apos": sb.append('\''); break;
+                default:
+                    if (entity.startsWith("#x")) {
+                        sb.appendCodePoint(Integer.parseInt(entity.substring(2), 16));
+                    } else if (entity.startsWith("#")) {
+                        sb.appendCodePoint(Integer.parseInt(entity.substring(1)));
+                    } else {
+                        sb.append('&').append(entity).append(';');
+                    }
+            }
+            pos = semi + 1;
+            amp = text.indexOf('&', pos);
+        }
+        return sb.append(text, pos, text.length()).toString();
+    }
+
+    /**
+     * Comparison of the value of an element or an attribute on a path under the record.
+     */
+    private static final class Condition {
+        private final String[] path;
+        private final String attribute;
+        private final String op;
+        private final String text;
+        private final BigDecimal number;
+
+        private Condition(String[] path, String attribute, String op, String text, BigDecimal number) {
+            this.path = path;
+            this.attribute = attribute;
+            this.op = op;
+            this.text = text;
+            this.number = number;
+        }
+
+        private static Condition parse(Matcher matcher, String filter) {
+            List<String> path = new ArrayList<>(Arrays.asList(matcher.group(1).split("/")));
+            String attribute = null;
+            if (path.get(path.size() - 1).startsWith("@")) {
+                // Attribute of the record itself if the path is only the attribute
+                attribute = path.remove(path.size() - 1).substring(1);
+            }
+            String value = matcher.group(3);
+            if (value.startsWith("'") || value.startsWith("\"")) {
+                return new Condition(path.toArray(new String[0]), attribute, matcher.group(2),
+                        value.substring(1, value.length() - 1), null);
+            }
+            try {
+                return new Condition(path.toArray(new String[0]), attribute, matcher.group(2), value,
+                        new BigDecimal(value));
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException(String.format(
+                        "Value %s in the record filter %s must be quoted if it is not a number", value, filter), ex);
+            }
+        }
+
+        private boolean onPath(List<String> elementPath) {
+            if (elementPath.size() != path.length) {
+                return false;
+            }
+            for (int i = 0; i < path.length; i++) {
+                if (!nameMatches(path[i], elementPath.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean holds(String value) {
+            if (value == null) {
+                return false;
+            }
+            int cmp;
+            if (number == null) {
+                cmp = value.trim().compareTo(text);
+            } else {
+                try {
+                    cmp = new BigDecimal(value.trim()).compareTo(number);
+                } catch (NumberFormatException ex) {
+                    return false;
+                }
+            }
+            switch (op) {
+                case "=": return cmp == 0;
+                case "!=": return cmp != 0;
+                case "<": return cmp < 0;
+                case "<=": return cmp <= 0;
+                case ">": return cmp > 0;
+                default: return cmp >= 0;
+            }
+        }
+    }
+
+    /**
+     * Evaluation of the conditions over the elements of one record, in document order.
+     */
+    private final class Evaluation {
+        // Names of the elements enclosing the current position, under the record
+        private final List<String> elementPath = new ArrayList<>();
+        // Text of the elements enclosing the current position
+        private final Deque<StringBuilder> texts = new ArrayDeque<>();
+        private final boolean[] satisfied = new boolean[conditions.size()];
+        // Depth under the record's element, 0 outside of it
+        private int depth = 0;
+        private boolean found = false;
+        private boolean done = false;
+
+        private int depth() {
+            return depth;
+        }
+
+        private boolean isDone() {
+            return done;
+        }
+
+        // Elements outside the record's element, as siblings or wrappers ahead of it, are ignored
+        private void start(String name, Function<String, String> attributes) {
+            if (depth == 0) {
+                if (found || !nameMatches(recordName, name)) {
+                    return;
+                }
+                found = true;
+            } else {
+                elementPath.add(name);
+                texts.push(new StringBuilder());
+            }
+            depth++;
+            for (int i = 0; i < satisfied.length; i++) {
+                Condition condition = conditions.get(i);
+                if (!satisfied[i] && condition.attribute != null && condition.onPath(elementPath)) {
+                    satisfied[i] = condition.holds(attributes.apply(condition.attribute));
+                }
+            }
+        }
+
+        private void text(String text) {
+            if (!texts.isEmpty()) {
+                texts.peek().append(text);
+            }
+        }
+
+        private void end() {
+            if (depth == 0) {
+                // End tag outside the record's element, as of a wrapper in a chunk of the file
+                return;
+            }
+            if (--depth == 0) {
+                done = true;
+                return;
+            }
+            String value = texts.pop().toString();
+            for (int i = 0; i < satisfied.length; i++) {
+                Condition condition = conditions.get(i);
+                if (!satisfied[i] && condition.attribute == null && condition.onPath(elementPath)) {
+                    satisfied[i] = condition.holds(value);
+                }
+            }
+            elementPath.remove(elementPath.size() - 1);
+        }
+
+        private boolean result() {
+            if (!found) {
+                // Record of another tag
+                return true;
+            }
+            for (boolean sat: satisfied) {
+                if (!sat) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
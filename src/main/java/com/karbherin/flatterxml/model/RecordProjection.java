@@ -0,0 +1,121 @@
+package com.karbherin.flatterxml.model;
+
+import com.karbherin.flatterxml.xsd.SchemaIndex;
+import com.karbherin.flatterxml.xsd.XmlSchema;
+import com.karbherin.flatterxml.xsd.XsdElement;
+
+import javax.xml.namespace.QName;
+import java.util.*;
+
+import static com.karbherin.flatterxml.AppConstants.CascadePolicy;
+
+/**
+ * Records and fields to flatten, compiled from the output and cascade definitions, so that the elements not needed
+ * for them are skipped as they are read rather than collected and dropped when records are written.
+ * Only the records in the output definitions are written. An element is skipped if the XSDs show that it is a
+ * field neither written nor cascaded by its record, or that it holds none of the records written.
+ * Elements not in the XSDs are never skipped, as they may hold anything.
+ * Decisions are cached per element and enclosing element. Used by one worker at a time.
+ */
+public final class RecordProjection {
+
+    private final RecordDefinitions outputRecords;
+    private final RecordDefinitions cascadeRecords;
+    private final CascadePolicy cascadePolicy;
+    private final SchemaIndex schemaIndex;
+
+    // Whether an element can be skipped, by its enclosing element
+    private final Map<QName, Map<QName, Boolean>> skippable = new HashMap<>();
+    // Whether a complex element holds any of the records written
+    private final Map<QName, Boolean> holdsOutputRecords = new HashMap<>();
+
+    /**
+     * @param outputRecords  - records and fields to write
+     * @param cascadeRecords - fields to cascade by record, empty to follow the cascade policy
+     * @param cascadePolicy  - cascade policy
+     * @param schemaIndex    - elements of the XSDs
+     */
+    public RecordProjection(RecordDefinitions outputRecords, RecordDefinitions cascadeRecords,
+                            CascadePolicy cascadePolicy, SchemaIndex schemaIndex) {
+        this.outputRecords = outputRecords;
+        this.cascadeRecords = cascadeRecords;
+        this.cascadePolicy = cascadePolicy;
+        this.schemaIndex = schemaIndex;
+    }
+
+    /**
+     * @param recordName - record type
+     * @return true if records of the type are written
+     */
+    public boolean isOutputRecord(QName recordName) {
+        return outputRecords.getRecords().contains(recordName);
+    }
+
+    /**
+     * @param elementName   - element starting
+     * @param enclosingName - element enclosing it
+     * @return true if the element and all the elements under it can be skipped
+     */
+    public boolean canSkip(QName elementName, QName enclosingName) {
+        return skippable.computeIfAbsent(enclosingName, name -> new HashMap<>())
+                .computeIfAbsent(elementName, name -> decideSkip(elementName, enclosingName));
+    }
+
+    private boolean decideSkip(QName elementName, QName enclosingName) {
+        XsdElement elem = schemaIndex.getElementByName(elementName);
+        if (elem == null || isOutputRecord(elementName) || isFieldNeeded(elementName, enclosingName)) {
+            return false;
+        }
+        return !XmlSchema.COMPLEX_TYPE.equals(elem.getType()) || !holdsOutputRecords(elementName);
+    }
+
+    // Field is written or cascaded by the enclosing record. Fields are matched by local names, as in cascading.
+    private boolean isFieldNeeded(QName fieldName, QName recordName) {
+        if (cascadePolicy == CascadePolicy.OUT) {
+            // Cascades any field seen
+            return true;
+        }
+        String localName = fieldName.getLocalPart();
+        List<? extends SchemaElementWithAttributes> xsdFields = cascadePolicy == CascadePolicy.XSD
+                ? schemaIndex.getFieldElements(recordName) : null;
+        return hasLocalName(outputRecords.getRecordFields(recordName), localName)
+                || hasLocalName(cascadeRecords.getRecordFields(recordName), localName)
+                || xsdFields != null && hasLocalName(xsdFields, localName);
+    }
+
+    private static boolean hasLocalName(List<? extends SchemaElementWithAttributes> fields, String localName) {
+        for (SchemaElementWithAttributes field: fields) {
+            if (field.getName().getLocalPart().equals(localName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean holdsOutputRecords(QName elementName) {
+        Boolean holds = holdsOutputRecords.get(elementName);
+        if (holds == null) {
+            holds = holdsOutputRecords(schemaIndex.getElementByName(elementName), new HashSet<>());
+            holdsOutputRecords.put(elementName, holds);
+        }
+        return holds;
+    }
+
+    private boolean holdsOutputRecords(XsdElement elem, Set<QName> visited) {
+        for (XsdElement child: elem.getChildElements()) {
+            QName childName = child.getName();
+            if (childName == null || isOutputRecord(childName)) {
+                // A child not named is not resolved and may be anything
+                return true;
+            }
+            if (!XmlSchema.COMPLEX_TYPE.equals(child.getType()) || !visited.add(childName)) {
+                continue;
+            }
+            XsdElement childDef = schemaIndex.getElementByName(childName);
+            if (holdsOutputRecords(childDef == null ? child : childDef, visited)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
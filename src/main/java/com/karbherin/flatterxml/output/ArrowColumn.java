@@ -0,0 +1,249 @@
+package com.karbherin.flatterxml.output;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A string column of an Arrow table, filled one batch of rows at a time.
+ * Columns start out dictionary encoded. A column whose distinct values go beyond the dictionary size, or beyond
+ * the given ratio of the values set in the column, is written as plain strings from then on; its batches spilled
+ * as indices are converted when the file is written. The ratio is looked at once the dictionary has a few values.
+ * Missing values are nulls.
+ */
+final class ArrowColumn {
+
+    // Descriptor of a spilled chunk of the column: encoding, null count and (position, length) of each buffer
+    static final int DICTIONARY_ENCODED = 0;
+    static final int NULL_COUNT = 1;
+    static final int VALIDITY = 2;
+    static final int INDICES = 4;
+    static final int OFFSETS = 4;
+    static final int DATA = 6;
+    private static final int DESCRIPTOR_LENGTH = 8;
+    // Distinct values a dictionary takes before their ratio to the values set is looked at
+    static final int MIN_DICTIONARY_SIZE = 256;
+
+    final String name;
+    final int id;
+    private final int maxDictionarySize;
+    private final double maxDictionaryRatio;
+    // {value: index}, null once the column has too many distinct values
+    private Map<String, Integer> dictionary = new HashMap<>();
+    private final List<String> dictionaryValues = new ArrayList<>();
+    // Values set in all the batches, other than nulls
+    private long valueCount = 0L;
+
+    // Batch being filled
+    private int rows = 0;
+    private int nullCount = 0;
+    private byte[] validity = new byte[8];
+    private int[] indices = new int[64];
+    private int[] offsets = new int[65];
+    private byte[] data = new byte[256];
+    private int dataLength = 0;
+
+    /**
+     * @param maxDictionarySize  - number of distinct values of a dictionary encoded column
+     * @param maxDictionaryRatio - ratio of the distinct values to the values set of a dictionary encoded column
+     */
+    ArrowColumn(String name, int id, int maxDictionarySize, double maxDictionaryRatio) {
+        this.name = name;
+        this.id = id;
+        this.maxDictionarySize = maxDictionarySize;
+        this.maxDictionaryRatio = maxDictionaryRatio;
+    }
+
+    boolean isDictionaryEncoded() {
+        return dictionary != null;
+    }
+
+    List<String> getDictionaryValues() {
+        return dictionaryValues;
+    }
+
+    /**
+     * @return number of rows of the batch filled in, including nulls
+     */
+    int filledRows() {
+        return rows;
+    }
+
+    /**
+     * Sets the value of a row of the batch. Rows skipped since the last value are nulls.
+     * @param row   - row of the batch, not filled in yet
+     * @param value - value of the row
+     */
+    void set(int row, String value) {
+        fillNulls(row);
+        ensureRows(row + 1);
+        validity[row >> 3] |= 1 << (row & 7);
+        valueCount++;
+
+        if (dictionary != null) {
+            Integer index = dictionary.get(value);
+            if (index == null && dictionaryHasRoom()) {
+                index = dictionaryValues.size();
+                dictionary.put(value, index);
+                dictionaryValues.add(value);
+            }
+            if (index != null) {
+                indices[row] = index;
+                rows = row + 1;
+                return;
+            }
+            toPlain();
+        }
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (data.length < dataLength + bytes.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, dataLength + bytes.length));
+        }
+        System.arraycopy(bytes, 0, data, dataLength, bytes.length);
+        dataLength += bytes.length;
+        offsets[row + 1] = dataLength;
+        rows = row + 1;
+    }
+
+    private boolean dictionaryHasRoom() {
+        int size = dictionaryValues.size();
+        return size < maxDictionarySize && (size < MIN_DICTIONARY_SIZE || size < valueCount * maxDictionaryRatio);
+    }
+
+    /**
+     * Fills the batch with nulls up to the given row.
+     * @param toRow - row following the nulls
+     */
+    void fillNulls(int toRow) {
+        ensureRows(toRow);
+        while (rows < toRow) {
+            if (dictionary != null) {
+                indices[rows] = 0;
+            } else {
+                offsets[rows + 1] = dataLength;
+            }
+            nullCount++;
+            rows++;
+        }
+    }
+
+    /**
+     * Writes the batch to the spill file and starts a new batch.
+     * @param spill     - spill file, written at its end
+     * @param batchRows - number of rows of the batch
+     * @return descriptor of the spilled chunk
+     */
+    long[] spill(FileChannel spill, int batchRows) throws IOException {
+        fillNulls(batchRows);
+        long[] chunk = new long[DESCRIPTOR_LENGTH];
+        chunk[DICTIONARY_ENCODED] = dictionary != null ? 1 : 0;
+        chunk[NULL_COUNT] = nullCount;
+        if (nullCount > 0) {
+            write(spill, ByteBuffer.wrap(validity, 0, (batchRows + 7) >> 3), chunk, VALIDITY);
+        }
+        if (dictionary != null) {
+            write(spill, ints(indices, batchRows), chunk, INDICES);
+        } else {
+            write(spill, ints(offsets, batchRows + 1), chunk, OFFSETS);
+            write(spill, ByteBuffer.wrap(data, 0, dataLength), chunk, DATA);
+        }
+
+        Arrays.fill(validity, 0, (batchRows + 7) >> 3, (byte) 0);
+        rows = 0;
+        nullCount = 0;
+        dataLength = 0;
+        return chunk;
+    }
+
+    /**
+     * Encodes the column's values as the dictionary of the file.
+     * @return offsets and data buffers of the dictionary values
+     */
+    List<ByteBuffer> dictionaryBuffers() {
+        int[] valueOffsets = new int[dictionaryValues.size() + 1];
+        List<byte[]> values = new ArrayList<>(dictionaryValues.size());
+        for (int i = 0; i < dictionaryValues.size(); i++) {
+            byte[] value = dictionaryValues.get(i).getBytes(StandardCharsets.UTF_8);
+            values.add(value);
+            valueOffsets[i + 1] = valueOffsets[i] + value.length;
+        }
+        ByteBuffer valueData = ByteBuffer.allocate(valueOffsets[values.size()]);
+        values.forEach(valueData::put);
+        valueData.flip();
+        return Arrays.asList(ints(valueOffsets, valueOffsets.length), valueData);
+    }
+
+    /**
+     * Converts dictionary indices spilled before the column went plain into offsets and data.
+     * @param valid      - validity bitmap, null if there are no nulls
+     * @param indexBuf   - little endian indices
+     * @param batchRows  - number of rows
+     * @return offsets and data buffers
+     */
+    List<ByteBuffer> plainFromIndices(ByteBuffer valid, ByteBuffer indexBuf, int batchRows) {
+        int[] valueOffsets = new int[batchRows + 1];
+        List<byte[]> values = new ArrayList<>(batchRows);
+        for (int row = 0; row < batchRows; row++) {
+            byte[] value = new byte[0];
+            if (valid == null || (valid.get(row >> 3) & (1 << (row & 7))) != 0) {
+                value = dictionaryValues.get(indexBuf.getInt(row * 4)).getBytes(StandardCharsets.UTF_8);
+            }
+            values.add(value);
+            valueOffsets[row + 1] = valueOffsets[row] + value.length;
+        }
+        ByteBuffer valueData = ByteBuffer.allocate(valueOffsets[batchRows]);
+        values.forEach(valueData::put);
+        valueData.flip();
+        return Arrays.asList(ints(valueOffsets, valueOffsets.length), valueData);
+    }
+
+    /**
+     * The column has too many distinct values for a dictionary. Values of the batch are laid out as plain strings.
+     * Dictionary values are kept for the batches already spilled as indices.
+     */
+    private void toPlain() {
+        dictionary = null;
+        dataLength = 0;
+        for (int row = 0; row < rows; row++) {
+            if ((validity[row >> 3] & (1 << (row & 7))) != 0) {
+                byte[] value = dictionaryValues.get(indices[row]).getBytes(StandardCharsets.UTF_8);
+                if (data.length < dataLength + value.length) {
+                    data = Arrays.copyOf(data, Math.max(data.length * 2, dataLength + value.length));
+                }
+                System.arraycopy(value, 0, data, dataLength, value.length);
+                dataLength += value.length;
+            }
+            offsets[row + 1] = dataLength;
+        }
+    }
+
+    private void ensureRows(int numRows) {
+        if (indices.length < numRows) {
+            int capacity = Math.max(indices.length * 2, numRows);
+            indices = Arrays.copyOf(indices, capacity);
+            offsets = Arrays.copyOf(offsets, capacity + 1);
+            validity = Arrays.copyOf(validity, (capacity + 7) >> 3);
+        }
+    }
+
+    static ByteBuffer ints(int[] values, int length) {
+        ByteBuffer buf = ByteBuffer.allocate(length * 4).order(ByteOrder.LITTLE_ENDIAN);
+        buf.asIntBuffer().put(values, 0, length);
+        return buf;
+    }
+
+    private static void write(FileChannel spill, ByteBuffer buf, long[] chunk, int slot) throws IOException {
+        chunk[slot] = spill.position();
+        chunk[slot + 1] = buf.remaining();
+        while (buf.hasRemaining()) {
+            spill.write(buf);
+        }
+    }
+}
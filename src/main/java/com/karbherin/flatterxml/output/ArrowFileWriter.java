@@ -0,0 +1,142 @@
+package com.karbherin.flatterxml.output;
+
+import com.karbherin.flatterxml.model.CascadedAncestorFields;
+import com.karbherin.flatterxml.model.Pair;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.events.Namespace;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes each record type into an Arrow IPC file, or an Arrow IPC stream, of record batches.
+ * Columns are the output fields of the records followed by the cascaded ancestor fields, merged in
+ * the same way as the delimited output when records vary in their fields. Every column is a nullable string.
+ * Columns with few distinct values, such as cascaded ancestor fields, are dictionary encoded. A column goes plain
+ * once its distinct values are more than half of its values, as a dictionary would not make it any smaller.
+ */
+public class ArrowFileWriter implements RecordHandler {
+
+    private static final int DEFAULT_BATCH_ROWS = 64 * 1024;
+    private static final int DEFAULT_MAX_DICTIONARY_SIZE = 64 * 1024;
+    private static final double DEFAULT_MAX_DICTIONARY_RATIO = 0.5;
+
+    private final String outDir;
+    private final StatusReporter statusReporter;
+    private final boolean streamFormat;
+    private final int batchRows;
+    private final int maxDictionarySize;
+    private final double maxDictionaryRatio;
+    private Map<String, Namespace> xmlnsUriToPrefix;
+
+    private final RecordTypeTables<ArrowTable> tables;
+
+    private ArrowFileWriter(String outDir, StatusReporter statusReporter, boolean streamFormat,
+                            int batchRows, int maxDictionarySize, double maxDictionaryRatio) {
+        this.outDir = outDir;
+        this.statusReporter = statusReporter;
+        this.streamFormat = streamFormat;
+        this.batchRows = batchRows;
+        this.maxDictionarySize = maxDictionarySize;
+        this.maxDictionaryRatio = maxDictionaryRatio;
+        this.tables = new RecordTypeTables<>((name, recordLevel, previousRecordType, recordHierarchy) ->
+                new ArrowTable(name, outDir, streamFormat ? "arrows" : "arrow", recordLevel, previousRecordType,
+                        batchRows, maxDictionarySize, maxDictionaryRatio),
+                table -> table.result);
+    }
+
+    @Override
+    public void write(QName recordName, Iterable<Pair<String, String>> fieldValueStack,
+                      CascadedAncestorFields cascadedData)
+            throws IOException {
+
+        tables.table(recordName, cascadedData).append(fieldValueStack, cascadedData.getCascadedAncestorFields());
+    }
+
+    @Override
+    public void closeAllFileStreams() throws IOException {
+        for (ArrowTable table: tables.all()) {
+            long startTime = System.currentTimeMillis();
+            long recCount = table.close(streamFormat);
+            statusReporter.logInfo(String.format("\nWrote %d records of %s to %s in %d seconds",
+                    recCount, table.name, table.path, (System.currentTimeMillis() - startTime)/1000));
+        }
+    }
+
+    @Override
+    public List<GeneratedResult> getFilesWritten() {
+        return tables.filesWritten();
+    }
+
+    @Override
+    public void setXmlnsUriToPrefix(Map<String, Namespace> xmlnsUriToPrefix) {
+        this.xmlnsUriToPrefix = xmlnsUriToPrefix;
+    }
+
+    public static class ArrowFileWriterBuilder {
+        private String outDir = ".";
+        private StatusReporter statusReporter;
+        private boolean streamFormat = false;
+        private int batchRows = DEFAULT_BATCH_ROWS;
+        private int maxDictionarySize = DEFAULT_MAX_DICTIONARY_SIZE;
+        private double maxDictionaryRatio = DEFAULT_MAX_DICTIONARY_RATIO;
+
+        public ArrowFileWriterBuilder setOutDir(String outDir) {
+            this.outDir = outDir;
+            return this;
+        }
+
+        public ArrowFileWriterBuilder setStatusReporter(StatusReporter statusReporter) {
+            this.statusReporter = statusReporter;
+            return this;
+        }
+
+        /**
+         * @param streamFormat - write Arrow IPC streams suffixed with .arrows instead of files suffixed with .arrow
+         * @return this builder
+         */
+        public ArrowFileWriterBuilder setStreamFormat(boolean streamFormat) {
+            this.streamFormat = streamFormat;
+            return this;
+        }
+
+        /**
+         * @param batchRows - number of records in a record batch
+         * @return this builder
+         */
+        public ArrowFileWriterBuilder setBatchRows(int batchRows) {
+            this.batchRows = batchRows;
+            return this;
+        }
+
+        /**
+         * A column with more distinct values than this is not dictionary encoded.
+         * @param maxDictionarySize - number of distinct values of a dictionary encoded column
+         * @return this builder
+         */
+        public ArrowFileWriterBuilder setMaxDictionarySize(int maxDictionarySize) {
+            this.maxDictionarySize = maxDictionarySize;
+            return this;
+        }
+
+        /**
+         * A column whose distinct values are more than this ratio of its values is not dictionary encoded.
+         * The ratio is looked at once the dictionary has a few hundred values.
+         * @param maxDictionaryRatio - ratio of the distinct values to the values of a dictionary encoded column
+         * @return this builder
+         */
+        public ArrowFileWriterBuilder setMaxDictionaryRatio(double maxDictionaryRatio) {
+            this.maxDictionaryRatio = maxDictionaryRatio;
+            return this;
+        }
+
+        public ArrowFileWriter create() {
+            if (statusReporter == null) {
+                statusReporter = new StatusReporter();
+            }
+            return new ArrowFileWriter(outDir, statusReporter, streamFormat, batchRows, maxDictionarySize,
+                    maxDictionaryRatio);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.karbherin.flatterxml.output;
+
+import com.karbherin.flatterxml.output.FlatBuffers.Table;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Metadata and framing of the Arrow IPC format, version 5 of the metadata.
+ * Written as per the published Schema.fbs, Message.fbs and File.fbs, with every column a nullable UTF-8 string,
+ * optionally dictionary encoded with 32 bit indices.
+ */
+final class ArrowFormat {
+
+    static final byte[] FILE_MAGIC = "ARROW1".getBytes(StandardCharsets.US_ASCII);
+    private static final int CONTINUATION = 0xFFFFFFFF;
+    private static final short METADATA_V5 = 4;
+
+    // MessageHeader union
+    private static final byte SCHEMA = 1;
+    private static final byte DICTIONARY_BATCH = 2;
+    private static final byte RECORD_BATCH = 3;
+    // Type union
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_UTF8 = 5;
+
+    private ArrowFormat() {
+    }
+
+    /**
+     * @param columns       - column names
+     * @param dictionaryIds - dictionary of each column, -1 if the column is not dictionary encoded
+     * @return Schema table
+     */
+    static Table schema(List<String> columns, long[] dictionaryIds) {
+        List<Table> fields = new ArrayList<>();
+        for (int col = 0; col < columns.size(); col++) {
+            Table field = new Table()
+                    .addOffset(0, FlatBuffers.string(columns.get(col)))
+                    .addBool(1, true)
+                    .addByte(2, TYPE_UTF8)
+                    .addOffset(3, new Table())
+                    .addOffset(5, FlatBuffers.tables(new ArrayList<>()));
+            if (dictionaryIds[col] >= 0) {
+                field.addOffset(4, new Table()
+                        .addLong(0, dictionaryIds[col])
+                        .addOffset(1, new Table().addInt(0, 32).addBool(1, true)));
+            }
+            fields.add(field);
+        }
+        // Little endian is the default endianness
+        return new Table().addOffset(1, FlatBuffers.tables(fields));
+    }
+
+    /**
+     * @param length  - number of rows
+     * @param nodes   - length and null count of each column
+     * @param buffers - offset in the message body and length of each buffer of each column
+     * @return RecordBatch table
+     */
+    static Table recordBatch(long length, long[] nodes, long[] buffers) {
+        return new Table()
+                .addLong(0, length)
+                .addOffset(1, FlatBuffers.structs(nodes.length / 2, nodes))
+                .addOffset(2, FlatBuffers.structs(buffers.length / 2, buffers));
+    }
+
+    static Table dictionaryBatch(long id, Table values) {
+        return new Table().addLong(0, id).addOffset(1, values);
+    }
+
+    static byte[] schemaMessage(Table schema) {
+        return message(SCHEMA, schema, 0L);
+    }
+
+    static byte[] dictionaryMessage(Table dictionaryBatch, long bodyLength) {
+        return message(DICTIONARY_BATCH, dictionaryBatch, bodyLength);
+    }
+
+    static byte[] recordBatchMessage(Table recordBatch, long bodyLength) {
+        return message(RECORD_BATCH, recordBatch, bodyLength);
+    }
+
+    private static byte[] message(byte headerType, Table header, long bodyLength) {
+        return FlatBuffers.finish(new Table()
+                .addShort(0, METADATA_V5)
+                .addByte(1, headerType)
+                .addOffset(2, header)
+                .addLong(3, bodyLength));
+    }
+
+    /**
+     * @param schema       - Schema table
+     * @param dictionaries - blocks of the dictionary batches
+     * @param batches      - blocks of the record batches
+     * @return serialized Footer
+     */
+    static byte[] footer(Table schema, List<Block> dictionaries, List<Block> batches) {
+        return FlatBuffers.finish(new Table()
+                .addShort(0, METADATA_V5)
+                .addOffset(1, schema)
+                .addOffset(2, blocks(dictionaries))
+                .addOffset(3, blocks(batches)));
+    }
+
+    private static FlatBuffers.Node blocks(List<Block> blocks) {
+        long[] longs = new long[blocks.size() * 3];
+        for (int i = 0; i < blocks.size(); i++) {
+            Block block = blocks.get(i);
+            longs[3 * i] = block.offset;
+            // Metadata length is an int padded to 8 bytes, in little endian
+            longs[3 * i + 1] = block.metadataLength & 0xFFFFFFFFL;
+            longs[3 * i + 2] = block.bodyLength;
+        }
+        return FlatBuffers.structs(blocks.size(), longs);
+    }
+
+    /**
+     * Writes an encapsulated message: continuation marker, metadata size, metadata padded to 8 bytes and the body.
+     * @param out      - file being written
+     * @param metadata - serialized Message, padded to 8 bytes
+     * @param body     - body buffers, each already padded to 8 bytes
+     * @return block locating the message in the file
+     */
+    static Block writeMessage(FileChannel out, byte[] metadata, List<ByteBuffer> body) throws IOException {
+        long offset = out.position();
+        ByteBuffer prefix = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        prefix.putInt(CONTINUATION).putInt(metadata.length).flip();
+        writeFully(out, prefix);
+        writeFully(out, ByteBuffer.wrap(metadata));
+
+        long bodyLength = 0L;
+        for (ByteBuffer buf: body) {
+            bodyLength += buf.remaining();
+            writeFully(out, buf);
+        }
+        return new Block(offset, 8 + metadata.length, bodyLength);
+    }
+
+    /**
+     * End of stream marker: continuation marker followed by a zero metadata size.
+     */
+    static void writeEndOfStream(FileChannel out) throws IOException {
+        ByteBuffer eos = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        eos.putInt(CONTINUATION).putInt(0).flip();
+        writeFully(out, eos);
+    }
+
+    static void writeFully(FileChannel out, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+    }
+
+    /**
+     * Location of a message in an Arrow file.
+     */
+    static final class Block {
+        final long offset;
+        final int metadataLength;
+        final long bodyLength;
+
+        Block(long offset, int metadataLength, long bodyLength) {
+            this.offset = offset;
+            this.metadataLength = metadataLength;
+            this.bodyLength = bodyLength;
+        }
+    }
+}
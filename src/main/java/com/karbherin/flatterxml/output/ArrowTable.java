@@ -0,0 +1,366 @@
+package com.karbherin.flatterxml.output;
+
+import com.karbherin.flatterxml.helper.Utils;
+import com.karbherin.flatterxml.model.Pair;
+import com.karbherin.flatterxml.output.ArrowFormat.Block;
+import com.karbherin.flatterxml.output.FlatBuffers.Table;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static com.karbherin.flatterxml.output.RecordHandler.GeneratedResult;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Arrow output of one record type. Records are gathered column by column into batches.
+ * Full batches are spilled to a temporary file, since the columns and dictionaries of the table are known
+ * only once all its records are seen. When the table is closed, the Arrow file is written with the schema,
+ * one dictionary batch per dictionary encoded column and the record batches laid out in the table's columns.
+ * Writers of a table take turns.
+ */
+final class ArrowTable {
+
+    private static final String TABLE_FILE_FMT = "%s/%s.%s";
+    private static final String SPILL_FILE_FMT = "%s/tmp_%s.arrow";
+
+    final String name;
+    final GeneratedResult result;
+    final Path path;
+    private final Path spillPath;
+    private final int batchRows;
+    private final int maxDictionarySize;
+    private final double maxDictionaryRatio;
+
+    private final Map<String, ArrowColumn> columnsByName = new HashMap<>();
+    private final List<ArrowColumn> columns = new ArrayList<>();
+    // Rows in the batch being filled
+    private int rows = 0;
+    private FileChannel spill = null;
+    private final List<SpilledBatch> batches = new ArrayList<>();
+    private long recordCount = 0L;
+
+    // Column sequences of the records: {sequence: number of records}
+    private final Map<ColumnSequence, int[]> sequences = new LinkedHashMap<>();
+    private int[] rowColumns = new int[16];
+    private ColumnSequence lastSequence = null;
+    private int[] lastSequenceCount = null;
+
+    ArrowTable(String name, String outDir, String extension, int recordLevel, String previousRecordType,
+               int batchRows, int maxDictionarySize, double maxDictionaryRatio) {
+        this.name = name;
+        this.path = Paths.get(String.format(TABLE_FILE_FMT, outDir, name, extension));
+        this.spillPath = Paths.get(String.format(SPILL_FILE_FMT, outDir, name));
+        this.batchRows = batchRows;
+        this.maxDictionarySize = maxDictionarySize;
+        this.maxDictionaryRatio = maxDictionaryRatio;
+        this.result = new GeneratedResult(recordLevel, name, previousRecordType);
+    }
+
+    /**
+     * Adds a record to the batch being filled.
+     * A repeated field goes into a column of its own, suffixed with #2, #3, etc.
+     * @param fields   - fields of the record
+     * @param appendix - cascaded ancestor fields
+     */
+    synchronized void append(Iterable<Pair<String, String>> fields, Iterable<Pair<String, String>> appendix)
+            throws IOException {
+
+        // Records without fields of their own are not written, as in the delimited output
+        if (!fields.iterator().hasNext()) {
+            return;
+        }
+        int width = set(appendix, set(fields, 0));
+
+        countSequence(width);
+        rows++;
+        recordCount++;
+        if (rows == batchRows) {
+            spillBatch();
+        }
+    }
+
+    private int set(Iterable<Pair<String, String>> fields, int width) {
+        for (Pair<String, String> field: fields) {
+            ArrowColumn column = column(field.getKey());
+            for (int occurrence = 2; column.filledRows() > rows; occurrence++) {
+                column = column(field.getKey() + "#" + occurrence);
+            }
+            column.set(rows, field.getVal());
+
+            if (width == rowColumns.length) {
+                rowColumns = Arrays.copyOf(rowColumns, width * 2);
+            }
+            rowColumns[width++] = column.id;
+        }
+        return width;
+    }
+
+    private ArrowColumn column(String columnName) {
+        ArrowColumn column = columnsByName.get(columnName);
+        if (column == null) {
+            column = new ArrowColumn(columnName, columns.size(), maxDictionarySize, maxDictionaryRatio);
+            columnsByName.put(columnName, column);
+            columns.add(column);
+        }
+        return column;
+    }
+
+    private void countSequence(int width) {
+        if (lastSequence == null || !lastSequence.matches(rowColumns, width)) {
+            lastSequence = new ColumnSequence(Arrays.copyOf(rowColumns, width));
+            lastSequenceCount = sequences.computeIfAbsent(lastSequence, seq -> new int[1]);
+        }
+        if (lastSequenceCount[0] < Integer.MAX_VALUE) {
+            lastSequenceCount[0]++;
+        }
+    }
+
+    private void spillBatch() throws IOException {
+        if (spill == null) {
+            spill = FileChannel.open(spillPath, CREATE, TRUNCATE_EXISTING, READ, WRITE);
+        }
+        long[][] chunks = new long[columns.size()][];
+        for (ArrowColumn column: columns) {
+            // Columns without a value in the batch are written as nulls
+            if (column.filledRows() > 0) {
+                chunks[column.id] = column.spill(spill, rows);
+            }
+        }
+        batches.add(new SpilledBatch(rows, chunks));
+        rows = 0;
+    }
+
+    /**
+     * Writes the Arrow file or stream of the table and removes the spilled batches.
+     * @param streamFormat - write the streaming format, otherwise the file format
+     * @return number of records
+     */
+    synchronized long close(boolean streamFormat) throws IOException {
+        if (rows > 0) {
+            spillBatch();
+        }
+
+        List<ArrowColumn> layout = layout();
+        long[] dictionaryIds = new long[layout.size()];
+        long nextDictionaryId = 0L;
+        for (int col = 0; col < layout.size(); col++) {
+            dictionaryIds[col] = layout.get(col).isDictionaryEncoded() ? nextDictionaryId++ : -1L;
+        }
+        Table schema = ArrowFormat.schema(
+                layout.stream().map(column -> column.name).collect(Collectors.toList()), dictionaryIds);
+
+        List<Block> dictionaryBlocks = new ArrayList<>();
+        List<Block> batchBlocks = new ArrayList<>();
+        try (FileChannel out = FileChannel.open(path, CREATE, TRUNCATE_EXISTING, WRITE)) {
+            if (!streamFormat) {
+                ArrowFormat.writeFully(out, padded(ByteBuffer.wrap(ArrowFormat.FILE_MAGIC)));
+            }
+            ArrowFormat.writeMessage(out, ArrowFormat.schemaMessage(schema), Collections.emptyList());
+
+            for (int col = 0; col < layout.size(); col++) {
+                if (dictionaryIds[col] >= 0) {
+                    List<String> values = layout.get(col).getDictionaryValues();
+                    Body body = new Body();
+                    body.node(values.size(), 0);
+                    body.buffer(null);
+                    layout.get(col).dictionaryBuffers().forEach(body::buffer);
+                    Table batch = ArrowFormat.recordBatch(values.size(), body.nodes(), body.buffers());
+                    dictionaryBlocks.add(ArrowFormat.writeMessage(out,
+                            ArrowFormat.dictionaryMessage(ArrowFormat.dictionaryBatch(dictionaryIds[col], batch),
+                                    body.length), body.data));
+                }
+            }
+
+            for (SpilledBatch batch: batches) {
+                Body body = body(batch, layout);
+                batchBlocks.add(ArrowFormat.writeMessage(out, ArrowFormat.recordBatchMessage(
+                        ArrowFormat.recordBatch(batch.rows, body.nodes(), body.buffers()), body.length), body.data));
+            }
+
+            if (streamFormat) {
+                ArrowFormat.writeEndOfStream(out);
+            } else {
+                byte[] footer = ArrowFormat.footer(schema, dictionaryBlocks, batchBlocks);
+                ByteBuffer trailer = ByteBuffer.allocate(4 + ArrowFormat.FILE_MAGIC.length)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                trailer.putInt(footer.length).put(ArrowFormat.FILE_MAGIC).flip();
+                ArrowFormat.writeFully(out, ByteBuffer.wrap(footer));
+                ArrowFormat.writeFully(out, trailer);
+            }
+        } finally {
+            if (spill != null) {
+                spill.close();
+                spill = null;
+                Files.delete(spillPath);
+            }
+        }
+        return recordCount;
+    }
+
+    /**
+     * Merges the column sequences of the records into the table's columns.
+     */
+    private List<ArrowColumn> layout() {
+        List<String[]> seqs = new ArrayList<>();
+        List<Integer> counts = new ArrayList<>();
+        sequences.entrySet().stream()
+                .map(seq -> new AbstractMap.SimpleEntry<>(Arrays.stream(seq.getKey().columns)
+                        .mapToObj(col -> columns.get(col).name).toArray(String[]::new), seq.getValue()[0]))
+                .sorted((s1, s2) -> String.join("\u0000", s2.getKey()).compareTo(String.join("\u0000", s1.getKey())))
+                .forEach(seq -> {
+                    seqs.add(seq.getKey());
+                    counts.add(seq.getValue());
+                });
+        return Utils.collapseSequences(seqs, counts).stream()
+                .map(columnsByName::get)
+                .collect(Collectors.toList());
+    }
+
+    private Body body(SpilledBatch batch, List<ArrowColumn> layout) throws IOException {
+        Body body = new Body();
+        for (ArrowColumn column: layout) {
+            long[] chunk = column.id < batch.chunks.length ? batch.chunks[column.id] : null;
+            if (chunk == null) {
+                // No values in the batch
+                body.node(batch.rows, batch.rows);
+                body.buffer(ByteBuffer.allocate((batch.rows + 7) >> 3));
+                if (column.isDictionaryEncoded()) {
+                    body.buffer(ByteBuffer.allocate(batch.rows * 4));
+                } else {
+                    body.buffer(ByteBuffer.allocate((batch.rows + 1) * 4));
+                    body.buffer(null);
+                }
+                continue;
+            }
+
+            body.node(batch.rows, chunk[ArrowColumn.NULL_COUNT]);
+            ByteBuffer validity = chunk[ArrowColumn.NULL_COUNT] > 0 ? read(chunk, ArrowColumn.VALIDITY) : null;
+            body.buffer(validity);
+            if (chunk[ArrowColumn.DICTIONARY_ENCODED] == 0) {
+                body.buffer(read(chunk, ArrowColumn.OFFSETS));
+                body.buffer(read(chunk, ArrowColumn.DATA));
+            } else if (column.isDictionaryEncoded()) {
+                body.buffer(read(chunk, ArrowColumn.INDICES));
+            } else {
+                // Spilled before the column went plain
+                ByteBuffer indices = read(chunk, ArrowColumn.INDICES).order(ByteOrder.LITTLE_ENDIAN);
+                column.plainFromIndices(validity, indices, batch.rows).forEach(body::buffer);
+            }
+        }
+        return body;
+    }
+
+    private ByteBuffer read(long[] chunk, int slot) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate((int) chunk[slot + 1]);
+        long pos = chunk[slot];
+        while (buf.hasRemaining()) {
+            int read = spill.read(buf, pos + buf.position());
+            if (read < 0) {
+                throw new IOException("Spilled batch of " + name + " is truncated");
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * @return a buffer holding the bytes of the given buffer padded to 8 bytes
+     */
+    private static ByteBuffer padded(ByteBuffer buf) {
+        int length = buf.remaining();
+        int paddedLength = FlatBuffers.align(length, 8);
+        if (paddedLength == length) {
+            return buf;
+        }
+        ByteBuffer paddedBuf = ByteBuffer.allocate(paddedLength);
+        paddedBuf.put(buf).position(0);
+        return paddedBuf;
+    }
+
+    /**
+     * Body of a message: field nodes, and buffers at 8 byte aligned offsets.
+     */
+    private static final class Body {
+        private final List<Long> nodes = new ArrayList<>();
+        private final List<Long> buffers = new ArrayList<>();
+        private final List<ByteBuffer> data = new ArrayList<>();
+        private long length = 0L;
+
+        void node(long length, long nullCount) {
+            nodes.add(length);
+            nodes.add(nullCount);
+        }
+
+        /**
+         * @param buf - buffer ready to be read, null for an absent buffer
+         */
+        void buffer(ByteBuffer buf) {
+            int bufLength = buf == null ? 0 : buf.remaining();
+            buffers.add(length);
+            buffers.add((long) bufLength);
+            if (bufLength > 0) {
+                ByteBuffer paddedBuf = padded(buf);
+                data.add(paddedBuf);
+                length += paddedBuf.remaining();
+            }
+        }
+
+        long[] nodes() {
+            return nodes.stream().mapToLong(Long::longValue).toArray();
+        }
+
+        long[] buffers() {
+            return buffers.stream().mapToLong(Long::longValue).toArray();
+        }
+    }
+
+    private static final class SpilledBatch {
+        private final int rows;
+        // Spilled chunk of each column by column id, null if the column had no values in the batch
+        private final long[][] chunks;
+
+        private SpilledBatch(int rows, long[][] chunks) {
+            this.rows = rows;
+            this.chunks = chunks;
+        }
+    }
+
+    private static final class ColumnSequence {
+        private final int[] columns;
+        private final int hash;
+
+        private ColumnSequence(int[] columns) {
+            this.columns = columns;
+            this.hash = Arrays.hashCode(columns);
+        }
+
+        private boolean matches(int[] other, int width) {
+            if (width != columns.length) {
+                return false;
+            }
+            for (int i = 0; i < width; i++) {
+                if (columns[i] != other[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof ColumnSequence && Arrays.equals(columns, ((ColumnSequence) other).columns);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.karbherin.flatterxml.output;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Writer threads that write out the buffers filled up by the workers, so that a stalled disk
+ * does not hold up XML parsing. A worker hands its full buffer over and carries on with another one.
+ * Each table is written by one writer thread, which keeps the buffers of a shard in order.
+ * Workers wait when the buffers queued up for writing reach the memory bound.
+ */
+final class AsyncFlusher {
+
+    private final Writer[] writers;
+    private final long maxQueuedBytes;
+    private final WriterMetrics metrics;
+    private final Object queueLock = new Object();
+    private long queuedBytes = 0L;
+
+    AsyncFlusher(int numThreads, long maxQueuedBytes, WriterMetrics metrics) {
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.metrics = metrics;
+        this.writers = new Writer[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            writers[i] = new Writer("flatterxml-writer-" + (i + 1));
+            writers[i].start();
+        }
+    }
+
+    /**
+     * @param tableName - table to be written
+     * @return the writer thread of the table
+     */
+    Writer writerFor(String tableName) {
+        return writers[Math.floorMod(tableName.hashCode(), writers.length)];
+    }
+
+    /**
+     * Stops the writer threads once they have written out the buffers handed to them.
+     */
+    void shutdown() {
+        for (Writer writer: writers) {
+            writer.queue.add(new Task(null, null, null));
+        }
+    }
+
+    /**
+     * A writer thread with its queue of buffers.
+     */
+    final class Writer extends Thread {
+
+        private final BlockingQueue<Task> queue = new LinkedBlockingQueue<>();
+
+        private Writer(String name) {
+            super(name);
+            setDaemon(true);
+        }
+
+        /**
+         * Hands a buffer over to be written to the shard's file. Waits if too many bytes are queued up.
+         * @param shard - shard the buffer belongs to
+         * @param data  - buffer ready to be read, recycled after it is written
+         */
+        void submit(OutputShard shard, ByteBuffer data) throws IOException {
+            int length = data.remaining();
+            synchronized (queueLock) {
+                try {
+                    // A buffer larger than the bound is let through when nothing else is queued
+                    while (queuedBytes > 0 && queuedBytes + length > maxQueuedBytes) {
+                        queueLock.wait();
+                    }
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException("Interrupted while waiting to write " + shard.path);
+                }
+                queuedBytes += length;
+            }
+            metrics.queued();
+            queue.add(new Task(shard, data, null));
+        }
+
+        /**
+         * Waits until the buffers handed over for the shard are written out.
+         * @param shard - shard to wait for
+         */
+        void await(OutputShard shard) throws IOException {
+            CountDownLatch written = new CountDownLatch(1);
+            queue.add(new Task(shard, null, written));
+            try {
+                written.await();
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException("Interrupted while waiting for writes to " + shard.path);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Task task;
+                try {
+                    task = queue.take();
+                } catch (InterruptedException ex) {
+                    return;
+                }
+
+                if (task.barrier != null) {
+                    task.barrier.countDown();
+                } else if (task.data != null) {
+                    int length = task.data.remaining();
+                    task.shard.writeOut(task.data);
+                    metrics.dequeued();
+                    synchronized (queueLock) {
+                        queuedBytes -= length;
+                        queueLock.notifyAll();
+                    }
+                } else {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static final class Task {
+        private final OutputShard shard;
+        private final ByteBuffer data;
+        private final CountDownLatch barrier;
+
+        private Task(OutputShard shard, ByteBuffer data, CountDownLatch barrier) {
+            this.shard = shard;
+            this.data = data;
+            this.barrier = barrier;
+        }
+    }
+}
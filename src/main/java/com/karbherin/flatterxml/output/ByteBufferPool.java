@@ -0,0 +1,78 @@
+package com.karbherin.flatterxml.output;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of write buffers shared by all the output tables.
+ * Bounds the total memory held by buffers. Buffers of the standard size are recycled,
+ * larger buffers grown for very wide records are discarded when released.
+ */
+final class ByteBufferPool {
+
+    private final int bufferSize;
+    private final long maxBytes;
+    private final ConcurrentLinkedDeque<ByteBuffer> free = new ConcurrentLinkedDeque<>();
+    // Bytes held by buffers handed out and by buffers in the free list
+    private final AtomicLong allocatedBytes = new AtomicLong(0L);
+
+    ByteBufferPool(int bufferSize, long maxBytes) {
+        this.bufferSize = bufferSize;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Acquires a buffer of at least the given capacity.
+     * @param capacity - minimum capacity needed
+     * @return an empty buffer, or null if the memory budget is exhausted
+     */
+    ByteBuffer acquire(int capacity) {
+        if (capacity <= bufferSize) {
+            ByteBuffer buf = free.poll();
+            if (buf != null) {
+                buf.clear();
+                return buf;
+            }
+        }
+
+        int size = Math.max(capacity, bufferSize);
+        long allocated;
+        do {
+            allocated = allocatedBytes.get();
+            if (allocated + size > maxBytes) {
+                return null;
+            }
+        } while (!allocatedBytes.compareAndSet(allocated, allocated + size));
+
+        return ByteBuffer.allocate(size);
+    }
+
+    /**
+     * Allocates a buffer regardless of the memory budget.
+     * Used when a writer has no buffers of its own left to give back.
+     * @param capacity - minimum capacity needed
+     * @return an empty buffer
+     */
+    ByteBuffer acquireOverBudget(int capacity) {
+        int size = Math.max(capacity, bufferSize);
+        allocatedBytes.addAndGet(size);
+        return ByteBuffer.allocate(size);
+    }
+
+    void release(ByteBuffer buf) {
+        if (buf.capacity() == bufferSize && allocatedBytes.get() <= maxBytes) {
+            free.push(buf);
+        } else {
+            allocatedBytes.addAndGet(-buf.capacity());
+        }
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+}
@@ -0,0 +1,61 @@
+package com.karbherin.flatterxml.output;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounds the number of shard files held open at a time.
+ * Shards open their files when they first write out their records. When too many files are open
+ * the least recently written shards close theirs, and reopen them for appending on their next write.
+ */
+final class ChannelPool {
+
+    private final int maxOpenFiles;
+    // Shards holding an open file, least recently written first
+    private final Map<OutputShard, Boolean> open = new LinkedHashMap<>(16, 0.75f, true);
+
+    ChannelPool(int maxOpenFiles) {
+        this.maxOpenFiles = maxOpenFiles;
+    }
+
+    /**
+     * Registers a shard that has opened its file.
+     * @param shard - shard that opened its file
+     * @return shards that must close their files to stay within the bound
+     */
+    synchronized List<OutputShard> opened(OutputShard shard) {
+        open.put(shard, Boolean.TRUE);
+        if (open.size() <= maxOpenFiles) {
+            return Collections.emptyList();
+        }
+
+        List<OutputShard> evicted = new ArrayList<>();
+        for (Iterator<OutputShard> lru = open.keySet().iterator(); open.size() > maxOpenFiles && lru.hasNext(); ) {
+            OutputShard victim = lru.next();
+            if (victim != shard) {
+                lru.remove();
+                evicted.add(victim);
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Marks the shard's file as recently written.
+     */
+    synchronized void written(OutputShard shard) {
+        open.get(shard);
+    }
+
+    synchronized void closed(OutputShard shard) {
+        open.remove(shard);
+    }
+
+    synchronized int getOpenFiles() {
+        return open.size();
+    }
+}
@@ -0,0 +1,44 @@
+package com.karbherin.flatterxml.output;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts of the values that could not be converted to the types of their columns, by record type and column.
+ * Shared by the typed records of all the workers.
+ */
+public final class ConversionFailures {
+
+    // {recordType: {column: count}}
+    private final Map<String, Map<String, LongAdder>> counts = new ConcurrentHashMap<>();
+
+    void increment(String recordType, String column) {
+        counts.computeIfAbsent(recordType, key -> new ConcurrentHashMap<>())
+                .computeIfAbsent(column, key -> new LongAdder())
+                .increment();
+    }
+
+    /**
+     * @param recordType - record type
+     * @param column     - column of the record type
+     * @return number of values of the column that could not be converted
+     */
+    public long count(String recordType, String column) {
+        LongAdder count = counts.getOrDefault(recordType, Collections.emptyMap()).get(column);
+        return count == null ? 0L : count.sum();
+    }
+
+    /**
+     * @param recordType - record type
+     * @return number of values that could not be converted for each column of the record type, ordered by column
+     */
+    public Map<String, Long> counts(String recordType) {
+        Map<String, Long> columnCounts = new TreeMap<>();
+        counts.getOrDefault(recordType, Collections.emptyMap())
+                .forEach((column, count) -> columnCounts.put(column, count.sum()));
+        return columnCounts;
+    }
+}
@@ -1,18 +1,16 @@
 package com.karbherin.flatterxml.output;
 
+import com.karbherin.flatterxml.AppConstants.QuoteMode;
 import com.karbherin.flatterxml.helper.Utils;
+import com.karbherin.flatterxml.model.CascadeSegment;
 import com.karbherin.flatterxml.model.CascadedAncestorFields;
 import com.karbherin.flatterxml.model.OpenCan;
 import com.karbherin.flatterxml.model.Pair;
-import com.karbherin.flatterxml.model.RecordTypeHierarchy;
 
 import javax.xml.namespace.QName;
 import javax.xml.stream.events.Namespace;
 import java.io.*;
-import java.nio.ByteBuffer;
-import java.nio.channels.ByteChannel;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.charset.Charset;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -22,49 +20,74 @@ import java.util.stream.Collectors;
 
 import static com.karbherin.flatterxml.helper.XmlHelpers.EMPTY;
 import static com.karbherin.flatterxml.helper.XmlHelpers.toPrefixedTag;
-import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
-import static java.nio.file.StandardOpenOption.*;
 
 
 public class DelimitedFileWriter implements RecordHandler {
 
     private final String delimiterStr;
-    private final byte[] delimiter;
-    private final String delimiterRx;
     private final String outDir;
     // If user does not provide output fields sequence then the fields can vary between records
     private final boolean outFieldsDefined;
     private final StatusReporter statusReporter;
     private Map<String, Namespace> xmlnsUriToPrefix;
     private final String newlineReplacement;
-
-    private final List<GeneratedResult> filesWritten = new ArrayList<>();
-    // {filename: fileChannel}
-    private final ConcurrentHashMap<String, ByteChannel> fileStreams = new ConcurrentHashMap<>();
-    private final ThreadLocal<ByteBuffer> buffer = ThreadLocal.withInitial(() -> ByteBuffer.allocate(8192));
-    // {filename: {recordHeader: (headerId, numOfColumns)}}
-    private final Map<String, ConcurrentHashMap<String, Pair<Integer, Integer>>> allRecHeaders = new HashMap<>();
+    private final QuoteMode quoteMode;
+    private final Charset charset;
+    // Encoders hold encoding state, one per worker thread
+    private final ThreadLocal<FieldEncoder> fieldEncoder;
+    // Concatenate the shards of workers into one file per record type
+    private final boolean mergeParts;
+
+    private final RecordTypeTables<OutputTable> tables;
+    // Write buffers drawn from a pool of bounded size, writer threads and settings shared by all shards
+    private final ShardContext shardContext;
+    // Tables are normalized in chunks by a pool of threads shared by all tables
+    private final int normalizerThreads;
+    // Announces the completed segments when output files roll over, null otherwise
+    private final SegmentManifest segmentManifest;
     private final AtomicInteger headingNumber = new AtomicInteger(0);
     // To generate record definitions for reuse
     // record: [header-col1, header-col2, ...]
-    private final Map<String, List<String>> recordDefs = new HashMap<>();
+    private final Map<String, List<String>> recordDefs = new ConcurrentHashMap<>();
 
     private enum KeyValuePart {FIELD_PART, VALUE_PART}
-    private static final String DATA_HEADER_SEP = "##HEADER>#";
-    private static final Pattern NEWLINE_RX = Pattern.compile("\r?\n");
+    private static final long DEFAULT_CHUNK_SIZE = 8L * 1024 * 1024;
 
     public DelimitedFileWriter(String delimiter, String outDir,
                                boolean outFieldsDefined, StatusReporter statusReporter,
                                String newlineReplacement) {
+        this(delimiter, outDir, outFieldsDefined, statusReporter, newlineReplacement,
+                QuoteMode.NONE, Charset.defaultCharset(), true,
+                new DelimitedFileWriterBuilder().newShardContext(DEFAULT_CHUNK_SIZE),
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    private DelimitedFileWriter(String delimiter, String outDir,
+                                boolean outFieldsDefined, StatusReporter statusReporter,
+                                String newlineReplacement, QuoteMode quoteMode, Charset charset,
+                                boolean mergeParts, ShardContext shardContext, int normalizerThreads) {
 
         this.delimiterStr = delimiter;
         this.outDir = outDir;
         this.outFieldsDefined = outFieldsDefined;
-        this.delimiter = delimiter.getBytes();
-        this.delimiterRx = String.format("\\%s",
-                String.join("\\", delimiterStr.split("")));
         this.statusReporter = statusReporter;
         this.newlineReplacement = newlineReplacement;
+        this.quoteMode = quoteMode;
+        this.charset = charset;
+        this.fieldEncoder = ThreadLocal.withInitial(this::newFieldEncoder);
+
+        if (!outFieldsDefined && !newFieldEncoder().isAsciiCompatible()) {
+            throw new IllegalArgumentException(
+                    "Records can be laid out in the same columns only in an ASCII compatible charset: " + charset);
+        }
+        this.mergeParts = mergeParts;
+        this.shardContext = shardContext;
+        this.normalizerThreads = normalizerThreads;
+        this.segmentManifest = shardContext.rollsOver() ? new SegmentManifest(outDir) : null;
+        this.tables = new RecordTypeTables<>((name, recordLevel, previousRecordType, recordHierarchy) ->
+                new OutputTable(name, outDir, "csv", recordLevel, previousRecordType, !outFieldsDefined,
+                        segmentManifest),
+                table -> table.result);
     }
 
     @Override
@@ -72,81 +95,76 @@ public class DelimitedFileWriter implements RecordHandler {
                       CascadedAncestorFields cascadedData)
             throws IOException {
 
-        String fileName = Arrays.asList(recordName.getPrefix(), recordName.getLocalPart()).stream()
-                .filter(part -> part != null && part.length() > 0)
-                .collect(Collectors.joining("."));
-
-        String previousFileName = previousFile(cascadedData, fileName);
-        int currLevel = cascadedData.recordLevel();
-
-        final OpenCan<IOException> exception = new OpenCan<>();
-        ByteChannel out = fileStreams.computeIfAbsent(fileName, (fName) -> {
-
-            ByteChannel newOut = null;
-            try {
-                String filePath = String.format("%s/%s.csv", outDir, fName);
-
-                newOut = Files.newByteChannel(Paths.get(filePath),
-                        CREATE, TRUNCATE_EXISTING, WRITE);
-
-                // Register the new file stream.
-                filesWritten.add(new GeneratedResult(currLevel, fName, previousFileName));
-
-                // Writer header record into a newly opened file.
-                if (outFieldsDefined) {
-                    writeDelimited(newOut, fieldValueStack, KeyValuePart.FIELD_PART,
-                            cascadedData.getCascadedAncestorFields(), fileName);
-                }
-            } catch (IOException ex) {
-                exception.val = ex;
-            }
-
-            allRecHeaders.put(fileName, new ConcurrentHashMap<>());
-
-            return newOut;
-        });
+        OutputTable table = tables.table(recordName, cascadedData);
+        int shardNum = shardContext.shardNumber();
+        OutputShard shard = table.shard(shardNum);
+        boolean newFile = false;
+        if (shard == null) {
+            shard = table.openShard(shardNum, shardContext);
+            newFile = true;
+        } else if (segmentManifest != null && outFieldsDefined && shard.isSegmentFull()) {
+            table.rollOver(shard);
+            newFile = true;
+        }
 
-        if (exception.val != null) {
-            throw exception.val;
+        // Writer header record into a newly opened shard or segment.
+        CascadeSegment appendix = CascadeSegment.of(cascadedData.getCascadedAncestorFields());
+        if (newFile && outFieldsDefined) {
+            writeDelimited(shard, fieldValueStack, KeyValuePart.FIELD_PART, appendix, table);
         }
 
-        writeDelimited(out, fieldValueStack, KeyValuePart.VALUE_PART,
-                cascadedData.getCascadedAncestorFields(), fileName);
+        writeDelimited(shard, fieldValueStack, KeyValuePart.VALUE_PART, appendix, table);
     }
 
     @Override
     public void closeAllFileStreams() throws IOException {
-        for (Map.Entry<String, ByteChannel> entry: fileStreams.entrySet()) {
-            ByteChannel out = entry.getValue();
-            try {
-                out.close();
-            } catch (IOException ignored) {
+        try {
+            closeTables();
+        } finally {
+            shardContext.shutdown();
+            if (segmentManifest != null) {
+                segmentManifest.close();
             }
         }
+        statusReporter.logInfo("\nOutput writes: " + shardContext.metrics);
+    }
 
-        if (!outFieldsDefined) {
+    /**
+     * Write statistics of the output files.
+     * @return metrics updated as the records are written out
+     */
+    public WriterMetrics getWriterMetrics() {
+        return shardContext.metrics;
+    }
+
+    private void closeTables() throws IOException {
+        if (outFieldsDefined) {
+            for (OutputTable table: tables.all()) {
+                table.close(mergeParts, shardContext);
+            }
+        } else {
             long startTime = System.currentTimeMillis();
             statusReporter.logInfo("\nPost processing files:"
                     + " Output record definitions not provided."
                     + " Normalizing all records to have same sequence of columns");
 
-            Map<String, List<String>> realignedRec = new HashMap<>();
-
-            final CountDownLatch latch = new CountDownLatch(fileStreams.keySet().size());
-            filesWritten.stream()
-                    .sorted(Comparator.comparingInt(gr -> gr.recordLevel))
-                    .map(gr -> gr.recordType)
-                    .forEach(fileName ->
-                        new Thread(() -> {
+            // Tables are normalized a few at a time to bound the shard files open at once
+            ExecutorService tablePool = Executors.newFixedThreadPool(normalizerThreads);
+            ExecutorService chunkPool = Executors.newFixedThreadPool(normalizerThreads);
+            final CountDownLatch latch = new CountDownLatch(tables.size());
+            tables.all().stream()
+                    .sorted(Comparator.comparingInt(table -> table.result.recordLevel))
+                    .forEach(table ->
+                        tablePool.execute(() -> {
                             try {
-                                realignRecords(fileName);
+                                normalizeRecords(table, chunkPool);
                             } catch (IOException ex) {
                                 statusReporter.logError(
-                                        new RuntimeException("Could not post process " + fileName, ex), 1);
+                                        new RuntimeException("Could not post process " + table.name, ex), 1);
                             } finally {
                                 latch.countDown();
                             }
-                        }).start()
+                        })
                     );
 
             try {
@@ -154,6 +172,9 @@ public class DelimitedFileWriter implements RecordHandler {
             } catch (InterruptedException ex) {
                 statusReporter.logError(
                         new RuntimeException("All the file post processing threads did not complete", ex), 0);
+            } finally {
+                tablePool.shutdown();
+                chunkPool.shutdown();
             }
 
             statusReporter.logInfo(String.format("\nGenerating 'output record definitions' file: %s/%s",
@@ -172,13 +193,13 @@ public class DelimitedFileWriter implements RecordHandler {
 
     @Override
     public List<GeneratedResult> getFilesWritten() {
-        return filesWritten;
+        return tables.filesWritten();
     }
 
-    private void writeDelimited(ByteChannel out,
+    private void writeDelimited(OutputShard out,
                                 Iterable<Pair<String, String>> data,
-                                KeyValuePart part, Iterable<Pair<String, String>> appendList,
-                                String fileName)
+                                KeyValuePart part, CascadeSegment appendList,
+                                OutputTable table)
             throws IOException {
 
         Iterator<Pair<String, String>> dataIt = data.iterator();
@@ -186,169 +207,101 @@ public class DelimitedFileWriter implements RecordHandler {
             return;
         }
 
-        ByteBuffer buf = buffer.get();
-        buf.clear();
-        StringJoiner colNames = new StringJoiner(delimiterStr);
+        FieldEncoder encoder = fieldEncoder.get();
+        out.beginRecord();
+        long fingerprint = HeaderVariant.fingerprint();
 
         if (part == KeyValuePart.FIELD_PART) {
-            buf.put(dataIt.next().getKey().getBytes());
+            encoder.encode(dataIt.next().getKey(), out);
             while (dataIt.hasNext()) {
-                buf.put(delimiter)
-                        .put(dataIt.next().getKey().getBytes());
+                encoder.delimiter(out);
+                encoder.encode(dataIt.next().getKey(), out);
             }
 
-            // Appendix
-            for (Pair<String, String> appendData: appendList) {
-                buf.put(delimiter)
-                        .put(appendData.getKey().getBytes());
+            // Appendix, walking the ancestors' segments
+            for (CascadeSegment segment = appendList; segment != null; segment = segment.ancestors()) {
+                for (int i = 0; i < segment.size(); i++) {
+                    encoder.delimiter(out);
+                    encoder.encode(segment.column(i), out);
+                }
             }
 
         } else {
 
             Pair<String, String> fv = dataIt.next();
-            buf.put(fv.getVal().getBytes());
-            colNames.add(fv.getKey());
+            encoder.encode(fv.getVal(), out);
+            fingerprint = HeaderVariant.fingerprint(fingerprint, fv.getKey());
 
             while (dataIt.hasNext()) {
                 fv = dataIt.next();
-                buf.put(delimiter)
-                        .put( replaceNewline(fv.getVal()).getBytes() );
+                encoder.delimiter(out);
+                encoder.encode(fv.getVal(), out);
 
                 if (!outFieldsDefined) {
-                    colNames.add(fv.getKey());
+                    fingerprint = HeaderVariant.fingerprint(fingerprint, fv.getKey());
                 }
             }
 
-            // Appendix
-            for (Pair<String, String> fva: appendList) {
-                buf.put(delimiter)
-                        .put( replaceNewline(fva.getVal()).getBytes() );
+            // Appendix, walking the ancestors' segments
+            for (CascadeSegment segment = appendList; segment != null; segment = segment.ancestors()) {
+                for (int i = 0; i < segment.size(); i++) {
+                    encoder.delimiter(out);
+                    encoder.encode(segment.value(i), out);
 
-                if (!outFieldsDefined) {
-                    colNames.add(fva.getKey());
+                    if (!outFieldsDefined) {
+                        fingerprint = HeaderVariant.fingerprint(fingerprint, segment.column(i));
+                    }
                 }
             }
         }
 
-        // If user did not provide output fields sequence then the fields can vary between records.
-        // Append the record's header id to the record data.
-        if (!outFieldsDefined) {
-            String colNamesStr = colNames.toString();
-
-            // All headers for a given output filename
-            ConcurrentHashMap<String, Pair<Integer, Integer>> fileHeadersRegistry = allRecHeaders.get(fileName);
-
-            // Assign a new header id. to the header string if not seen before
-            Pair<Integer, Integer> headerIdCounts = fileHeadersRegistry.computeIfAbsent(colNamesStr,
-                    ign -> new Pair<>(headingNumber.incrementAndGet(), 0));
-
-            // Increment the count of the header
-            headerIdCounts.setVal(headerIdCounts.getVal() + 1);
-
-            // Append the header id. to the output record
-            buf.put(DATA_HEADER_SEP.getBytes())
-                    .put(fileHeadersRegistry.get(colNamesStr).getKey().toString().getBytes());
-        }
-
         // Final line separator
-        buf.put(System.lineSeparator().getBytes());
+        encoder.lineSeparator(out);
 
-        // Write to output channel
-        buf.flip();
-        out.write(buf);
+        // Record is complete. It is written out when the buffer fills up.
+        if (part == KeyValuePart.FIELD_PART) {
+            out.endHeader();
+        } else if (outFieldsDefined) {
+            out.endRecord();
+        } else {
+            // If user did not provide output fields sequence then the fields can vary between records.
+            // Track the record's header variant to lay out the records in the same columns later.
+            HeaderVariant variant = table.headerVariants.variantOf(fingerprint, data, appendList,
+                    out.recentVariants, headingNumber::incrementAndGet);
+            variant.countRow();
+            out.endRecord(variant);
+        }
     }
 
-    private List<String> realignRecords(String fileName) throws IOException {
-
-        Map<String, Pair<Integer, Integer>> fileHeaders = allRecHeaders.get(fileName);
-        if (fileHeaders.keySet().size() == 0) {
-            return Collections.emptyList();
-        }
+    private List<String> normalizeRecords(OutputTable table, ExecutorService chunkPool) throws IOException {
 
+        String fileName = table.name;
         long startTime = System.currentTimeMillis();
-        // [(header, headerId, numOfColumns), ...]
-        List<Map.Entry<String, Pair<Integer, Integer>>> headerStats = fileHeaders.entrySet().stream()
-                .sorted((e1, e2) -> e2.getKey().compareTo(e1.getKey()))
+        List<HeaderVariant> headerStats = table.headerVariants.all().stream()
+                .sorted((v1, v2) -> String.join(delimiterStr, v2.columns)
+                        .compareTo(String.join(delimiterStr, v1.columns)))
                 .collect(Collectors.toList());
 
-
         // Merge column list of all headers into a single header with all columns of all records
         List<String> allCols = Utils.collapseSequences(
                 headerStats.stream()
-                        .map(h -> h.getKey().split(delimiterRx))
+                        .map(h -> h.columns)
                         .collect(Collectors.toList()),
                 headerStats.stream()
-                        .map(h -> h.getValue().getVal())
+                        .map(h -> (int) Math.min(h.getRows(), Integer.MAX_VALUE))
                         .collect(Collectors.toList()));
 
-        recordDefs.put(fileName, allCols);
-
-        Map<String, Integer> colsPos = new HashMap<>();
-        int pos = 0;
-        for (String col: allCols) {
-            colsPos.put(col, pos++);
+        if (!allCols.isEmpty()) {
+            recordDefs.put(fileName, allCols);
         }
 
-        // {headerId : [headerColumn1, headerColumn2, ...]}
-        Map<Integer, String[]> indexToHeader = headerStats.stream()
-                .collect(Collectors.toMap(
-                        entry -> entry.getValue().getKey(),
-                        entry -> entry.getKey().split(delimiterRx)));
-
-        String inFileName = String.format("%s/%s.csv", outDir, fileName);
-        String outFileName = String.format("%s/tmp_%s.csv", outDir, fileName);
-        BufferedReader inFile = new BufferedReader(new FileReader(inFileName));
-        BufferedWriter outFile = new BufferedWriter(new FileWriter(outFileName));
-
-        outFile.write(String.join(delimiterStr, allCols));
-        outFile.write(System.lineSeparator());
-
-        // Reformat the file for each record to have the same list of columns
-        OpenCan<IOException> exception = new OpenCan<>();
-        OpenCan<Long> recCount = new OpenCan<>(0L);
-        inFile.lines().map(line -> line.split(DATA_HEADER_SEP)).forEach(lineParts -> {
-            assert lineParts.length == 2;
-            String[] colNames = indexToHeader.get(Integer.parseInt(lineParts[1]));
-            String[] values = lineParts[0].split(delimiterRx, colNames.length);
-            assert colNames.length == values.length;
-            assert colNames.length <= allCols.size();
-
-            String[] outRec = new String[allCols.size()];
-            for (int i = 0, len = colNames.length; i < len; i++) {
-                outRec[colsPos.get(colNames[i])] = values[i];
-            }
-
-            // Write the record
-            try {
-                for (int i = 0, len = outRec.length; i < len; i++) {
-                    String col = outRec[i];
-                    if (i != 0) {
-                        outFile.write(delimiterStr);
-                    }
-                    outFile.write(col == null ? EMPTY : col);
-                }
-                outFile.newLine();
-
-            } catch (IOException ex) {
-                exception.val = ex;
-            }
-
-            recCount.val++;
-        });
-
-        if (exception.val != null) {
-            throw exception.val;
-        }
-
-        outFile.flush();
-        outFile.close();
-        inFile.close();
-
-        Files.move(Paths.get(outFileName), Paths.get(inFileName), REPLACE_EXISTING);
+        // Records already in the merged columns are copied as they are, others are laid out afresh
+        long recCount = table.close(new TableNormalizer(allCols, headerStats, newFieldEncoder()),
+                mergeParts, shardContext, chunkPool);
 
         long endTime = System.currentTimeMillis();
         statusReporter.logInfo(String.format("\nNormalized %d records of %s in %d seconds",
-                recCount.val, fileName, (endTime - startTime)/1000));
+                recCount, fileName, (endTime - startTime)/1000));
 
         return allCols;
     }
@@ -422,20 +375,89 @@ public class DelimitedFileWriter implements RecordHandler {
         writer.close();
     }
 
-    private String previousFile(RecordTypeHierarchy recordTypeAncestry, String fileName) {
-        String previousFileName = recordTypeAncestry.parentRecordType().recordName().getLocalPart();
-        if (fileName.equals(previousFileName)) {
-            previousFileName = EMPTY;
-        }
-        return previousFileName;
-    }
-
-    private String replaceNewline(String data) {
-        return NEWLINE_RX.matcher(data).replaceAll(newlineReplacement);
+    private FieldEncoder newFieldEncoder() {
+        return new FieldEncoder(delimiterStr, newlineReplacement, quoteMode, charset);
     }
 
     @Override
     public void setXmlnsUriToPrefix(Map<String, Namespace> xmlnsUriToPrefix) {
         this.xmlnsUriToPrefix = xmlnsUriToPrefix;
     }
+
+    public static class DelimitedFileWriterBuilder extends ShardedWriterBuilder<DelimitedFileWriterBuilder> {
+        private String delimiter = ",";
+        private boolean outFieldsDefined = false;
+        private String newlineReplacement = "~";
+        private QuoteMode quoteMode = QuoteMode.NONE;
+        private Charset charset = Charset.defaultCharset();
+        private long chunkSize = DEFAULT_CHUNK_SIZE;
+        private int normalizerThreads = Runtime.getRuntime().availableProcessors();
+
+        @Override
+        DelimitedFileWriterBuilder self() {
+            return this;
+        }
+
+        public DelimitedFileWriterBuilder setDelimiter(String delimiter) {
+            this.delimiter = delimiter;
+            return this;
+        }
+
+        public DelimitedFileWriterBuilder setOutFieldsDefined(boolean outFieldsDefined) {
+            this.outFieldsDefined = outFieldsDefined;
+            return this;
+        }
+
+        public DelimitedFileWriterBuilder setNewlineReplacement(String newlineReplacement) {
+            this.newlineReplacement = newlineReplacement;
+            return this;
+        }
+
+        /**
+         * Values containing the delimiter are quoted as per RFC 4180 or have the delimiter escaped.
+         * @param quoteMode - treatment of values containing the delimiter, defaults to NONE
+         * @return this builder
+         */
+        public DelimitedFileWriterBuilder setQuoteMode(QuoteMode quoteMode) {
+            this.quoteMode = quoteMode;
+            return this;
+        }
+
+        /**
+         * Without predefined output fields the charset must be ASCII compatible such as UTF-8.
+         * @param charset - character encoding of the output files, defaults to the platform's encoding
+         * @return this builder
+         */
+        public DelimitedFileWriterBuilder setCharset(Charset charset) {
+            this.charset = charset;
+            return this;
+        }
+
+        /**
+         * Without predefined output fields, records are laid out in the same columns when the output is closed.
+         * Tables are cut into chunks that are laid out in parallel.
+         * @param chunkSize - size of a chunk in bytes. A record wider than this makes a chunk on its own.
+         * @return this builder
+         */
+        public DelimitedFileWriterBuilder setChunkSize(long chunkSize) {
+            this.chunkSize = chunkSize;
+            return this;
+        }
+
+        /**
+         * @param normalizerThreads - number of threads laying out chunks of all the tables,
+         *                          defaults to the number of processors
+         * @return this builder
+         */
+        public DelimitedFileWriterBuilder setNormalizerThreads(int normalizerThreads) {
+            this.normalizerThreads = normalizerThreads;
+            return this;
+        }
+
+        public DelimitedFileWriter create() {
+            return new DelimitedFileWriter(delimiter, outDir, outFieldsDefined, statusReporter(),
+                    newlineReplacement, quoteMode, charset, mergeParts,
+                    newShardContext(chunkSize), normalizerThreads);
+        }
+    }
 }
@@ -0,0 +1,296 @@
+package com.karbherin.flatterxml.output;
+
+import com.karbherin.flatterxml.AppConstants.QuoteMode;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Encodes field values of delimited records straight into a shard's write buffer.
+ * Each value is scanned once. Newlines are replaced, the value is quoted or escaped as per
+ * the quote mode and characters are encoded without intermediate strings or byte arrays.
+ * An encoder holds encoding state and must be confined to one worker thread.
+ */
+final class FieldEncoder {
+
+    private static final char QUOTE = '"';
+    private static final char ESCAPE = '\\';
+    private static final String ASCII_CHARS;
+    static {
+        char[] ascii = new char[0x80];
+        for (char c = 0; c < ascii.length; c++) {
+            ascii[c] = c;
+        }
+        ASCII_CHARS = new String(ascii);
+    }
+
+    private final char[] delimiter;
+    private final QuoteMode quoteMode;
+    private final CharsetEncoder encoder;
+    // Characters below 0x80 are encoded as a byte of the same value
+    private final boolean asciiCompatible;
+    private final int maxBytesPerChar;
+
+    // Pre-encoded separators and replacements
+    private final byte[] delimiterBytes;
+    private final byte[] newlineBytes;
+    private final byte[] quoteBytes;
+    private final byte[] escapeBytes;
+    private final byte[] lineSeparatorBytes;
+
+    // Run of characters handed to the charset encoder
+    private final CharBuffer chars = CharBuffer.allocate(256);
+    private final byte[] digits = new byte[11];
+
+    FieldEncoder(String delimiter, String newlineReplacement, QuoteMode quoteMode, Charset charset) {
+        this.delimiter = delimiter.toCharArray();
+        this.quoteMode = quoteMode;
+        this.encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.asciiCompatible = Arrays.equals(ASCII_CHARS.getBytes(charset),
+                ASCII_CHARS.getBytes(StandardCharsets.US_ASCII));
+        this.maxBytesPerChar = (int) Math.ceil(encoder.maxBytesPerChar());
+        this.delimiterBytes = delimiter.getBytes(charset);
+        this.newlineBytes = newlineReplacement.getBytes(charset);
+        this.quoteBytes = String.valueOf(QUOTE).getBytes(charset);
+        this.escapeBytes = String.valueOf(ESCAPE).getBytes(charset);
+        this.lineSeparatorBytes = System.lineSeparator().getBytes(charset);
+    }
+
+    /**
+     * Encodes a field value into the current record of the shard.
+     * @param value - field value
+     * @param out   - shard being written
+     */
+    void encode(String value, OutputShard out) throws IOException {
+        encode(value, out.reserve(maxEncodedLength(value)));
+    }
+
+    /**
+     * Encodes a field value into a buffer.
+     * @param value - field value
+     * @param buf   - buffer with at least {@link #maxEncodedLength(String)} bytes remaining
+     */
+    void encode(String value, ByteBuffer buf) {
+        int len = value.length();
+        int start = buf.position();
+        boolean quoted = false;
+        for (int i = 0; i < len; i++) {
+            char c = value.charAt(i);
+
+            if (c == '\n' || c == '\r' && i + 1 < len && value.charAt(i + 1) == '\n') {
+                if (c == '\r') {
+                    i++;
+                }
+                buf.put(newlineBytes);
+                continue;
+            }
+
+            if (isSpecial(c) && quoteMode != QuoteMode.NONE) {
+                boolean delimiterAt = c == delimiter[0] && delimiterAt(value, i);
+                if (quoteMode == QuoteMode.QUOTE && (delimiterAt || c == QUOTE)) {
+                    if (!quoted) {
+                        openQuote(buf, start);
+                        quoted = true;
+                    }
+                    if (c == QUOTE) {
+                        buf.put(quoteBytes);
+                    }
+                } else if (quoteMode == QuoteMode.ESCAPE && (delimiterAt || c == ESCAPE)) {
+                    buf.put(escapeBytes);
+                }
+            }
+
+            if (c < 0x80 && asciiCompatible) {
+                buf.put((byte) c);
+            } else {
+                i = encodeRun(value, i, buf) - 1;
+            }
+        }
+
+        if (quoted) {
+            buf.put(quoteBytes);
+        }
+    }
+
+    /**
+     * Encodes a non-negative integer such as a header id.
+     * @param num - number to encode
+     * @param out - shard being written
+     */
+    void encode(int num, OutputShard out) throws IOException {
+        if (!asciiCompatible) {
+            encode(Integer.toString(num), out);
+            return;
+        }
+        int pos = digits.length;
+        do {
+            digits[--pos] = (byte) ('0' + num % 10);
+            num /= 10;
+        } while (num > 0);
+        out.reserve(digits.length - pos).put(digits, pos, digits.length - pos);
+    }
+
+    /**
+     * Encodes a whole record such as a header record, line separator included.
+     * @param values - field values
+     * @return encoded record
+     */
+    byte[] encodeRecord(List<String> values) {
+        int length = lineSeparatorBytes.length;
+        for (String value: values) {
+            length += maxEncodedLength(value) + delimiterBytes.length;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) {
+                buf.put(delimiterBytes);
+            }
+            encode(values.get(i), buf);
+        }
+        buf.put(lineSeparatorBytes);
+        return Arrays.copyOf(buf.array(), buf.position());
+    }
+
+    /**
+     * Upper bound on the number of bytes a value is encoded into.
+     */
+    int maxEncodedLength(String value) {
+        int maxCharBytes = Math.max(newlineBytes.length,
+                Math.max(escapeBytes.length + maxBytesPerChar, 2 * quoteBytes.length));
+        return value.length() * maxCharBytes + 2 * quoteBytes.length + maxBytesPerChar;
+    }
+
+    void delimiter(OutputShard out) throws IOException {
+        out.put(delimiterBytes);
+    }
+
+    void lineSeparator(OutputShard out) throws IOException {
+        out.put(lineSeparatorBytes);
+    }
+
+    /**
+     * Splits an encoded record into its fields. Quoted and escaped delimiters do not split the record.
+     * Fields keep their quotes and escapes. Splitting at byte level needs an ASCII compatible charset.
+     * @param rec    - buffer holding the encoded record, read with absolute gets
+     * @param from   - start of the record
+     * @param to     - end of the record, line separator excluded
+     * @param starts - receives the start of each field
+     * @param ends   - receives the end of each field. The last field holds the rest of the record.
+     * @return number of fields
+     */
+    int split(ByteBuffer rec, int from, int to, int[] starts, int[] ends) {
+        int limit = starts.length;
+        int fields = 0;
+        boolean inQuotes = false;
+        starts[0] = from;
+        for (int i = from; i < to && fields < limit - 1; i++) {
+            byte b = rec.get(i);
+            if (quoteMode == QuoteMode.QUOTE && b == QUOTE) {
+                inQuotes = !inQuotes;
+            } else if (quoteMode == QuoteMode.ESCAPE && b == ESCAPE) {
+                i++;
+            } else if (!inQuotes && b == delimiterBytes[0] && delimiterAt(rec, i, to)) {
+                ends[fields++] = i;
+                i += delimiterBytes.length - 1;
+                starts[fields] = i + 1;
+            }
+        }
+        ends[fields++] = to;
+        return fields;
+    }
+
+    byte[] getDelimiter() {
+        return delimiterBytes;
+    }
+
+    byte[] getLineSeparator() {
+        return lineSeparatorBytes;
+    }
+
+    boolean isAsciiCompatible() {
+        return asciiCompatible;
+    }
+
+    /**
+     * Characters that may need to be quoted or escaped. All are ASCII.
+     */
+    private boolean isSpecial(char c) {
+        return c == delimiter[0] || c == QUOTE || c == ESCAPE;
+    }
+
+    private boolean delimiterAt(String value, int pos) {
+        if (pos + delimiter.length > value.length()) {
+            return false;
+        }
+        for (int d = 1; d < delimiter.length; d++) {
+            if (value.charAt(pos + d) != delimiter[d]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean delimiterAt(ByteBuffer rec, int pos, int to) {
+        if (pos + delimiterBytes.length > to) {
+            return false;
+        }
+        for (int d = 1; d < delimiterBytes.length; d++) {
+            if (rec.get(pos + d) != delimiterBytes[d]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Encodes the run of characters starting at the given position that are not taken by the fast path.
+     * @return position of the character following the run
+     */
+    private int encodeRun(String value, int pos, ByteBuffer buf) {
+        int len = value.length();
+        chars.clear();
+        do {
+            if (!chars.hasRemaining()) {
+                chars.flip();
+                encoder.encode(chars, buf, false);
+                // An unpaired high surrogate stays behind for the next round
+                chars.compact();
+            }
+            chars.put(value.charAt(pos++));
+        } while (pos < len && !endsRun(value.charAt(pos)));
+
+        chars.flip();
+        encoder.encode(chars, buf, true);
+        encoder.flush(buf);
+        encoder.reset();
+        return pos;
+    }
+
+    private boolean endsRun(char c) {
+        return c == '\n' || c == '\r' || c < 0x80 && (asciiCompatible || isSpecial(c) && quoteMode != QuoteMode.NONE);
+    }
+
+    /**
+     * Shifts the value encoded so far to make way for the opening quote.
+     * Happens only once per quoted value.
+     */
+    private void openQuote(ByteBuffer buf, int start) {
+        int end = buf.position();
+        int shift = quoteBytes.length;
+        byte[] arr = buf.array();
+        int offset = buf.arrayOffset();
+        System.arraycopy(arr, offset + start, arr, offset + start + shift, end - start);
+        System.arraycopy(quoteBytes, 0, arr, offset + start, shift);
+        buf.position(end + shift);
+    }
+}
@@ -0,0 +1,257 @@
+package com.karbherin.flatterxml.output;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Minimal FlatBuffers serializer for the Arrow IPC metadata.
+ * Objects are described as a tree and serialized front to back: a table is followed by the objects it refers to,
+ * so that all offsets point forward as the format requires. Scalars are aligned to their size in the buffer.
+ * Supports tables with scalar and offset fields, strings, vectors of tables and vectors of structs.
+ */
+final class FlatBuffers {
+
+    private FlatBuffers() {
+    }
+
+    /**
+     * An object referred to by an offset.
+     */
+    interface Node {
+        int write(Writer out);
+    }
+
+    static final class Table implements Node {
+        private final List<Slot> slots = new ArrayList<>();
+
+        Table addLong(int id, long value) {
+            slots.add(new Slot(id, 8, value, null));
+            return this;
+        }
+
+        Table addInt(int id, int value) {
+            slots.add(new Slot(id, 4, value, null));
+            return this;
+        }
+
+        Table addShort(int id, short value) {
+            slots.add(new Slot(id, 2, value, null));
+            return this;
+        }
+
+        Table addByte(int id, byte value) {
+            slots.add(new Slot(id, 1, value, null));
+            return this;
+        }
+
+        Table addBool(int id, boolean value) {
+            return addByte(id, (byte) (value ? 1 : 0));
+        }
+
+        Table addOffset(int id, Node child) {
+            slots.add(new Slot(id, 4, 0L, child));
+            return this;
+        }
+
+        @Override
+        public int write(Writer out) {
+            int numFields = 0;
+            for (Slot slot: slots) {
+                numFields = Math.max(numFields, slot.id + 1);
+            }
+
+            // Inline layout: offset to the vtable followed by the fields, widest first
+            Slot[] bySize = slots.toArray(new Slot[0]);
+            Arrays.sort(bySize, Comparator.comparingInt((Slot slot) -> slot.size).reversed());
+            int[] fieldOffsets = new int[numFields];
+            int inlineSize = 4;
+            for (Slot slot: bySize) {
+                inlineSize = align(inlineSize, slot.size);
+                slot.offset = inlineSize;
+                fieldOffsets[slot.id] = inlineSize;
+                inlineSize += slot.size;
+            }
+
+            out.align(2);
+            int vtable = out.position();
+            out.putShort((short) (4 + 2 * numFields));
+            out.putShort((short) inlineSize);
+            for (int offset: fieldOffsets) {
+                out.putShort((short) offset);
+            }
+
+            out.align(8);
+            int table = out.position();
+            out.putInt(table - vtable);
+            out.pad(inlineSize - 4);
+            for (Slot slot: slots) {
+                if (slot.child == null) {
+                    out.putScalarAt(table + slot.offset, slot.size, slot.value);
+                }
+            }
+
+            for (Slot slot: slots) {
+                if (slot.child != null) {
+                    int child = slot.child.write(out);
+                    out.putIntAt(table + slot.offset, child - (table + slot.offset));
+                }
+            }
+            return table;
+        }
+    }
+
+    static Node string(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return out -> {
+            out.align(4);
+            int pos = out.position();
+            out.putInt(bytes.length);
+            out.put(bytes);
+            out.pad(1);
+            return pos;
+        };
+    }
+
+    static Node tables(List<Table> tables) {
+        return out -> {
+            out.align(4);
+            int pos = out.position();
+            out.putInt(tables.size());
+            out.pad(4 * tables.size());
+            for (int i = 0; i < tables.size(); i++) {
+                int elem = pos + 4 + 4 * i;
+                out.putIntAt(elem, tables.get(i).write(out) - elem);
+            }
+            return pos;
+        };
+    }
+
+    /**
+     * Vector of structs whose members are all 8 byte wide, or padded to 8 bytes.
+     * @param numStructs - number of structs
+     * @param longs      - members of the structs one after another
+     */
+    static Node structs(int numStructs, long[] longs) {
+        return out -> {
+            // Vector length precedes the 8 byte aligned structs
+            while ((out.position() + 4) % 8 != 0) {
+                out.pad(1);
+            }
+            int pos = out.position();
+            out.putInt(numStructs);
+            for (long member: longs) {
+                out.putLong(member);
+            }
+            return pos;
+        };
+    }
+
+    /**
+     * @param root - root table
+     * @return serialized buffer, padded to 8 bytes
+     */
+    static byte[] finish(Table root) {
+        Writer out = new Writer();
+        out.putInt(0);
+        out.putIntAt(0, root.write(out));
+        out.align(8);
+        return out.toByteArray();
+    }
+
+    static int align(int pos, int alignment) {
+        return (pos + alignment - 1) / alignment * alignment;
+    }
+
+    private static final class Slot {
+        private final int id;
+        private final int size;
+        private final long value;
+        private final Node child;
+        private int offset;
+
+        private Slot(int id, int size, long value, Node child) {
+            this.id = id;
+            this.size = size;
+            this.value = value;
+            this.child = child;
+        }
+    }
+
+    static final class Writer {
+        private ByteBuffer buf = ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN);
+
+        int position() {
+            return buf.position();
+        }
+
+        void align(int alignment) {
+            pad(FlatBuffers.align(buf.position(), alignment) - buf.position());
+        }
+
+        void pad(int length) {
+            ensure(length);
+            for (int i = 0; i < length; i++) {
+                buf.put((byte) 0);
+            }
+        }
+
+        void put(byte[] bytes) {
+            ensure(bytes.length);
+            buf.put(bytes);
+        }
+
+        void putShort(short value) {
+            ensure(2);
+            buf.putShort(value);
+        }
+
+        void putInt(int value) {
+            ensure(4);
+            buf.putInt(value);
+        }
+
+        void putLong(long value) {
+            ensure(8);
+            buf.putLong(value);
+        }
+
+        void putIntAt(int pos, int value) {
+            buf.putInt(pos, value);
+        }
+
+        void putScalarAt(int pos, int size, long value) {
+            switch (size) {
+                case 8:
+                    buf.putLong(pos, value);
+                    break;
+                case 4:
+                    buf.putInt(pos, (int) value);
+                    break;
+                case 2:
+                    buf.putShort(pos, (short) value);
+                    break;
+                default:
+                    buf.put(pos, (byte) value);
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf.array(), buf.position());
+        }
+
+        private void ensure(int length) {
+            if (buf.remaining() < length) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + length))
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                buf.flip();
+                grown.put(buf);
+                buf = grown;
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.karbherin.flatterxml.output;
+
+import com.karbherin.flatterxml.model.Pair;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A sequence of columns seen on the records of a table.
+ * When output fields are not predefined, records of a table can differ in their columns.
+ * Each distinct sequence is registered once and identified by its fingerprint.
+ */
+final class HeaderVariant {
+
+    private static final long FINGERPRINT_SEED = 0xcbf29ce484222325L;
+    private static final long FINGERPRINT_PRIME = 0x100000001b3L;
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    final int id;
+    final long fingerprint;
+    final String[] columns;
+    private final LongAdder rows = new LongAdder();
+
+    HeaderVariant(int id, long fingerprint, String[] columns) {
+        this.id = id;
+        this.fingerprint = fingerprint;
+        this.columns = columns;
+    }
+
+    /**
+     * @return fingerprint of an empty column sequence
+     */
+    static long fingerprint() {
+        return FINGERPRINT_SEED;
+    }
+
+    /**
+     * Extends a fingerprint by the next column. Column order matters.
+     * @param fingerprint - fingerprint of the columns so far
+     * @param column      - next column
+     * @return fingerprint including the column
+     */
+    static long fingerprint(long fingerprint, String column) {
+        long columnHash = (column.hashCode() + ((long) column.length() << 32)) * GOLDEN_GAMMA;
+        return (fingerprint ^ (columnHash ^ columnHash >>> 29)) * FINGERPRINT_PRIME;
+    }
+
+    /**
+     * Checks if the record's columns are exactly the columns of this variant.
+     * @param fields   - record fields
+     * @param appendix - cascaded fields appended to the record
+     * @return true if the columns match
+     */
+    boolean matches(Iterable<Pair<String, String>> fields, Iterable<Pair<String, String>> appendix) {
+        int col = 0;
+        for (Iterator<Pair<String, String>> it = fields.iterator(); it.hasNext(); col++) {
+            if (col == columns.length || !columns[col].equals(it.next().getKey())) {
+                return false;
+            }
+        }
+        for (Iterator<Pair<String, String>> it = appendix.iterator(); it.hasNext(); col++) {
+            if (col == columns.length || !columns[col].equals(it.next().getKey())) {
+                return false;
+            }
+        }
+        return col == columns.length;
+    }
+
+    void countRow() {
+        rows.increment();
+    }
+
+    long getRows() {
+        return rows.sum();
+    }
+}
@@ -0,0 +1,112 @@
+package com.karbherin.flatterxml.output;
+
+import com.karbherin.flatterxml.model.Pair;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntSupplier;
+
+/**
+ * Registry of the header variants of a table, keyed by fingerprint.
+ * Variants with colliding fingerprints are told apart by comparing their columns.
+ * Workers look up their recently seen variants first, which needs no coordination.
+ */
+final class HeaderVariants {
+
+    // Number of variants a worker remembers per table
+    static final int RECENT_VARIANTS = 4;
+
+    // {fingerprint: [variant, ...]}
+    private final ConcurrentHashMap<Long, HeaderVariant[]> variants = new ConcurrentHashMap<>();
+
+    /**
+     * Finds the variant of a record, registering it if seen for the first time.
+     * @param fingerprint - fingerprint of the record's columns
+     * @param fields      - record fields
+     * @param appendix    - cascaded fields appended to the record
+     * @param recent      - worker's recently seen variants, most recent first
+     * @param newId       - assigns an id to a new variant
+     * @return the record's header variant
+     */
+    HeaderVariant variantOf(long fingerprint, Iterable<Pair<String, String>> fields,
+                            Iterable<Pair<String, String>> appendix, HeaderVariant[] recent, IntSupplier newId) {
+
+        for (int i = 0; i < recent.length && recent[i] != null; i++) {
+            HeaderVariant variant = recent[i];
+            if (variant.fingerprint == fingerprint && variant.matches(fields, appendix)) {
+                moveToFront(recent, i);
+                return variant;
+            }
+        }
+
+        HeaderVariant variant = lookup(fingerprint, fields, appendix);
+        if (variant == null) {
+            variant = register(fingerprint, fields, appendix, newId);
+        }
+        remember(recent, variant);
+        return variant;
+    }
+
+    Collection<HeaderVariant> all() {
+        List<HeaderVariant> all = new ArrayList<>();
+        variants.values().forEach(sameFingerprint -> all.addAll(Arrays.asList(sameFingerprint)));
+        return all;
+    }
+
+    boolean isEmpty() {
+        return variants.isEmpty();
+    }
+
+    private HeaderVariant lookup(long fingerprint, Iterable<Pair<String, String>> fields,
+                                 Iterable<Pair<String, String>> appendix) {
+        HeaderVariant[] sameFingerprint = variants.get(fingerprint);
+        if (sameFingerprint != null) {
+            for (HeaderVariant variant : sameFingerprint) {
+                if (variant.matches(fields, appendix)) {
+                    return variant;
+                }
+            }
+        }
+        return null;
+    }
+
+    private HeaderVariant register(long fingerprint, Iterable<Pair<String, String>> fields,
+                                   Iterable<Pair<String, String>> appendix, IntSupplier newId) {
+        List<String> columns = new ArrayList<>();
+        fields.forEach(field -> columns.add(field.getKey()));
+        appendix.forEach(field -> columns.add(field.getKey()));
+
+        HeaderVariant[] registered = new HeaderVariant[1];
+        variants.compute(fingerprint, (fp, sameFingerprint) -> {
+            // Another worker may have registered the variant in the meantime
+            if (sameFingerprint != null) {
+                for (HeaderVariant variant : sameFingerprint) {
+                    if (variant.matches(fields, appendix)) {
+                        registered[0] = variant;
+                        return sameFingerprint;
+                    }
+                }
+            }
+
+            registered[0] = new HeaderVariant(newId.getAsInt(), fp, columns.toArray(new String[0]));
+            if (sameFingerprint == null) {
+                return new HeaderVariant[]{registered[0]};
+            }
+            HeaderVariant[] colliding = Arrays.copyOf(sameFingerprint, sameFingerprint.length + 1);
+            colliding[sameFingerprint.length] = registered[0];
+            return colliding;
+        });
+        return registered[0];
+    }
+
+    private static void moveToFront(HeaderVariant[] recent, int pos) {
+        HeaderVariant variant = recent[pos];
+        System.arraycopy(recent, 0, recent, 1, pos);
+        recent[0] = variant;
+    }
+
+    private static void remember(HeaderVariant[] recent, HeaderVariant variant) {
+        System.arraycopy(recent, 0, recent, 1, recent.length - 1);
+        recent[0] = variant;
+    }
+}
@@ -0,0 +1,345 @@
+package com.karbherin.flatterxml.output;
+
+import com.karbherin.flatterxml.model.Pair;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+import static com.karbherin.flatterxml.output.RecordHandler.GeneratedResult;
+
+/**
+ * Database table loaded with the records of one record type.
+ * Workers add records to the table's batch. A full batch is handed over to the writer pool, where the batches of
+ * the table are executed one after another on the table's own connection. Workers wait when the batches
+ * queued up in the pool reach its bound, without holding up the other workers adding records to the table.
+ * A batch that fails rolls back the records not yet committed. The batches after it are not executed, and the
+ * failure is thrown to the workers adding records to the table, and on closing it.
+ * Columns are discovered on the records. The table is created with the columns of its first batch,
+ * and columns discovered later are added to it. Every column is a string.
+ */
+final class JdbcTable {
+
+    private static final String REPEAT_FMT = "%s#%d";
+
+    final String name;
+    final GeneratedResult result;
+    private final JdbcWriter.ConnectionFactory connections;
+    private final String columnType;
+    private final int batchRows;
+    private final long commitRows;
+    private final Executor pool;
+    private final Semaphore pendingBatches;
+
+    // Columns in the order they were discovered. Guarded by this along with the batch being filled and the tail.
+    private final List<String> columns = new ArrayList<>();
+    private final Map<String, Integer> columnIndex = new HashMap<>();
+    private List<String[]> rows = new ArrayList<>();
+    private long recordCount = 0L;
+    // Batches of the table executed one after another. Completes exceptionally once a batch fails.
+    private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+
+    // Accessed only by the batch being executed
+    private Connection connection = null;
+    private String quote;
+    private final Set<String> tableColumns = new HashSet<>();
+    private PreparedStatement insert = null;
+    private int insertColumns = 0;
+    private long uncommitted = 0L;
+
+    JdbcTable(String name, int recordLevel, String previousRecordType, JdbcWriter.ConnectionFactory connections,
+              String columnType, int batchRows, long commitRows, Executor pool, Semaphore pendingBatches) {
+        this.name = name;
+        this.result = new GeneratedResult(recordLevel, name, previousRecordType);
+        this.connections = connections;
+        this.columnType = columnType;
+        this.batchRows = batchRows;
+        this.commitRows = commitRows;
+        this.pool = pool;
+        this.pendingBatches = pendingBatches;
+    }
+
+    /**
+     * Adds a record to the batch. Hands the batch over to the writer pool once it is full.
+     * @param fields   - record's own fields
+     * @param appendix - cascaded ancestor fields
+     * @throws IOException - if an earlier batch of the table failed
+     */
+    void append(Iterable<Pair<String, String>> fields, Iterable<Pair<String, String>> appendix)
+            throws IOException {
+
+        Batch batch = null;
+        synchronized (this) {
+            checkFailure();
+            String[] row = set(appendix, set(fields, new String[columns.size()]));
+            rows.add(row);
+            recordCount++;
+            if (rows.size() == batchRows) {
+                batch = takeBatch();
+            }
+        }
+        if (batch != null) {
+            submit(batch);
+        }
+    }
+
+    /**
+     * Hands the remaining records over to the writer pool.
+     * @throws IOException - if an earlier batch of the table failed
+     */
+    void flush() throws IOException {
+        Batch batch = null;
+        synchronized (this) {
+            checkFailure();
+            if (!rows.isEmpty()) {
+                batch = takeBatch();
+            }
+        }
+        if (batch != null) {
+            submit(batch);
+        }
+    }
+
+    /**
+     * Waits for the table's batches, commits them and closes the connection.
+     * @return number of records
+     * @throws IOException - if a batch failed or could not be committed
+     */
+    long close() throws IOException {
+        try {
+            flush();
+            currentTail().join();
+            if (connection != null) {
+                connection.commit();
+            }
+        } catch (CompletionException ex) {
+            throw new IOException("Could not load table " + name, ex.getCause());
+        } catch (SQLException ex) {
+            rollBack(ex);
+            throw new IOException("Could not commit table " + name, ex);
+        } finally {
+            // Batches still running, if the records could not all be handed over, finish before the connection
+            // is closed
+            currentTail().handle((done, ex) -> null).join();
+            closeConnection();
+        }
+        return recordCount;
+    }
+
+    private String[] set(Iterable<Pair<String, String>> fields, String[] row) {
+        for (Pair<String, String> field: fields) {
+            int column = column(field.getKey());
+            for (int occurrence = 2; column < row.length && row[column] != null; occurrence++) {
+                column = column(String.format(REPEAT_FMT, field.getKey(), occurrence));
+            }
+            if (column >= row.length) {
+                row = Arrays.copyOf(row, columns.size());
+            }
+            row[column] = field.getVal() == null ? "" : field.getVal();
+        }
+        return row;
+    }
+
+    private int column(String columnName) {
+        Integer index = columnIndex.get(columnName);
+        if (index == null) {
+            index = columns.size();
+            columnIndex.put(columnName, index);
+            columns.add(columnName);
+        }
+        return index;
+    }
+
+    // Called holding the monitor
+    private Batch takeBatch() {
+        Batch batch = new Batch(new ArrayList<>(columns), rows);
+        rows = new ArrayList<>(batchRows);
+        return batch;
+    }
+
+    // Called without holding the monitor, so that a worker waiting for the pool does not hold up the others
+    private void submit(Batch batch) throws IOException {
+        try {
+            pendingBatches.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to load " + name);
+        }
+
+        CompletableFuture<Void> batchDone;
+        synchronized (this) {
+            batchDone = tail.thenRunAsync(() -> {
+                try {
+                    execute(batch.columns, batch.rows);
+                } catch (SQLException ex) {
+                    rollBack(ex);
+                    throw new CompletionException(ex);
+                } catch (RuntimeException ex) {
+                    rollBack(ex);
+                    throw ex;
+                }
+            }, pool);
+            tail = batchDone;
+        }
+        batchDone.whenComplete((done, ex) -> pendingBatches.release());
+    }
+
+    private synchronized CompletableFuture<Void> currentTail() {
+        return tail;
+    }
+
+    // Records not committed yet are dropped along with the failed batch
+    private void rollBack(Exception cause) {
+        if (connection == null) {
+            return;
+        }
+        try {
+            connection.rollback();
+            uncommitted = 0L;
+        } catch (SQLException ex) {
+            cause.addSuppressed(ex);
+        }
+    }
+
+    // Called holding the monitor
+    private void checkFailure() throws IOException {
+        if (tail.isCompletedExceptionally()) {
+            try {
+                tail.join();
+            } catch (CompletionException ex) {
+                throw new IOException("Could not load table " + name, ex.getCause());
+            }
+        }
+    }
+
+    private void execute(List<String> batchColumns, List<String[]> batch) throws SQLException {
+        if (connection == null) {
+            connection = connections.open();
+            connection.setAutoCommit(false);
+            quote = connection.getMetaData().getIdentifierQuoteString().trim();
+            loadTableColumns();
+        }
+        defineColumns(batchColumns);
+
+        if (insert == null || insertColumns != batchColumns.size()) {
+            if (insert != null) {
+                insert.close();
+            }
+            StringJoiner names = new StringJoiner(", ", "(", ")");
+            StringJoiner params = new StringJoiner(", ", "(", ")");
+            for (String column: batchColumns) {
+                names.add(quoted(column));
+                params.add("?");
+            }
+            insert = connection.prepareStatement(
+                    String.format("INSERT INTO %s %s VALUES %s", quoted(name), names, params));
+            insertColumns = batchColumns.size();
+        }
+
+        for (String[] row: batch) {
+            for (int i = 0; i < insertColumns; i++) {
+                if (i < row.length && row[i] != null) {
+                    insert.setString(i + 1, row[i]);
+                } else {
+                    insert.setNull(i + 1, Types.VARCHAR);
+                }
+            }
+            insert.addBatch();
+        }
+        insert.executeBatch();
+
+        uncommitted += batch.size();
+        if (uncommitted >= commitRows) {
+            connection.commit();
+            uncommitted = 0L;
+        }
+    }
+
+    /**
+     * Looks up the columns of the table if it already exists in the database.
+     */
+    private void loadTableColumns() throws SQLException {
+        String schema = null;
+        try {
+            schema = connection.getSchema();
+        } catch (SQLException | AbstractMethodError ex) {
+            // Driver does not know the current schema. Tables of all schemas are looked up.
+        }
+        try (ResultSet rs = connection.getMetaData().getColumns(connection.getCatalog(), schema, name, null)) {
+            while (rs.next()) {
+                if (name.equals(rs.getString("TABLE_NAME"))) {
+                    tableColumns.add(rs.getString("COLUMN_NAME"));
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the table, or adds the columns it is missing.
+     */
+    private void defineColumns(List<String> batchColumns) throws SQLException {
+        if (tableColumns.containsAll(batchColumns)) {
+            return;
+        }
+
+        try (Statement ddl = connection.createStatement()) {
+            if (tableColumns.isEmpty()) {
+                StringJoiner definitions = new StringJoiner(", ", "(", ")");
+                for (String column: batchColumns) {
+                    definitions.add(quoted(column) + " " + columnType);
+                }
+                ddl.executeUpdate(String.format("CREATE TABLE %s %s", quoted(name), definitions));
+                tableColumns.addAll(batchColumns);
+                return;
+            }
+
+            for (String column: batchColumns) {
+                if (tableColumns.add(column)) {
+                    ddl.executeUpdate(String.format("ALTER TABLE %s ADD COLUMN %s %s",
+                            quoted(name), quoted(column), columnType));
+                }
+            }
+        }
+    }
+
+    private String quoted(String identifier) {
+        if (quote.isEmpty()) {
+            return identifier;
+        }
+        return quote + identifier.replace(quote, quote + quote) + quote;
+    }
+
+    /**
+     * Records handed over to the writer pool, with the columns discovered by then.
+     */
+    private static final class Batch {
+        private final List<String> columns;
+        private final List<String[]> rows;
+
+        private Batch(List<String> columns, List<String[]> rows) {
+            this.columns = columns;
+            this.rows = rows;
+        }
+    }
+
+    private void closeConnection() throws IOException {
+        try {
+            if (insert != null) {
+                insert.close();
+            }
+            if (connection != null) {
+                connection.close();
+            }
+        } catch (SQLException ex) {
+            throw new IOException("Could not close the connection of table " + name, ex);
+        } finally {
+            insert = null;
+            connection = null;
+        }
+    }
+}
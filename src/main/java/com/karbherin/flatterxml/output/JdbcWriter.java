@@ -0,0 +1,219 @@
+package com.karbherin.flatterxml.output;
+
+import com.karbherin.flatterxml.model.CascadedAncestorFields;
+import com.karbherin.flatterxml.model.Pair;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.events.Namespace;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Loads each record type straight into a database table over JDBC, skipping the intermediate files.
+ * Tables are named after the record types and created when their first batch is loaded, with columns for the
+ * output fields and cascaded ancestor fields of the records. Columns discovered later are added to the tables.
+ * Existing tables are appended to.
+ * Each table has its own connection. Records are inserted with batched prepared statements on a bounded pool
+ * of writer threads, and committed every so many records.
+ */
+public class JdbcWriter implements RecordHandler {
+
+    private static final int DEFAULT_BATCH_ROWS = 1000;
+    private static final long DEFAULT_COMMIT_ROWS = 100_000L;
+    private static final int DEFAULT_WRITER_THREADS = 4;
+    private static final String DEFAULT_COLUMN_TYPE = "VARCHAR";
+
+    /**
+     * Opens a connection for loading a table.
+     */
+    @FunctionalInterface
+    public interface ConnectionFactory {
+        Connection open() throws SQLException;
+    }
+
+    private final ConnectionFactory connections;
+    private final StatusReporter statusReporter;
+    private final String columnType;
+    private final int batchRows;
+    private final long commitRows;
+    private final ExecutorService writerPool;
+    // Bounds the batches queued up in the writer pool
+    private final Semaphore pendingBatches;
+    private Map<String, Namespace> xmlnsUriToPrefix;
+
+    private final RecordTypeTables<JdbcTable> tables;
+
+    private JdbcWriter(ConnectionFactory connections, StatusReporter statusReporter, String columnType,
+                       int batchRows, long commitRows, int writerThreads) {
+        this.connections = connections;
+        this.statusReporter = statusReporter;
+        this.columnType = columnType;
+        this.batchRows = batchRows;
+        this.commitRows = commitRows;
+        this.writerPool = Executors.newFixedThreadPool(writerThreads);
+        this.pendingBatches = new Semaphore(2 * writerThreads);
+        this.tables = new RecordTypeTables<>((name, recordLevel, previousRecordType, recordHierarchy) ->
+                new JdbcTable(name, recordLevel, previousRecordType, connections, columnType,
+                        batchRows, commitRows, writerPool, pendingBatches),
+                table -> table.result);
+    }
+
+    @Override
+    public void write(QName recordName, Iterable<Pair<String, String>> fieldValueStack,
+                      CascadedAncestorFields cascadedData)
+            throws IOException {
+
+        // Records without fields of their own are not written, as in the delimited output
+        if (!fieldValueStack.iterator().hasNext()) {
+            return;
+        }
+
+        tables.table(recordName, cascadedData).append(fieldValueStack, cascadedData.getCascadedAncestorFields());
+    }
+
+    @Override
+    public void closeAllFileStreams() throws IOException {
+        IOException failure = null;
+        try {
+            for (JdbcTable table: tables.all()) {
+                table.flush();
+            }
+        } finally {
+            for (JdbcTable table: tables.all()) {
+                long startTime = System.currentTimeMillis();
+                try {
+                    long recCount = table.close();
+                    statusReporter.logInfo(String.format("\nLoaded %d records of %s in %d seconds",
+                            recCount, table.name, (System.currentTimeMillis() - startTime)/1000));
+                } catch (IOException ex) {
+                    if (failure == null) {
+                        failure = ex;
+                    } else {
+                        failure.addSuppressed(ex);
+                    }
+                }
+            }
+            writerPool.shutdown();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public List<GeneratedResult> getFilesWritten() {
+        return tables.filesWritten();
+    }
+
+    @Override
+    public void setXmlnsUriToPrefix(Map<String, Namespace> xmlnsUriToPrefix) {
+        this.xmlnsUriToPrefix = xmlnsUriToPrefix;
+    }
+
+    public static class JdbcWriterBuilder {
+        private String jdbcUrl;
+        private String user;
+        private String password;
+        private ConnectionFactory connections;
+        private StatusReporter statusReporter;
+        private String columnType = DEFAULT_COLUMN_TYPE;
+        private int batchRows = DEFAULT_BATCH_ROWS;
+        private long commitRows = DEFAULT_COMMIT_ROWS;
+        private int writerThreads = DEFAULT_WRITER_THREADS;
+
+        /**
+         * @param jdbcUrl - URL of the database. Its driver must be on the classpath.
+         * @return this builder
+         */
+        public JdbcWriterBuilder setJdbcUrl(String jdbcUrl) {
+            this.jdbcUrl = jdbcUrl;
+            return this;
+        }
+
+        public JdbcWriterBuilder setUser(String user) {
+            this.user = user;
+            return this;
+        }
+
+        public JdbcWriterBuilder setPassword(String password) {
+            this.password = password;
+            return this;
+        }
+
+        /**
+         * Connections are opened with the factory instead of the JDBC URL, such as from a data source.
+         * @param connections - opens a connection per table
+         * @return this builder
+         */
+        public JdbcWriterBuilder setConnectionFactory(ConnectionFactory connections) {
+            this.connections = connections;
+            return this;
+        }
+
+        public JdbcWriterBuilder setStatusReporter(StatusReporter statusReporter) {
+            this.statusReporter = statusReporter;
+            return this;
+        }
+
+        /**
+         * @param columnType - SQL type of the columns of created tables, defaults to VARCHAR
+         * @return this builder
+         */
+        public JdbcWriterBuilder setColumnType(String columnType) {
+            this.columnType = columnType;
+            return this;
+        }
+
+        /**
+         * @param batchRows - number of records inserted in a batch
+         * @return this builder
+         */
+        public JdbcWriterBuilder setBatchRows(int batchRows) {
+            this.batchRows = batchRows;
+            return this;
+        }
+
+        /**
+         * Records of a table are committed once at least this many are inserted, and when the output is closed.
+         * @param commitRows - number of records in a transaction
+         * @return this builder
+         */
+        public JdbcWriterBuilder setCommitRows(long commitRows) {
+            this.commitRows = commitRows;
+            return this;
+        }
+
+        /**
+         * Batches of a table are inserted one after another, while different tables are loaded in parallel.
+         * Workers wait when twice as many batches as threads are queued up.
+         * @param writerThreads - number of threads inserting batches
+         * @return this builder
+         */
+        public JdbcWriterBuilder setWriterThreads(int writerThreads) {
+            this.writerThreads = writerThreads;
+            return this;
+        }
+
+        public JdbcWriter create() {
+            if (statusReporter == null) {
+                statusReporter = new StatusReporter();
+            }
+            if (connections == null) {
+                if (jdbcUrl == null) {
+                    throw new IllegalArgumentException("JDBC URL or connection factory is required");
+                }
+                final String url = jdbcUrl, dbUser = user, dbPassword = password;
+                connections = () -> dbUser == null
+                        ? DriverManager.getConnection(url) : DriverManager.getConnection(url, dbUser, dbPassword);
+            }
+            return new JdbcWriter(connections, statusReporter, columnType, batchRows, commitRows, writerThreads);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.karbherin.flatterxml.output;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encodes JSON strings in UTF-8 straight into a shard's write buffer.
+ * Each string is scanned once, escaping and encoding its characters into the buffer's array.
+ * Encoded keys are cached. An encoder holds state and must be confined to one worker thread.
+ */
+final class JsonEncoder {
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final int MAX_CACHED_KEYS = 4096;
+    // Escape of each ASCII character, null if the character is written as it is
+    private static final byte[][] ESCAPES = new byte[0x80][];
+    static {
+        for (char c = 0; c < 0x20; c++) {
+            ESCAPES[c] = String.format("\\u%04x", (int) c).getBytes(StandardCharsets.US_ASCII);
+        }
+        ESCAPES['\b'] = "\\b".getBytes(StandardCharsets.US_ASCII);
+        ESCAPES['\f'] = "\\f".getBytes(StandardCharsets.US_ASCII);
+        ESCAPES['\n'] = "\\n".getBytes(StandardCharsets.US_ASCII);
+        ESCAPES['\r'] = "\\r".getBytes(StandardCharsets.US_ASCII);
+        ESCAPES['\t'] = "\\t".getBytes(StandardCharsets.US_ASCII);
+        ESCAPES['"'] = "\\\"".getBytes(StandardCharsets.US_ASCII);
+        ESCAPES['\\'] = "\\\\".getBytes(StandardCharsets.US_ASCII);
+        ESCAPES[0x7F] = "\\u007f".getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // {key: "key":}
+    private final Map<String, byte[]> keys = new HashMap<>();
+
+    /**
+     * Encodes a string value, quoted and escaped, into the current record of the shard.
+     * @param value - string value
+     * @param out   - shard being written
+     */
+    void string(String value, OutputShard out) throws IOException {
+        encode(value, out.reserve(maxEncodedLength(value)));
+    }
+
+    /**
+     * Encodes an object key followed by the name separator.
+     * @param key - object key
+     * @param out - shard being written
+     */
+    void key(String key, OutputShard out) throws IOException {
+        byte[] encoded = keys.get(key);
+        if (encoded == null) {
+            ByteBuffer buf = ByteBuffer.allocate(maxEncodedLength(key) + 1);
+            encode(key, buf);
+            buf.put((byte) ':');
+            encoded = new byte[buf.position()];
+            buf.flip();
+            buf.get(encoded);
+            if (keys.size() < MAX_CACHED_KEYS) {
+                keys.put(key, encoded);
+            }
+        }
+        out.put(encoded);
+    }
+
+    void put(char structural, OutputShard out) throws IOException {
+        out.reserve(1).put((byte) structural);
+    }
+
+    /**
+     * Encodes a quoted and escaped string into a heap buffer.
+     * @param value - string value
+     * @param buf   - buffer with at least {@link #maxEncodedLength(String)} bytes remaining
+     */
+    void encode(String value, ByteBuffer buf) {
+        byte[] arr = buf.array();
+        int pos = buf.arrayOffset() + buf.position();
+        arr[pos++] = '"';
+
+        int len = value.length();
+        for (int i = 0; i < len; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                byte[] escape = ESCAPES[c];
+                if (escape == null) {
+                    arr[pos++] = (byte) c;
+                } else {
+                    System.arraycopy(escape, 0, arr, pos, escape.length);
+                    pos += escape.length;
+                }
+            } else if (c < 0x800) {
+                arr[pos++] = (byte) (0xC0 | c >> 6);
+                arr[pos++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, value.charAt(++i));
+                arr[pos++] = (byte) (0xF0 | cp >> 18);
+                arr[pos++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                arr[pos++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                arr[pos++] = (byte) (0x80 | cp & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogate cannot be encoded in UTF-8. Escaped as it is.
+                arr[pos++] = '\\';
+                arr[pos++] = 'u';
+                arr[pos++] = HEX[c >> 12];
+                arr[pos++] = HEX[c >> 8 & 0xF];
+                arr[pos++] = HEX[c >> 4 & 0xF];
+                arr[pos++] = HEX[c & 0xF];
+            } else {
+                arr[pos++] = (byte) (0xE0 | c >> 12);
+                arr[pos++] = (byte) (0x80 | c >> 6 & 0x3F);
+                arr[pos++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+
+        arr[pos++] = '"';
+        buf.position(pos - buf.arrayOffset());
+    }
+
+    /**
+     * Upper bound on the number of bytes a string is encoded into. An escaped character takes the most.
+     */
+    static int maxEncodedLength(String value) {
+        return value.length() * 6 + 2;
+    }
+}
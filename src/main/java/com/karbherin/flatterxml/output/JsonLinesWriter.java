@@ -0,0 +1,225 @@
+package com.karbherin.flatterxml.output;
+
+import com.karbherin.flatterxml.model.CascadedAncestorFields;
+import com.karbherin.flatterxml.model.Pair;
+import com.karbherin.flatterxml.model.RecordTypeHierarchy;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.events.Namespace;
+import java.io.IOException;
+import java.util.*;
+
+import static com.karbherin.flatterxml.helper.XmlHelpers.toPrefixedTag;
+
+/**
+ * Writes each record type into a JSON Lines file, one JSON object per record.
+ * Values are JSON strings keyed by the output fields of the record. Cascaded ancestor fields follow the record's
+ * own fields, either keyed by their prefixed names as in the delimited output, or nested in an object per ancestor.
+ * A field repeated in a record is suffixed with #2, #3, etc.
+ * Records need no normalization since every object carries its own keys.
+ * Every worker writes into its own shard of a table, which are concatenated when the output is closed.
+ * Output files may roll over into numbered segments instead, announced in segments.manifest as they are completed.
+ */
+public class JsonLinesWriter implements RecordHandler {
+
+    private static final String REPEAT_FMT = "%s#%d";
+
+    private final String outDir;
+    private final StatusReporter statusReporter;
+    // Nest cascaded ancestor fields in an object per ancestor instead of prefixing their keys
+    private final boolean nestCascades;
+    // Concatenate the shards of workers into one file per record type
+    private final boolean mergeParts;
+    private Map<String, Namespace> xmlnsUriToPrefix;
+
+    private final RecordTypeTables<OutputTable> tables;
+    // Encoders hold encoding state, one per worker thread
+    private final ThreadLocal<RecordEncoder> recordEncoder = ThreadLocal.withInitial(RecordEncoder::new);
+    private final ShardContext shardContext;
+    // Announces the completed segments when output files roll over, null otherwise
+    private final SegmentManifest segmentManifest;
+
+    private JsonLinesWriter(String outDir, StatusReporter statusReporter, boolean nestCascades, boolean mergeParts,
+                            ShardContext shardContext) {
+        this.outDir = outDir;
+        this.statusReporter = statusReporter;
+        this.nestCascades = nestCascades;
+        this.mergeParts = mergeParts;
+        this.shardContext = shardContext;
+        this.segmentManifest = shardContext.rollsOver() ? new SegmentManifest(outDir) : null;
+        this.tables = new RecordTypeTables<>((name, recordLevel, previousRecordType, recordHierarchy) ->
+                new OutputTable(name, outDir, "jsonl", recordLevel, previousRecordType, false, segmentManifest),
+                table -> table.result);
+    }
+
+    @Override
+    public void write(QName recordName, Iterable<Pair<String, String>> fieldValueStack,
+                      CascadedAncestorFields cascadedData)
+            throws IOException {
+
+        // Records without fields of their own are not written, as in the delimited output
+        Iterator<Pair<String, String>> fields = fieldValueStack.iterator();
+        if (!fields.hasNext()) {
+            return;
+        }
+
+        OutputTable table = tables.table(recordName, cascadedData);
+        int shardNum = shardContext.shardNumber();
+        OutputShard shard = table.shard(shardNum);
+        if (shard == null) {
+            shard = table.openShard(shardNum, shardContext);
+        } else if (segmentManifest != null && shard.isSegmentFull()) {
+            table.rollOver(shard);
+        }
+
+        RecordEncoder encoder = recordEncoder.get();
+        shard.beginRecord();
+        encoder.json.put('{', shard);
+        encoder.keys.clear();
+        while (fields.hasNext()) {
+            Pair<String, String> field = fields.next();
+            encoder.field(field.getKey(), field.getVal(), encoder.keys, shard);
+        }
+        if (nestCascades) {
+            encoder.nestedCascades(cascadedData, shard);
+        } else {
+            for (Pair<String, String> field: cascadedData.getCascadedAncestorFields()) {
+                encoder.field(field.getKey(), field.getVal(), encoder.keys, shard);
+            }
+        }
+        encoder.json.put('}', shard);
+        encoder.json.put('\n', shard);
+        shard.endRecord();
+    }
+
+    @Override
+    public void closeAllFileStreams() throws IOException {
+        try {
+            for (OutputTable table: tables.all()) {
+                table.close(mergeParts, shardContext);
+            }
+        } finally {
+            shardContext.shutdown();
+            if (segmentManifest != null) {
+                segmentManifest.close();
+            }
+        }
+        statusReporter.logInfo("\nOutput writes: " + shardContext.metrics);
+    }
+
+    /**
+     * Write statistics of the output files.
+     * @return metrics updated as the records are written out
+     */
+    public WriterMetrics getWriterMetrics() {
+        return shardContext.metrics;
+    }
+
+    @Override
+    public List<GeneratedResult> getFilesWritten() {
+        return tables.filesWritten();
+    }
+
+    @Override
+    public void setXmlnsUriToPrefix(Map<String, Namespace> xmlnsUriToPrefix) {
+        this.xmlnsUriToPrefix = xmlnsUriToPrefix;
+    }
+
+    /**
+     * Encodes the records of a worker thread. Holds the keys seen in the objects being written.
+     */
+    private static final class RecordEncoder {
+        private final JsonEncoder json = new JsonEncoder();
+        // {key: occurrences} of the record object and of the nested ancestor object
+        private final Map<String, Integer> keys = new HashMap<>();
+        private final Map<String, Integer> nestedKeys = new HashMap<>();
+        // {ancestor record name: prefix of its cascaded fields}
+        private final Map<QName, String> prefixes = new HashMap<>();
+        private final List<String> ancestors = new ArrayList<>();
+
+        private void field(String key, String value, Map<String, Integer> objectKeys, OutputShard out)
+                throws IOException {
+            key(key, objectKeys, out);
+            json.string(value, out);
+        }
+
+        private void key(String key, Map<String, Integer> objectKeys, OutputShard out) throws IOException {
+            if (!objectKeys.isEmpty()) {
+                json.put(',', out);
+            }
+            Integer occurrences = objectKeys.merge(key, 1, Integer::sum);
+            json.key(occurrences == 1 ? key : String.format(REPEAT_FMT, key, occurrences), out);
+        }
+
+        /**
+         * Writes the cascaded fields of each ancestor as an object keyed by the ancestor's name.
+         * Cascaded fields are prefixed with the name of the ancestor they come from.
+         * Fields of an unknown ancestor are written with their prefixed keys.
+         */
+        private void nestedCascades(CascadedAncestorFields cascadedData, OutputShard out) throws IOException {
+            ancestors.clear();
+            for (RecordTypeHierarchy ancestor = cascadedData, parent = ancestor.parentRecordType();
+                 parent != ancestor; ancestor = parent, parent = ancestor.parentRecordType()) {
+                ancestors.add(prefixes.computeIfAbsent(parent.recordName(), name -> toPrefixedTag(name) + "."));
+            }
+
+            String nested = null;
+            for (Pair<String, String> field: cascadedData.getCascadedAncestorFields()) {
+                String key = field.getKey();
+                String prefix = null;
+                for (String ancestor: ancestors) {
+                    if (key.startsWith(ancestor) && key.length() > ancestor.length()) {
+                        prefix = ancestor;
+                        break;
+                    }
+                }
+
+                if (!Objects.equals(prefix, nested)) {
+                    if (nested != null) {
+                        json.put('}', out);
+                    }
+                    if (prefix != null) {
+                        key(prefix.substring(0, prefix.length() - 1), keys, out);
+                        json.put('{', out);
+                        nestedKeys.clear();
+                    }
+                    nested = prefix;
+                }
+
+                if (prefix == null) {
+                    field(key, field.getVal(), keys, out);
+                } else {
+                    field(key.substring(prefix.length()), field.getVal(), nestedKeys, out);
+                }
+            }
+            if (nested != null) {
+                json.put('}', out);
+            }
+        }
+    }
+
+    public static class JsonLinesWriterBuilder extends ShardedWriterBuilder<JsonLinesWriterBuilder> {
+        private boolean nestCascades = false;
+
+        @Override
+        JsonLinesWriterBuilder self() {
+            return this;
+        }
+
+        /**
+         * Cascaded field employee.employee-no is written as "employee":{"employee-no":"..."} when nested,
+         * and as "employee.employee-no":"..." otherwise.
+         * @param nestCascades - nest cascaded ancestor fields in an object per ancestor, defaults to false
+         * @return this builder
+         */
+        public JsonLinesWriterBuilder setNestCascades(boolean nestCascades) {
+            this.nestCascades = nestCascades;
+            return this;
+        }
+
+        public JsonLinesWriter create() {
+            return new JsonLinesWriter(outDir, statusReporter(), nestCascades, mergeParts,
+                    newShardContext(Long.MAX_VALUE));
+        }
+    }
+}
@@ -0,0 +1,351 @@
+package com.karbherin.flatterxml.output;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.util.List;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * A worker's private slice of an output table.
+ * Only the worker thread that owns the shard writes records to it, so records need no coordination.
+ * Records are coalesced in a write buffer and written out when the buffer fills up
+ * or when the flush interval elapses. With writer threads, a full buffer is handed over to
+ * the table's writer thread and the worker carries on with a fresh buffer.
+ * The shard file is opened when records are first written out, and may be closed in between writes
+ * to bound the number of open files. It is then reopened for appending.
+ * When output files roll over, the shard starts a new segment in its file once the full segment is moved away.
+ */
+final class OutputShard {
+
+    final int shardNum;
+    final Path path;
+    private final ShardBuffers buffers;
+    private final ChannelPool channels;
+    private final WriterMetrics metrics;
+    // Writer thread of the table, null if the worker writes out its buffers
+    private final AsyncFlusher.Writer writer;
+    private final long flushIntervalNanos;
+    private final long segmentBytes;
+    private final long segmentRecords;
+    // Failure of the writer thread, reported to the worker on its next flush
+    private volatile IOException writeError = null;
+
+    // Shard file, open while records are being written out. Guarded by channelLock.
+    private final Object channelLock = new Object();
+    private FileChannel channel = null;
+    private boolean created = false;
+
+    // Write buffer. Acquired when the first record is written after a flush.
+    private ByteBuffer buf = null;
+    // Position in the write buffer where the record being written starts
+    private int recordStart = 0;
+    private long lastFlushTime = System.nanoTime();
+    private long bytesFlushed = 0L;
+    // Records written to the shard file, excluding the header
+    private long records = 0L;
+
+    // Bytes taken by the header record at the start of the shard
+    private long headerLength = 0L;
+    // Header variants of the records recently written by the worker, most recent first
+    final HeaderVariant[] recentVariants = new HeaderVariant[HeaderVariants.RECENT_VARIANTS];
+    // Runs of records by header variant. Kept when the table's columns are not predefined.
+    final RunIndex runs;
+
+    OutputShard(int shardNum, Path path, ShardContext context, AsyncFlusher.Writer writer) throws IOException {
+        this.shardNum = shardNum;
+        this.path = path;
+        this.buffers = context.buffers;
+        this.channels = context.channels;
+        this.metrics = context.metrics;
+        this.writer = writer;
+        this.flushIntervalNanos = context.flushIntervalMillis * 1_000_000L;
+        this.segmentBytes = context.segmentBytes;
+        this.segmentRecords = context.segmentRecords;
+        this.runs = new RunIndex(Math.min(context.chunkSize, context.segmentBytes),
+                (int) Math.min(Integer.MAX_VALUE, context.segmentRecords));
+    }
+
+    /**
+     * Starts a new record in the write buffer.
+     */
+    void beginRecord() throws IOException {
+        if (buf == null) {
+            buf = buffers.acquire(this, buffers.getBufferSize());
+        }
+        recordStart = buf.position();
+    }
+
+    /**
+     * Makes room for the given number of bytes of the current record.
+     * Completed records are flushed first. The buffer grows if the record alone does not fit in it.
+     * @param length - number of bytes about to be put
+     * @return write buffer with at least the requested space remaining
+     */
+    ByteBuffer reserve(int length) throws IOException {
+        if (buf.remaining() >= length) {
+            return buf;
+        }
+
+        // Hand completed records over to the writer thread and carry on with the partial record in a fresh buffer
+        if (recordStart > 0 && writer != null) {
+            ByteBuffer next = buffers.acquire(this, Math.max(buffers.getBufferSize(),
+                    buf.position() - recordStart + length));
+            ByteBuffer partial = buf.duplicate();
+            partial.limit(buf.position());
+            partial.position(recordStart);
+            next.put(partial);
+
+            buf.limit(recordStart);
+            buf.position(0);
+            handOver(buf);
+            buf = next;
+            recordStart = 0;
+        }
+
+        // Write out completed records and move the partial record to the front of the buffer
+        if (recordStart > 0) {
+            ByteBuffer completed = buf.duplicate();
+            completed.position(0);
+            completed.limit(recordStart);
+            writeFully(completed);
+
+            buf.limit(buf.position());
+            buf.position(recordStart);
+            buf.compact();
+            recordStart = 0;
+        }
+
+        // Very wide record. Grow the buffer.
+        if (buf.remaining() < length) {
+            int capacity = buf.capacity();
+            while (capacity - buf.position() < length) {
+                capacity *= 2;
+            }
+            ByteBuffer grown = buffers.acquire(this, capacity);
+            buf.flip();
+            grown.put(buf);
+            buffers.recycle(buf);
+            buf = grown;
+        }
+
+        return buf;
+    }
+
+    ByteBuffer put(byte[] bytes) throws IOException {
+        return reserve(bytes.length).put(bytes);
+    }
+
+    /**
+     * Concludes the current record. Flushes the buffer if a flush threshold is reached.
+     */
+    void endRecord() throws IOException {
+        records++;
+        conclude();
+    }
+
+    private void conclude() throws IOException {
+        recordStart = buf.position();
+        if (buf.position() >= buffers.getFlushSize()
+                || flushIntervalNanos > 0 && System.nanoTime() - lastFlushTime >= flushIntervalNanos) {
+            flush();
+            buffers.flushed(this);
+        }
+    }
+
+    /**
+     * Concludes a record whose columns are those of the given header variant.
+     * @param variant - header variant of the record
+     */
+    void endRecord(HeaderVariant variant) throws IOException {
+        runs.add(variant, buf.position() - recordStart);
+        endRecord();
+    }
+
+    /**
+     * Concludes the header record. Header must be the first record on the shard.
+     */
+    void endHeader() throws IOException {
+        headerLength = bytesFlushed + buf.position();
+        conclude();
+    }
+
+    void flush() throws IOException {
+        lastFlushTime = System.nanoTime();
+        if (buf == null || buf.position() == 0) {
+            return;
+        }
+        buf.flip();
+        if (writer != null) {
+            handOver(buf);
+            buffers.handedOver(this);
+            buf = null;
+            recordStart = 0;
+            return;
+        }
+        writeFully(buf);
+        buf.clear();
+        recordStart = 0;
+
+        // Give a grown buffer back. Standard sized buffer will be acquired with the next record.
+        if (buf.capacity() > buffers.getBufferSize()) {
+            buffers.release(this, buf);
+            buf = null;
+        }
+    }
+
+    /**
+     * Flushes the records and gives the write buffer back to the pool.
+     */
+    void releaseBuffer() throws IOException {
+        flush();
+        if (buf != null) {
+            buffers.release(this, buf);
+            buf = null;
+        }
+    }
+
+    long getHeaderLength() {
+        return headerLength;
+    }
+
+    long getRecords() {
+        return records;
+    }
+
+    /**
+     * @return bytes written to the shard file, including the buffered records
+     */
+    long getBytes() {
+        return bytesFlushed + (buf == null ? 0 : buf.position());
+    }
+
+    /**
+     * @return true if the shard file has reached the segment size or number of records
+     */
+    boolean isSegmentFull() {
+        return records >= segmentRecords || getBytes() >= segmentBytes;
+    }
+
+    /**
+     * Starts a new segment in a closed shard whose full segment was moved away.
+     * The shard file is created afresh when records are written out.
+     */
+    void rollOver() {
+        synchronized (channelLock) {
+            created = false;
+        }
+        bytesFlushed = 0L;
+        headerLength = 0L;
+        records = 0L;
+        lastFlushTime = System.nanoTime();
+    }
+
+    /**
+     * Flushes the records and closes the shard file once all the records are written out.
+     */
+    void close() throws IOException {
+        releaseBuffer();
+        if (writer != null) {
+            writer.await(this);
+        }
+        synchronized (channelLock) {
+            if (!created) {
+                // No records were written out. Shard file is still expected.
+                open().close();
+            }
+        }
+        closeChannel();
+        channels.closed(this);
+        checkWriteError();
+    }
+
+    /**
+     * Writes out a buffer handed over to the writer thread, and gives it back to the pool.
+     * Runs on the writer thread.
+     * @param data - buffer ready to be read
+     */
+    void writeOut(ByteBuffer data) {
+        try {
+            if (writeError == null) {
+                write(data);
+            }
+        } catch (IOException ex) {
+            writeError = ex;
+        } finally {
+            buffers.recycle(data);
+        }
+    }
+
+    private void handOver(ByteBuffer data) throws IOException {
+        checkWriteError();
+        bytesFlushed += data.remaining();
+        writer.submit(this, data);
+    }
+
+    private void writeFully(ByteBuffer data) throws IOException {
+        bytesFlushed += data.remaining();
+        write(data);
+    }
+
+    private void write(ByteBuffer data) throws IOException {
+        boolean opened = false;
+        synchronized (channelLock) {
+            long startTime = System.nanoTime();
+            if (channel == null) {
+                channel = open();
+                opened = true;
+            }
+            long length = data.remaining();
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            metrics.recordWrite(length, System.nanoTime() - startTime);
+        }
+
+        if (!opened) {
+            channels.written(this);
+            return;
+        }
+        // Close the least recently written files while holding no shard's lock
+        List<OutputShard> evicted = channels.opened(this);
+        for (OutputShard shard: evicted) {
+            shard.closeChannel();
+        }
+    }
+
+    /**
+     * Opens the shard file, truncated the first time and for appending after it was evicted.
+     * Caller holds channelLock.
+     */
+    private FileChannel open() throws IOException {
+        OpenOption[] options = created
+                ? new OpenOption[]{WRITE, APPEND}
+                : new OpenOption[]{CREATE, TRUNCATE_EXISTING, WRITE};
+        FileChannel opened = FileChannel.open(path, options);
+        metrics.recordOpen(created);
+        created = true;
+        return opened;
+    }
+
+    /**
+     * Closes the shard file if it is open. It is reopened on the next write.
+     */
+    void closeChannel() throws IOException {
+        synchronized (channelLock) {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+    private void checkWriteError() throws IOException {
+        if (writeError != null) {
+            throw new IOException("Could not write to " + path, writeError);
+        }
+    }
+}
@@ -0,0 +1,428 @@
+package com.karbherin.flatterxml.output;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.karbherin.flatterxml.output.RecordHandler.GeneratedResult;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Output table for one record type. Every worker writes the table's records into its own shard.
+ * Shards are concatenated into a single file when the table is closed.
+ * When the table's columns are not predefined, shards are temporary files without a header record.
+ * They are laid out in the table's merged columns while being concatenated.
+ * When output files roll over, the table is written into numbered segments each with its own header,
+ * and each segment is announced in the manifest once it is closed. A segment gets its file name and number
+ * only then. Segments without records are not kept.
+ */
+final class OutputTable {
+
+    private static final String PART_FILE_FMT = "%s/%s_part%d.%s";
+    private static final String TABLE_FILE_FMT = "%s/%s.%s";
+    private static final String TMP_PART_FILE_FMT = "%s/tmp_%s_part%d.%s";
+    private static final String SEGMENT_FILE_FMT = "%s/%s_seg%d.%s";
+    // Segments with room left that a run of records can go into
+    private static final int MAX_OPEN_SEGMENTS = 4;
+
+    final String name;
+    final GeneratedResult result;
+    private final String outDir;
+    // File name extension of the table's files
+    private final String extension;
+    // Records vary in their columns and are normalized when the table is closed
+    private final boolean normalized;
+    // Announces completed segments, null if output files do not roll over
+    private final SegmentManifest manifest;
+    private final AtomicInteger segmentCounter = new AtomicInteger(0);
+
+    // {shardNum: shard}
+    private final ConcurrentHashMap<Integer, OutputShard> shards = new ConcurrentHashMap<>();
+    // Column sequences seen on the records when output fields are not predefined
+    final HeaderVariants headerVariants = new HeaderVariants();
+    // Files holding the table's records after it is closed
+    private final List<Path> tableFiles = new ArrayList<>();
+    // Segments announced in the manifest
+    private final List<Path> segments = Collections.synchronizedList(new ArrayList<>());
+
+    OutputTable(String name, String outDir, String extension, int recordLevel, String previousRecordType,
+                boolean normalized, SegmentManifest manifest) {
+        this.name = name;
+        this.outDir = outDir;
+        this.extension = extension;
+        this.normalized = normalized;
+        this.manifest = manifest;
+        this.result = new GeneratedResult(recordLevel, name, previousRecordType);
+    }
+
+    /**
+     * Looks up the shard of a worker.
+     * @param shardNum - shard number assigned to the worker
+     * @return the worker's shard, or null if the worker has not written to this table yet
+     */
+    OutputShard shard(int shardNum) {
+        return shards.get(shardNum);
+    }
+
+    /**
+     * Opens a new shard for a worker. Only the owning worker opens its shard, hence no race on the key.
+     * @param shardNum - shard number assigned to the worker
+     * @param context  - write buffers, writer threads and settings shared by all shards
+     * @return new shard
+     * @throws IOException - if the shard file cannot be created
+     */
+    OutputShard openShard(int shardNum, ShardContext context) throws IOException {
+        // Segments are filled in a temporary file of the shard, and numbered once they are complete
+        Path path = Paths.get(String.format(normalized || manifest != null ? TMP_PART_FILE_FMT : PART_FILE_FMT,
+                outDir, name, shardNum, extension));
+        OutputShard shard = new OutputShard(shardNum, path,
+                context, context.flusher == null ? null : context.flusher.writerFor(name));
+        shards.put(shardNum, shard);
+        return shard;
+    }
+
+    /**
+     * Closes the full segment of a worker's shard, announces it and moves the shard on to a new segment.
+     * Waits for the segment's records to be written out.
+     * @param shard - worker's shard whose segment is full
+     * @throws IOException - if the segment could not be written out
+     */
+    void rollOver(OutputShard shard) throws IOException {
+        shard.close();
+        announceFromShard(shard.path, shard.getRecords(), shard.getBytes());
+        shard.rollOver();
+    }
+
+    /**
+     * Closes all shards. Shards are concatenated into the table file unless parts are to be retained.
+     * When output files roll over, the last segments of the shards are announced instead.
+     * @param mergeParts - concatenate shards into one table file
+     * @param context    - segment sizes
+     * @throws IOException - if shards could not be closed or concatenated
+     */
+    void close(boolean mergeParts, ShardContext context) throws IOException {
+        List<OutputShard> parts = closeShards();
+
+        tableFiles.clear();
+        if (manifest != null) {
+            announceLastSegments(parts, context);
+            tableFiles.addAll(segments);
+            return;
+        }
+        if (!mergeParts) {
+            parts.forEach(part -> tableFiles.add(part.path));
+            return;
+        }
+
+        Path tablePath = Paths.get(String.format(TABLE_FILE_FMT, outDir, name, extension));
+        tableFiles.add(tablePath);
+        if (parts.size() == 1) {
+            // Sole worker. Shard is the table.
+            Files.move(parts.get(0).path, tablePath, REPLACE_EXISTING);
+            return;
+        }
+
+        // Zero-copy concatenation of shards. Header record is retained only from the first shard.
+        try (FileChannel out = FileChannel.open(tablePath, CREATE, TRUNCATE_EXISTING, WRITE)) {
+            boolean firstPart = true;
+            for (OutputShard part: parts) {
+                try (FileChannel in = FileChannel.open(part.path, READ)) {
+                    transfer(in, firstPart ? 0L : part.getHeaderLength(), out);
+                }
+                firstPart = false;
+            }
+        }
+
+        for (OutputShard part: parts) {
+            Files.delete(part.path);
+        }
+    }
+
+    /**
+     * Announces the segments the shards were filling when they were closed. Each worker fills segments
+     * of its own, so their last segments are packed together into as few segments as the thresholds allow.
+     * Segments without records are deleted.
+     */
+    private void announceLastSegments(List<OutputShard> parts, ShardContext context) throws IOException {
+        List<OutputShard> packed = new ArrayList<>();
+        long records = 0L;
+        long bytes = 0L;
+        for (OutputShard part: parts) {
+            if (part.getRecords() == 0) {
+                Files.deleteIfExists(part.path);
+                continue;
+            }
+            // Header record is retained only from the first segment of a pack
+            long partBytes = part.getBytes() - part.getHeaderLength();
+            if (!packed.isEmpty() && (records + part.getRecords() > context.segmentRecords
+                    || bytes + partBytes > context.segmentBytes)) {
+                announceFromShard(pack(packed), records, bytes);
+                packed.clear();
+            }
+            if (packed.isEmpty()) {
+                records = 0L;
+                bytes = part.getHeaderLength();
+            }
+            packed.add(part);
+            records += part.getRecords();
+            bytes += partBytes;
+        }
+        if (!packed.isEmpty()) {
+            announceFromShard(pack(packed), records, bytes);
+        }
+    }
+
+    /**
+     * Appends the records of the other segments to the first one, and deletes them.
+     * @return file of the first segment
+     */
+    private static Path pack(List<OutputShard> packed) throws IOException {
+        Path path = packed.get(0).path;
+        if (packed.size() > 1) {
+            try (FileChannel out = FileChannel.open(path, WRITE, APPEND)) {
+                for (OutputShard part: packed.subList(1, packed.size())) {
+                    try (FileChannel in = FileChannel.open(part.path, READ)) {
+                        transfer(in, part.getHeaderLength(), out);
+                    }
+                    Files.delete(part.path);
+                }
+            }
+        }
+        return path;
+    }
+
+    /**
+     * Zero-copy transfer of a file from the given position to the end.
+     */
+    private static void transfer(FileChannel in, long pos, FileChannel out) throws IOException {
+        transfer(in, pos, in.size() - pos, out);
+    }
+
+    /**
+     * Zero-copy transfer of a range of a file to the current position of the output.
+     */
+    private static void transfer(FileChannel in, long pos, long length, FileChannel out) throws IOException {
+        for (long end = pos + length; pos < end; ) {
+            pos += in.transferTo(pos, end - pos, out);
+        }
+    }
+
+    /**
+     * Closes all shards and writes the table's records laid out in the merged columns.
+     * Shards are concatenated into the table file unless parts are to be retained.
+     * Shards are cut into chunks of whole runs, which are laid out in parallel on the given pool
+     * and written at their precomputed offsets in the table file.
+     * When output files roll over, the table is cut into segments between runs instead,
+     * and each segment is announced as soon as its chunks are written. A run goes into the first of the
+     * recent segments with room for it, so that the partial runs at the end of the shards share segments.
+     * If all the records are already in the merged columns, as with a single header variant, the chunks are
+     * not laid out. They are transferred as they are, in order, after the header record.
+     * @param normalizer - lays out the records in the merged columns
+     * @param mergeParts - concatenate shards into one table file
+     * @param context    - chunk and segment sizes
+     * @param pool       - runs the chunk copying tasks, shared by all tables
+     * @return number of records
+     * @throws IOException - if shards could not be closed or copied
+     */
+    long close(TableNormalizer normalizer, boolean mergeParts, ShardContext context, ExecutorService pool)
+            throws IOException {
+
+        List<OutputShard> parts = closeShards();
+        byte[] header = normalizer.header();
+        boolean layOut = !normalizer.inMergedLayout();
+
+        long recCount = 0L;
+        List<TableFile> outputs = new ArrayList<>();
+        // Recent segments that are not full yet, oldest first
+        List<TableFile> openSegments = new ArrayList<>();
+        List<FileChannel> inputs = new ArrayList<>();
+        try {
+            TableFile out = null;
+            for (OutputShard part: parts) {
+                if (manifest == null && (out == null || !mergeParts)) {
+                    out = openTableFile(mergeParts
+                            ? Paths.get(String.format(TABLE_FILE_FMT, outDir, name, extension))
+                            : Paths.get(String.format(PART_FILE_FMT, outDir, name, part.shardNum, extension)), header);
+                    outputs.add(out);
+                }
+
+                FileChannel in = FileChannel.open(part.path, READ);
+                inputs.add(in);
+                RunIndex runs = part.runs;
+                long inPos = 0L;
+                for (int fromRun = 0; fromRun < runs.size(); ) {
+                    if (manifest != null) {
+                        out = segmentFor(runs.rows(fromRun), openSegments, outputs, context, header);
+                    }
+
+                    // Cut a chunk of whole runs
+                    long chunkLength = 0L;
+                    long chunkOutLength = 0L;
+                    long chunkRecords = 0L;
+                    int toRun = fromRun;
+                    do {
+                        chunkLength += runs.bytes(toRun);
+                        chunkOutLength += normalizer.outputLength(runs, toRun);
+                        chunkRecords += runs.rows(toRun);
+                        toRun++;
+                    } while (toRun < runs.size() && chunkLength + runs.bytes(toRun) <= context.chunkSize
+                            && (manifest == null || out.bytes + chunkOutLength < context.segmentBytes
+                                    && out.records + chunkRecords + runs.rows(toRun) <= context.segmentRecords));
+
+                    if (layOut) {
+                        final int chunkFrom = fromRun, chunkTo = toRun;
+                        final long chunkIn = inPos, chunkOut = out.bytes;
+                        final FileChannel chunkOutFile = out.channel;
+                        out.chunks.add(pool.submit(() -> {
+                            normalizer.copyChunk(runs, chunkFrom, chunkTo, in, chunkIn, chunkOutFile, chunkOut);
+                            return null;
+                        }));
+                    } else {
+                        // Written in order, each table file by this thread alone
+                        transfer(in, inPos, chunkLength, out.channel);
+                    }
+
+                    fromRun = toRun;
+                    inPos += chunkLength;
+                    out.bytes += chunkOutLength;
+                    out.records += chunkRecords;
+                    recCount += chunkRecords;
+                    if (manifest != null && (out.bytes >= context.segmentBytes
+                            || out.records >= context.segmentRecords)) {
+                        openSegments.remove(out);
+                    }
+                }
+            }
+
+            // A table file is complete once its chunks are written
+            for (TableFile output: outputs) {
+                for (Future<?> chunk: output.chunks) {
+                    chunk.get();
+                }
+                output.channel.close();
+                if (manifest != null) {
+                    announce(output.path, output.records, output.bytes);
+                }
+            }
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException("Interrupted while normalizing " + name);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("Could not normalize " + name, ex.getCause());
+        } finally {
+            for (TableFile output: outputs) {
+                output.chunks.forEach(chunk -> chunk.cancel(false));
+                output.channel.close();
+            }
+            for (FileChannel in: inputs) {
+                in.close();
+            }
+        }
+
+        tableFiles.clear();
+        outputs.forEach(output -> tableFiles.add(output.path));
+        for (OutputShard part: parts) {
+            Files.delete(part.path);
+        }
+        return recCount;
+    }
+
+    /**
+     * Finds a segment for a run of records, or starts a new one.
+     * @param runRows      - number of records of the run
+     * @param openSegments - recent segments that are not full yet
+     * @param outputs      - all the segments of the table
+     * @return the first recent segment with room for the run, or a new segment
+     */
+    private TableFile segmentFor(int runRows, List<TableFile> openSegments, List<TableFile> outputs,
+                                 ShardContext context, byte[] header) throws IOException {
+        for (TableFile segment: openSegments) {
+            if (segment.records + runRows <= context.segmentRecords) {
+                return segment;
+            }
+        }
+        TableFile segment = openTableFile(nextSegment(), header);
+        outputs.add(segment);
+        openSegments.add(segment);
+        // Bound the segments looked into for every run
+        if (openSegments.size() > MAX_OPEN_SEGMENTS) {
+            openSegments.remove(0);
+        }
+        return segment;
+    }
+
+    private static TableFile openTableFile(Path path, byte[] header) throws IOException {
+        TableFile tableFile = new TableFile(path, FileChannel.open(path, CREATE, TRUNCATE_EXISTING, WRITE));
+        for (ByteBuffer headerBuf = ByteBuffer.wrap(header); headerBuf.hasRemaining(); ) {
+            tableFile.channel.write(headerBuf);
+        }
+        tableFile.bytes = header.length;
+        return tableFile;
+    }
+
+    private Path nextSegment() {
+        return Paths.get(String.format(SEGMENT_FILE_FMT,
+                outDir, name, segmentCounter.incrementAndGet(), extension));
+    }
+
+    private void announce(Path segment, long records, long bytes) throws IOException {
+        manifest.announce(name, segment, records, bytes);
+        segments.add(segment);
+    }
+
+    /**
+     * Moves a complete segment out of a shard file into the next segment file of the table, and announces it.
+     */
+    private void announceFromShard(Path shardFile, long records, long bytes) throws IOException {
+        Path segment = nextSegment();
+        Files.move(shardFile, segment, REPLACE_EXISTING);
+        announce(segment, records, bytes);
+    }
+
+    private List<OutputShard> closeShards() throws IOException {
+        List<OutputShard> parts = new ArrayList<>(shards.values());
+        parts.sort(Comparator.comparingInt(part -> part.shardNum));
+        for (OutputShard part: parts) {
+            part.close();
+        }
+        return parts;
+    }
+
+    /**
+     * Files holding the table's records. Available after the table is closed.
+     * @return table file, the part files if parts were retained, or the segments if files rolled over
+     */
+    List<Path> getTableFiles() {
+        return tableFiles;
+    }
+
+    /**
+     * A file being written with the laid out records of a table.
+     */
+    private static final class TableFile {
+        private final Path path;
+        private final FileChannel channel;
+        private final List<Future<?>> chunks = new ArrayList<>();
+        // Size of the file and number of records once its chunks are written
+        private long bytes = 0L;
+        private long records = 0L;
+
+        private TableFile(Path path, FileChannel channel) {
+            this.path = path;
+            this.channel = channel;
+        }
+    }
+}
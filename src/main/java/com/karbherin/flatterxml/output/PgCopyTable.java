@@ -0,0 +1,242 @@
+package com.karbherin.flatterxml.output;
+
+import com.karbherin.flatterxml.model.Pair;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+
+import static com.karbherin.flatterxml.output.RecordHandler.GeneratedResult;
+
+/**
+ * Output table for one record type in PostgreSQL's binary COPY format.
+ * Records are encoded as they are written and spilled to a temporary file along with the columns of their fields.
+ * When the table is closed, the records are laid out in all the columns of the table, absent fields as NULLs,
+ * between the COPY header and trailer. A psql script alongside creates the table and copies the file into it,
+ * when run from the output directory.
+ */
+final class PgCopyTable {
+
+    static final byte[] SIGNATURE = {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xFF, '\r', '\n', 0};
+    private static final String TABLE_FILE_FMT = "%s/%s.pgcopy";
+    private static final String SQL_FILE_FMT = "%s/%s.sql";
+    private static final String SPILL_FILE_FMT = "%s/tmp_%s.pgcopy";
+    private static final String LOAD_SCRIPT_FMT =
+            "CREATE TABLE IF NOT EXISTS %s %s;\n\n\\copy %s %s FROM '%s' WITH (FORMAT binary)\n";
+    private static final String REPEAT_FMT = "%s#%d";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    final String name;
+    final Path path;
+    final GeneratedResult result;
+    private final String outDir;
+    private final Path spillPath;
+    private final SchemaColumnTypes schemaTypes;
+
+    private final List<String> columns = new ArrayList<>();
+    private final List<PgCopyType> columnTypes = new ArrayList<>();
+    private final Map<String, Integer> columnIndex = new HashMap<>();
+    // Record in which each column was last set, to detect repeated fields
+    private long[] columnRecord = new long[16];
+    private long recordSeq = 0L;
+    private long recordCount = 0L;
+
+    // Record being encoded, written to the spill file once it is complete
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    private DataOutputStream spill = null;
+
+    PgCopyTable(String name, String outDir, int recordLevel, String previousRecordType,
+                SchemaColumnTypes schemaTypes) {
+        this.name = name;
+        this.outDir = outDir;
+        this.path = Paths.get(String.format(TABLE_FILE_FMT, outDir, name));
+        this.spillPath = Paths.get(String.format(SPILL_FILE_FMT, outDir, name));
+        this.schemaTypes = schemaTypes;
+        this.result = new GeneratedResult(recordLevel, name, previousRecordType);
+    }
+
+    /**
+     * Encodes a record in the types of its columns and spills it.
+     * @param fields   - record's own fields
+     * @param appendix - cascaded ancestor fields
+     * @throws IOException - if a value is not valid for the type of its column, or the record could not be spilled
+     */
+    synchronized void append(Iterable<Pair<String, String>> fields, Iterable<Pair<String, String>> appendix)
+            throws IOException {
+
+        startRecord();
+        int numFields = set(appendix, set(fields, 0));
+        spillRecord(numFields);
+    }
+
+    /**
+     * Encodes a record whose values are already converted to the types of their columns, and spills it.
+     * @param typed - record's own fields followed by the cascaded ancestor fields
+     * @throws IOException - if the record could not be spilled
+     */
+    synchronized void append(TypedRecord typed) throws IOException {
+        startRecord();
+        for (int field = 0; field < typed.size(); field++) {
+            int column = nextColumn(typed.column(field));
+            try {
+                columnTypes.get(column).encode(typed, field, recordOut);
+            } catch (IllegalArgumentException | DateTimeParseException ex) {
+                throw invalidValue(typed.text(field), typed.column(field), column, ex);
+            }
+        }
+        spillRecord(typed.size());
+    }
+
+    private void startRecord() throws IOException {
+        recordSeq++;
+        record.reset();
+        recordOut.writeShort(0);
+    }
+
+    private void spillRecord(int numFields) throws IOException {
+        byte[] encoded = record.toByteArray();
+        encoded[0] = (byte) (numFields >>> 8);
+        encoded[1] = (byte) numFields;
+
+        if (spill == null) {
+            spill = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(spillPath), BUFFER_SIZE));
+        }
+        spill.writeInt(encoded.length);
+        spill.write(encoded);
+        recordCount++;
+    }
+
+    private int set(Iterable<Pair<String, String>> fields, int numFields) throws IOException {
+        for (Pair<String, String> field: fields) {
+            int column = nextColumn(field.getKey());
+            try {
+                columnTypes.get(column).encode(field.getVal(), recordOut);
+            } catch (IllegalArgumentException | DateTimeParseException ex) {
+                throw invalidValue(field.getVal(), field.getKey(), column, ex);
+            }
+            numFields++;
+        }
+        return numFields;
+    }
+
+    /**
+     * @return column of the field, the next of its repeated columns if the field is repeated in the record
+     */
+    private int nextColumn(String field) throws IOException {
+        int column = column(field);
+        for (int occurrence = 2; columnRecord[column] == recordSeq; occurrence++) {
+            column = column(String.format(REPEAT_FMT, field, occurrence));
+        }
+        columnRecord[column] = recordSeq;
+        recordOut.writeShort(column);
+        return column;
+    }
+
+    private IOException invalidValue(String value, String field, int column, RuntimeException ex) {
+        return new IOException(String.format("Value '%s' of %s in %s is not a valid %s",
+                value, field, name, columnTypes.get(column).sqlName), ex);
+    }
+
+    private int column(String columnName) {
+        Integer index = columnIndex.get(columnName);
+        if (index == null) {
+            index = columns.size();
+            columnIndex.put(columnName, index);
+            columns.add(columnName);
+            columnTypes.add(PgCopyType.of(schemaTypes.typeOf(columnName)));
+            if (index == columnRecord.length) {
+                columnRecord = Arrays.copyOf(columnRecord, 2 * index);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Writes the COPY file with the records laid out in all the columns, and the SQL script to load it.
+     * @return number of records
+     * @throws IOException - if the files could not be written
+     */
+    synchronized long close() throws IOException {
+        if (spill != null) {
+            spill.close();
+        }
+
+        int numColumns = columns.size();
+        int[] fieldStart = new int[numColumns];
+        int[] fieldEnd = new int[numColumns];
+        byte[] tuple = new byte[256];
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(path), BUFFER_SIZE))) {
+            out.write(SIGNATURE);
+            out.writeInt(0);
+            out.writeInt(0);
+
+            if (spill != null) {
+                try (DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(Files.newInputStream(spillPath), BUFFER_SIZE))) {
+                    for (long rec = 0; rec < recordCount; rec++) {
+                        int length = in.readInt();
+                        if (length > tuple.length) {
+                            tuple = new byte[Math.max(length, 2 * tuple.length)];
+                        }
+                        in.readFully(tuple, 0, length);
+
+                        Arrays.fill(fieldStart, -1);
+                        int numFields = readShort(tuple, 0);
+                        for (int f = 0, pos = 2; f < numFields; f++) {
+                            int column = readShort(tuple, pos);
+                            int valueLength = readInt(tuple, pos + 2);
+                            fieldStart[column] = pos + 2;
+                            pos += 6 + Math.max(valueLength, 0);
+                            fieldEnd[column] = pos;
+                        }
+
+                        out.writeShort(numColumns);
+                        for (int column = 0; column < numColumns; column++) {
+                            if (fieldStart[column] < 0) {
+                                out.writeInt(-1);
+                            } else {
+                                out.write(tuple, fieldStart[column], fieldEnd[column] - fieldStart[column]);
+                            }
+                        }
+                    }
+                }
+                Files.delete(spillPath);
+            }
+            out.writeShort(-1);
+        }
+
+        writeLoadScript();
+        return recordCount;
+    }
+
+    private void writeLoadScript() throws IOException {
+        StringJoiner definitions = new StringJoiner(",\n    ", "(\n    ", "\n)");
+        StringJoiner names = new StringJoiner(", ", "(", ")");
+        for (int column = 0; column < columns.size(); column++) {
+            definitions.add(quoted(columns.get(column)) + " " + columnTypes.get(column).sqlName);
+            names.add(quoted(columns.get(column)));
+        }
+        String script = String.format(LOAD_SCRIPT_FMT, quoted(name), definitions, quoted(name), names,
+                path.getFileName().toString().replace("'", "''"));
+        Files.write(Paths.get(String.format(SQL_FILE_FMT, outDir, name)), script.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String quoted(String identifier) {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+
+    private static int readShort(byte[] bytes, int pos) {
+        return (bytes[pos] & 0xFF) << 8 | bytes[pos + 1] & 0xFF;
+    }
+
+    private static int readInt(byte[] bytes, int pos) {
+        return bytes[pos] << 24 | (bytes[pos + 1] & 0xFF) << 16 | (bytes[pos + 2] & 0xFF) << 8 | bytes[pos + 3] & 0xFF;
+    }
+}
@@ -0,0 +1,272 @@
+package com.karbherin.flatterxml.output;
+
+import javax.xml.namespace.QName;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+
+/**
+ * PostgreSQL column types of the binary COPY output and the binary encoding of their values.
+ * Each value is encoded as its length followed by its bytes in network byte order.
+ */
+enum PgCopyType {
+
+    TEXT("text") {
+        @Override
+        void encodeValue(String value, DataOutputStream out) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    },
+    BOOLEAN("boolean") {
+        @Override
+        void encodeValue(String value, DataOutputStream out) throws IOException {
+            boolean bool;
+            switch (value) {
+                case "true":
+                case "1":
+                    bool = true;
+                    break;
+                case "false":
+                case "0":
+                    bool = false;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Not a boolean: " + value);
+            }
+            out.writeInt(1);
+            out.writeByte(bool ? 1 : 0);
+        }
+    },
+    SMALLINT("smallint") {
+        @Override
+        void encodeValue(String value, DataOutputStream out) throws IOException {
+            short number = Short.parseShort(value);
+            out.writeInt(2);
+            out.writeShort(number);
+        }
+    },
+    INTEGER("integer") {
+        @Override
+        void encodeValue(String value, DataOutputStream out) throws IOException {
+            int number = Integer.parseInt(value);
+            out.writeInt(4);
+            out.writeInt(number);
+        }
+    },
+    BIGINT("bigint") {
+        @Override
+        void encodeValue(String value, DataOutputStream out) throws IOException {
+            long number = Long.parseLong(value);
+            out.writeInt(8);
+            out.writeLong(number);
+        }
+    },
+    REAL("real") {
+        @Override
+        void encodeValue(String value, DataOutputStream out) throws IOException {
+            float number = Float.parseFloat(javaFloat(value));
+            out.writeInt(4);
+            out.writeFloat(number);
+        }
+    },
+    DOUBLE("double precision") {
+        @Override
+        void encodeValue(String value, DataOutputStream out) throws IOException {
+            double number = Double.parseDouble(javaFloat(value));
+            out.writeInt(8);
+            out.writeDouble(number);
+        }
+    },
+    NUMERIC("numeric") {
+        @Override
+        void encodeValue(String value, DataOutputStream out) throws IOException {
+            encodeNumeric(new BigDecimal(value), out);
+        }
+    },
+    DATE("date") {
+        @Override
+        void encodeValue(String value, DataOutputStream out) throws IOException {
+            // Time zone of the date is dropped
+            int days = (int) (LocalDate.parse(value.length() > 10 ? value.substring(0, 10) : value).toEpochDay()
+                    - PG_EPOCH_DAY);
+            out.writeInt(4);
+            out.writeInt(days);
+        }
+    };
+
+    // Days from 1970-01-01 to 2000-01-01
+    private static final long PG_EPOCH_DAY = 10957L;
+    private static final short NUMERIC_POS = 0x0000, NUMERIC_NEG = 0x4000;
+
+    final String sqlName;
+
+    PgCopyType(String sqlName) {
+        this.sqlName = sqlName;
+    }
+
+    /**
+     * Encodes a value of the column. An empty value of a column other than text is encoded as a NULL.
+     * @param value - string value of the field
+     * @param out   - output stream
+     * @throws IllegalArgumentException - if the value is not valid for the type
+     */
+    void encode(String value, DataOutputStream out) throws IOException {
+        if (value == null || this != TEXT && (value = value.trim()).isEmpty()) {
+            out.writeInt(-1);
+            return;
+        }
+        encodeValue(value, out);
+    }
+
+    abstract void encodeValue(String value, DataOutputStream out) throws IOException;
+
+    /**
+     * Encodes a value of the column already converted by a typed record. Values of a different type are encoded
+     * from their text.
+     * @param record - typed record
+     * @param field  - field of the record
+     * @param out    - output stream
+     * @throws IllegalArgumentException - if the text of a value of a different type is not valid for the type
+     */
+    void encode(TypedRecord record, int field, DataOutputStream out) throws IOException {
+        if (of(record.type(field)) != this) {
+            encode(record.text(field), out);
+            return;
+        }
+        if (record.isNull(field)) {
+            out.writeInt(-1);
+            return;
+        }
+
+        switch (this) {
+            case BOOLEAN:
+                out.writeInt(1);
+                out.writeByte((int) record.longValue(field));
+                break;
+            case SMALLINT:
+                out.writeInt(2);
+                out.writeShort((int) record.longValue(field));
+                break;
+            case INTEGER:
+                out.writeInt(4);
+                out.writeInt((int) record.longValue(field));
+                break;
+            case BIGINT:
+                out.writeInt(8);
+                out.writeLong(record.longValue(field));
+                break;
+            case REAL:
+                out.writeInt(4);
+                out.writeFloat((float) record.doubleValue(field));
+                break;
+            case DOUBLE:
+                out.writeInt(8);
+                out.writeDouble(record.doubleValue(field));
+                break;
+            case NUMERIC:
+                encodeNumeric(record.decimalValue(field), out);
+                break;
+            case DATE:
+                out.writeInt(4);
+                out.writeInt((int) (record.longValue(field) - PG_EPOCH_DAY));
+                break;
+            default:
+                encodeValue(record.text(field), out);
+        }
+    }
+
+    /**
+     * Column type for an XSD built-in type. Other types are written as text.
+     * @param xsdType - type of the element or attribute in the XSD, null if not known
+     * @return column type
+     */
+    static PgCopyType of(QName xsdType) {
+        return of(ValueType.of(xsdType));
+    }
+
+    static PgCopyType of(ValueType valueType) {
+        switch (valueType) {
+            case BOOLEAN:
+                return BOOLEAN;
+            case SHORT:
+                return SMALLINT;
+            case INT:
+                return INTEGER;
+            case LONG:
+                return BIGINT;
+            case DECIMAL:
+                return NUMERIC;
+            case FLOAT:
+                return REAL;
+            case DOUBLE:
+                return DOUBLE;
+            case DATE:
+                return DATE;
+            default:
+                return TEXT;
+        }
+    }
+
+    /**
+     * XSD spells the infinities INF and -INF.
+     */
+    static String javaFloat(String value) {
+        switch (value) {
+            case "INF":
+                return "Infinity";
+            case "-INF":
+                return "-Infinity";
+            default:
+                return value;
+        }
+    }
+
+    /**
+     * Numeric is a sequence of base 10000 digits with the weight of the first digit, a sign and
+     * the number of decimal digits after the point. Leading and trailing zero digits are dropped.
+     */
+    private static void encodeNumeric(BigDecimal number, DataOutputStream out) throws IOException {
+        String plain = number.abs().toPlainString();
+        int point = plain.indexOf('.');
+        String intPart = point < 0 ? plain : plain.substring(0, point);
+        String fracPart = point < 0 ? "" : plain.substring(point + 1);
+
+        // Align the digits in groups of 4 around the decimal point
+        int intGroups = (intPart.length() + 3) / 4;
+        int fracGroups = (fracPart.length() + 3) / 4;
+        StringBuilder aligned = new StringBuilder(4 * (intGroups + fracGroups));
+        for (int i = intPart.length(); i < 4 * intGroups; i++) {
+            aligned.append('0');
+        }
+        aligned.append(intPart).append(fracPart);
+        for (int i = fracPart.length(); i < 4 * fracGroups; i++) {
+            aligned.append('0');
+        }
+
+        short[] digits = new short[intGroups + fracGroups];
+        for (int i = 0; i < digits.length; i++) {
+            digits[i] = Short.parseShort(aligned.substring(4 * i, 4 * i + 4));
+        }
+        int first = 0, last = digits.length;
+        while (first < last && digits[first] == 0) {
+            first++;
+        }
+        while (last > first && digits[last - 1] == 0) {
+            last--;
+        }
+
+        int ndigits = last - first;
+        out.writeInt(8 + 2 * ndigits);
+        out.writeShort(ndigits);
+        out.writeShort(ndigits == 0 ? 0 : intGroups - 1 - first);
+        out.writeShort(number.signum() < 0 ? NUMERIC_NEG : NUMERIC_POS);
+        out.writeShort(Math.max(number.scale(), 0));
+        for (int i = first; i < last; i++) {
+            out.writeShort(digits[i]);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.karbherin.flatterxml.output;
+
+import com.karbherin.flatterxml.model.CascadedAncestorFields;
+import com.karbherin.flatterxml.model.Pair;
+import com.karbherin.flatterxml.model.RecordTypeHierarchy;
+import com.karbherin.flatterxml.xsd.SchemaIndex;
+import com.karbherin.flatterxml.xsd.XmlSchema;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.events.Namespace;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes each record type in PostgreSQL's binary COPY format, so that the server loads the tables
+ * without parsing text. Columns whose XSD type is a built-in numeric, boolean or date type are written in
+ * the matching PostgreSQL type. Other columns are text. Empty values of typed columns are written as NULLs.
+ * Records written typed have their values converted by the workers; values not valid for their types are
+ * written as NULLs and counted per column. Records written as text fail on such values.
+ * Each table is accompanied by a psql script that creates the table and copies the file into it.
+ */
+public class PgCopyWriter implements TypedRecordHandler {
+
+    private final String outDir;
+    private final StatusReporter statusReporter;
+    private final SchemaIndex schemaIndex;
+    private final ConversionFailures conversionFailures = new ConversionFailures();
+    private Map<String, Namespace> xmlnsUriToPrefix;
+
+    private final RecordTypeTables<PgCopyTable> tables;
+
+    private PgCopyWriter(String outDir, StatusReporter statusReporter, SchemaIndex schemaIndex) {
+        this.outDir = outDir;
+        this.statusReporter = statusReporter;
+        this.schemaIndex = schemaIndex;
+        this.tables = new RecordTypeTables<>((name, recordLevel, previousRecordType, recordHierarchy) ->
+                new PgCopyTable(name, outDir, recordLevel, previousRecordType,
+                        new SchemaColumnTypes(schemaIndex, recordHierarchy)),
+                table -> table.result);
+    }
+
+    @Override
+    public void write(QName recordName, Iterable<Pair<String, String>> fieldValueStack,
+                      CascadedAncestorFields cascadedData)
+            throws IOException {
+
+        // Records without fields of their own are not written, as in the delimited output
+        if (!fieldValueStack.iterator().hasNext()) {
+            return;
+        }
+        tables.table(recordName, cascadedData).append(fieldValueStack, cascadedData.getCascadedAncestorFields());
+    }
+
+    @Override
+    public TypedRecord newTypedRecord(QName recordName, RecordTypeHierarchy recordHierarchy) {
+        SchemaColumnTypes schemaTypes = new SchemaColumnTypes(schemaIndex, recordHierarchy);
+        return new TypedRecord(RecordTypeTables.tableName(recordName), column -> ValueType.of(schemaTypes.typeOf(column)),
+                conversionFailures);
+    }
+
+    @Override
+    public void write(QName recordName, TypedRecord record, CascadedAncestorFields cascadedData)
+            throws IOException {
+
+        if (record.ownSize() == 0) {
+            return;
+        }
+        tables.table(recordName, cascadedData).append(record);
+    }
+
+    @Override
+    public void closeAllFileStreams() throws IOException {
+        for (PgCopyTable table: tables.all()) {
+            long startTime = System.currentTimeMillis();
+            long recCount = table.close();
+            statusReporter.logInfo(String.format("\nWrote %d records of %s to %s in %d seconds",
+                    recCount, table.name, table.path, (System.currentTimeMillis() - startTime)/1000));
+            conversionFailures.counts(table.name).forEach((column, count) -> statusReporter.logInfo(String.format(
+                    "\n%d values of %s in %s were not valid for its type and were written as NULLs",
+                    count, column, table.name)));
+        }
+    }
+
+    /**
+     * @return counts of the values of typed records not valid for the types of their columns
+     */
+    public ConversionFailures getConversionFailures() {
+        return conversionFailures;
+    }
+
+    @Override
+    public List<GeneratedResult> getFilesWritten() {
+        return tables.filesWritten();
+    }
+
+    @Override
+    public void setXmlnsUriToPrefix(Map<String, Namespace> xmlnsUriToPrefix) {
+        this.xmlnsUriToPrefix = xmlnsUriToPrefix;
+    }
+
+    public static class PgCopyWriterBuilder {
+        private String outDir = ".";
+        private StatusReporter statusReporter;
+        private List<XmlSchema> xsds = Collections.emptyList();
+
+        public PgCopyWriterBuilder setOutDir(String outDir) {
+            this.outDir = outDir;
+            return this;
+        }
+
+        public PgCopyWriterBuilder setStatusReporter(StatusReporter statusReporter) {
+            this.statusReporter = statusReporter;
+            return this;
+        }
+
+        /**
+         * @param xsds - XSDs whose element and attribute types decide the column types, all text if none
+         * @return this builder
+         */
+        public PgCopyWriterBuilder setXsds(List<XmlSchema> xsds) {
+            this.xsds = xsds;
+            return this;
+        }
+
+        public PgCopyWriter create() {
+            if (statusReporter == null) {
+                statusReporter = new StatusReporter();
+            }
+            return new PgCopyWriter(outDir, statusReporter, SchemaIndex.of(xsds));
+        }
+    }
+}
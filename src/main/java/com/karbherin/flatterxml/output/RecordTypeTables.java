@@ -0,0 +1,86 @@
+package com.karbherin.flatterxml.output;
+
+import com.karbherin.flatterxml.model.RecordTypeHierarchy;
+
+import javax.xml.namespace.QName;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.karbherin.flatterxml.helper.XmlHelpers.EMPTY;
+import static com.karbherin.flatterxml.output.RecordHandler.GeneratedResult;
+
+/**
+ * Tables of a record handler, one per record type. A table is named after its record type, as prefix.name,
+ * and created on the first record of the type, which also tells the record level and the parent record type
+ * of the table. Safe for the workers to look up tables concurrently.
+ * @param <T> - table of a record type, such as an output file
+ */
+final class RecordTypeTables<T> {
+
+    /**
+     * Creates the table of a record type.
+     */
+    @FunctionalInterface
+    interface TableFactory<T> {
+        /**
+         * @param name               - table name
+         * @param recordLevel        - nesting level of the record type
+         * @param previousRecordType - table name of the parent record type, empty for a top-level record type
+         * @param recordHierarchy    - record type and its ancestors
+         * @return new table
+         */
+        T newTable(String name, int recordLevel, String previousRecordType, RecordTypeHierarchy recordHierarchy);
+    }
+
+    // {recordType: table}
+    private final ConcurrentHashMap<String, T> tables = new ConcurrentHashMap<>();
+    private final TableFactory<T> factory;
+    private final Function<T, GeneratedResult> result;
+
+    /**
+     * @param factory - creates the table of a record type
+     * @param result  - file generated by a table
+     */
+    RecordTypeTables(TableFactory<T> factory, Function<T, GeneratedResult> result) {
+        this.factory = factory;
+        this.result = result;
+    }
+
+    /**
+     * @param recordName      - record type
+     * @param recordHierarchy - record type and its ancestors
+     * @return table of the record type, created on its first record
+     */
+    T table(QName recordName, RecordTypeHierarchy recordHierarchy) {
+        return tables.computeIfAbsent(tableName(recordName), name -> factory.newTable(name,
+                recordHierarchy.recordLevel(), previousTable(recordHierarchy, name), recordHierarchy));
+    }
+
+    Collection<T> all() {
+        return tables.values();
+    }
+
+    int size() {
+        return tables.size();
+    }
+
+    List<GeneratedResult> filesWritten() {
+        return tables.values().stream()
+                .map(result)
+                .collect(Collectors.toList());
+    }
+
+    static String tableName(QName recordName) {
+        String prefix = recordName.getPrefix();
+        return prefix == null || prefix.isEmpty()
+                ? recordName.getLocalPart() : prefix + "." + recordName.getLocalPart();
+    }
+
+    private static String previousTable(RecordTypeHierarchy recordHierarchy, String tableName) {
+        String previousTableName = recordHierarchy.parentRecordType().recordName().getLocalPart();
+        return tableName.equals(previousTableName) ? EMPTY : previousTableName;
+    }
+}
@@ -0,0 +1,71 @@
+package com.karbherin.flatterxml.output;
+
+import java.util.Arrays;
+
+/**
+ * Index of the runs of consecutive records of the same header variant on a shard.
+ * Normalization copies runs already laid out in the table's columns as they are
+ * and rewrites only the runs of the other variants.
+ * Runs are capped in size so that long runs can be normalized in parallel chunks,
+ * and capped in records so that tables can be cut into segments between runs.
+ * Takes 16 bytes per run, so tables whose header variants alternate on every record cost the most.
+ */
+final class RunIndex {
+
+    private final long maxRunBytes;
+    private final int maxRunRows;
+
+    private HeaderVariant[] variants = new HeaderVariant[16];
+    private int[] rows = new int[16];
+    private long[] bytes = new long[16];
+    private int size = 0;
+
+    /**
+     * @param maxRunBytes - a record that would take a run beyond this size starts a new run
+     * @param maxRunRows  - a run full with this number of records is followed by a new run
+     */
+    RunIndex(long maxRunBytes, int maxRunRows) {
+        this.maxRunBytes = maxRunBytes;
+        this.maxRunRows = maxRunRows;
+    }
+
+    /**
+     * Adds a record to the last run, or starts a new run if the record is of a different variant.
+     * @param variant - header variant of the record
+     * @param length  - number of bytes of the record
+     */
+    void add(HeaderVariant variant, int length) {
+        if (size > 0 && variants[size - 1] == variant && rows[size - 1] < maxRunRows
+                && bytes[size - 1] + length <= maxRunBytes) {
+            rows[size - 1]++;
+            bytes[size - 1] += length;
+            return;
+        }
+
+        if (size == variants.length) {
+            variants = Arrays.copyOf(variants, size * 2);
+            rows = Arrays.copyOf(rows, size * 2);
+            bytes = Arrays.copyOf(bytes, size * 2);
+        }
+        variants[size] = variant;
+        rows[size] = 1;
+        bytes[size] = length;
+        size++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    HeaderVariant variant(int run) {
+        return variants[run];
+    }
+
+    int rows(int run) {
+        return rows[run];
+    }
+
+    long bytes(int run) {
+        return bytes[run];
+    }
+}
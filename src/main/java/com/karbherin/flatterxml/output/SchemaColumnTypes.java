@@ -0,0 +1,88 @@
+package com.karbherin.flatterxml.output;
+
+import com.karbherin.flatterxml.model.RecordTypeHierarchy;
+import com.karbherin.flatterxml.xsd.SchemaIndex;
+import com.karbherin.flatterxml.xsd.XmlSchema;
+import com.karbherin.flatterxml.xsd.XsdAttribute;
+import com.karbherin.flatterxml.xsd.XsdElement;
+
+import javax.xml.namespace.QName;
+import java.util.*;
+
+import static com.karbherin.flatterxml.helper.XmlHelpers.toPrefixedTag;
+
+/**
+ * XSD types of the columns of a record type. Columns of the record's own fields are looked up among the child
+ * elements of the record in the XSDs, and cascaded ancestor fields among the child elements of the ancestor
+ * they are prefixed with. Elements and attributes are matched by their local names, since the namespace prefixes
+ * of the document may differ from those of the XSDs.
+ */
+final class SchemaColumnTypes {
+
+    // {ancestor prefix: {element local name or element[attribute] local names: type}}, own fields keyed by ""
+    private final Map<String, Map<String, QName>> types = new LinkedHashMap<>();
+
+    /**
+     * @param schemaIndex     - elements of the XSDs describing the records
+     * @param recordHierarchy - record type and its ancestors
+     */
+    SchemaColumnTypes(SchemaIndex schemaIndex, RecordTypeHierarchy recordHierarchy) {
+        List<Map.Entry<String, QName>> records = new ArrayList<>();
+        for (RecordTypeHierarchy ancestor = recordHierarchy, parent = ancestor.parentRecordType();
+             parent != ancestor; ancestor = parent, parent = ancestor.parentRecordType()) {
+            records.add(new AbstractMap.SimpleEntry<>(
+                    toPrefixedTag(parent.recordName()) + ".", parent.recordName()));
+        }
+        // Longest ancestor prefixes are matched first
+        records.sort(Comparator.comparingInt((Map.Entry<String, QName> rec) -> rec.getKey().length()).reversed());
+        records.add(new AbstractMap.SimpleEntry<>("", recordHierarchy.recordName()));
+
+        for (Map.Entry<String, QName> record: records) {
+            Map<String, QName> fieldTypes = new HashMap<>();
+            Optional.ofNullable(schemaIndex.getElementByName(record.getValue()))
+                    .ifPresent(schemaRec -> {
+                        for (XsdElement elem: schemaRec.getChildElements()) {
+                            String elemName = elem.getName().getLocalPart();
+                            if (elem.getType() != null && !elem.getType().equals(XmlSchema.COMPLEX_TYPE)) {
+                                fieldTypes.putIfAbsent(elemName, elem.getType());
+                            }
+                            for (XsdAttribute attr: elem.getElementAttributes()) {
+                                if (attr.getType() != null) {
+                                    fieldTypes.putIfAbsent(
+                                            elemName + "[" + attr.getName().getLocalPart() + "]", attr.getType());
+                                }
+                            }
+                        }
+                    });
+            types.putIfAbsent(record.getKey(), fieldTypes);
+        }
+    }
+
+    /**
+     * @param column - output field or cascaded ancestor field, possibly suffixed with #2, #3, etc. if repeated
+     * @return XSD type of the column, null if not known
+     */
+    QName typeOf(String column) {
+        int repeat = column.lastIndexOf('#');
+        if (repeat > 0 && repeat < column.length() - 1
+                && column.substring(repeat + 1).chars().allMatch(Character::isDigit)) {
+            column = column.substring(0, repeat);
+        }
+
+        for (Map.Entry<String, Map<String, QName>> record: types.entrySet()) {
+            if (column.startsWith(record.getKey())) {
+                return record.getValue().get(localName(column.substring(record.getKey().length())));
+            }
+        }
+        return null;
+    }
+
+    private static String localName(String field) {
+        int attrStart = field.indexOf('[');
+        if (attrStart > 0 && field.endsWith("]")) {
+            return localName(field.substring(0, attrStart)) + "["
+                    + localName(field.substring(attrStart + 1, field.length() - 1)) + "]";
+        }
+        return field.substring(field.indexOf(':') + 1);
+    }
+}
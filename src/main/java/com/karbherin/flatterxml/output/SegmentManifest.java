@@ -0,0 +1,60 @@
+package com.karbherin.flatterxml.output;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Announces the segments of the output tables as they are completed.
+ * A segment is listed only once its file is closed, so downstream loaders can pick up
+ * the listed segments while the rest of the document is being flattened.
+ * Each line of the manifest names the record type, the segment file, its number of records and its size.
+ */
+final class SegmentManifest implements Closeable {
+
+    static final String MANIFEST_FILE = "segments.manifest";
+    private static final String HEADER = "record_type,file,records,bytes\n";
+
+    private final Path path;
+    private FileChannel channel = null;
+
+    SegmentManifest(String outDir) {
+        this.path = Paths.get(outDir, MANIFEST_FILE);
+    }
+
+    /**
+     * Lists a completed segment in the manifest.
+     * @param table   - record type of the segment
+     * @param segment - closed segment file
+     * @param records - number of records in the segment, excluding the header
+     * @param bytes   - size of the segment file
+     */
+    synchronized void announce(String table, Path segment, long records, long bytes) throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(path, CREATE, TRUNCATE_EXISTING, WRITE);
+            write(HEADER);
+        }
+        write(String.format("%s,%s,%d,%d\n", table, segment.getFileName(), records, bytes));
+    }
+
+    private void write(String line) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.karbherin.flatterxml.output;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Hands out write buffers from the shared pool to shards.
+ * When the pool's memory budget is exhausted the least recently flushed shards of the
+ * requesting worker are flushed and give their buffers back. A worker only ever evicts its own shards.
+ */
+final class ShardBuffers {
+
+    private final ByteBufferPool pool;
+    // Shards of a worker holding a buffer, least recently flushed first
+    private final ThreadLocal<Map<OutputShard, Boolean>> holders =
+            ThreadLocal.withInitial(() -> new LinkedHashMap<>(16, 0.75f, true));
+
+    ShardBuffers(ByteBufferPool pool) {
+        this.pool = pool;
+    }
+
+    ByteBuffer acquire(OutputShard shard, int capacity) throws IOException {
+        Map<OutputShard, Boolean> workerHolders = holders.get();
+        ByteBuffer buf = pool.acquire(capacity);
+
+        for (Iterator<OutputShard> lru = workerHolders.keySet().iterator(); buf == null && lru.hasNext(); ) {
+            OutputShard victim = lru.next();
+            if (victim == shard) {
+                continue;
+            }
+            lru.remove();
+            victim.releaseBuffer();
+            buf = pool.acquire(capacity);
+        }
+
+        if (buf == null) {
+            // Nothing left to evict. Guarantee progress for the worker.
+            buf = pool.acquireOverBudget(capacity);
+        }
+
+        workerHolders.put(shard, Boolean.TRUE);
+        return buf;
+    }
+
+    /**
+     * Marks the shard as recently flushed.
+     * @param shard - shard that flushed its buffer
+     */
+    void flushed(OutputShard shard) {
+        holders.get().get(shard);
+    }
+
+    void release(OutputShard shard, ByteBuffer buf) {
+        holders.get().remove(shard);
+        pool.release(buf);
+    }
+
+    /**
+     * The shard has handed its buffer over to a writer thread, which gives it back to the pool once written.
+     * @param shard - shard left without a buffer
+     */
+    void handedOver(OutputShard shard) {
+        holders.get().remove(shard);
+    }
+
+    /**
+     * Returns a buffer the shard has replaced, or that a writer thread has written out.
+     * @param buf - replaced buffer
+     */
+    void recycle(ByteBuffer buf) {
+        pool.release(buf);
+    }
+
+    int getBufferSize() {
+        return pool.getBufferSize();
+    }
+
+    /**
+     * Records are coalesced until the buffer is filled up to this size.
+     * Leaves headroom in the buffer to avoid moving partially written records.
+     * @return number of bytes in a buffer that triggers a flush
+     */
+    int getFlushSize() {
+        return pool.getBufferSize() - pool.getBufferSize() / 8;
+    }
+}
@@ -0,0 +1,82 @@
+package com.karbherin.flatterxml.output;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resources and settings shared by the shards of all the tables of a record handler.
+ */
+final class ShardContext {
+
+    final ShardBuffers buffers;
+    final WriterMetrics metrics;
+    // Bounds the shard files open at a time
+    final ChannelPool channels;
+    // Writer threads, null if workers write their buffers themselves
+    final AsyncFlusher flusher;
+    // Maximum time records are held in the write buffer, 0 to disable
+    final long flushIntervalMillis;
+    // Size of the chunks a shard is normalized in
+    final long chunkSize;
+    // Output files roll over into a new segment at this size or number of records
+    final long segmentBytes;
+    final long segmentRecords;
+
+    // Each worker thread writes to its own shard of a table
+    private final AtomicInteger shardCounter = new AtomicInteger(0);
+    private final ThreadLocal<Integer> shardNumber = ThreadLocal.withInitial(shardCounter::incrementAndGet);
+
+    ShardContext(ShardBuffers buffers, WriterMetrics metrics, ChannelPool channels, AsyncFlusher flusher,
+                 long flushIntervalMillis, long chunkSize, long segmentBytes, long segmentRecords) {
+        this.buffers = buffers;
+        this.metrics = metrics;
+        this.channels = channels;
+        this.flusher = flusher;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.chunkSize = chunkSize;
+        this.segmentBytes = segmentBytes;
+        this.segmentRecords = segmentRecords;
+    }
+
+    /**
+     * @param bufferSize          - size of a table's write buffer in bytes
+     * @param maxBufferMemory     - memory for the write buffers of all the tables in bytes
+     * @param flushIntervalMillis - maximum time records are held in the write buffer, 0 to disable
+     * @param writerThreads       - number of writer threads, 0 for workers to write out their buffers themselves
+     * @param maxOpenFiles        - number of shard files open at a time
+     * @param chunkSize           - size of the chunks a shard is normalized in
+     * @param segmentBytes        - size of a segment, Long.MAX_VALUE not to roll over
+     * @param segmentRecords      - number of records in a segment, Long.MAX_VALUE not to roll over
+     * @return resources shared by the shards, with their own metrics
+     */
+    static ShardContext of(int bufferSize, long maxBufferMemory, long flushIntervalMillis, int writerThreads,
+                           int maxOpenFiles, long chunkSize, long segmentBytes, long segmentRecords) {
+        WriterMetrics metrics = new WriterMetrics();
+        return new ShardContext(new ShardBuffers(new ByteBufferPool(bufferSize, maxBufferMemory)), metrics,
+                new ChannelPool(maxOpenFiles),
+                writerThreads > 0 ? new AsyncFlusher(writerThreads, maxBufferMemory, metrics) : null,
+                flushIntervalMillis, chunkSize, segmentBytes, segmentRecords);
+    }
+
+    /**
+     * @return true if output files roll over into segments
+     */
+    boolean rollsOver() {
+        return segmentBytes != Long.MAX_VALUE || segmentRecords != Long.MAX_VALUE;
+    }
+
+    /**
+     * @return number of the shards written by the calling worker thread, from 1
+     */
+    int shardNumber() {
+        return shardNumber.get();
+    }
+
+    /**
+     * Stops the writer threads once the tables are closed.
+     */
+    void shutdown() {
+        if (flusher != null) {
+            flusher.shutdown();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.karbherin.flatterxml.output;
+
+/**
+ * Settings shared by the builders of the record handlers in which every worker writes into its own shard
+ * of a table's file.
+ * @param <B> - builder type, returned by the setters for chaining
+ */
+public abstract class ShardedWriterBuilder<B extends ShardedWriterBuilder<B>> {
+
+    static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    static final long DEFAULT_MAX_BUFFER_MEMORY = 64L * 1024 * 1024;
+    static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000L;
+    static final int DEFAULT_WRITER_THREADS = 1;
+    static final int DEFAULT_MAX_OPEN_FILES = 256;
+    static final long NO_ROLLOVER = Long.MAX_VALUE;
+
+    String outDir = ".";
+    StatusReporter statusReporter;
+    boolean mergeParts = true;
+    int bufferSize = DEFAULT_BUFFER_SIZE;
+    long maxBufferMemory = DEFAULT_MAX_BUFFER_MEMORY;
+    long flushIntervalMillis = DEFAULT_FLUSH_INTERVAL_MILLIS;
+    int writerThreads = DEFAULT_WRITER_THREADS;
+    int maxOpenFiles = DEFAULT_MAX_OPEN_FILES;
+    long segmentBytes = NO_ROLLOVER;
+    long segmentRecords = NO_ROLLOVER;
+
+    ShardedWriterBuilder() {
+    }
+
+    abstract B self();
+
+    public B setOutDir(String outDir) {
+        this.outDir = outDir;
+        return self();
+    }
+
+    public B setStatusReporter(StatusReporter statusReporter) {
+        this.statusReporter = statusReporter;
+        return self();
+    }
+
+    /**
+     * Each worker writes its records into a part file suffixed with _part1, _part2, etc.
+     * @param mergeParts - concatenate part files into one file per record type when output is closed
+     * @return this builder
+     */
+    public B setMergeParts(boolean mergeParts) {
+        this.mergeParts = mergeParts;
+        return self();
+    }
+
+    /**
+     * Records of a table are coalesced in a write buffer of this size before they are written out.
+     * Buffers grow beyond this size only to hold a record wider than the buffer.
+     * @param bufferSize - size of a table's write buffer in bytes
+     * @return this builder
+     */
+    public B setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+        return self();
+    }
+
+    /**
+     * Upper bound on the memory held by the write buffers of all the tables.
+     * Buffers of the least recently flushed tables are flushed and recycled when the bound is reached.
+     * @param maxBufferMemory - memory for write buffers in bytes
+     * @return this builder
+     */
+    public B setMaxBufferMemory(long maxBufferMemory) {
+        this.maxBufferMemory = maxBufferMemory;
+        return self();
+    }
+
+    /**
+     * Buffered records are written out on the next write to the table after this interval elapses,
+     * even if the buffer is not full.
+     * @param flushIntervalMillis - interval in milliseconds, 0 flushes only when the buffer is full
+     * @return this builder
+     */
+    public B setFlushInterval(long flushIntervalMillis) {
+        this.flushIntervalMillis = flushIntervalMillis;
+        return self();
+    }
+
+    /**
+     * Full write buffers are handed over to writer threads so that workers do not wait on the disk.
+     * Each table is written by one of the threads. Workers wait when the buffers queued up for writing
+     * reach the buffer memory bound.
+     * @param writerThreads - number of writer threads, 0 for workers to write out their buffers themselves
+     * @return this builder
+     */
+    public B setWriterThreads(int writerThreads) {
+        this.writerThreads = writerThreads;
+        return self();
+    }
+
+    /**
+     * Every worker writes each table into a file of its own. Files are opened when their records are
+     * first written out. When more files are open, the least recently written ones are closed and
+     * reopened for appending on their next write.
+     * @param maxOpenFiles - number of output files held open at a time
+     * @return this builder
+     */
+    public B setMaxOpenFiles(int maxOpenFiles) {
+        this.maxOpenFiles = maxOpenFiles;
+        return self();
+    }
+
+    /**
+     * Rolls output files over into numbered segments suffixed with _seg1, _seg2, etc. each with its own header,
+     * if the format has one. A segment is closed once it reaches the size. Completed segments are listed in the
+     * segments.manifest file of the output directory, so they can be loaded while the flattening continues.
+     * Parts are not concatenated when files roll over. Each worker fills segments of its own, and the last
+     * segments of the workers are packed together when the output is closed. Segments that get no
+     * records are not kept.
+     * Tables whose records are laid out in the same columns when the output is closed are cut into segments then.
+     * @param segmentBytes - size of a segment in bytes
+     * @return this builder
+     */
+    public B setSegmentSize(long segmentBytes) {
+        this.segmentBytes = segmentBytes;
+        return self();
+    }
+
+    /**
+     * Rolls output files over into numbered segments holding at most the given number of records.
+     * See {@link #setSegmentSize(long)}.
+     * @param segmentRecords - number of records in a segment, excluding the header
+     * @return this builder
+     */
+    public B setSegmentRecords(long segmentRecords) {
+        this.segmentRecords = segmentRecords;
+        return self();
+    }
+
+    StatusReporter statusReporter() {
+        return statusReporter == null ? new StatusReporter() : statusReporter;
+    }
+
+    ShardContext newShardContext(long chunkSize) {
+        return ShardContext.of(bufferSize, maxBufferMemory, flushIntervalMillis, writerThreads, maxOpenFiles,
+                chunkSize, segmentBytes, segmentRecords);
+    }
+}
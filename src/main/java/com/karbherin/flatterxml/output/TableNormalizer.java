@@ -0,0 +1,195 @@
+package com.karbherin.flatterxml.output;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * Lays out the records of a table whose header variants differ in the table's merged columns.
+ * Runs of records of a variant already in the merged layout are copied without being looked at.
+ * Records of the other variants have their fields moved into the merged columns.
+ * The output size of a run is known from its size and number of records, so runs can be
+ * laid out in parallel and written at precomputed offsets.
+ */
+final class TableNormalizer {
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final List<String> columns;
+    private final FieldEncoder encoder;
+    private final byte[] delimiter;
+    private final byte[] lineSeparator;
+    // {variant: [field of the variant in each of the merged columns or -1, ...]}
+    // Variants already in the merged layout are not listed.
+    private final Map<HeaderVariant, int[]> layouts = new HashMap<>();
+
+    /**
+     * @param columns  - merged columns of the table. Every variant's columns are among them.
+     * @param variants - header variants of the table
+     * @param encoder  - encoder the records were written with
+     */
+    TableNormalizer(List<String> columns, Collection<HeaderVariant> variants, FieldEncoder encoder) {
+        this.columns = columns;
+        this.encoder = encoder;
+        this.delimiter = encoder.getDelimiter();
+        this.lineSeparator = encoder.getLineSeparator();
+
+        Map<String, Integer> colsPos = new HashMap<>();
+        for (int pos = 0; pos < columns.size(); pos++) {
+            colsPos.put(columns.get(pos), pos);
+        }
+
+        for (HeaderVariant variant: variants) {
+            int[] layout = new int[columns.size()];
+            Arrays.fill(layout, -1);
+            boolean inMergedLayout = variant.columns.length == columns.size();
+            for (int field = 0; field < variant.columns.length; field++) {
+                int pos = colsPos.get(variant.columns[field]);
+                layout[pos] = field;
+                inMergedLayout &= pos == field;
+            }
+            if (!inMergedLayout) {
+                layouts.put(variant, layout);
+            }
+        }
+    }
+
+    /**
+     * @return true if all the records are already in the merged columns, as when the table has a single
+     * header variant. Nothing is to be laid out then.
+     */
+    boolean inMergedLayout() {
+        return layouts.isEmpty();
+    }
+
+    /**
+     * @return header record of the merged columns, empty if the table has no records
+     */
+    byte[] header() {
+        return columns.isEmpty() ? new byte[0] : encoder.encodeRecord(columns);
+    }
+
+    /**
+     * Size of a run once laid out in the merged columns. Every missing column adds a delimiter to a record.
+     * @param runs - runs of a shard
+     * @param run  - run number
+     * @return number of bytes of the run in the table file
+     */
+    long outputLength(RunIndex runs, int run) {
+        int missingCols = columns.size() - runs.variant(run).columns.length;
+        return runs.bytes(run) + (long) runs.rows(run) * missingCols * delimiter.length;
+    }
+
+    /**
+     * Lays out a chunk of consecutive runs of a shard and writes it to the table file.
+     * Chunks of a table can be copied concurrently, each writes to its own region of the table file.
+     * @param runs     - runs of the shard
+     * @param fromRun  - first run of the chunk
+     * @param toRun    - run following the chunk
+     * @param in       - shard file
+     * @param inPos    - position of the chunk in the shard file
+     * @param out      - table file
+     * @param outPos   - position of the chunk in the table file
+     */
+    void copyChunk(RunIndex runs, int fromRun, int toRun, FileChannel in, long inPos,
+                   FileChannel out, long outPos) throws IOException {
+
+        long chunkLength = 0L;
+        for (int run = fromRun; run < toRun; run++) {
+            chunkLength += runs.bytes(run);
+        }
+        MappedByteBuffer chunk = in.map(FileChannel.MapMode.READ_ONLY, inPos, chunkLength);
+
+        ByteBuffer outBuf = null;
+        int runStart = 0;
+        for (int run = fromRun; run < toRun; run++) {
+            int runEnd = runStart + (int) runs.bytes(run);
+            int[] layout = layouts.get(runs.variant(run));
+            if (layout == null) {
+                ByteBuffer slice = chunk.duplicate();
+                slice.limit(runEnd).position(runStart);
+                outPos += writeAt(slice, out, outPos);
+            } else {
+                if (outBuf == null) {
+                    outBuf = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+                }
+                long expectedEnd = outPos + outputLength(runs, run);
+                outPos = remap(chunk, runStart, runEnd, runs.variant(run).columns.length, layout,
+                        outBuf, out, outPos);
+                if (outPos != expectedEnd) {
+                    throw new IOException(String.format(
+                            "Record layout of run %d does not match its header variant", run));
+                }
+            }
+            runStart = runEnd;
+        }
+    }
+
+    private long remap(ByteBuffer data, int from, int to, int numFields, int[] layout,
+                       ByteBuffer outBuf, FileChannel out, long outPos) throws IOException {
+
+        byte lineEnd = lineSeparator[lineSeparator.length - 1];
+        int[] starts = new int[numFields];
+        int[] ends = new int[numFields];
+        ByteBuffer field = data.duplicate();
+
+        int recStart = from;
+        for (int i = from; i < to; i++) {
+            if (data.get(i) != lineEnd) {
+                continue;
+            }
+
+            int recEnd = i + 1 - lineSeparator.length;
+            encoder.split(data, recStart, recEnd, starts, ends);
+
+            int recLength = recEnd - recStart + columns.size() * delimiter.length + lineSeparator.length;
+            if (outBuf.remaining() < recLength) {
+                outPos += flush(outBuf, out, outPos);
+                if (outBuf.capacity() < recLength) {
+                    outBuf = ByteBuffer.allocate(recLength);
+                }
+            }
+
+            for (int col = 0; col < layout.length; col++) {
+                if (col > 0) {
+                    outBuf.put(delimiter);
+                }
+                int fieldNum = layout[col];
+                if (fieldNum >= 0) {
+                    field.limit(ends[fieldNum]).position(starts[fieldNum]);
+                    outBuf.put(field);
+                    field.limit(field.capacity());
+                }
+            }
+            outBuf.put(lineSeparator);
+            recStart = i + 1;
+        }
+
+        return outPos + flush(outBuf, out, outPos);
+    }
+
+    /**
+     * Writes out the records laid out in the buffer and clears it.
+     * @return number of bytes written
+     */
+    private static long flush(ByteBuffer buf, FileChannel out, long outPos) throws IOException {
+        buf.flip();
+        long written = writeAt(buf, out, outPos);
+        buf.clear();
+        return written;
+    }
+
+    /**
+     * Writes the remaining bytes of the buffer at the given position of the table file.
+     * @return number of bytes written
+     */
+    private static long writeAt(ByteBuffer buf, FileChannel out, long outPos) throws IOException {
+        long written = 0L;
+        while (buf.hasRemaining()) {
+            written += out.write(buf, outPos + written);
+        }
+        return written;
+    }
+}
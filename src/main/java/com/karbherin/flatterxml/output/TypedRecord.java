@@ -0,0 +1,203 @@
+package com.karbherin.flatterxml.output;
+
+import com.karbherin.flatterxml.model.Pair;
+
+import java.math.BigDecimal;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Fields of a record with their values converted to the types of their columns, in slots reused for every record
+ * of the record type. Integer, boolean and date values are held as longs, the dates as days from 1970-01-01,
+ * floating point values as doubles and decimal values as BigDecimals. The text of every value is kept alongside.
+ * An empty value of a typed column is a null. A value that is not valid for its type is a null as well,
+ * and is counted as a conversion failure of the column.
+ * Used by one worker at a time.
+ */
+public final class TypedRecord {
+
+    private final String recordType;
+    private final Function<String, ValueType> columnTypes;
+    private final ConversionFailures failures;
+    // Types of the columns seen so far, looked up once
+    private final Map<String, ValueType> typeCache = new HashMap<>();
+
+    private int size = 0;
+    private int ownSize = 0;
+    private String[] columns = new String[16];
+    private String[] texts = new String[16];
+    private ValueType[] types = new ValueType[16];
+    private boolean[] nulls = new boolean[16];
+    private long[] longs = new long[16];
+    private double[] doubles = new double[16];
+    private BigDecimal[] decimals = new BigDecimal[16];
+
+    /**
+     * @param recordType  - name of the record type the failures are counted under
+     * @param columnTypes - type of a column by its name
+     * @param failures    - counts of conversion failures
+     */
+    public TypedRecord(String recordType, Function<String, ValueType> columnTypes, ConversionFailures failures) {
+        this.recordType = recordType;
+        this.columnTypes = columnTypes;
+        this.failures = failures;
+    }
+
+    /**
+     * Converts the fields of a record, replacing those of the previous record.
+     * @param fields   - record's own fields
+     * @param appendix - cascaded ancestor fields
+     */
+    public void set(Iterable<Pair<String, String>> fields, Iterable<Pair<String, String>> appendix) {
+        size = 0;
+        add(fields);
+        ownSize = size;
+        add(appendix);
+    }
+
+    private void add(Iterable<Pair<String, String>> fields) {
+        for (Pair<String, String> field: fields) {
+            if (size == columns.length) {
+                grow();
+            }
+            String column = field.getKey();
+            ValueType type = typeCache.computeIfAbsent(column, columnTypes);
+            columns[size] = column;
+            types[size] = type;
+            decimals[size] = null;
+            convert(size, type, field.getVal());
+            size++;
+        }
+    }
+
+    private void convert(int field, ValueType type, String text) {
+        texts[field] = text;
+        nulls[field] = text == null;
+        if (text == null || type == ValueType.TEXT) {
+            return;
+        }
+
+        String value = text.trim();
+        if (value.isEmpty()) {
+            nulls[field] = true;
+            return;
+        }
+        try {
+            switch (type) {
+                case BOOLEAN:
+                    longs[field] = parseBoolean(value);
+                    break;
+                case SHORT:
+                    longs[field] = Short.parseShort(value);
+                    break;
+                case INT:
+                    longs[field] = Integer.parseInt(value);
+                    break;
+                case LONG:
+                    longs[field] = Long.parseLong(value);
+                    break;
+                case DECIMAL:
+                    decimals[field] = new BigDecimal(value);
+                    break;
+                case FLOAT:
+                    doubles[field] = Float.parseFloat(PgCopyType.javaFloat(value));
+                    break;
+                case DOUBLE:
+                    doubles[field] = Double.parseDouble(PgCopyType.javaFloat(value));
+                    break;
+                case DATE:
+                    // Time zone of the date is dropped
+                    longs[field] = LocalDate.parse(value.length() > 10 ? value.substring(0, 10) : value)
+                            .toEpochDay();
+                    break;
+                default:
+                    break;
+            }
+        } catch (IllegalArgumentException | DateTimeException ex) {
+            nulls[field] = true;
+            failures.increment(recordType, columns[field]);
+        }
+    }
+
+    private static long parseBoolean(String value) {
+        switch (value) {
+            case "true":
+            case "1":
+                return 1L;
+            case "false":
+            case "0":
+                return 0L;
+            default:
+                throw new IllegalArgumentException("Not a boolean: " + value);
+        }
+    }
+
+    private void grow() {
+        int capacity = 2 * columns.length;
+        columns = Arrays.copyOf(columns, capacity);
+        texts = Arrays.copyOf(texts, capacity);
+        types = Arrays.copyOf(types, capacity);
+        nulls = Arrays.copyOf(nulls, capacity);
+        longs = Arrays.copyOf(longs, capacity);
+        doubles = Arrays.copyOf(doubles, capacity);
+        decimals = Arrays.copyOf(decimals, capacity);
+    }
+
+    /**
+     * @return number of fields, own and cascaded
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return number of the record's own fields, which come first
+     */
+    public int ownSize() {
+        return ownSize;
+    }
+
+    public String column(int field) {
+        return columns[field];
+    }
+
+    public ValueType type(int field) {
+        return types[field];
+    }
+
+    public boolean isNull(int field) {
+        return nulls[field];
+    }
+
+    /**
+     * @return text of the value as in the XML
+     */
+    public String text(int field) {
+        return texts[field];
+    }
+
+    /**
+     * @return value of a boolean(1 or 0), integer or date(days from 1970-01-01) field
+     */
+    public long longValue(int field) {
+        return longs[field];
+    }
+
+    /**
+     * @return value of a float or double field
+     */
+    public double doubleValue(int field) {
+        return doubles[field];
+    }
+
+    /**
+     * @return value of a decimal field
+     */
+    public BigDecimal decimalValue(int field) {
+        return decimals[field];
+    }
+}
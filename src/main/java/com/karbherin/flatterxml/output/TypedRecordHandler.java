@@ -0,0 +1,31 @@
+package com.karbherin.flatterxml.output;
+
+import com.karbherin.flatterxml.model.CascadedAncestorFields;
+import com.karbherin.flatterxml.model.RecordTypeHierarchy;
+
+import javax.xml.namespace.QName;
+import java.io.IOException;
+
+/**
+ * Record handler that takes the values of records already converted to the types of their columns.
+ * The worker flattening the XML converts each value once, outside of any lock of the handler,
+ * into a typed record of the record type that the handler gives it.
+ */
+public interface TypedRecordHandler extends RecordHandler {
+
+    /**
+     * Gives a typed record for the records of a record type, reused by one worker for all the records of the type.
+     * @param recordName      - record type
+     * @param recordHierarchy - record type and its ancestors
+     * @return empty typed record
+     */
+    TypedRecord newTypedRecord(QName recordName, RecordTypeHierarchy recordHierarchy);
+
+    /**
+     * Writes a record whose values are converted. The record is reused once this returns.
+     * @param recordName   - record type
+     * @param record       - record's own fields followed by the cascaded ancestor fields
+     * @param cascadedData - record type and its ancestors
+     */
+    void write(QName recordName, TypedRecord record, CascadedAncestorFields cascadedData) throws IOException;
+}
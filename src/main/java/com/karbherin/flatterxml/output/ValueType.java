@@ -0,0 +1,51 @@
+package com.karbherin.flatterxml.output;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+
+/**
+ * Types of the values of typed records, for the XSD built-in types whose values are not carried as text.
+ */
+public enum ValueType {
+    TEXT, BOOLEAN, SHORT, INT, LONG, DECIMAL, FLOAT, DOUBLE, DATE;
+
+    /**
+     * @param xsdType - type of the element or attribute in the XSD, null if not known
+     * @return value type, text for types other than the built-in numeric, boolean and date types
+     */
+    public static ValueType of(QName xsdType) {
+        if (xsdType == null || !XMLConstants.W3C_XML_SCHEMA_NS_URI.equals(xsdType.getNamespaceURI())) {
+            return TEXT;
+        }
+        switch (xsdType.getLocalPart()) {
+            case "boolean":
+                return BOOLEAN;
+            case "byte":
+            case "short":
+            case "unsignedByte":
+                return SHORT;
+            case "int":
+            case "unsignedShort":
+                return INT;
+            case "long":
+            case "unsignedInt":
+                return LONG;
+            case "integer":
+            case "nonNegativeInteger":
+            case "positiveInteger":
+            case "nonPositiveInteger":
+            case "negativeInteger":
+            case "unsignedLong":
+            case "decimal":
+                return DECIMAL;
+            case "float":
+                return FLOAT;
+            case "double":
+                return DOUBLE;
+            case "date":
+                return DATE;
+            default:
+                return TEXT;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.karbherin.flatterxml.output;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Write statistics of a record handler's output files.
+ * Latency is the time taken by a buffer to be written out to its file.
+ * Queue depth is the number of buffers handed to writer threads and not yet written out.
+ * Reopens are files opened again for appending after they were closed to bound the open files.
+ */
+public final class WriterMetrics {
+
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder writeNanos = new LongAdder();
+    private final AtomicLong maxWriteNanos = new AtomicLong(0L);
+    private final AtomicInteger queueDepth = new AtomicInteger(0);
+    private final AtomicInteger maxQueueDepth = new AtomicInteger(0);
+    private final LongAdder fileOpens = new LongAdder();
+    private final LongAdder fileReopens = new LongAdder();
+
+    void recordWrite(long bytes, long nanos) {
+        writes.increment();
+        bytesWritten.add(bytes);
+        writeNanos.add(nanos);
+        maxWriteNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    void recordOpen(boolean reopen) {
+        fileOpens.increment();
+        if (reopen) {
+            fileReopens.increment();
+        }
+    }
+
+    void queued() {
+        maxQueueDepth.accumulateAndGet(queueDepth.incrementAndGet(), Math::max);
+    }
+
+    void dequeued() {
+        queueDepth.decrementAndGet();
+    }
+
+    public long getWrites() {
+        return writes.sum();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    public long getAverageWriteMicros() {
+        long numWrites = writes.sum();
+        return numWrites == 0 ? 0L : writeNanos.sum() / numWrites / 1000;
+    }
+
+    public long getMaxWriteMicros() {
+        return maxWriteNanos.get() / 1000;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    public long getFileOpens() {
+        return fileOpens.sum();
+    }
+
+    public long getFileReopens() {
+        return fileReopens.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d writes of %d bytes, write latency avg %d us max %d us, max queue depth %d, %d file opens %d reopens",
+                getWrites(), getBytesWritten(), getAverageWriteMicros(), getMaxWriteMicros(), getMaxQueueDepth(),
+                getFileOpens(), getFileReopens());
+    }
+}
@@ -0,0 +1,139 @@
+package com.karbherin.flatterxml.xsd;
+
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.XMLEvent;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.Validator;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.karbherin.flatterxml.helper.XmlHelpers.compileXsds;
+
+/**
+ * Validates the records of an XML document against XSDs compiled once and shared by all the workers, so that
+ * validation runs inside the workers alongside flattening rather than as a separate pass over the document.
+ * The record elements must be declared at the top level of the XSDs.
+ * Records that are not valid are written to a reject file, each preceded by a comment with its location and
+ * the error. Records that workers read from an emitter are located in the XML file only if the emitter marks their
+ * locations. Otherwise errors are located by their line in the record.
+ * The reject file is an XML document of the rejected records, which can be fixed and flattened again.
+ */
+public final class RecordValidator implements Closeable {
+
+    private static final String REJECTS_ROOT = "rejected-records";
+
+    private final Schema schema;
+    private final File rejectFile;
+    private final Writer rejects;
+    private final LongAdder rejectCount = new LongAdder();
+
+    private RecordValidator(Schema schema, File rejectFile) throws IOException {
+        this.schema = schema;
+        this.rejectFile = rejectFile;
+        this.rejects = Files.newBufferedWriter(rejectFile.toPath(), StandardCharsets.UTF_8);
+        rejects.write(String.format("<?xml version=\"1.0\" encoding=\"UTF-8\"?>%n<%s>%n", REJECTS_ROOT));
+    }
+
+    /**
+     * @param xsdFiles   - XSD files to validate the records against
+     * @param rejectFile - file to write the records that are not valid to
+     * @return validator shared by all the workers
+     * @throws SAXException - if an XSD is not valid
+     * @throws IOException  - if the reject file cannot be written
+     */
+    public static RecordValidator newInstance(String[] xsdFiles, File rejectFile) throws SAXException, IOException {
+        return new RecordValidator(compileXsds(xsdFiles), rejectFile);
+    }
+
+    /**
+     * @return validator of the records of one worker. Not thread-safe.
+     */
+    public WorkerValidator newWorkerValidator() {
+        return new WorkerValidator();
+    }
+
+    public long getRejectCount() {
+        return rejectCount.sum();
+    }
+
+    public File getRejectFile() {
+        return rejectFile;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        rejects.write(String.format("</%s>%n", REJECTS_ROOT));
+        rejects.close();
+    }
+
+    private synchronized void reject(String record, String reason) throws IOException {
+        rejectCount.increment();
+        // Comments cannot contain double hyphens
+        rejects.write(String.format("  <!-- %s -->%n  %s%n", reason.replace("--", "- -"), record));
+    }
+
+    /**
+     * Validates the records of one worker with a validator of its own.
+     */
+    public final class WorkerValidator {
+        private final Validator validator = schema.newValidator();
+        private final XMLOutputFactory outputFactory = XMLOutputFactory.newFactory();
+        private final StringWriter recordText = new StringWriter();
+
+        private WorkerValidator() {
+            // Declare the namespaces of the record, which are declared on the document's root element
+            outputFactory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, true);
+        }
+
+        /**
+         * @param record       - events of a record from its start tag to its end tag
+         * @param recordNumber - number of the record in the XML file, from 1. 0 if not known
+         * @param recordLine   - line of the record's start tag in the XML file. 0 if not known, when errors are
+         *                     located by their line in the record
+         * @return true if the record is valid, false if it is written to the reject file
+         * @throws IOException        - if the reject file cannot be written
+         * @throws XMLStreamException - if the record cannot be written out for validation
+         */
+        public boolean validate(List<XMLEvent> record, long recordNumber, int recordLine)
+                throws IOException, XMLStreamException {
+            recordText.getBuffer().setLength(0);
+            XMLEventWriter writer = outputFactory.createXMLEventWriter(recordText);
+            for (XMLEvent ev: record) {
+                writer.add(ev);
+            }
+            writer.close();
+
+            String text = recordText.toString();
+            try {
+                validator.validate(new StreamSource(new StringReader(text)));
+                return true;
+            } catch (SAXParseException ex) {
+                // Line of the error in the XML file, as the record is written out line for line
+                String line = recordLine > 0
+                        ? String.format("line %d", recordLine + ex.getLineNumber() - 1)
+                        : String.format("line %d of the record", ex.getLineNumber());
+                reject(text, String.format("%s, column %d: %s",
+                        locate(recordNumber, line), ex.getColumnNumber(), ex.getMessage()));
+            } catch (SAXException ex) {
+                reject(text, recordNumber > 0
+                        ? String.format("Record %d: %s", recordNumber, ex.getMessage()) : ex.getMessage());
+            }
+            return false;
+        }
+
+        private String locate(long recordNumber, String line) {
+            return recordNumber > 0
+                    ? String.format("Record %d, %s", recordNumber, line)
+                    : Character.toUpperCase(line.charAt(0)) + line.substring(1);
+        }
+    }
+}
@@ -0,0 +1,403 @@
+package com.karbherin.flatterxml.xsd;
+
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.StartElement;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static com.karbherin.flatterxml.helper.XmlHelpers.*;
+
+/**
+ * Binary cache of parsed XSDs with their references resolved, so that large sets of XSDs are parsed once.
+ * The cache is keyed by the SHA-256 hashes of the content of the XSD files and of all the files they import,
+ * and by the record types the XSDs were pruned to.
+ * It is loaded with memory mapped reads if none of the files changed since it was written,
+ * otherwise the XSDs are parsed and the cache is written again. A cache that cannot be read is parsed again too.
+ *
+ * Layout: the record types pruned to, the files with their hashes, a table of the distinct strings, the elements
+ * and the schemas.
+ * Strings are referred to by their index in the table and elements and schemas by their index in their lists,
+ * so that elements shared between schemas and their children stay shared when loaded.
+ */
+public final class SchemaCache {
+
+    private static final int MAGIC = 0x46585343; // FXSC
+    private static final int VERSION = 2;
+    private static final int NULL = -1;
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final XMLEventFactory EVENT_FACTORY = XMLEventFactory.newFactory();
+
+    private SchemaCache() {
+    }
+
+    /**
+     * @param xsdFiles      - XSD files
+     * @param reachableFrom - record types the XSDs are pruned to, empty if not pruned
+     * @param cacheFile     - cache of the parsed XSDs
+     * @return XSDs in the cache, null if there is no cache of the XSDs or any of the files changed
+     */
+    public static List<XmlSchema> load(String[] xsdFiles, Set<QName> reachableFrom, File cacheFile)
+            throws IOException {
+        if (!cacheFile.isFile()) {
+            return null;
+        }
+
+        try (FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.remaining() < 8 || buf.getInt() != MAGIC || buf.getInt() != VERSION
+                    || !readUtf(buf).equals(rootsKey(reachableFrom))) {
+                return null;
+            }
+
+            int numRoots = buf.getInt();
+            String[] filePaths = new String[buf.getInt()];
+            for (int i = 0; i < filePaths.length; i++) {
+                filePaths[i] = readUtf(buf);
+                byte[] digest = new byte[buf.getInt()];
+                buf.get(digest);
+                File file = new File(filePaths[i]);
+                if (i < numRoots && !(i < xsdFiles.length && filePaths[i].equals(new File(xsdFiles[i]).getPath()))
+                        || !file.isFile() || !Arrays.equals(digest, digest(file))) {
+                    return null;
+                }
+            }
+            if (numRoots != xsdFiles.length) {
+                return null;
+            }
+            return new Reader(buf, filePaths, numRoots).read();
+        } catch (RuntimeException ex) {
+            // Cache is truncated or corrupt, parse again. Sizes read from a corrupt cache can be negative
+            // or point anywhere, failing in any way the reads do.
+            return null;
+        }
+    }
+
+    /**
+     * @param xsds          - XSDs parsed and resolved with {@link com.karbherin.flatterxml.helper.XmlHelpers#parseXsds}
+     * @param reachableFrom - record types the XSDs are pruned to, empty if not pruned
+     * @param cacheFile     - cache of the parsed XSDs to write
+     */
+    public static void save(List<XmlSchema> xsds, Set<QName> reachableFrom, File cacheFile) throws IOException {
+        File tempFile = new File(cacheFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeUtf(out, rootsKey(reachableFrom));
+            new Writer(xsds).write(out);
+        }
+        Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static String rootsKey(Set<QName> reachableFrom) {
+        return reachableFrom.stream().map(QName::toString).sorted().collect(Collectors.joining(" "));
+    }
+
+    private static byte[] digest(File file) throws IOException {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM).digest(Files.readAllBytes(file.toPath()));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String readUtf(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeUtf(DataOutputStream out, String str) throws IOException {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Numbers the schemas, elements and strings of the XSDs and writes them out.
+     */
+    private static final class Writer {
+        private final List<XmlSchema> roots;
+        // Numbered in the order of the lists
+        private final List<XmlSchema> schemaList = new ArrayList<>();
+        private final List<XsdElement> elementList = new ArrayList<>();
+        private final Map<XmlSchema, Integer> schemas = new IdentityHashMap<>();
+        private final Map<XsdElement, Integer> elements = new IdentityHashMap<>();
+        private final Map<String, Integer> strings = new LinkedHashMap<>();
+
+        private Writer(List<XmlSchema> roots) {
+            this.roots = roots;
+            // XSD files given come first, followed by the schemas they import
+            roots.forEach(this::addSchema);
+            for (int i = 0; i < schemaList.size(); i++) {
+                XmlSchema xsd = schemaList.get(i);
+                xsd.elementTypes().values().forEach(this::addElement);
+                xsd.importedSchemas().forEach(this::addSchema);
+            }
+        }
+
+        private void addSchema(XmlSchema xsd) {
+            if (!schemas.containsKey(xsd)) {
+                schemas.put(xsd, schemaList.size());
+                schemaList.add(xsd);
+            }
+        }
+
+        private void addElement(XsdElement elem) {
+            if (elements.containsKey(elem)) {
+                return;
+            }
+            elements.put(elem, elementList.size());
+            elementList.add(elem);
+            elem.getChildElements().forEach(this::addElement);
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            // Files first to check the hashes without reading any further
+            out.writeInt(roots.size());
+            out.writeInt(schemaList.size());
+            for (XmlSchema xsd: schemaList) {
+                writeUtf(out, xsd.xsdFile().getPath());
+                byte[] digest = digest(xsd.xsdFile());
+                out.writeInt(digest.length);
+                out.write(digest);
+            }
+
+            // Number all the strings before writing the table
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream bodyOut = new DataOutputStream(body);
+            writeElements(bodyOut);
+            writeSchemas(bodyOut);
+            bodyOut.flush();
+
+            out.writeInt(strings.size());
+            for (String str: strings.keySet()) {
+                writeUtf(out, str);
+            }
+            body.writeTo(out);
+        }
+
+        private void writeElements(DataOutputStream out) throws IOException {
+            out.writeInt(elementList.size());
+            for (XsdElement elem: elementList) {
+                out.writeInt(string(elem.getTargetNamespace()));
+                writeQName(out, elem.getName());
+                out.writeInt(elem.getMinOccurs());
+                out.writeInt(string(elem.getMaxOccurs()));
+                writeQName(out, elem.getRef());
+                writeQName(out, elem.getType());
+                writeQName(out, elem.getContent());
+
+                out.writeInt(elem.getChildElements().size());
+                for (XsdElement child: elem.getChildElements()) {
+                    out.writeInt(elements.get(child));
+                }
+
+                out.writeInt(elem.getElementAttributes().size());
+                for (XsdAttribute attr: elem.getElementAttributes()) {
+                    writeQName(out, attr.getName());
+                    writeQName(out, attr.getRef());
+                    writeQName(out, attr.getType());
+                    out.writeInt(string(attr.getUse()));
+                }
+            }
+        }
+
+        private void writeSchemas(DataOutputStream out) throws IOException {
+            for (XmlSchema xsd: schemaList) {
+                out.writeInt(string(xsd.getTargetNamespace()));
+
+                StartElement schema = xsd.getSchema();
+                writeQName(out, schema.getName());
+                List<Namespace> namespaces = new ArrayList<>();
+                namespacesIterator(schema).forEachRemaining(namespaces::add);
+                out.writeInt(namespaces.size());
+                for (Namespace ns: namespaces) {
+                    out.writeInt(string(ns.getPrefix()));
+                    out.writeInt(string(ns.getNamespaceURI()));
+                }
+
+                out.writeInt(xsd.importedSchemasByNamespace().size());
+                for (Map.Entry<Namespace, XmlSchema> imported: xsd.importedSchemasByNamespace().entrySet()) {
+                    out.writeInt(string(imported.getKey().getPrefix()));
+                    out.writeInt(string(imported.getKey().getNamespaceURI()));
+                    out.writeInt(schemas.get(imported.getValue()));
+                }
+
+                out.writeInt(xsd.elementTypes().size());
+                for (Map.Entry<QName, XsdElement> elementType: xsd.elementTypes().entrySet()) {
+                    writeQName(out, elementType.getKey());
+                    out.writeInt(elements.get(elementType.getValue()));
+                }
+            }
+        }
+
+        private void writeQName(DataOutputStream out, QName qName) throws IOException {
+            if (qName == null) {
+                out.writeInt(NULL);
+                return;
+            }
+            out.writeInt(string(qName.getNamespaceURI()));
+            out.writeInt(string(qName.getLocalPart()));
+            out.writeInt(string(qName.getPrefix()));
+        }
+
+        private int string(String str) {
+            return str == null ? NULL : strings.computeIfAbsent(str, key -> strings.size());
+        }
+    }
+
+    /**
+     * Reads the strings, elements and schemas written by the {@link Writer}, following the file hashes.
+     */
+    private static final class Reader {
+        private final ByteBuffer buf;
+        private final String[] filePaths;
+        private final int numRoots;
+        private String[] strings;
+        private XsdElement[] elements;
+
+        private Reader(ByteBuffer buf, String[] filePaths, int numRoots) {
+            this.buf = buf;
+            this.filePaths = filePaths;
+            this.numRoots = numRoots;
+        }
+
+        private List<XmlSchema> read() {
+            strings = new String[buf.getInt()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = readUtf(buf);
+            }
+            readElements();
+            return readSchemas();
+        }
+
+        private void readElements() {
+            elements = new XsdElement[buf.getInt()];
+            int[][] children = new int[elements.length][];
+            for (int i = 0; i < elements.length; i++) {
+                XsdElement elem = new XsdElement(string(), qName(), buf.getInt(), string(),
+                        qName(), qName(), qName());
+
+                children[i] = new int[buf.getInt()];
+                for (int c = 0; c < children[i].length; c++) {
+                    children[i][c] = buf.getInt();
+                }
+
+                for (int numAttrs = buf.getInt(); numAttrs > 0; numAttrs--) {
+                    elem.addAttribute(new XsdAttribute(qName(), qName(), qName(), string()));
+                }
+                elements[i] = elem;
+            }
+
+            // Children may come later than their parents
+            for (int i = 0; i < elements.length; i++) {
+                List<XsdElement> childElements = new ArrayList<>(children[i].length);
+                for (int child: children[i]) {
+                    childElements.add(elements[child]);
+                }
+                elements[i].setChildElements(childElements);
+            }
+        }
+
+        private List<XmlSchema> readSchemas() {
+            // Schemas are in the order of their files in the header, the XSD files given first
+            XmlSchema[] schemas = new XmlSchema[filePaths.length];
+            for (int i = 0; i < schemas.length; i++) {
+                schemas[i] = new XmlSchema();
+            }
+
+            for (int i = 0; i < schemas.length; i++) {
+                String targetNamespace = string();
+
+                QName schemaName = qName();
+                List<Namespace> namespaces = new ArrayList<>();
+                Map<String, String> prefixUris = new HashMap<>();
+                for (int numNs = buf.getInt(); numNs > 0; numNs--) {
+                    String prefix = string(), uri = string();
+                    namespaces.add(namespace(prefix, uri));
+                    prefixUris.put(prefix, uri);
+                }
+                StartElement schema = EVENT_FACTORY.createStartElement(schemaName.getPrefix(),
+                        schemaName.getNamespaceURI(), schemaName.getLocalPart(),
+                        targetNamespace == null ? Collections.emptyIterator() : Collections.singletonList(
+                                EVENT_FACTORY.createAttribute("targetNamespace", targetNamespace)).iterator(),
+                        namespaces.iterator(), new PrefixUris(prefixUris));
+                schemas[i].restore(new File(filePaths[i]), targetNamespace, schema);
+
+                for (int numImports = buf.getInt(); numImports > 0; numImports--) {
+                    Namespace ns = namespace(string(), string());
+                    schemas[i].importedSchemasByNamespace().put(ns, schemas[buf.getInt()]);
+                }
+
+                for (int numTypes = buf.getInt(); numTypes > 0; numTypes--) {
+                    QName name = qName();
+                    schemas[i].elementTypes().put(name, elements[buf.getInt()]);
+                }
+            }
+            return new ArrayList<>(Arrays.asList(schemas).subList(0, numRoots));
+        }
+
+        private Namespace namespace(String prefix, String uri) {
+            return prefix == null || prefix.isEmpty()
+                    ? EVENT_FACTORY.createNamespace(uri) : EVENT_FACTORY.createNamespace(prefix, uri);
+        }
+
+        private String string() {
+            int index = buf.getInt();
+            return index == NULL ? null : strings[index];
+        }
+
+        private QName qName() {
+            String namespaceUri = string();
+            if (namespaceUri == null) {
+                return null;
+            }
+            return new QName(namespaceUri, string(), string());
+        }
+    }
+
+    /**
+     * Namespace context of a schema element loaded from the cache.
+     */
+    private static final class PrefixUris implements NamespaceContext {
+        private final Map<String, String> prefixUris;
+
+        private PrefixUris(Map<String, String> prefixUris) {
+            this.prefixUris = prefixUris;
+        }
+
+        @Override
+        public String getNamespaceURI(String prefix) {
+            return prefixUris.get(prefix);
+        }
+
+        @Override
+        public String getPrefix(String namespaceURI) {
+            return prefixUris.entrySet().stream()
+                    .filter(entry -> entry.getValue().equals(namespaceURI))
+                    .map(Map.Entry::getKey)
+                    .findFirst().orElse(null);
+        }
+
+        @Override
+        public Iterator<String> getPrefixes(String namespaceURI) {
+            return prefixUris.entrySet().stream()
+                    .filter(entry -> entry.getValue().equals(namespaceURI))
+                    .map(Map.Entry::getKey)
+                    .iterator();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.karbherin.flatterxml.xsd;
+
+import javax.xml.namespace.QName;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Elements of a set of XSDs and the schemas they import, in one flat lookup table.
+ * Built once the references between the XSDs are resolved, and shared by all the workers.
+ * An element defined in more than one schema is looked up as in the first XSD that defines it,
+ * searching each XSD before the schemas it imports.
+ */
+public final class SchemaIndex {
+
+    public static final SchemaIndex EMPTY = new SchemaIndex(Collections.emptyList());
+
+    private final Map<QName, XsdElement> elements = new HashMap<>();
+    // Child elements of simple types of each element, the fields of a record
+    private final Map<QName, List<XsdElement>> fieldElements = new HashMap<>();
+    private final boolean empty;
+
+    private SchemaIndex(List<XmlSchema> xsds) {
+        Set<XmlSchema> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (XmlSchema xsd: xsds) {
+            addSchema(xsd, visited);
+        }
+        elements.forEach((name, elem) -> fieldElements.put(name, Collections.unmodifiableList(
+                elem.getChildElements().stream()
+                        .filter(child -> !XmlSchema.COMPLEX_TYPE.equals(child.getType()))
+                        .collect(Collectors.toList()))));
+        this.empty = xsds.isEmpty();
+    }
+
+    /**
+     * @param xsds - parsed XSDs, with references resolved by {@link XmlSchema#resolveReferences(List)}
+     * @return index of the elements in the XSDs
+     */
+    public static SchemaIndex of(List<XmlSchema> xsds) {
+        return xsds == null || xsds.isEmpty() ? EMPTY : new SchemaIndex(xsds);
+    }
+
+    private void addSchema(XmlSchema xsd, Set<XmlSchema> visited) {
+        if (!visited.add(xsd)) {
+            return;
+        }
+        xsd.elementTypes().forEach(elements::putIfAbsent);
+        for (XmlSchema imported: xsd.importedSchemas()) {
+            addSchema(imported, visited);
+        }
+    }
+
+    /**
+     * @param name - qualified name of the element
+     * @return element, null if no XSD defines it
+     */
+    public XsdElement getElementByName(QName name) {
+        return elements.get(name);
+    }
+
+    /**
+     * @param recordName - qualified name of a record(complex type) element
+     * @return child elements of simple types in the sequence of the XSD, null if no XSD defines the record
+     */
+    public List<XsdElement> getFieldElements(QName recordName) {
+        return fieldElements.get(recordName);
+    }
+
+    /**
+     * @return true if no XSDs are indexed
+     */
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    public int size() {
+        return elements.size();
+    }
+}
@@ -0,0 +1,212 @@
+package com.karbherin.flatterxml.xsd;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+
+/**
+ * Loads XSD files and the schemas they import as a graph of schema files.
+ * Each distinct file is parsed once, on the common fork-join pool, so that files independent of each other are
+ * parsed in parallel. A schema imported by several files, or also given as an XSD file, is shared by all of them.
+ * Once all the files are parsed, the imports are linked and the references of each schema are resolved after
+ * those of the schemas it imports. Elements not reachable from the record types of interest may be dropped before
+ * resolving, to save the memory and time spent on parts of large schemas never used.
+ */
+final class SchemaLoader {
+
+    // Parsing of each distinct file, by its normalized absolute path
+    private final ConcurrentMap<String, ParseTask> tasks = new ConcurrentHashMap<>();
+
+    private SchemaLoader() {
+    }
+
+    /**
+     * @param xsds          - schemas to parse the XSD files into
+     * @param xsdFiles      - XSD files, one for each schema
+     * @param reachableFrom - elements to keep with all the elements under them, all the elements if empty.
+     *                        Names without a namespace URI match elements by their local names
+     */
+    static void load(List<XmlSchema> xsds, List<File> xsdFiles, Set<QName> reachableFrom)
+            throws FileNotFoundException, XMLStreamException {
+        SchemaLoader loader = new SchemaLoader();
+        List<ParseTask> roots = new ArrayList<>();
+        for (int i = 0; i < xsds.size(); i++) {
+            ParseTask task = new ParseTask(loader, xsds.get(i), xsdFiles.get(i));
+            // A file given twice is parsed for each of its schemas
+            loader.tasks.putIfAbsent(key(xsdFiles.get(i)), task);
+            roots.add(task);
+        }
+
+        roots.forEach(ParseTask::fork);
+        loader.awaitParsing(roots);
+        List<XmlSchema> allXsds = loader.linkImports(roots);
+        if (!reachableFrom.isEmpty()) {
+            pruneUnreachable(allXsds, reachableFrom);
+        }
+
+        Set<XmlSchema> resolved = Collections.newSetFromMap(new IdentityHashMap<>());
+        xsds.forEach(xsd -> resolveReferences(xsd, resolved));
+    }
+
+    private void awaitParsing(List<ParseTask> roots) throws FileNotFoundException, XMLStreamException {
+        // Tasks fork the parsing of their imports before completing, so all files are parsed once no new ones appear
+        Set<ParseTask> joined = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<ParseTask> pending = new ArrayList<>(roots);
+        while (!pending.isEmpty()) {
+            for (ParseTask task: pending) {
+                join(task);
+                joined.add(task);
+            }
+            pending.clear();
+            tasks.values().stream().filter(task -> !joined.contains(task)).forEach(pending::add);
+        }
+    }
+
+    private static void join(ParseTask task) throws FileNotFoundException, XMLStreamException {
+        try {
+            task.join();
+        } catch (RuntimeException ex) {
+            for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+                if (cause instanceof FileNotFoundException) {
+                    throw (FileNotFoundException) cause;
+                }
+                if (cause instanceof XMLStreamException) {
+                    throw (XMLStreamException) cause;
+                }
+            }
+            throw ex;
+        }
+    }
+
+    private List<XmlSchema> linkImports(List<ParseTask> roots) {
+        Set<XmlSchema> linked = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<XmlSchema> toLink = new ArrayDeque<>();
+        roots.forEach(task -> toLink.push(task.xsd));
+        while (!toLink.isEmpty()) {
+            XmlSchema xsd = toLink.pop();
+            if (!linked.add(xsd)) {
+                continue;
+            }
+            xsd.imports().forEach((ns, file) -> {
+                XmlSchema imported = tasks.get(key(file)).xsd;
+                xsd.importedSchemasByNamespace().put(ns, imported);
+                toLink.push(imported);
+            });
+        }
+        return new ArrayList<>(linked);
+    }
+
+    /**
+     * Drops the elements not reachable from the given elements through child elements, references and extensions,
+     * before references are resolved. Keeps the elements enclosing the given elements too, with their own fields,
+     * as their records are still written when the given elements are not the top-level records.
+     * Other records under the enclosing elements are dropped and are flattened as if not in the XSDs.
+     * Keeps all the elements if none of the given elements are defined.
+     */
+    private static void pruneUnreachable(List<XmlSchema> xsds, Set<QName> reachableFrom) {
+        Map<QName, XsdElement> elements = new HashMap<>();
+        Map<QName, List<XsdElement>> children = new HashMap<>();
+        for (XmlSchema xsd: xsds) {
+            xsd.elementTypes().forEach(elements::putIfAbsent);
+            xsd.complexTypes().forEach((name, childElements) ->
+                    children.computeIfAbsent(name, key -> new ArrayList<>()).addAll(childElements));
+        }
+
+        // Edges from an element to its child elements, the elements they refer to and the element it extends
+        Map<QName, Set<QName>> edges = new HashMap<>(), reverseEdges = new HashMap<>();
+        BiConsumer<QName, QName> addEdge = (from, to) -> {
+            // Top-level elements are children of no element
+            if (from != null && to != null) {
+                edges.computeIfAbsent(from, key -> new HashSet<>()).add(to);
+                reverseEdges.computeIfAbsent(to, key -> new HashSet<>()).add(from);
+            }
+        };
+        elements.forEach((name, elem) -> addEdge.accept(name, elem.getRef()));
+        children.forEach((name, childElements) -> childElements.forEach(child -> {
+            addEdge.accept(name, child.getName());
+            addEdge.accept(name, child.getRef());
+        }));
+
+        Set<QName> roots = elements.keySet().stream()
+                .filter(name -> reachableFrom.contains(name) || reachableFrom.stream().anyMatch(root ->
+                        root.getNamespaceURI().isEmpty() && root.getLocalPart().equals(name.getLocalPart())))
+                .collect(Collectors.toSet());
+        if (roots.isEmpty()) {
+            return;
+        }
+
+        Set<QName> reachable = traverse(roots, edges);
+        for (QName enclosing: traverse(roots, reverseEdges)) {
+            reachable.add(enclosing);
+            // Fields of the enclosing records, not the records beside the given ones
+            edges.getOrDefault(enclosing, Collections.emptySet()).stream()
+                    .filter(child -> !children.containsKey(child))
+                    .forEach(reachable::add);
+        }
+        xsds.forEach(xsd -> xsd.retainElements(reachable));
+    }
+
+    private static Set<QName> traverse(Set<QName> from, Map<QName, Set<QName>> edges) {
+        Set<QName> visited = new HashSet<>();
+        Deque<QName> toVisit = new ArrayDeque<>(from);
+        while (!toVisit.isEmpty()) {
+            QName name = toVisit.pop();
+            if (visited.add(name)) {
+                toVisit.addAll(edges.getOrDefault(name, Collections.emptySet()));
+            }
+        }
+        return visited;
+    }
+
+    private static void resolveReferences(XmlSchema xsd, Set<XmlSchema> resolved) {
+        if (!resolved.add(xsd)) {
+            return;
+        }
+        xsd.importedSchemas().forEach(imported -> resolveReferences(imported, resolved));
+        xsd.resolveReferences();
+    }
+
+    private static String key(File file) {
+        return file.getAbsoluteFile().toPath().normalize().toString();
+    }
+
+    /**
+     * Parses one file and forks the parsing of the files it imports that are not seen yet.
+     */
+    private static final class ParseTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final SchemaLoader loader;
+        private final XmlSchema xsd;
+        private final File xsdFile;
+
+        private ParseTask(SchemaLoader loader, XmlSchema xsd, File xsdFile) {
+            this.loader = loader;
+            this.xsd = xsd;
+            this.xsdFile = xsdFile;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                xsd.read(xsdFile);
+            } catch (FileNotFoundException | XMLStreamException ex) {
+                throw new RuntimeException(ex);
+            }
+
+            for (File imported: xsd.imports().values()) {
+                ParseTask task = new ParseTask(loader, new XmlSchema(), imported);
+                if (loader.tasks.putIfAbsent(key(imported), task) == null) {
+                    task.fork();
+                }
+            }
+        }
+    }
+}
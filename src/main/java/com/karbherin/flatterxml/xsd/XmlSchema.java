@@ -1,7 +1,6 @@
 package com.karbherin.flatterxml.xsd;
 
 import com.karbherin.flatterxml.helper.Utils;
-import com.karbherin.flatterxml.model.OpenCan;
 
 import javax.xml.XMLConstants;
 import javax.xml.namespace.QName;
@@ -12,6 +11,8 @@ import javax.xml.stream.events.*;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -23,6 +24,7 @@ public class XmlSchema {
     private String targetNamespace;
     private StartElement schema;
     private final Map<Namespace, XmlSchema> importedSchemas = new HashMap<>();
+    private final Map<Namespace, File> imports = new LinkedHashMap<>();
     private final Deque<StartElement> elStack = new ArrayDeque<>();
     private final Map<QName, List<XsdElement>> complexTypes = new HashMap<>();
     private final Map<QName, XsdElement> elementTypes = new HashMap<>();
@@ -45,20 +47,52 @@ public class XmlSchema {
             ATTRIBUTE = new QName(XMLConstants.W3C_XML_SCHEMA_NS_URI, "attribute");
 
     public XmlSchema parse(String xsdFile) throws FileNotFoundException, XMLStreamException {
-        this.xsdFile = new File(xsdFile);
-        parse(this.xsdFile);
+        parse(new File(xsdFile));
         return this;
     }
 
     public void parse(File xsdFile) throws FileNotFoundException, XMLStreamException {
-        this.xsdFile = xsdFile;
-        XMLEventReader reader = XMLInputFactory.newFactory().createXMLEventReader(
-                xsdFile.getPath(), new FileInputStream(xsdFile));
+        SchemaLoader.load(Collections.singletonList(this), Collections.singletonList(xsdFile),
+                Collections.emptySet());
+    }
 
-        while (reader.hasNext())
-            examine(reader.nextEvent());
+    /**
+     * Parses XSD files and the schemas they import, each distinct file once and independent files in parallel.
+     * @param xsdFiles - XSD files
+     * @return a schema for each XSD file, in the same order
+     */
+    public static List<XmlSchema> parse(List<File> xsdFiles) throws FileNotFoundException, XMLStreamException {
+        return parse(xsdFiles, Collections.emptySet());
+    }
 
-        resolveReferences();
+    /**
+     * Parses XSD files and the schemas they import, keeping only the elements reachable from the given elements.
+     * @param xsdFiles      - XSD files
+     * @param reachableFrom - record types of interest, all the elements are kept if empty.
+     *                        Names without a namespace URI match elements of any namespace by their local names
+     * @return a schema for each XSD file, in the same order
+     */
+    public static List<XmlSchema> parse(List<File> xsdFiles, Set<QName> reachableFrom)
+            throws FileNotFoundException, XMLStreamException {
+        List<XmlSchema> xsds = xsdFiles.stream().map(file -> new XmlSchema()).collect(Collectors.toList());
+        SchemaLoader.load(xsds, xsdFiles, reachableFrom);
+        return xsds;
+    }
+
+    /**
+     * Reads the definitions in the XSD file, noting the schemas it imports without parsing them.
+     */
+    void read(File xsdFile) throws FileNotFoundException, XMLStreamException {
+        this.xsdFile = xsdFile;
+        try (FileInputStream in = new FileInputStream(xsdFile)) {
+            XMLEventReader reader = XMLInputFactory.newFactory().createXMLEventReader(xsdFile.getPath(), in);
+            while (reader.hasNext())
+                examine(reader.nextEvent());
+        } catch (FileNotFoundException ex) {
+            throw ex;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
     }
 
     public XsdElement getElementByName(String name) {
@@ -91,7 +125,7 @@ public class XmlSchema {
     }
 
 
-    private void resolveReferences() {
+    void resolveReferences() {
         Map<QName, XsdElement> allElementTypes = Stream.concat(
                 elementTypes.entrySet().stream(),
                 importedSchemas.values().stream()
@@ -148,22 +182,12 @@ public class XmlSchema {
         if (isXsdImport(el)) {
             String importedNamespace = el.getAttributeByName(NAMESPACE).getValue();
             String importedSchemaLocation = el.getAttributeByName(SCHEMA_LOCATION).getValue();
-            final OpenCan<Throwable> exception = new OpenCan<>();
 
+            // Parsed by the loader once all the files are read
             Utils.iteratorStream(namespacesIterator(schema))
                     .filter(ns -> ns.getNamespaceURI().equals(importedNamespace))
-                    .findFirst().ifPresent(ns -> {
-                try {
-                    XmlSchema importedSchema = new XmlSchema().parse(
-                            xsdFile.getParentFile() + File.separator + importedSchemaLocation);
-                    importedSchemas.put(ns, importedSchema);
-                } catch (FileNotFoundException | XMLStreamException ex) {
-                    exception.val = ex;
-                }
-            });
-
-            if (exception.val != null)
-                throw new RuntimeException(exception.val);
+                    .findFirst().ifPresent(ns -> imports.put(ns,
+                            new File(xsdFile.getParentFile() + File.separator + importedSchemaLocation)));
         }
 
         if (isXsdComplexType(el))
@@ -254,6 +278,53 @@ public class XmlSchema {
                 el.isEndElement() && COMPLEX_CONTENT.equals(el.asEndElement().getName()));
     }
 
+    Map<QName, XsdElement> elementTypes() {
+        return elementTypes;
+    }
+
+    Map<QName, List<XsdElement>> complexTypes() {
+        return complexTypes;
+    }
+
+    /**
+     * Drops the elements not in the given set, before references are resolved.
+     */
+    void retainElements(Set<QName> names) {
+        elementTypes.keySet().retainAll(names);
+        complexTypes.keySet().retainAll(names);
+        complexTypes.values().forEach(children -> children.removeIf(child ->
+                !names.contains(child.getName() != null ? child.getName() : child.getRef())));
+    }
+
+    Collection<XmlSchema> importedSchemas() {
+        return importedSchemas.values();
+    }
+
+    /**
+     * @return files of the schemas imported by the XSD, by their namespaces
+     */
+    Map<Namespace, File> imports() {
+        return imports;
+    }
+
+    Map<Namespace, XmlSchema> importedSchemasByNamespace() {
+        return importedSchemas;
+    }
+
+    File xsdFile() {
+        return xsdFile;
+    }
+
+    /**
+     * Sets up a schema loaded from a {@link SchemaCache}, in place of parsing its XSD file.
+     */
+    XmlSchema restore(File xsdFile, String targetNamespace, StartElement schema) {
+        this.xsdFile = xsdFile;
+        this.targetNamespace = targetNamespace;
+        this.schema = schema;
+        return this;
+    }
+
     public String getTargetNamespace() {
         return targetNamespace;
     }
@@ -33,6 +33,16 @@ public class XsdAttribute {
         }
     }
 
+    /**
+     * Attribute definition loaded from a {@link SchemaCache}.
+     */
+    XsdAttribute(QName name, QName ref, QName type, String use) {
+        this.name = name;
+        this.ref = ref;
+        this.type = type;
+        this.use = use;
+    }
+
     public boolean isRequired() {
         return use == "required";
     }
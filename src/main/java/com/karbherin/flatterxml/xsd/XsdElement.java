@@ -25,6 +25,9 @@ public class XsdElement implements SchemaElementWithAttributes {
     private QName content;
     private List<XsdElement> childElements = new ArrayList<>();
     private List<XsdAttribute> attributes = new ArrayList<>();
+    // Views handed out to the lookups of every record, refreshed when the definition changes
+    private List<XsdElement> childElementsView = unmodifiableList(childElements);
+    private List<QName> attributeNames = null;
 
     private static final String UNBOUNDED = "unbounded";
     private static final String NAME = "name", REF = "ref", TYPE = "type",
@@ -50,6 +53,20 @@ public class XsdElement implements SchemaElementWithAttributes {
         }
     }
 
+    /**
+     * Element definition loaded from a {@link SchemaCache}.
+     */
+    XsdElement(String targetNamespace, QName name, int minOccurs, String maxOccurs,
+               QName ref, QName type, QName content) {
+        this.targetNamespace = targetNamespace;
+        this.name = name;
+        this.minOccurs = minOccurs;
+        this.maxOccurs = maxOccurs;
+        this.ref = ref;
+        this.type = type;
+        this.content = content;
+    }
+
     public static XsdElement copyDefinitionAttrs(XsdElement fromEl, XsdElement toEl) {
         toEl.name = fromEl.getName();
         toEl.type = fromEl.getType();
@@ -114,11 +131,12 @@ public class XsdElement implements SchemaElementWithAttributes {
     }
 
     public List<XsdElement> getChildElements() {
-        return unmodifiableList(Optional.of(childElements).orElse(Collections.emptyList()));
+        return childElementsView;
     }
 
     public void setChildElements(List<XsdElement> childElements) {
         this.childElements = childElements;
+        this.childElementsView = unmodifiableList(childElements);
     }
 
     public void prependChildElements(List<XsdElement> childElements) {
@@ -127,10 +145,12 @@ public class XsdElement implements SchemaElementWithAttributes {
 
     public void addAttribute(XsdAttribute attr) {
         attributes.add(attr);
+        attributeNames = null;
     }
 
     public void prependAttributes(List<XsdAttribute> attrs) {
         attributes.addAll(0, attrs);
+        attributeNames = null;
     }
 
     public List<XsdAttribute> getElementAttributes() {
@@ -139,8 +159,11 @@ public class XsdElement implements SchemaElementWithAttributes {
 
     @Override
     public List<QName> getAttributes() {
-        return attributes.stream()
-                .map(attr -> attr.getName()).collect(Collectors.toList());
+        if (attributeNames == null) {
+            attributeNames = unmodifiableList(attributes.stream()
+                    .map(attr -> attr.getName()).collect(Collectors.toList()));
+        }
+        return attributeNames;
     }
 
     public void setContent(QName content) {
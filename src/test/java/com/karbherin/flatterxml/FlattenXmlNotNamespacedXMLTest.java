@@ -1,16 +1,24 @@
 package com.karbherin.flatterxml;
 
-import com.karbherin.flatterxml.output.DelimitedFileWriter;
-import com.karbherin.flatterxml.output.RecordHandler;
-import com.karbherin.flatterxml.output.StatusReporter;
+import com.karbherin.flatterxml.model.CascadedAncestorFields;
+import com.karbherin.flatterxml.model.Pair;
+import com.karbherin.flatterxml.model.RecordFilter;
+import com.karbherin.flatterxml.model.RecordTypeHierarchy;
+import com.karbherin.flatterxml.output.*;
 import org.junit.Test;
 
+import javax.xml.namespace.QName;
 import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Namespace;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 import static com.karbherin.flatterxml.AppConstants.CascadePolicy;
@@ -92,6 +100,31 @@ public class FlattenXmlNotNamespacedXMLTest {
                 phone.get(0));
     }
 
+    // Equivalent to FlattenXmlRunner CLI options: -e "employee[department='sales']"
+    @Test
+    public void filteredRecords_noNsXML() throws IOException, XMLStreamException {
+        String outDir = "target/test/results/filteredRecords_noNsXML";
+        Files.createDirectories(Paths.get(outDir));
+        RecordHandler recordHandler = new DelimitedFileWriter("|", outDir, false, new StatusReporter(), "~");
+        RecordFilter recordFilter = RecordFilter.parse("employee[department='sales']");
+
+        FlattenXml flattener = new FlattenXmlBuilder()
+                .setRecordWriter(recordHandler)
+                .setRecordFilter(recordFilter)
+                .setXmlStream(new FileInputStream(new File("src/test/resources/emp.xml")))
+                .create();
+
+        assertEquals("Only the records satisfying the filter are counted", 12, flattener.parseFlatten());
+        recordHandler.closeAllFileStreams();
+        assertEquals(9, recordFilter.getRejectCount());
+
+        List<String> employee = fileLines(outDir + "/employee.csv");
+        assertEquals(13, employee.size());
+        assertTrue(employee.stream().skip(1).allMatch(line -> line.contains("|sales|")));
+        // Nested records of the records filtered out are not flattened either
+        assertFalse(fileLines(outDir + "/address.csv").stream().anyMatch(line -> line.contains("Tudor")));
+    }
+
     // Reuse record definitions to speed up processing in a 2nd run.
     // Record definitions are produced by -c OUT, -f ALL|<missing>
     @Test
@@ -265,6 +298,126 @@ public class FlattenXmlNotNamespacedXMLTest {
 
     }
 
+    @Test
+    public void typedRecordsAreKeptPerChainOfAncestors() throws IOException, XMLStreamException {
+        String xml = "<root>" +
+                "<rec><n>1</n><a><k>1</k><item><v>1</v></item></a></rec>" +
+                "<rec><n>2</n><b><k>2</k><item><v>2</v></item></b></rec>" +
+                "<rec><n>3</n><a><k>3</k><item><v>3</v></item></a></rec>" +
+                "</root>";
+        List<String> typedRecordHierarchies = new ArrayList<>();
+        List<String> written = new ArrayList<>();
+        TypedRecordHandler recordHandler = new TypedRecordHandler() {
+            @Override
+            public TypedRecord newTypedRecord(QName recordName, RecordTypeHierarchy recordHierarchy) {
+                typedRecordHierarchies.add(hierarchy(recordHierarchy));
+                return new TypedRecord(recordName.getLocalPart(), column -> ValueType.TEXT,
+                        new ConversionFailures());
+            }
+
+            @Override
+            public void write(QName recordName, TypedRecord record, CascadedAncestorFields cascadedData) {
+                StringBuilder row = new StringBuilder(hierarchy(cascadedData));
+                for (int field = 0; field < record.size(); field++) {
+                    row.append('|').append(record.column(field)).append('=').append(record.text(field));
+                }
+                written.add(row.toString());
+            }
+
+            @Override
+            public void write(QName recordName, Iterable<Pair<String, String>> fieldValueStack,
+                              CascadedAncestorFields cascadedData) {
+                fail("Values are converted by the worker");
+            }
+
+            @Override
+            public List<GeneratedResult> getFilesWritten() {
+                return Collections.emptyList();
+            }
+
+            @Override
+            public void closeAllFileStreams() {
+            }
+
+            @Override
+            public void setXmlnsUriToPrefix(Map<String, Namespace> xmlnsUriToPrefix) {
+            }
+        };
+
+        FlattenXml flattener = new FlattenXmlBuilder()
+                .setCascadePolicy(CascadePolicy.OUT)
+                .setRecordWriter(recordHandler)
+                .setXmlStream(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)))
+                .create();
+        flattener.parseFlatten();
+
+        assertEquals("Item records under each chain of ancestors have a typed record of their own",
+                2, typedRecordHierarchies.stream().filter(name -> name.startsWith("item<")).count());
+        assertTrue(typedRecordHierarchies.toString(), typedRecordHierarchies.contains("item<a<rec<root"));
+        assertTrue(typedRecordHierarchies.toString(), typedRecordHierarchies.contains("item<b<rec<root"));
+        assertTrue(written.toString(), written.contains("item<b<rec<root|v=2|b.k=2|rec.n=2"));
+        assertTrue(written.toString(), written.contains("item<a<rec<root|v=3|a.k=3|rec.n=3"));
+    }
+
+    private static String hierarchy(RecordTypeHierarchy recordHierarchy) {
+        StringBuilder names = new StringBuilder(recordHierarchy.recordName().getLocalPart());
+        for (RecordTypeHierarchy level = recordHierarchy; level.parentRecordType() != level;
+             level = level.parentRecordType()) {
+            names.append('<').append(level.parentRecordType().recordName().getLocalPart());
+        }
+        return names.toString();
+    }
+
+    // Equivalent to FlattenXmlRunner CLI options: -f out.yaml, -c XSD, -x x1.xsd, -a
+    @Test
+    public void projectedOutput_noNsXML() throws IOException, XMLStreamException {
+        String outDir = "target/test/results/projectedOutput_noNsXML";
+        String fullOutDir = "target/test/results/projectedOutputFull_noNsXML";
+        for (boolean projectOutput: new boolean[]{true, false}) {
+            String dir = projectOutput ? outDir : fullOutDir;
+            Files.createDirectories(Paths.get(dir));
+            RecordHandler recordHandler = new DelimitedFileWriter("|", dir, false, new StatusReporter(), "~");
+
+            FlattenXml flattener = new FlattenXmlBuilder()
+                    .setCascadePolicy(CascadePolicy.XSD)
+                    .setRecordWriter(recordHandler)
+                    .setXmlStream(new FileInputStream(new File("src/test/resources/emp.xml")))
+                    .setRecordOutputFieldsSeq(new File("src/test/resources/emp_output_fields.yaml"))
+                    .setXsdFiles(parseXsds(new String[]{"src/test/resources/emp.xsd"}))
+                    .setProjectOutput(projectOutput)
+                    .create();
+
+            assertEquals(21, flattener.parseFlatten());
+            recordHandler.closeAllFileStreams();
+        }
+
+        assertEquals("Only the records in the output fields are written",
+                Arrays.asList("address.csv", "employee.csv"),
+                Arrays.stream(new File(outDir).list())
+                        .filter(name -> name.endsWith(".csv")).sorted().collect(Collectors.toList()));
+        assertTrue("Other records fall back to the XSDs without projection",
+                new File(fullOutDir, "reroute.csv").exists());
+        for (String fileName: new String[]{"employee.csv", "address.csv"}) {
+            assertEquals("Skipped elements do not change the records written",
+                    fileLines(fullOutDir + "/" + fileName), fileLines(outDir + "/" + fileName));
+        }
+    }
+
+    @Test
+    public void outputIsNotProjectedWithoutOutputFields() throws IOException, XMLStreamException {
+        try {
+            new FlattenXmlBuilder()
+                    .setRecordWriter(new DelimitedFileWriter("|", "target/test/results", false,
+                            new StatusReporter(), "~"))
+                    .setXmlStream(new FileInputStream(new File("src/test/resources/emp.xml")))
+                    .setProjectOutput(true)
+                    .create();
+            fail("Output fields are required to project the output");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+    }
+
     // Equivalent to FlattenXmlRunner CLI options: -f out.yaml, -c casc.yaml, -x x1.xsd
     @Test
     public void definedRecordDefinedCascadeWithXSDBackup_noNsXML() throws IOException, XMLStreamException {
@@ -1100,4 +1253,44 @@ public class FlattenXmlNotNamespacedXMLTest {
                 address.get(1));
     }
 
+    // Equivalent to FlattenXmlRunner CLI options: -c KEY -x emp.xsd
+    @Test
+    public void xsdDrivenRecordCascadeKeys_noNsXML() throws IOException, XMLStreamException {
+        String outDir = "target/test/results/xsdDrivenRecordCascadeKeys_noNsXML";
+        Files.createDirectories(Paths.get(outDir));
+
+        RecordHandler recordHandler = new DelimitedFileWriter(
+                "|", outDir,
+                false, new StatusReporter(), "~");
+
+        FlattenXml flattener = new FlattenXmlBuilder()
+                .setCascadePolicy(CascadePolicy.KEY)
+                .setXsdFiles(parseXsds(new String[]{"src/test/resources/emp.xsd"}))
+                .setRecordWriter(recordHandler)
+                .setWorkerNumber(1)
+                .setXmlStream(new FileInputStream(new File("src/test/resources/emp.xml")))
+                .create();
+
+        assertEquals(21, flattener.parseFlatten());
+        recordHandler.closeAllFileStreams();
+
+        // Ids of worker 1 start after 2^43
+        List<String> employee = fileLines(outDir + "/employee.csv");
+        assertEquals("Employee row has its own id and no parent id",
+                "row_id|identifiers|identifiers[id-doc-type]|identifiers[id-doc-expiry]|employee-no|employee-name" +
+                        "|department|salary", employee.get(0));
+        assertEquals("8796093022209||||00000001|Steve Rogers|public relations|150,000.00", employee.get(1));
+
+        assertEquals("Envelope rows link the child rows to the ancestors",
+                Arrays.asList("row_id|employee.row_id", "8796093022210|8796093022209"),
+                fileLines(outDir + "/contact.csv").subList(0, 2));
+        assertEquals(Arrays.asList("row_id|contact.row_id", "8796093022214|8796093022210"),
+                fileLines(outDir + "/phones.csv").subList(0, 2));
+
+        List<String> phone = fileLines(outDir + "/phone.csv");
+        assertEquals("No ancestor data is cascaded, only the parent's id",
+                "row_id|phone-num|phone-type|phones.row_id", phone.get(0));
+        assertEquals("8796093022215|1234567890|landline|8796093022214", phone.get(1));
+    }
+
 }
@@ -8,6 +8,7 @@ import com.karbherin.flatterxml.consumer.XmlFileSplitterFactory;
 import static com.karbherin.flatterxml.feeder.XmlRecordStringEmitter.XmlByteStreamEmitterBuilder;
 
 import com.karbherin.flatterxml.helper.XmlHelpers;
+import com.karbherin.flatterxml.model.RecordFilter;
 import org.junit.Test;
 
 import javax.xml.stream.XMLStreamException;
@@ -73,6 +74,23 @@ public class XmlRecordStringEmitterTest {
         assertEquals("employee", XmlHelpers.toPrefixedTag(emitter.getRecordTag()));
     }
 
+    @Test
+    public void filteredRecordsAreNotSent() throws IOException, XMLStreamException, InterruptedException {
+        String xmlFilePath = "src/test/resources/emp.xml";
+        String outDir = "target/test/results/emp_bytestream_filtered";
+        XmlEventWorkerPool workerPool = new XmlEventWorkerPool();
+        XmlFileSplitterFactory workerFactory = XmlFileSplitterFactory.newInstance(outDir, xmlFilePath);
+        RecordFilter recordFilter = RecordFilter.parse("employee[department='sales']");
+
+        assertEquals("Records of sales department", 12,
+                workerPool.execute(3, new XmlByteStreamEmitterBuilder().setXmlFile(xmlFilePath)
+                        .setRecordFilter(recordFilter).create(), workerFactory));
+        assertEquals(9, recordFilter.getRejectCount());
+        assertEquals("First 4 of the records satisfying the filter", 4,
+                workerPool.execute(3, new XmlByteStreamEmitterBuilder().setXmlFile(xmlFilePath)
+                        .setFirstNRecs(4).setRecordFilter(recordFilter).create(), workerFactory));
+    }
+
     @Test
     public void splitterNSXml_test() throws IOException, XMLStreamException, InterruptedException {
         String xmlFilePath = "src/test/resources/emp.xml";
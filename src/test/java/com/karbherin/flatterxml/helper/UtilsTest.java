@@ -144,4 +144,103 @@ public class UtilsTest {
                         "|emp:employee.emp:identifiers|emp:employee.emp:identifiers[emp:id-doc-type]|emp:employee.emp:identifiers[emp:id-doc-expiry]|emp:employee.emp:employee-no|emp:employee.emp:employee-no[emp:status]|emp:employee.emp:employee-name|emp:employee.emp:department|emp:employee.emp:salary",
                 String.join("|", collapseSequences(seqs, counts)));
     }
+
+    @Test
+    public void collapseSequencesSameAsRecursiveMerge() {
+        Random random = new Random(7);
+        for (int trial = 0; trial < 500; trial++) {
+            int numCols = 2 + random.nextInt(12);
+            List<String[]> seqs = new ArrayList<>();
+            List<Integer> counts = new ArrayList<>();
+            for (int v = 0, numSeqs = 1 + random.nextInt(6); v < numSeqs; v++) {
+                List<String> seq = new ArrayList<>();
+                for (int c = 0; c < numCols; c++) {
+                    if (random.nextInt(4) > 0) {
+                        seq.add("col" + c);
+                    }
+                }
+                // Occasionally out of order
+                if (seq.size() > 1 && random.nextInt(5) == 0) {
+                    Collections.swap(seq, 0, seq.size() - 1);
+                }
+                seqs.add(seq.toArray(new String[0]));
+                counts.add(1 + random.nextInt(3));
+            }
+
+            assertEquals("Trial " + trial, recursiveMerge(seqs, counts), collapseSequences(seqs, counts));
+        }
+    }
+
+    // Regression guard, not a measurement: the timeout only fails if collapsing a wide table of many header
+    // variants becomes far slower again. It does not measure how much faster collapseSequences is.
+    @Test(timeout = 60000)
+    public void collapseSequencesRegressionGuardTenThousandColumnsThousandVariants() {
+        int numCols = 10000;
+        int numSeqs = 1000;
+        String[] cols = new String[numCols];
+        for (int c = 0; c < numCols; c++) {
+            cols[c] = "col" + c;
+        }
+
+        Random random = new Random(11);
+        List<String[]> seqs = new ArrayList<>();
+        List<Integer> counts = new ArrayList<>();
+        for (int v = 0; v < numSeqs; v++) {
+            List<String> seq = new ArrayList<>(numCols);
+            for (int c = 0; c < numCols; c++) {
+                if (random.nextInt(10) > 0) {
+                    seq.add(cols[c]);
+                }
+            }
+            seqs.add(seq.toArray(new String[0]));
+            counts.add(1 + random.nextInt(100));
+        }
+
+        assertEquals(Arrays.asList(cols), collapseSequences(seqs, counts));
+    }
+
+    // Recursive merge that collapseSequences replaced. Reference for the column order.
+    private static List<String> recursiveMerge(List<String[]> seqs, List<Integer> counts) {
+        Map<String, Map<String, Integer>> successors = new HashMap<>();
+        for (int i = 0; i < seqs.size(); i++) {
+            String precede = null;
+            for (String successor : seqs.get(i)) {
+                Map<String, Integer> nextTokens = successors.computeIfAbsent(precede, k -> new LinkedHashMap<>());
+                nextTokens.put(successor, counts.get(i) + nextTokens.getOrDefault(successor, 0));
+                precede = successor;
+            }
+        }
+
+        Map<String, List<String>> ordered = new HashMap<>();
+        successors.forEach((col, nextTokens) -> {
+            List<Map.Entry<String, Integer>> byWeight = new ArrayList<>(nextTokens.entrySet());
+            byWeight.sort((e1, e2) -> e2.getValue().compareTo(e1.getValue()));
+            Set<String> exclude = new HashSet<>();
+            List<String> list = new ArrayList<>();
+            for (Map.Entry<String, Integer> ent : byWeight) {
+                exclude.addAll(successors.getOrDefault(ent.getKey(), Collections.emptyMap()).keySet());
+                if (!exclude.contains(ent.getKey())) {
+                    list.add(ent.getKey());
+                }
+            }
+            Collections.reverse(list);
+            ordered.put(col, list);
+        });
+
+        List<String> marked = new ArrayList<>();
+        Deque<String> postOrder = new ArrayDeque<>();
+        dfs(ordered, postOrder, marked, null);
+        return new ArrayList<>(postOrder);
+    }
+
+    private static void dfs(Map<String, List<String>> successors, Deque<String> postOrder,
+                            List<String> marked, String startWith) {
+        for (String nextCol : successors.getOrDefault(startWith, Collections.emptyList())) {
+            if (!marked.contains(nextCol)) {
+                marked.add(nextCol);
+                dfs(successors, postOrder, marked, nextCol);
+                postOrder.push(nextCol);
+            }
+        }
+    }
 }
@@ -0,0 +1,44 @@
+package com.karbherin.flatterxml.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class CascadeSegmentTest {
+
+    @Test
+    public void childrenShareTheAncestorSegments() {
+        CascadeSegment employee = new CascadeSegment(Arrays.asList(
+                new Pair<>("employee.employee-no", "00000001"), new Pair<>("employee.employee-name", "Steve")), null);
+        CascadeSegment contact = new CascadeSegment(Collections.emptyList(), employee);
+        CascadeSegment address = new CascadeSegment(
+                Collections.singletonList(new Pair<>("address.zip", "12345")), contact);
+
+        Assert.assertEquals(Arrays.asList("12345", "00000001", "Steve"), values(address));
+        Assert.assertSame(employee, contact.ancestors());
+
+        // Values set on an ancestor are seen by the descendants without copying
+        employee.setValue(1, "Steve Rogers");
+        Assert.assertEquals(Arrays.asList("12345", "00000001", "Steve Rogers"), values(address));
+        Assert.assertEquals(Collections.emptyList(), values(CascadeSegment.EMPTY));
+    }
+
+    @Test
+    public void otherCascadedFieldsAreWrapped() {
+        List<Pair<String, String>> fields = Collections.singletonList(new Pair<>("employee.employee-no", "1"));
+        CascadeSegment segment = CascadeSegment.of(fields);
+        Assert.assertEquals(1, segment.size());
+        Assert.assertNull(segment.ancestors());
+        Assert.assertSame(segment, CascadeSegment.of(segment));
+    }
+
+    private static List<String> values(CascadeSegment chain) {
+        List<String> values = new ArrayList<>();
+        chain.forEach(field -> values.add(field.getVal()));
+        return values;
+    }
+}
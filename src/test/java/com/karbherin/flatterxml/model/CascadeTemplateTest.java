@@ -0,0 +1,121 @@
+package com.karbherin.flatterxml.model;
+
+import com.karbherin.flatterxml.AppConstants.CascadePolicy;
+import com.karbherin.flatterxml.xsd.SchemaIndex;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import static com.karbherin.flatterxml.helper.XmlHelpers.parseXsds;
+
+public class CascadeTemplateTest {
+
+    private static final String EMP_NS = "http://kbps.com/emp";
+    private static final XMLEventFactory EVENTS = XMLEventFactory.newFactory();
+
+    @Test
+    public void xsdFieldsAreCompiledIntoSlots() throws Exception {
+        CascadeTemplate template = new CascadeTemplate(new QName(EMP_NS, "phone"), Collections.emptyList(),
+                CascadePolicy.XSD, SchemaIndex.of(parseXsds(new String[] {"src/test/resources/emp.xsd"})),
+                new HashMap<>());
+
+        Assert.assertEquals(Arrays.asList("phone.phone-num", "phone.phone-type"), template.columns());
+        Assert.assertEquals(Integer.valueOf(1), template.slot("phone-type"));
+        Assert.assertNull("Fields not in the XSD are not cascaded", template.slotOfNewField("extension", "extension"));
+    }
+
+    @Test
+    public void recycledValuesAreClearedAndOutTemplateGrows() {
+        CascadeTemplate root = new CascadeTemplate(new QName("employees"), Collections.emptyList(),
+                CascadePolicy.OUT, SchemaIndex.EMPTY, new HashMap<>());
+        CascadeTemplate employee = new CascadeTemplate(new QName("employee"), Collections.emptyList(),
+                CascadePolicy.OUT, SchemaIndex.EMPTY, new HashMap<>());
+        RecordFieldsCascade rootCascade = new RecordFieldsCascade(root, null, new String[0]);
+
+        RecordFieldsCascade first = new RecordFieldsCascade(employee, rootCascade, new String[0]);
+        first.addCascadingData(EVENTS.createStartElement(new QName("employee-no"), null, null), "1",
+                CascadePolicy.OUT);
+        first.addCascadingData(EVENTS.createStartElement(new QName("employee-name"), null, null), "Steve",
+                CascadePolicy.OUT);
+        Assert.assertEquals(2, employee.width());
+
+        // Next employee reuses the template and the value array of the first one
+        RecordFieldsCascade second = new RecordFieldsCascade(employee, rootCascade, first.releaseValues());
+        second.addCascadingData(EVENTS.createStartElement(new QName("employee-name"), null, null), "Tony",
+                CascadePolicy.OUT);
+        RecordFieldsCascade child = new RecordFieldsCascade(new CascadeTemplate(new QName("contact"),
+                Collections.emptyList(), CascadePolicy.OUT, SchemaIndex.EMPTY, new HashMap<>()),
+                second, new String[0]);
+
+        List<String> cascaded = new ArrayList<>();
+        child.getCascadedAncestorFields().forEach(field -> cascaded.add(field.getKey() + "=" + field.getVal()));
+        Assert.assertEquals(Arrays.asList("employee.employee-no=", "employee.employee-name=Tony"), cascaded);
+    }
+
+    @Test
+    public void outColumnsAreSeenOnAllRecordsOfTheType() {
+        CascadeTemplate root = new CascadeTemplate(new QName("employees"), Collections.emptyList(),
+                CascadePolicy.OUT, SchemaIndex.EMPTY, new HashMap<>());
+        CascadeTemplate employee = new CascadeTemplate(new QName("employee"), Collections.emptyList(),
+                CascadePolicy.OUT, SchemaIndex.EMPTY, new HashMap<>());
+        CascadeTemplate contact = new CascadeTemplate(new QName("contact"), Collections.emptyList(),
+                CascadePolicy.OUT, SchemaIndex.EMPTY, new HashMap<>());
+        RecordFieldsCascade rootCascade = new RecordFieldsCascade(root, null, new String[0]);
+
+        // Employees sharing the template have different fields
+        RecordFieldsCascade steve = new RecordFieldsCascade(employee, rootCascade, new String[0]);
+        steve.addCascadingData(EVENTS.createStartElement(new QName("employee-no"), null, null), "1",
+                CascadePolicy.OUT);
+        RecordFieldsCascade steveContact = new RecordFieldsCascade(contact, steve, new String[0]);
+        Assert.assertEquals(Collections.singletonList("employee.employee-no=1"), cascaded(steveContact));
+
+        RecordFieldsCascade tony = new RecordFieldsCascade(employee, rootCascade, new String[0]);
+        tony.addCascadingData(EVENTS.createStartElement(new QName("employee-name"), null, null), "Tony",
+                CascadePolicy.OUT);
+        RecordFieldsCascade tonyContact = new RecordFieldsCascade(contact, tony, new String[0]);
+
+        // Each contact gets the columns of both employees, with its own employee's values
+        Assert.assertEquals(Arrays.asList("employee.employee-no=", "employee.employee-name=Tony"),
+                cascaded(tonyContact));
+        Assert.assertEquals("Columns seen after the record are cascaded from it too",
+                Arrays.asList("employee.employee-no=1", "employee.employee-name="), cascaded(steveContact));
+    }
+
+    private static List<String> cascaded(RecordFieldsCascade record) {
+        List<String> cascaded = new ArrayList<>();
+        record.getCascadedAncestorFields().forEach(field -> cascaded.add(field.getKey() + "=" + field.getVal()));
+        return cascaded;
+    }
+
+    @Test
+    public void releasedSegmentCannotBeRead() {
+        CascadeTemplate root = new CascadeTemplate(new QName("employees"), Collections.emptyList(),
+                CascadePolicy.OUT, SchemaIndex.EMPTY, new HashMap<>());
+        CascadeTemplate employee = new CascadeTemplate(new QName("employee"), Collections.emptyList(),
+                CascadePolicy.OUT, SchemaIndex.EMPTY, new HashMap<>());
+        RecordFieldsCascade rootCascade = new RecordFieldsCascade(root, null, new String[0]);
+        RecordFieldsCascade first = new RecordFieldsCascade(employee, rootCascade, new String[0]);
+        first.addCascadingData(EVENTS.createStartElement(new QName("employee-no"), null, null), "1",
+                CascadePolicy.OUT);
+        CascadeSegment segment = new RecordFieldsCascade(root, first, new String[0]).getCascadedAncestorFields();
+        Assert.assertEquals("1", segment.value(0));
+
+        // Value array of the first employee is reused by the next one and is not seen through the old segment
+        RecordFieldsCascade second = new RecordFieldsCascade(employee, rootCascade, first.releaseValues());
+        second.addCascadingData(EVENTS.createStartElement(new QName("employee-no"), null, null), "2",
+                CascadePolicy.OUT);
+        try {
+            segment.value(0);
+            Assert.fail("Released segment was read");
+        } catch (IllegalStateException expected) {
+            Assert.assertEquals(1, segment.size());
+        }
+    }
+}
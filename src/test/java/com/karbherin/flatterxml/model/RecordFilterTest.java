@@ -0,0 +1,117 @@
+package com.karbherin.flatterxml.model;
+
+import org.junit.Test;
+
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.XMLEvent;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RecordFilterTest {
+
+    private static final String EMPLOYEE = "<emp:employee xmlns:emp='http://kbps.com/emp'>\n" +
+            "  <!-- <emp:department>finance</emp:department> -->\n" +
+            "  <emp:identifiers emp:id-doc-type=\"SSN\" emp:id-doc-expiry='2021-06-30'>1234567890</emp:identifiers>\n" +
+            "  <emp:employee-no emp:status='active'>00000002</emp:employee-no>\n" +
+            "  <emp:department>R&amp;D</emp:department>\n" +
+            "  <emp:salary><![CDATA[89000.50]]></emp:salary>\n" +
+            "  <emp:contact><emp:phones>\n" +
+            "    <emp:phone><emp:phone-type>cell</emp:phone-type></emp:phone>\n" +
+            "    <emp:phone><emp:phone-type>office</emp:phone-type></emp:phone>\n" +
+            "  </emp:phones></emp:contact>\n" +
+            "  <emp:line2/>\n" +
+            "</emp:employee>";
+
+    @Test
+    public void recordsAreTestedOnTheirTextAndEvents() throws XMLStreamException {
+        String[] satisfied = {
+                "employee[department='R&D']",
+                "emp:employee[emp:department!='finance']",
+                "employee[salary>89000 and salary<=89000.5]",
+                "employee[employee-no=2]",
+                "employee[employee-no/@status='active' and identifiers/@emp:id-doc-type='SSN']",
+                "employee[identifiers/@id-doc-expiry>='2021-01-01' and identifiers/@id-doc-expiry<'2022-01-01']",
+                "employee[contact/phones/phone/phone-type='office']",
+                "employee[line2='']",
+                "employee [ department = \"R&D\" ]",
+                // Records of other tags are not filtered
+                "contact[department='none']",
+                "ph:employee[department='none']",
+        };
+        String[] notSatisfied = {
+                "employee[department='finance']",
+                "employee[department='R&D' and salary>90000]",
+                "employee[employee-no>2]",
+                "employee[department>1]",
+                "employee[employee-no/@status='inactive']",
+                "employee[contact/phones/phone-type='office']",
+                "employee[identifiers/@id-doc-type='SSN' and missing='x']",
+        };
+
+        List<XMLEvent> events = new ArrayList<>();
+        XMLEventReader reader = XMLInputFactory.newFactory().createXMLEventReader(new StringReader(EMPLOYEE));
+        while (reader.hasNext()) {
+            XMLEvent ev = reader.nextEvent();
+            if (!ev.isStartDocument() && !ev.isEndDocument()) {
+                events.add(ev);
+            }
+        }
+
+        for (String filter: satisfied) {
+            assertTrue(filter, RecordFilter.parse(filter).test("\n  " + EMPLOYEE));
+            assertTrue(filter, RecordFilter.parse(filter).test(events));
+        }
+        for (String filter: notSatisfied) {
+            assertFalse(filter, RecordFilter.parse(filter).test(EMPLOYEE));
+            assertFalse(filter, RecordFilter.parse(filter).test(events));
+        }
+    }
+
+    @Test
+    public void elementsAroundTheRecordAreIgnored() throws XMLStreamException {
+        RecordFilter sales = RecordFilter.parse("employee[department='sales']");
+        RecordFilter finance = RecordFilter.parse("employee[department='finance']");
+        String record = "<employee><department>finance</department></employee>";
+
+        // Chunk of the file starting with the end tag of a wrapper
+        String afterWrapper = "</employees>\n  " + record;
+        assertFalse(sales.test(afterWrapper));
+        assertTrue(finance.test(afterWrapper));
+
+        // Sibling and wrapper ahead of the record
+        String afterSibling = "<meta><department>sales</department></meta><employees>" + record;
+        assertFalse(sales.test(afterSibling));
+        assertTrue(finance.test(afterSibling));
+
+        List<XMLEvent> events = new ArrayList<>();
+        XMLEventReader reader = XMLInputFactory.newFactory().createXMLEventReader(
+                new StringReader("<root>" + afterSibling + "</employees></root>"));
+        reader.nextEvent();
+        reader.nextEvent();
+        XMLEvent ev;
+        do {
+            ev = reader.nextEvent();
+            events.add(ev);
+        } while (!ev.isEndElement() || !ev.asEndElement().getName().getLocalPart().equals("employee"));
+        assertFalse(sales.test(events));
+        assertTrue(finance.test(events));
+    }
+
+    @Test
+    public void filtersNotInTheFormatAreRejected() {
+        for (String filter: new String[]{"employee", "employee[]", "employee[department]",
+                "employee[department='sales' or salary>1]", "employee[department=sales]"}) {
+            try {
+                RecordFilter.parse(filter);
+                fail(filter);
+            } catch (IllegalArgumentException ex) {
+                // Expected
+            }
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package com.karbherin.flatterxml.output;
+
+import com.karbherin.flatterxml.model.Pair;
+import org.junit.Test;
+
+import javax.xml.namespace.QName;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ArrowFileWriterTest {
+
+    private static final PrintStream DEV_NULL = new PrintStream(new java.io.ByteArrayOutputStream());
+
+    @Test
+    public void fileFooterListsSchemaAndBatches() throws IOException {
+        String outDir = "target/test/results/arrowFileFooterListsSchemaAndBatches";
+        Files.createDirectories(Paths.get(outDir));
+        RecordHandler recordHandler = new ArrowFileWriter.ArrowFileWriterBuilder()
+                .setOutDir(outDir).setBatchRows(7).setMaxDictionarySize(10)
+                .setStatusReporter(new StatusReporter(DEV_NULL, DEV_NULL))
+                .create();
+        writeRecords(recordHandler, 30);
+        recordHandler.closeAllFileStreams();
+
+        ByteBuffer file = read(Paths.get(outDir, "employee.arrow"));
+        byte[] magic = new byte[6];
+        file.get(magic);
+        assertArrayEquals(ArrowFormat.FILE_MAGIC, magic);
+        file.position(file.limit() - 6);
+        file.get(magic);
+        assertArrayEquals(ArrowFormat.FILE_MAGIC, magic);
+
+        int footer = file.limit() - 10 - file.getInt(file.limit() - 10);
+        int footerRoot = deref(file, footer);
+        int schema = deref(file, field(file, footerRoot, 1));
+        assertEquals(Arrays.asList("no", "name", "tag", "tag#2", "dept.id"), fieldNames(file, schema));
+
+        // Dictionary encoded columns have a dictionary batch each. The "no" column has too many values.
+        assertEquals(4, file.getInt(deref(file, field(file, footerRoot, 2))));
+
+        int batches = deref(file, field(file, footerRoot, 3));
+        List<Long> batchLengths = new ArrayList<>();
+        for (int i = 0; i < file.getInt(batches); i++) {
+            int message = (int) file.getLong(batches + 4 + 24 * i);
+            assertEquals("Continuation marker", -1, file.getInt(message));
+            int messageRoot = deref(file, message + 8);
+            int recordBatch = deref(file, field(file, messageRoot, 2));
+            batchLengths.add(file.getLong(field(file, recordBatch, 0)));
+        }
+        assertEquals(Arrays.asList(7L, 7L, 7L, 7L, 2L), batchLengths);
+        assertFalse("Spilled batches are removed", Files.exists(Paths.get(outDir, "tmp_employee.arrow")));
+    }
+
+    @Test
+    public void fileMatchesGoldenFile() throws IOException {
+        String outDir = "target/test/results/arrowFileMatchesGoldenFile";
+        Files.createDirectories(Paths.get(outDir));
+        RecordHandler recordHandler = new ArrowFileWriter.ArrowFileWriterBuilder()
+                .setOutDir(outDir).setBatchRows(7).setMaxDictionarySize(10)
+                .setStatusReporter(new StatusReporter(DEV_NULL, DEV_NULL))
+                .create();
+        writeRecords(recordHandler, 30);
+        recordHandler.closeAllFileStreams();
+
+        // Golden file is read back by the Arrow Java reader with the same values, the "no" column plain and
+        // the others dictionary encoded
+        assertArrayEquals(Files.readAllBytes(Paths.get("src/test/resources/arrow/employee.arrow")),
+                Files.readAllBytes(Paths.get(outDir, "employee.arrow")));
+    }
+
+    @Test
+    public void columnsOfMostlyDistinctValuesGoPlain() throws IOException {
+        String outDir = "target/test/results/arrowColumnsOfMostlyDistinctValuesGoPlain";
+        Files.createDirectories(Paths.get(outDir));
+        RecordHandler recordHandler = new ArrowFileWriter.ArrowFileWriterBuilder()
+                .setOutDir(outDir).setBatchRows(100)
+                .setStatusReporter(new StatusReporter(DEV_NULL, DEV_NULL))
+                .create();
+        int numRecords = 2 * ArrowColumn.MIN_DICTIONARY_SIZE;
+        writeRecords(recordHandler, numRecords);
+        recordHandler.closeAllFileStreams();
+
+        // Distinct values of "no" outnumber half of its values once the dictionary is past its minimum size
+        ByteBuffer file = read(Paths.get(outDir, "employee.arrow"));
+        assertEquals(0, dictionaryEncoding(file, 0));
+        assertTrue(dictionaryEncoding(file, 1) != 0);
+        assertTrue(dictionaryEncoding(file, 4) != 0);
+        List<String> numbers = columnValues(file, 0);
+        assertEquals(numRecords, numbers.size());
+        assertEquals("no" + (numRecords - 1), numbers.get(numRecords - 1));
+    }
+
+    @Test
+    public void valuesAreDecodedRowByRow() throws IOException {
+        String outDir = "target/test/results/arrowValuesAreDecodedRowByRow";
+        Files.createDirectories(Paths.get(outDir));
+        RecordHandler recordHandler = new ArrowFileWriter.ArrowFileWriterBuilder()
+                .setOutDir(outDir).setBatchRows(7).setMaxDictionarySize(10)
+                .setStatusReporter(new StatusReporter(DEV_NULL, DEV_NULL))
+                .create();
+        writeRecords(recordHandler, 30);
+        recordHandler.closeAllFileStreams();
+
+        ByteBuffer file = read(Paths.get(outDir, "employee.arrow"));
+        List<String> numbers = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            numbers.add("no" + i);
+            names.add(i % 3 != 1 ? "name " + i % 4 : null);
+        }
+        // The "no" column went plain in the second batch, its first batch was spilled as dictionary indices
+        assertEquals(0, dictionaryEncoding(file, 0));
+        assertEquals(numbers, columnValues(file, 0));
+        assertTrue(dictionaryEncoding(file, 1) != 0);
+        assertEquals(names, columnValues(file, 1));
+    }
+
+    @Test
+    public void streamEndsWithEndOfStreamMarker() throws IOException {
+        String outDir = "target/test/results/arrowStreamEndsWithEndOfStreamMarker";
+        Files.createDirectories(Paths.get(outDir));
+        RecordHandler recordHandler = new ArrowFileWriter.ArrowFileWriterBuilder()
+                .setOutDir(outDir).setStreamFormat(true)
+                .setStatusReporter(new StatusReporter(DEV_NULL, DEV_NULL))
+                .create();
+        writeRecords(recordHandler, 3);
+        recordHandler.closeAllFileStreams();
+
+        ByteBuffer stream = read(Paths.get(outDir, "employee.arrows"));
+        assertEquals("Schema message comes first", -1, stream.getInt(0));
+        int schemaMessage = deref(stream, 8);
+        assertEquals("Schema header", 1, stream.get(field(stream, schemaMessage, 1)));
+        assertEquals(0, stream.limit() % 8);
+        assertEquals(-1, stream.getInt(stream.limit() - 8));
+        assertEquals(0, stream.getInt(stream.limit() - 4));
+    }
+
+    private static void writeRecords(RecordHandler recordHandler, int numRecords) throws IOException {
+        for (int i = 0; i < numRecords; i++) {
+            List<Pair<String, String>> record = new ArrayList<>();
+            record.add(new Pair<>("no", "no" + i));
+            if (i % 3 != 1) {
+                record.add(new Pair<>("name", "name " + i % 4));
+            }
+            if (i % 5 == 0) {
+                record.add(new Pair<>("tag", "t"));
+                record.add(new Pair<>("tag", "u"));
+            }
+            final String dept = "d" + i / 10;
+            recordHandler.write(new QName("employee"), record, new DelimitedFileWriterTest.NoCascades() {
+                @Override
+                public Iterable<Pair<String, String>> getCascadedAncestorFields() {
+                    return Arrays.asList(new Pair<>("dept.id", dept));
+                }
+            });
+        }
+    }
+
+    /**
+     * Decodes a column from the record batches of an Arrow file, looking up the dictionary of an encoded column.
+     * @return values of the column, null for the missing ones
+     */
+    private static List<String> columnValues(ByteBuffer file, int column) {
+        // Columns ahead have a validity buffer followed by indices, or by offsets and data
+        int firstBuffer = 0;
+        for (int col = 0; col < column; col++) {
+            firstBuffer += dictionaryEncoding(file, col) != 0 ? 2 : 3;
+        }
+        int encoding = dictionaryEncoding(file, column);
+        List<String> dictionary = null;
+        if (encoding != 0) {
+            long dictionaryId = file.getLong(field(file, deref(file, encoding), 0));
+            int dictionaries = deref(file, field(file, footerRoot(file), 2));
+            for (int i = 0; i < file.getInt(dictionaries); i++) {
+                int block = dictionaries + 4 + 24 * i;
+                int dictionaryBatch = deref(file, field(file, messageRoot(file, block), 2));
+                if (file.getLong(field(file, dictionaryBatch, 0)) == dictionaryId) {
+                    dictionary = batchValues(file, block, deref(file, field(file, dictionaryBatch, 1)), 0, 0, null);
+                }
+            }
+        }
+
+        List<String> values = new ArrayList<>();
+        int batches = deref(file, field(file, footerRoot(file), 3));
+        for (int i = 0; i < file.getInt(batches); i++) {
+            int block = batches + 4 + 24 * i;
+            int recordBatch = deref(file, field(file, messageRoot(file, block), 2));
+            values.addAll(batchValues(file, block, recordBatch, column, firstBuffer, dictionary));
+        }
+        return values;
+    }
+
+    /**
+     * @param block       - Block of the message in the footer
+     * @param recordBatch - RecordBatch table of the message
+     * @param column      - field node of the column
+     * @param firstBuffer - validity buffer of the column
+     * @param dictionary  - dictionary values, null if the column is not dictionary encoded
+     * @return values of the column in the batch
+     */
+    private static List<String> batchValues(ByteBuffer file, int block, int recordBatch, int column,
+                                            int firstBuffer, List<String> dictionary) {
+        int body = (int) file.getLong(block) + file.getInt(block + 8);
+        int rows = (int) file.getLong(deref(file, field(file, recordBatch, 1)) + 4 + 16 * column);
+        int buffers = deref(file, field(file, recordBatch, 2)) + 4 + 16 * firstBuffer;
+        int validity = body + (int) file.getLong(buffers);
+        boolean allValid = file.getLong(buffers + 8) == 0;
+        // Indices of a dictionary encoded column, offsets followed by data of a plain one
+        int indices = body + (int) file.getLong(buffers + 16);
+        int offsets = indices;
+        int data = dictionary == null ? body + (int) file.getLong(buffers + 32) : 0;
+
+        List<String> values = new ArrayList<>();
+        for (int row = 0; row < rows; row++) {
+            if (!allValid && (file.get(validity + (row >> 3)) & (1 << (row & 7))) == 0) {
+                values.add(null);
+            } else if (dictionary != null) {
+                values.add(dictionary.get(file.getInt(indices + 4 * row)));
+            } else {
+                byte[] bytes = new byte[file.getInt(offsets + 4 * (row + 1)) - file.getInt(offsets + 4 * row)];
+                for (int b = 0; b < bytes.length; b++) {
+                    bytes[b] = file.get(data + file.getInt(offsets + 4 * row) + b);
+                }
+                values.add(new String(bytes, StandardCharsets.UTF_8));
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @return position of the DictionaryEncoding of the column's field in the schema, 0 if it is not encoded
+     */
+    private static int dictionaryEncoding(ByteBuffer file, int column) {
+        int schema = deref(file, field(file, footerRoot(file), 1));
+        int fields = deref(file, field(file, schema, 1));
+        return field(file, deref(file, fields + 4 + 4 * column), 4);
+    }
+
+    private static int footerRoot(ByteBuffer file) {
+        return deref(file, file.limit() - 10 - file.getInt(file.limit() - 10));
+    }
+
+    /**
+     * @return Message table of the block, past its continuation marker and metadata size
+     */
+    private static int messageRoot(ByteBuffer file, int block) {
+        return deref(file, (int) file.getLong(block) + 8);
+    }
+
+    private static ByteBuffer read(Path path) throws IOException {
+        return ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * @return position of the field in the FlatBuffers table, 0 if the field is absent
+     */
+    private static int field(ByteBuffer buf, int table, int id) {
+        int vtable = table - buf.getInt(table);
+        if (4 + 2 * id >= buf.getShort(vtable)) {
+            return 0;
+        }
+        int offset = buf.getShort(vtable + 4 + 2 * id);
+        return offset == 0 ? 0 : table + offset;
+    }
+
+    private static int deref(ByteBuffer buf, int offsetPos) {
+        return offsetPos + buf.getInt(offsetPos);
+    }
+
+    private static List<String> fieldNames(ByteBuffer buf, int schema) {
+        int fields = deref(buf, field(buf, schema, 1));
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < buf.getInt(fields); i++) {
+            int field = deref(buf, fields + 4 + 4 * i);
+            int name = deref(buf, field(buf, field, 0));
+            byte[] bytes = new byte[buf.getInt(name)];
+            for (int b = 0; b < bytes.length; b++) {
+                bytes[b] = buf.get(name + 4 + b);
+            }
+            names.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+        return names;
+    }
+}
@@ -1,15 +1,411 @@
 package com.karbherin.flatterxml.output;
 
+import com.karbherin.flatterxml.AppConstants.QuoteMode;
+import com.karbherin.flatterxml.model.CascadedAncestorFields;
+import com.karbherin.flatterxml.model.Pair;
+import com.karbherin.flatterxml.model.RecordTypeHierarchy;
 import org.junit.Test;
 
+import javax.xml.namespace.QName;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class DelimitedFileWriterTest {
 
+    private static final QName EMPLOYEE = new QName("employee");
+    private static final PrintStream DEV_NULL = new PrintStream(new java.io.ByteArrayOutputStream());
+
+    @Test
+    public void concurrentWorkersMergeShards() throws IOException, InterruptedException {
+        String outDir = "target/test/results/concurrentWorkersMergeShards";
+        Files.createDirectories(Paths.get(outDir));
+        RecordHandler recordHandler = new DelimitedFileWriter.DelimitedFileWriterBuilder()
+                .setDelimiter("|").setOutDir(outDir).setOutFieldsDefined(true)
+                .setStatusReporter(new StatusReporter(DEV_NULL, DEV_NULL))
+                .create();
+
+        writeConcurrently(recordHandler, 4, 1000);
+        recordHandler.closeAllFileStreams();
+
+        List<String> lines = Files.readAllLines(Paths.get(outDir + "/employee.csv"));
+        assertEquals("One header and all records of all workers", 4001, lines.size());
+        assertEquals("employee-no|employee-name", lines.get(0));
+        assertEquals("No interleaved records", 4000,
+                lines.stream().skip(1).filter(line -> line.matches("w\\d-\\d+\\|name w\\d-\\d+")).count());
+        assertTrue("Part files are removed after merging",
+                !Files.exists(Paths.get(outDir + "/employee_part1.csv")));
+    }
+
+    @Test
+    public void concurrentWorkersKeepParts() throws IOException, InterruptedException {
+        String outDir = "target/test/results/concurrentWorkersKeepParts";
+        Files.createDirectories(Paths.get(outDir));
+        RecordHandler recordHandler = new DelimitedFileWriter.DelimitedFileWriterBuilder()
+                .setDelimiter("|").setOutDir(outDir).setOutFieldsDefined(true).setMergeParts(false)
+                .setStatusReporter(new StatusReporter(DEV_NULL, DEV_NULL))
+                .create();
+
+        writeConcurrently(recordHandler, 3, 10);
+        recordHandler.closeAllFileStreams();
+
+        for (int part = 1; part <= 3; part++) {
+            List<String> lines = Files.readAllLines(Paths.get(outDir + "/employee_part" + part + ".csv"));
+            assertEquals("Every part has its own header", 11, lines.size());
+            assertEquals("employee-no|employee-name", lines.get(0));
+        }
+    }
+
+    @Test
+    public void wideRecordsAndManyTablesWithTinyBuffers() throws IOException {
+        char[] wide = new char[10000];
+        Arrays.fill(wide, 'x');
+        String wideValue = new String(wide);
+
+        // Workers writing their buffers themselves and handing them over to writer threads
+        for (int writerThreads: new int[]{0, 2}) {
+            String outDir = "target/test/results/wideRecordsAndManyTablesWithTinyBuffers" + writerThreads;
+            Files.createDirectories(Paths.get(outDir));
+            DelimitedFileWriter recordHandler = new DelimitedFileWriter.DelimitedFileWriterBuilder()
+                    .setDelimiter("|").setOutDir(outDir).setOutFieldsDefined(true)
+                    .setBufferSize(64).setMaxBufferMemory(256).setFlushInterval(0).setWriterThreads(writerThreads)
+                    .setStatusReporter(new StatusReporter(DEV_NULL, DEV_NULL))
+                    .create();
+
+            for (int i = 0; i < 50; i++) {
+                for (int t = 0; t < 20; t++) {
+                    recordHandler.write(new QName("table" + t), Arrays.asList(
+                            new Pair<>("id", Integer.toString(i)), new Pair<>("wide", i % 10 == 0 ? wideValue : "y")),
+                            new NoCascades());
+                }
+            }
+            recordHandler.closeAllFileStreams();
+
+            long bytesWritten = 0L;
+            for (int t = 0; t < 20; t++) {
+                bytesWritten += Files.size(Paths.get(outDir + "/table" + t + ".csv"));
+                List<String> lines = Files.readAllLines(Paths.get(outDir + "/table" + t + ".csv"));
+                assertEquals(51, lines.size());
+                assertEquals("id|wide", lines.get(0));
+                for (int i = 0; i < 50; i++) {
+                    assertEquals(i + "|" + (i % 10 == 0 ? wideValue : "y"), lines.get(i + 1));
+                }
+            }
+
+            WriterMetrics metrics = recordHandler.getWriterMetrics();
+            assertTrue(metrics.getWrites() > 0);
+            assertEquals(bytesWritten, metrics.getBytesWritten());
+            assertEquals("All queued buffers are written out", 0, metrics.getQueueDepth());
+            assertEquals(writerThreads > 0, metrics.getMaxQueueDepth() > 0);
+        }
+    }
+
+    @Test
+    public void manyTablesWithFewOpenFiles() throws IOException, InterruptedException {
+        // Workers writing their buffers themselves and handing them over to writer threads
+        for (int writerThreads: new int[]{0, 2}) {
+            String outDir = "target/test/results/manyTablesWithFewOpenFiles" + writerThreads;
+            Files.createDirectories(Paths.get(outDir));
+            DelimitedFileWriter recordHandler = new DelimitedFileWriter.DelimitedFileWriterBuilder()
+                    .setDelimiter("|").setOutDir(outDir).setOutFieldsDefined(true)
+                    .setBufferSize(64).setMaxBufferMemory(1024).setFlushInterval(0)
+                    .setWriterThreads(writerThreads).setMaxOpenFiles(5)
+                    .setStatusReporter(new StatusReporter(DEV_NULL, DEV_NULL))
+                    .create();
+
+            // Even tables get many records, odd tables a single record that is only written out on close
+            CountDownLatch latch = new CountDownLatch(3);
+            for (int w = 0; w < 3; w++) {
+                final int worker = w;
+                new Thread(() -> {
+                    try {
+                        for (int i = 0; i < 40; i++) {
+                            for (int t = 0; t < 100; t++) {
+                                if (t % 2 == 0 || i == 0) {
+                                    recordHandler.write(new QName("table" + t), Arrays.asList(
+                                            new Pair<>("worker", Integer.toString(worker)),
+                                            new Pair<>("id", Integer.toString(i))),
+                                            new NoCascades());
+                                }
+                            }
+                        }
+                    } catch (IOException ex) {
+                        throw new RuntimeException(ex);
+                    } finally {
+                        latch.countDown();
+                    }
+                }).start();
+            }
+            latch.await();
+            recordHandler.closeAllFileStreams();
+
+            for (int t = 0; t < 100; t++) {
+                List<String> lines = Files.readAllLines(Paths.get(outDir + "/table" + t + ".csv"));
+                assertEquals("worker|id", lines.get(0));
+                int numRecords = t % 2 == 0 ? 40 : 1;
+                assertEquals(1 + 3 * numRecords, lines.size());
+                for (int w = 0; w < 3; w++) {
+                    List<String> workerLines = new ArrayList<>();
+                    for (String line: lines.subList(1, lines.size())) {
+                        if (line.startsWith(w + "|")) {
+                            workerLines.add(line);
+                        }
+                    }
+                    assertEquals(numRecords, workerLines.size());
+                    for (int i = 0; i < numRecords; i++) {
+                        assertEquals(w + "|" + i, workerLines.get(i));
+                    }
+                }
+            }
+
+            WriterMetrics metrics = recordHandler.getWriterMetrics();
+            assertTrue("Evicted files are reopened", metrics.getFileReopens() > 0);
+            assertTrue(metrics.getFileOpens() > 3 * 100);
+        }
+    }
+
+    @Test
+    public void segmentsRollOverAndAreAnnounced() throws IOException, InterruptedException {
+        // Segments written by the workers and cut when the output is closed
+        for (boolean outFieldsDefined: new boolean[]{true, false}) {
+            String outDir = "target/test/results/segmentsRollOverAndAreAnnounced" + (outFieldsDefined ? "" : "_normalized");
+            Files.createDirectories(Paths.get(outDir));
+            try (Stream<Path> files = Files.list(Paths.get(outDir))) {
+                for (Path file: (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            RecordHandler recordHandler = new DelimitedFileWriter.DelimitedFileWriterBuilder()
+                    .setDelimiter("|").setOutDir(outDir).setOutFieldsDefined(outFieldsDefined)
+                    .setBufferSize(64).setSegmentRecords(30)
+                    .setStatusReporter(new StatusReporter(DEV_NULL, DEV_NULL))
+                    .create();
+            recordHandler.setXmlnsUriToPrefix(Collections.emptyMap());
+
+            writeConcurrently(recordHandler, 3, 100);
+            // Records without fields of their own
+            recordHandler.write(new QName("employees"), Collections.emptyList(), new NoCascades());
+            recordHandler.closeAllFileStreams();
+
+            List<String> manifest = Files.readAllLines(Paths.get(outDir, "segments.manifest"));
+            assertEquals("record_type,file,records,bytes", manifest.get(0));
+            assertEquals("Segments of 30 records from each worker, the last 10 of each packed together",
+                    11, manifest.size());
+
+            Set<String> records = new HashSet<>();
+            for (String entry: manifest.subList(1, manifest.size())) {
+                String[] fields = entry.split(",");
+                assertEquals("employee", fields[0]);
+                assertTrue(fields[1].matches("employee_seg\\d+\\.csv"));
+                Path segment = Paths.get(outDir, fields[1]);
+                List<String> lines = Files.readAllLines(segment);
+                assertEquals("Every segment has a header", "employee-no|employee-name", lines.get(0));
+                assertEquals(Long.parseLong(fields[2]), lines.size() - 1);
+                assertTrue(lines.size() - 1 <= 30);
+                assertEquals(Long.parseLong(fields[3]), Files.size(segment));
+                records.addAll(lines.subList(1, lines.size()));
+            }
+            assertEquals("Every record is in one of the segments", 300, records.size());
+            assertTrue("Parts are not concatenated", !Files.exists(Paths.get(outDir, "employee.csv")));
+            try (Stream<Path> files = Files.list(Paths.get(outDir))) {
+                assertEquals("Only the segments and the manifest are left", 11,
+                        files.filter(path -> !path.getFileName().toString().equals("record_defs.yaml")).count());
+            }
+        }
+    }
+
+    @Test
+    public void quotedValuesSurviveRealignment() throws IOException {
+        String outDir = "target/test/results/quotedValuesSurviveRealignment";
+        Files.createDirectories(Paths.get(outDir));
+        RecordHandler recordHandler = new DelimitedFileWriter.DelimitedFileWriterBuilder()
+                .setDelimiter(",").setOutDir(outDir).setQuoteMode(QuoteMode.QUOTE)
+                .setStatusReporter(new StatusReporter(DEV_NULL, DEV_NULL))
+                .create();
+        recordHandler.setXmlnsUriToPrefix(Collections.emptyMap());
+
+        recordHandler.write(EMPLOYEE, Arrays.asList(
+                new Pair<>("employee-no", "1"), new Pair<>("employee-name", "Smith, John")), new NoCascades());
+        recordHandler.write(EMPLOYEE, Arrays.asList(
+                new Pair<>("employee-no", "2"), new Pair<>("employee-title", "Sales, \"East\"\nRegion")),
+                new NoCascades());
+        recordHandler.closeAllFileStreams();
+
+        List<String> lines = Files.readAllLines(Paths.get(outDir + "/employee.csv"));
+        assertEquals(3, lines.size());
+        assertEquals("employee-no,employee-title,employee-name", lines.get(0));
+        assertEquals("1,,\"Smith, John\"", lines.get(1));
+        assertEquals("2,\"Sales, \"\"East\"\"~Region\",", lines.get(2));
+    }
+
+    @Test
+    public void varyingColumnsNormalizedInDocumentOrder() throws IOException, InterruptedException {
+        for (boolean mergeParts: new boolean[]{true, false}) {
+            String outDir = "target/test/results/varyingColumnsNormalizedInDocumentOrder" + (mergeParts ? "" : "_parts");
+            Files.createDirectories(Paths.get(outDir));
+            RecordHandler recordHandler = new DelimitedFileWriter.DelimitedFileWriterBuilder()
+                    .setDelimiter("|").setOutDir(outDir).setMergeParts(mergeParts).setBufferSize(64)
+                    .setChunkSize(1024).setNormalizerThreads(3)
+                    .setStatusReporter(new StatusReporter(DEV_NULL, DEV_NULL))
+                    .create();
+            recordHandler.setXmlnsUriToPrefix(Collections.emptyMap());
+
+            char[] wide = new char[100000];
+            Arrays.fill(wide, 'x');
+            String wideValue = new String(wide);
+            CountDownLatch latch = new CountDownLatch(2);
+            for (int w = 1; w <= 2; w++) {
+                final String worker = "w" + w;
+                new Thread(() -> {
+                    try {
+                        for (int i = 0; i < 300; i++) {
+                            String id = worker + "-" + i;
+                            List<Pair<String, String>> record;
+                            if (i % 3 == 0) {
+                                record = Arrays.asList(new Pair<>("no", id), new Pair<>("name", "name " + id),
+                                        new Pair<>("dept", "dept " + id));
+                            } else if (i % 3 == 1) {
+                                record = Arrays.asList(new Pair<>("no", id), new Pair<>("dept", "dept " + id));
+                            } else {
+                                record = Arrays.asList(new Pair<>("no", id),
+                                        new Pair<>("name", i == 50 ? wideValue : "name " + id));
+                            }
+                            recordHandler.write(EMPLOYEE, record, new NoCascades());
+                        }
+                    } catch (IOException ex) {
+                        throw new RuntimeException(ex);
+                    } finally {
+                        latch.countDown();
+                    }
+                }).start();
+            }
+            latch.await();
+            recordHandler.closeAllFileStreams();
+
+            List<String> lines = new ArrayList<>();
+            for (String file: mergeParts ? new String[]{"employee.csv"}
+                    : new String[]{"employee_part1.csv", "employee_part2.csv"}) {
+                List<String> fileLines = Files.readAllLines(Paths.get(outDir, file));
+                assertEquals("no|name|dept", fileLines.get(0));
+                lines.addAll(fileLines.subList(1, fileLines.size()));
+            }
+            assertEquals(600, lines.size());
+
+            // Records of each worker appear in the order they were written
+            Map<String, Integer> lastSeen = new HashMap<>();
+            for (String line: lines) {
+                String[] fields = line.split("\\|", -1);
+                assertEquals(3, fields.length);
+                String worker = fields[0].split("-")[0];
+                int i = Integer.parseInt(fields[0].split("-")[1]);
+                assertEquals(lastSeen.getOrDefault(worker, -1) + 1, i);
+                lastSeen.put(worker, i);
+
+                String id = fields[0];
+                assertEquals(i % 3 == 1 ? "" : i == 50 ? wideValue : "name " + id, fields[1]);
+                assertEquals(i % 3 == 2 ? "" : "dept " + id, fields[2]);
+            }
+
+            try (Stream<Path> files = Files.list(Paths.get(outDir))) {
+                assertTrue("Temporary shard files are removed",
+                        files.noneMatch(path -> path.getFileName().toString().startsWith("tmp_")));
+            }
+        }
+    }
+
     @Test
-    public void testSplit() {
-        String[] parts = "someval1|someval2##HEADER>#somekey1|somekey2".split("##HEADER>#");
-        assertEquals("someval1|someval2", parts[0]);
-        assertEquals("somekey1|somekey2", parts[1]);
+    public void singleVariantTableIsCopiedWithoutLayingOut() throws IOException, InterruptedException {
+        for (boolean mergeParts: new boolean[]{true, false}) {
+            String outDir = "target/test/results/singleVariantTableIsCopiedWithoutLayingOut"
+                    + (mergeParts ? "" : "_parts");
+            Files.createDirectories(Paths.get(outDir));
+            RecordHandler recordHandler = new DelimitedFileWriter.DelimitedFileWriterBuilder()
+                    .setDelimiter("|").setOutDir(outDir).setMergeParts(mergeParts).setBufferSize(64)
+                    .setChunkSize(1024)
+                    .setStatusReporter(new StatusReporter(DEV_NULL, DEV_NULL))
+                    .create();
+            recordHandler.setXmlnsUriToPrefix(Collections.emptyMap());
+
+            writeConcurrently(recordHandler, 3, 500);
+            recordHandler.closeAllFileStreams();
+
+            List<String> lines = new ArrayList<>();
+            for (String file: mergeParts ? new String[]{"employee.csv"}
+                    : new String[]{"employee_part1.csv", "employee_part2.csv", "employee_part3.csv"}) {
+                List<String> fileLines = Files.readAllLines(Paths.get(outDir, file));
+                assertEquals("employee-no|employee-name", fileLines.get(0));
+                lines.addAll(fileLines.subList(1, fileLines.size()));
+            }
+            assertEquals(1500, lines.size());
+
+            // Records of each worker are copied whole and in the order they were written
+            Map<String, Integer> lastSeen = new HashMap<>();
+            for (String line: lines) {
+                assertTrue(line, line.matches("w\\d-\\d+\\|name w\\d-\\d+"));
+                String worker = line.split("-")[0];
+                int i = Integer.parseInt(line.split("[-|]")[1]);
+                assertEquals(lastSeen.getOrDefault(worker, -1) + 1, i);
+                lastSeen.put(worker, i);
+            }
+
+            try (Stream<Path> files = Files.list(Paths.get(outDir))) {
+                assertTrue("Temporary shard files are removed",
+                        files.noneMatch(path -> path.getFileName().toString().startsWith("tmp_")));
+            }
+        }
+    }
+
+    static void writeConcurrently(RecordHandler recordHandler, int numWorkers, int numRecords)
+            throws InterruptedException {
+
+        CountDownLatch latch = new CountDownLatch(numWorkers);
+        for (int w = 0; w < numWorkers; w++) {
+            final String worker = "w" + w;
+            new Thread(() -> {
+                try {
+                    for (int i = 0; i < numRecords; i++) {
+                        String id = worker + "-" + i;
+                        recordHandler.write(EMPLOYEE, Arrays.asList(
+                                new Pair<>("employee-no", id), new Pair<>("employee-name", "name " + id)),
+                                new NoCascades());
+                    }
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                } finally {
+                    latch.countDown();
+                }
+            }).start();
+        }
+        latch.await();
+    }
+
+    static class NoCascades implements CascadedAncestorFields {
+        @Override
+        public Iterable<Pair<String, String>> getCascadedAncestorFields() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public QName recordName() {
+            return EMPLOYEE;
+        }
+
+        @Override
+        public RecordTypeHierarchy parentRecordType() {
+            return this;
+        }
+
+        @Override
+        public int recordLevel() {
+            return 1;
+        }
     }
 }
@@ -0,0 +1,139 @@
+package com.karbherin.flatterxml.output;
+
+import com.karbherin.flatterxml.AppConstants.QuoteMode;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class FieldEncoderTest {
+
+    private static final String OUT_DIR = "target/test/results/FieldEncoderTest";
+
+    @Test
+    public void newlinesReplaced() throws IOException {
+        FieldEncoder encoder = new FieldEncoder("|", "~", QuoteMode.NONE, StandardCharsets.UTF_8);
+        assertEquals("line1~line2~line3\rline4~", encode(encoder, "line1\nline2\r\nline3\rline4\n"));
+    }
+
+    @Test
+    public void noQuoting() throws IOException {
+        FieldEncoder encoder = new FieldEncoder("|", "~", QuoteMode.NONE, StandardCharsets.UTF_8);
+        assertEquals("a|b \"c\" \\d", encode(encoder, "a|b \"c\" \\d"));
+    }
+
+    @Test
+    public void rfc4180Quoting() throws IOException {
+        FieldEncoder encoder = new FieldEncoder(",", "~", QuoteMode.QUOTE, StandardCharsets.UTF_8);
+        assertEquals("plain value", encode(encoder, "plain value"));
+        assertEquals("\"Smith, John\"", encode(encoder, "Smith, John"));
+        assertEquals("\"6'2\"\" tall\"", encode(encoder, "6'2\" tall"));
+        assertEquals("\"Zoë, \"\"Zed\"\"\"", encode(encoder, "Zoë, \"Zed\""));
+    }
+
+    @Test
+    public void escaping() throws IOException {
+        FieldEncoder encoder = new FieldEncoder("||", "~", QuoteMode.ESCAPE, StandardCharsets.UTF_8);
+        assertEquals("a\\||b|c\\\\d\"e", encode(encoder, "a||b|c\\d\"e"));
+    }
+
+    @Test
+    public void nonAsciiCharacters() throws IOException {
+        String value = "Café – 東京 😀 naïve";
+        FieldEncoder encoder = new FieldEncoder("|", "~", QuoteMode.QUOTE, StandardCharsets.UTF_8);
+        assertEquals(value, encode(encoder, value));
+
+        Charset latin1 = StandardCharsets.ISO_8859_1;
+        encoder = new FieldEncoder("|", "~", QuoteMode.NONE, latin1);
+        assertArrayEquals("Café|東京".getBytes(latin1), encodeBytes(encoder, "Café|東京"));
+
+        Charset utf16 = StandardCharsets.UTF_16BE;
+        encoder = new FieldEncoder("|", "~", QuoteMode.QUOTE, utf16);
+        assertArrayEquals("\"a|b\"\"c\"\"~é\"".getBytes(utf16), encodeBytes(encoder, "a|b\"c\"\né"));
+    }
+
+    @Test
+    public void longValuesAcrossEncoderRuns() throws IOException {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            value.append("é😀");
+        }
+        FieldEncoder encoder = new FieldEncoder("|", "~", QuoteMode.NONE, StandardCharsets.UTF_8);
+        assertEquals(value.toString(), encode(encoder, value.toString()));
+    }
+
+    @Test
+    public void numbers() throws IOException {
+        FieldEncoder encoder = new FieldEncoder("|", "~", QuoteMode.NONE, StandardCharsets.UTF_8);
+        assertEquals("0", encode(encoder, 0));
+        assertEquals("2147483647", encode(encoder, Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void splitRespectsQuotesAndEscapes() {
+        FieldEncoder quoting = new FieldEncoder(",", "~", QuoteMode.QUOTE, StandardCharsets.UTF_8);
+        assertArrayEquals(new String[]{"a", "\"b,c\"", "\"d\"\",e\"", ""},
+                split(quoting, "a,\"b,c\",\"d\"\",e\",", 4));
+
+        FieldEncoder escaping = new FieldEncoder("||", "~", QuoteMode.ESCAPE, StandardCharsets.UTF_8);
+        assertArrayEquals(new String[]{"a\\||b", "c\\\\", "d||e"}, split(escaping, "a\\||b||c\\\\||d||e", 3));
+    }
+
+    private static String[] split(FieldEncoder encoder, String record, int numFields) {
+        byte[] rec = ("#" + record).getBytes(StandardCharsets.UTF_8);
+        int[] starts = new int[numFields];
+        int[] ends = new int[numFields];
+        int fields = encoder.split(ByteBuffer.wrap(rec), 1, rec.length, starts, ends);
+
+        String[] values = new String[fields];
+        for (int i = 0; i < fields; i++) {
+            values[i] = new String(rec, starts[i], ends[i] - starts[i], StandardCharsets.UTF_8);
+        }
+        return values;
+    }
+
+    private static String encode(FieldEncoder encoder, String value) throws IOException {
+        return new String(encodeBytes(encoder, value), StandardCharsets.UTF_8);
+    }
+
+    private static String encode(FieldEncoder encoder, int num) throws IOException {
+        OutputShard shard = newShard();
+        shard.beginRecord();
+        encoder.encode(num, shard);
+        shard.endRecord();
+        shard.close();
+        return new String(readAndDelete(shard.path), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] encodeBytes(FieldEncoder encoder, String value) throws IOException {
+        OutputShard shard = newShard();
+        shard.beginRecord();
+        encoder.encode(value, shard);
+        shard.endRecord();
+        shard.close();
+        return readAndDelete(shard.path);
+    }
+
+    private static byte[] readAndDelete(Path path) throws IOException {
+        byte[] bytes = Files.readAllBytes(path);
+        Files.delete(path);
+        return bytes;
+    }
+
+    private static OutputShard newShard() throws IOException {
+        Files.createDirectories(Paths.get(OUT_DIR));
+        Path path = Files.createTempFile(Paths.get(OUT_DIR), "field", ".csv");
+        // Small buffers to have values span buffer growth
+        ShardBuffers buffers = new ShardBuffers(new ByteBufferPool(16, 1024));
+        return new OutputShard(1, path, new ShardContext(buffers, new WriterMetrics(), new ChannelPool(1), null,
+                0L, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE), null);
+    }
+}
@@ -0,0 +1,113 @@
+package com.karbherin.flatterxml.output;
+
+import com.karbherin.flatterxml.model.Pair;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HeaderVariantsTest {
+
+    private static final List<Pair<String, String>> NONE = Collections.emptyList();
+
+    @Test
+    public void fingerprintFollowsColumnOrder() {
+        assertEquals(fingerprint("a", "b", "c"), fingerprint("a", "b", "c"));
+        assertNotEquals(fingerprint("a", "b", "c"), fingerprint("a", "c", "b"));
+        assertNotEquals(fingerprint("ab", "c"), fingerprint("a", "bc"));
+        assertNotEquals(fingerprint("a"), fingerprint("a", ""));
+    }
+
+    @Test
+    public void sameColumnsSameVariant() {
+        HeaderVariants variants = new HeaderVariants();
+        AtomicInteger ids = new AtomicInteger();
+        HeaderVariant[] recent = new HeaderVariant[HeaderVariants.RECENT_VARIANTS];
+
+        HeaderVariant v1 = variantOf(variants, recent, ids, fields("a", "b"), fields("p.x"));
+        HeaderVariant v2 = variantOf(variants, recent, ids, fields("a"), fields("p.x"));
+        HeaderVariant v3 = variantOf(variants, recent, ids, fields("a", "b"), fields("p.x"));
+
+        assertSame(v1, v3);
+        assertNotSame(v1, v2);
+        assertArrayEquals(new String[]{"a", "b", "p.x"}, v1.columns);
+        assertEquals(2, variants.all().size());
+        assertSame("Most recently seen variant first", v1, recent[0]);
+        assertSame(v2, recent[1]);
+    }
+
+    @Test
+    public void collidingFingerprintsAreToldApart() {
+        HeaderVariants variants = new HeaderVariants();
+        AtomicInteger ids = new AtomicInteger();
+        HeaderVariant[] recent = new HeaderVariant[HeaderVariants.RECENT_VARIANTS];
+
+        // Force a collision by using the same fingerprint for different columns
+        HeaderVariant v1 = variants.variantOf(42L, fields("a", "b"), NONE, recent, ids::incrementAndGet);
+        HeaderVariant v2 = variants.variantOf(42L, fields("c"), NONE, recent, ids::incrementAndGet);
+        Arrays.fill(recent, null);
+        HeaderVariant v3 = variants.variantOf(42L, fields("a", "b"), NONE, recent, ids::incrementAndGet);
+        HeaderVariant v4 = variants.variantOf(42L, fields("c"), NONE, recent, ids::incrementAndGet);
+
+        assertNotSame(v1, v2);
+        assertSame(v1, v3);
+        assertSame(v2, v4);
+        assertEquals(2, ids.get());
+    }
+
+    @Test
+    public void concurrentWorkersShareVariantsAndCounts() throws InterruptedException {
+        HeaderVariants variants = new HeaderVariants();
+        AtomicInteger ids = new AtomicInteger();
+        int numWorkers = 4;
+        int numRecords = 10000;
+
+        CountDownLatch latch = new CountDownLatch(numWorkers);
+        for (int w = 0; w < numWorkers; w++) {
+            new Thread(() -> {
+                HeaderVariant[] recent = new HeaderVariant[HeaderVariants.RECENT_VARIANTS];
+                for (int i = 0; i < numRecords; i++) {
+                    List<Pair<String, String>> record = i % 3 == 0 ? fields("a", "b") : fields("a", "c", "d");
+                    variantOf(variants, recent, ids, record, NONE).countRow();
+                }
+                latch.countDown();
+            }).start();
+        }
+        latch.await();
+
+        assertEquals(2, ids.get());
+        long rows = variants.all().stream().mapToLong(HeaderVariant::getRows).sum();
+        assertEquals(numWorkers * numRecords, rows);
+    }
+
+    private static HeaderVariant variantOf(HeaderVariants variants, HeaderVariant[] recent, AtomicInteger ids,
+                                           List<Pair<String, String>> fields, List<Pair<String, String>> appendix) {
+        long fingerprint = HeaderVariant.fingerprint();
+        for (Pair<String, String> field: fields) {
+            fingerprint = HeaderVariant.fingerprint(fingerprint, field.getKey());
+        }
+        for (Pair<String, String> field: appendix) {
+            fingerprint = HeaderVariant.fingerprint(fingerprint, field.getKey());
+        }
+        return variants.variantOf(fingerprint, fields, appendix, recent, ids::incrementAndGet);
+    }
+
+    private static long fingerprint(String... columns) {
+        long fingerprint = HeaderVariant.fingerprint();
+        for (String column: columns) {
+            fingerprint = HeaderVariant.fingerprint(fingerprint, column);
+        }
+        return fingerprint;
+    }
+
+    private static List<Pair<String, String>> fields(String... columns) {
+        List<Pair<String, String>> fields = new ArrayList<>();
+        for (String column: columns) {
+            fields.add(new Pair<>(column, "value"));
+        }
+        return fields;
+    }
+}
@@ -0,0 +1,193 @@
+package com.karbherin.flatterxml.output;
+
+import com.karbherin.flatterxml.model.Pair;
+import org.junit.Test;
+
+import javax.xml.namespace.QName;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JdbcWriterTest {
+
+    private static final PrintStream DEV_NULL = new PrintStream(new java.io.ByteArrayOutputStream());
+
+    @Test
+    public void tablesAreCreatedAndDiscoveredColumnsAdded() throws Exception {
+        String url = "jdbc:h2:mem:tablesAreCreated;DB_CLOSE_DELAY=-1";
+        RecordHandler recordHandler = new JdbcWriter.JdbcWriterBuilder()
+                .setJdbcUrl(url).setBatchRows(3).setCommitRows(5).setWriterThreads(2)
+                .setStatusReporter(new StatusReporter(DEV_NULL, DEV_NULL))
+                .create();
+
+        for (int i = 0; i < 10; i++) {
+            List<Pair<String, String>> record = new ArrayList<>();
+            record.add(new Pair<>("employee-no", "e" + i));
+            if (i >= 4) {
+                record.add(new Pair<>("phone", "p" + i));
+                record.add(new Pair<>("phone", "q" + i));
+            }
+            final String dept = "d" + i / 5;
+            recordHandler.write(new QName("employee"), record, new DelimitedFileWriterTest.NoCascades() {
+                @Override
+                public Iterable<Pair<String, String>> getCascadedAncestorFields() {
+                    return Collections.singletonList(new Pair<>("dept.id", dept));
+                }
+            });
+        }
+        recordHandler.write(new QName("employee"), Collections.emptyList(), new DelimitedFileWriterTest.NoCascades());
+        recordHandler.closeAllFileStreams();
+
+        try (Connection conn = DriverManager.getConnection(url);
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT * FROM \"employee\" ORDER BY \"employee-no\"")) {
+
+            ResultSetMetaData meta = rs.getMetaData();
+            List<String> columns = new ArrayList<>();
+            for (int i = 1; i <= meta.getColumnCount(); i++) {
+                columns.add(meta.getColumnName(i));
+            }
+            assertEquals(Arrays.asList("employee-no", "dept.id", "phone", "phone#2"), columns);
+
+            rs.next();
+            assertEquals("e0", rs.getString("employee-no"));
+            assertEquals("d0", rs.getString("dept.id"));
+            assertNull(rs.getString("phone"));
+            for (int i = 0; i < 6; i++) {
+                rs.next();
+            }
+            assertEquals("e6", rs.getString("employee-no"));
+            assertEquals("d1", rs.getString("dept.id"));
+            assertEquals("p6", rs.getString("phone"));
+            assertEquals("q6", rs.getString("phone#2"));
+            int rows = 7;
+            while (rs.next()) {
+                rows++;
+            }
+            assertEquals(10, rows);
+        }
+    }
+
+    @Test
+    public void tablesAreLoadedInParallelByWorkers() throws Exception {
+        String url = "jdbc:h2:mem:tablesAreLoadedInParallel;DB_CLOSE_DELAY=-1";
+        RecordHandler recordHandler = new JdbcWriter.JdbcWriterBuilder()
+                .setJdbcUrl(url).setBatchRows(7).setCommitRows(20).setWriterThreads(2)
+                .setStatusReporter(new StatusReporter(DEV_NULL, DEV_NULL))
+                .create();
+
+        ExecutorService workers = Executors.newFixedThreadPool(4);
+        List<Future<?>> results = new ArrayList<>();
+        for (int w = 0; w < 4; w++) {
+            final int worker = w;
+            results.add(workers.submit(() -> {
+                for (int i = 0; i < 100; i++) {
+                    recordHandler.write(new QName(i % 2 == 0 ? "phone" : "address"), Collections.singletonList(
+                            new Pair<>("id", worker + "-" + i)), new DelimitedFileWriterTest.NoCascades());
+                }
+                return null;
+            }));
+        }
+        for (Future<?> result: results) {
+            result.get();
+        }
+        workers.shutdown();
+        recordHandler.closeAllFileStreams();
+
+        assertEquals(2, recordHandler.getFilesWritten().size());
+        try (Connection conn = DriverManager.getConnection(url);
+             Statement stmt = conn.createStatement()) {
+            for (String table: Arrays.asList("phone", "address")) {
+                try (ResultSet rs = stmt.executeQuery(
+                        "SELECT COUNT(*), COUNT(DISTINCT \"id\") FROM \"" + table + "\"")) {
+                    rs.next();
+                    assertEquals(200, rs.getInt(1));
+                    assertEquals(200, rs.getInt(2));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void failedBatchIsReported() throws Exception {
+        String url = "jdbc:h2:mem:failedBatchIsReported;DB_CLOSE_DELAY=-1";
+        Connection keepAlive = DriverManager.getConnection(url);
+        try (Statement stmt = keepAlive.createStatement()) {
+            stmt.executeUpdate("CREATE TABLE \"employee\" (\"employee-no\" INT)");
+        }
+
+        RecordHandler recordHandler = new JdbcWriter.JdbcWriterBuilder()
+                .setConnectionFactory(() -> DriverManager.getConnection(url))
+                .setStatusReporter(new StatusReporter(DEV_NULL, DEV_NULL))
+                .create();
+        recordHandler.write(new QName("employee"), Collections.singletonList(new Pair<>("employee-no", "not a number")),
+                new DelimitedFileWriterTest.NoCascades());
+        try {
+            recordHandler.closeAllFileStreams();
+            fail("Value cannot be loaded into an integer column");
+        } catch (IOException ex) {
+            assertTrue(ex.getCause() instanceof SQLException);
+        } finally {
+            keepAlive.close();
+        }
+    }
+
+    @Test
+    public void failedBatchIsRolledBackAndStopsTheTable() throws Exception {
+        String url = "jdbc:h2:mem:failedBatchIsRolledBack;DB_CLOSE_DELAY=-1";
+        Connection keepAlive = DriverManager.getConnection(url);
+        try (Statement stmt = keepAlive.createStatement()) {
+            stmt.executeUpdate("CREATE TABLE \"employee\" (\"employee-no\" INT)");
+        }
+
+        RecordHandler recordHandler = new JdbcWriter.JdbcWriterBuilder()
+                .setConnectionFactory(() -> DriverManager.getConnection(url))
+                .setBatchRows(2).setCommitRows(2).setWriterThreads(1)
+                .setStatusReporter(new StatusReporter(DEV_NULL, DEV_NULL))
+                .create();
+        QName employee = new QName("employee");
+        for (String employeeNo: new String[]{"1", "2", "3", "not a number"}) {
+            recordHandler.write(employee, Collections.singletonList(new Pair<>("employee-no", employeeNo)),
+                    new DelimitedFileWriterTest.NoCascades());
+        }
+
+        // Failure reaches the workers writing to the table, once the failed batch is executed
+        boolean failed = false;
+        for (int i = 0; i < 100_000 && !failed; i++) {
+            try {
+                recordHandler.write(employee, Collections.singletonList(new Pair<>("employee-no", "9")),
+                        new DelimitedFileWriterTest.NoCascades());
+            } catch (IOException ex) {
+                failed = true;
+                assertTrue(ex.getCause() instanceof SQLException);
+            }
+        }
+        assertTrue("Records are not taken after a batch of the table failed", failed);
+        try {
+            recordHandler.closeAllFileStreams();
+            fail("Table failed to load");
+        } catch (IOException ex) {
+            assertTrue(ex.getCause() instanceof SQLException);
+        }
+
+        try (Statement stmt = keepAlive.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT \"employee-no\" FROM \"employee\" ORDER BY 1")) {
+            List<Integer> loaded = new ArrayList<>();
+            while (rs.next()) {
+                loaded.add(rs.getInt(1));
+            }
+            assertEquals("Only the batch committed before the failure is loaded", Arrays.asList(1, 2), loaded);
+        } finally {
+            keepAlive.close();
+        }
+    }
+}
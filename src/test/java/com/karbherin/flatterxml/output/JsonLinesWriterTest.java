@@ -0,0 +1,201 @@
+package com.karbherin.flatterxml.output;
+
+import com.karbherin.flatterxml.model.Pair;
+import com.karbherin.flatterxml.model.RecordTypeHierarchy;
+import org.junit.Test;
+
+import javax.xml.namespace.QName;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JsonLinesWriterTest {
+
+    private static final PrintStream DEV_NULL = new PrintStream(new java.io.ByteArrayOutputStream());
+    private static final QName PHONE = new QName("phone");
+
+    @Test
+    public void valuesAreEscapedAndRepeatedKeysSuffixed() throws IOException {
+        String outDir = "target/test/results/jsonValuesAreEscapedAndRepeatedKeysSuffixed";
+        Files.createDirectories(Paths.get(outDir));
+        RecordHandler recordHandler = new JsonLinesWriter.JsonLinesWriterBuilder()
+                .setOutDir(outDir).setBufferSize(16)
+                .setStatusReporter(new StatusReporter(DEV_NULL, DEV_NULL))
+                .create();
+
+        recordHandler.write(PHONE, Arrays.asList(
+                new Pair<>("number", "say \"hi\"\\\n\t\u0001\u007f"),
+                new Pair<>("type", "caf\u00e9 \u20ac \ud83d\ude00 \ud83d"),
+                new Pair<>("type", "")),
+                cascades(new Pair<>("employee.id", "e1")));
+        recordHandler.write(PHONE, Collections.emptyList(), cascades(new Pair<>("employee.id", "e2")));
+        recordHandler.closeAllFileStreams();
+
+        assertEquals(Collections.singletonList(
+                "{\"number\":\"say \\\"hi\\\"\\\\\\n\\t\\u0001\\u007f\"," +
+                        "\"type\":\"caf\u00e9 \u20ac \ud83d\ude00 \\ud83d\",\"type#2\":\"\",\"employee.id\":\"e1\"}"),
+                Files.readAllLines(Paths.get(outDir, "phone.jsonl"), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void cascadedFieldsAreNestedByAncestor() throws IOException {
+        String outDir = "target/test/results/jsonCascadedFieldsAreNestedByAncestor";
+        Files.createDirectories(Paths.get(outDir));
+        RecordHandler recordHandler = new JsonLinesWriter.JsonLinesWriterBuilder()
+                .setOutDir(outDir).setNestCascades(true)
+                .setStatusReporter(new StatusReporter(DEV_NULL, DEV_NULL))
+                .create();
+
+        Hierarchy root = new Hierarchy(new QName("http://example.com", "employees", "emp"), null);
+        Hierarchy employee = new Hierarchy(new QName("employee.info"), root);
+        Hierarchy phone = new Hierarchy(PHONE, employee);
+        phone.cascades = Arrays.asList(
+                new Pair<>("employee.info.id", "e1"),
+                new Pair<>("employee.info.name", "Jo"),
+                new Pair<>("emp:employees.dept", "d1"),
+                new Pair<>("other.field", "x"));
+        recordHandler.write(PHONE, Collections.singletonList(new Pair<>("number", "123")), phone);
+        recordHandler.closeAllFileStreams();
+
+        assertEquals(Collections.singletonList(
+                "{\"number\":\"123\",\"employee.info\":{\"id\":\"e1\",\"name\":\"Jo\"}," +
+                        "\"emp:employees\":{\"dept\":\"d1\"},\"other.field\":\"x\"}"),
+                Files.readAllLines(Paths.get(outDir, "phone.jsonl"), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void partsOfWorkersAreConcatenated() throws Exception {
+        String outDir = "target/test/results/jsonPartsOfWorkersAreConcatenated";
+        Files.createDirectories(Paths.get(outDir));
+        RecordHandler recordHandler = new JsonLinesWriter.JsonLinesWriterBuilder()
+                .setOutDir(outDir).setBufferSize(64).setWriterThreads(2)
+                .setStatusReporter(new StatusReporter(DEV_NULL, DEV_NULL))
+                .create();
+
+        ExecutorService workers = Executors.newFixedThreadPool(4);
+        List<Future<?>> results = new ArrayList<>();
+        for (int w = 0; w < 4; w++) {
+            final int worker = w;
+            results.add(workers.submit(() -> {
+                for (int i = 0; i < 100; i++) {
+                    recordHandler.write(PHONE, Collections.singletonList(
+                            new Pair<>("number", worker + "-" + i)), new DelimitedFileWriterTest.NoCascades());
+                }
+                return null;
+            }));
+        }
+        for (Future<?> result: results) {
+            result.get();
+        }
+        workers.shutdown();
+        recordHandler.closeAllFileStreams();
+
+        List<String> lines = Files.readAllLines(Paths.get(outDir, "phone.jsonl"), StandardCharsets.UTF_8);
+        assertEquals(400, lines.size());
+        for (String line: lines) {
+            assertTrue(line, line.matches("\\{\"number\":\"\\d-\\d+\"}"));
+        }
+        assertEquals(1, Files.list(Paths.get(outDir)).count());
+    }
+
+    @Test
+    public void recordsRollOverIntoSegments() throws Exception {
+        String outDir = "target/test/results/jsonRecordsRollOverIntoSegments";
+        Files.createDirectories(Paths.get(outDir));
+        try (Stream<Path> files = Files.list(Paths.get(outDir))) {
+            for (Path file: (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        RecordHandler recordHandler = new JsonLinesWriter.JsonLinesWriterBuilder()
+                .setOutDir(outDir).setBufferSize(64).setSegmentRecords(10)
+                .setStatusReporter(new StatusReporter(DEV_NULL, DEV_NULL))
+                .create();
+
+        ExecutorService workers = Executors.newFixedThreadPool(2);
+        List<Future<?>> results = new ArrayList<>();
+        for (int w = 0; w < 2; w++) {
+            final int worker = w;
+            results.add(workers.submit(() -> {
+                for (int i = 0; i < 25; i++) {
+                    recordHandler.write(PHONE, Collections.singletonList(
+                            new Pair<>("number", worker + "-" + i)), new DelimitedFileWriterTest.NoCascades());
+                }
+                return null;
+            }));
+        }
+        for (Future<?> result: results) {
+            result.get();
+        }
+        workers.shutdown();
+        recordHandler.closeAllFileStreams();
+
+        List<String> manifest = Files.readAllLines(Paths.get(outDir, "segments.manifest"));
+        assertEquals("Segments of 10 records from each worker, the last 5 of each packed together",
+                6, manifest.size());
+        Set<String> records = new HashSet<>();
+        for (String entry: manifest.subList(1, manifest.size())) {
+            String[] fields = entry.split(",");
+            assertEquals("phone", fields[0]);
+            Path segment = Paths.get(outDir, fields[1]);
+            List<String> lines = Files.readAllLines(segment, StandardCharsets.UTF_8);
+            assertEquals("10", fields[2]);
+            assertEquals(10, lines.size());
+            assertEquals(Long.parseLong(fields[3]), Files.size(segment));
+            records.addAll(lines);
+        }
+        assertEquals("Every record is in one of the segments", 50, records.size());
+        assertEquals("Only the segments and the manifest are left", 6, Files.list(Paths.get(outDir)).count());
+    }
+
+    private static DelimitedFileWriterTest.NoCascades cascades(Pair<String, String> field) {
+        return new DelimitedFileWriterTest.NoCascades() {
+            @Override
+            public Iterable<Pair<String, String>> getCascadedAncestorFields() {
+                return Collections.singletonList(field);
+            }
+        };
+    }
+
+    private static final class Hierarchy extends DelimitedFileWriterTest.NoCascades {
+        private final QName name;
+        private final RecordTypeHierarchy parent;
+        private List<Pair<String, String>> cascades = Collections.emptyList();
+
+        private Hierarchy(QName name, RecordTypeHierarchy parent) {
+            this.name = name;
+            this.parent = parent == null ? this : parent;
+        }
+
+        @Override
+        public Iterable<Pair<String, String>> getCascadedAncestorFields() {
+            return cascades;
+        }
+
+        @Override
+        public QName recordName() {
+            return name;
+        }
+
+        @Override
+        public RecordTypeHierarchy parentRecordType() {
+            return parent;
+        }
+    }
+}
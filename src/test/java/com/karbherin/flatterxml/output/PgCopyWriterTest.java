@@ -0,0 +1,200 @@
+package com.karbherin.flatterxml.output;
+
+import com.karbherin.flatterxml.model.Pair;
+import com.karbherin.flatterxml.model.RecordTypeHierarchy;
+import org.junit.Test;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.karbherin.flatterxml.helper.XmlHelpers.parseXsds;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PgCopyWriterTest {
+
+    private static final PrintStream DEV_NULL = new PrintStream(new java.io.ByteArrayOutputStream());
+    private static final String EMP_NS = "http://kbps.com/emp";
+    private static final QName PHONE = new QName(EMP_NS, "phone");
+
+    @Test
+    public void typedTableMatchesGoldenFile() throws Exception {
+        String outDir = "target/test/results/pgCopyTypedTableMatchesGoldenFile";
+        Files.createDirectories(Paths.get(outDir));
+        RecordHandler recordHandler = new PgCopyWriter.PgCopyWriterBuilder()
+                .setOutDir(outDir)
+                .setXsds(parseXsds(new String[] {"src/test/resources/emp.xsd"}))
+                .setStatusReporter(new StatusReporter(DEV_NULL, DEV_NULL))
+                .create();
+
+        writePhone(recordHandler, Arrays.asList(new Pair<>("phone-num", "1234567890"),
+                new Pair<>("phone-type", "landline")), "00000001");
+        writePhone(recordHandler, Arrays.asList(new Pair<>("phone-num", " "),
+                new Pair<>("phone-type", "cell"), new Pair<>("phone-type", "office")), "2");
+        writePhone(recordHandler, Collections.singletonList(new Pair<>("phone-num", "-0.05")), "");
+        recordHandler.closeAllFileStreams();
+
+        assertArrayEquals(Files.readAllBytes(Paths.get("src/test/resources/pgcopy/phone.pgcopy")),
+                Files.readAllBytes(Paths.get(outDir, "phone.pgcopy")));
+        assertArrayEquals(Files.readAllBytes(Paths.get("src/test/resources/pgcopy/phone.sql")),
+                Files.readAllBytes(Paths.get(outDir, "phone.sql")));
+        assertFalse("Spilled records are removed", Files.exists(Paths.get(outDir, "tmp_phone.pgcopy")));
+    }
+
+    @Test
+    public void invalidValueOfTypedColumnIsReported() throws Exception {
+        String outDir = "target/test/results/pgCopyInvalidValueOfTypedColumnIsReported";
+        Files.createDirectories(Paths.get(outDir));
+        RecordHandler recordHandler = new PgCopyWriter.PgCopyWriterBuilder()
+                .setOutDir(outDir)
+                .setXsds(parseXsds(new String[] {"src/test/resources/emp.xsd"}))
+                .setStatusReporter(new StatusReporter(DEV_NULL, DEV_NULL))
+                .create();
+        try {
+            writePhone(recordHandler, Collections.singletonList(new Pair<>("phone-num", "12-34")), "1");
+            fail("Phone number is an integer");
+        } catch (IOException ex) {
+            assertEquals("Value '12-34' of phone-num in phone is not a valid numeric", ex.getMessage());
+        }
+    }
+
+    @Test
+    public void typedRecordsMatchGoldenFileAndCountInvalidValues() throws Exception {
+        String outDir = "target/test/results/pgCopyTypedRecordsMatchGoldenFile";
+        Files.createDirectories(Paths.get(outDir));
+        PgCopyWriter recordHandler = new PgCopyWriter.PgCopyWriterBuilder()
+                .setOutDir(outDir)
+                .setXsds(parseXsds(new String[] {"src/test/resources/emp.xsd"}))
+                .setStatusReporter(new StatusReporter(DEV_NULL, DEV_NULL))
+                .create();
+
+        writeTypedPhone(recordHandler, Arrays.asList(new Pair<>("phone-num", "1234567890"),
+                new Pair<>("phone-type", "landline")), "00000001");
+        writeTypedPhone(recordHandler, Arrays.asList(new Pair<>("phone-num", " "),
+                new Pair<>("phone-type", "cell"), new Pair<>("phone-type", "office")), "2");
+        writeTypedPhone(recordHandler, Collections.singletonList(new Pair<>("phone-num", "-0.05")), "");
+        recordHandler.closeAllFileStreams();
+
+        assertArrayEquals(Files.readAllBytes(Paths.get("src/test/resources/pgcopy/phone.pgcopy")),
+                Files.readAllBytes(Paths.get(outDir, "phone.pgcopy")));
+        assertEquals(0L, recordHandler.getConversionFailures().count("phone", "phone-num"));
+    }
+
+    @Test
+    public void invalidTypedValuesAreWrittenAsNullsAndCounted() throws Exception {
+        String outDir = "target/test/results/pgCopyInvalidTypedValuesAreWrittenAsNulls";
+        Files.createDirectories(Paths.get(outDir));
+        PgCopyWriter recordHandler = new PgCopyWriter.PgCopyWriterBuilder()
+                .setOutDir(outDir)
+                .setXsds(parseXsds(new String[] {"src/test/resources/emp.xsd"}))
+                .setStatusReporter(new StatusReporter(DEV_NULL, DEV_NULL))
+                .create();
+
+        // Invalid values are written as NULLs and counted, not failing the output
+        writeTypedPhone(recordHandler, Collections.singletonList(new Pair<>("phone-num", "12-34")), "x1");
+        writeTypedPhone(recordHandler, Collections.singletonList(new Pair<>("phone-num", "12")), "x2");
+        recordHandler.closeAllFileStreams();
+
+        assertEquals(1L, recordHandler.getConversionFailures().count("phone", "phone-num"));
+        assertEquals(2L, recordHandler.getConversionFailures().count("phone", "employee.employee-no"));
+        assertTrue("Records with invalid values are written", Files.size(Paths.get(outDir, "phone.pgcopy")) > 0);
+    }
+
+    @Test
+    public void typedValuesAreEncodedAsTheirText() throws IOException {
+        String[][] typedValues = {{"boolean", "0"}, {"short", "-2"}, {"int", "65536"}, {"long", "4294967296"},
+                {"float", "1.5"}, {"double", "-INF"}, {"date", "2000-02-01Z"}, {"decimal", "-12345.678"},
+                {"integer", "0"}, {"int", ""}, {"string", " "}, {"int", "x"}};
+        for (String[] typedValue: typedValues) {
+            QName xsdType = new QName(XMLConstants.W3C_XML_SCHEMA_NS_URI, typedValue[0]);
+            TypedRecord record = new TypedRecord("test", column -> ValueType.of(xsdType), new ConversionFailures());
+            record.set(Collections.singletonList(new Pair<>("value", typedValue[1])), Collections.emptyList());
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            PgCopyType.of(xsdType).encode(record, 0, new DataOutputStream(bytes));
+            if (typedValue[1].equals("x")) {
+                assertArrayEquals("Invalid value is a NULL",
+                        new byte[] {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF}, bytes.toByteArray());
+            } else {
+                assertArrayEquals(typedValue[0], encode(typedValue[0], typedValue[1]), bytes.toByteArray());
+            }
+        }
+    }
+
+    @Test
+    public void valuesAreEncodedInTheirTypes() throws IOException {
+        assertArrayEquals(new byte[] {0, 0, 0, 1, 1}, encode("boolean", "true"));
+        assertArrayEquals(new byte[] {0, 0, 0, 2, (byte) 0xFF, (byte) 0xFE}, encode("short", "-2"));
+        assertArrayEquals(new byte[] {0, 0, 0, 4, 0, 1, 0, 0}, encode("int", "65536"));
+        assertArrayEquals(new byte[] {0, 0, 0, 8, 0, 0, 0, 1, 0, 0, 0, 0}, encode("long", "4294967296"));
+        assertArrayEquals(new byte[] {0, 0, 0, 4, 0x3F, (byte) 0xC0, 0, 0}, encode("float", "1.5"));
+        assertArrayEquals(new byte[] {0, 0, 0, 8, 0x7F, (byte) 0xF0, 0, 0, 0, 0, 0, 0}, encode("double", "INF"));
+        // 2000-02-01 is 31 days after the PostgreSQL epoch
+        assertArrayEquals(new byte[] {0, 0, 0, 4, 0, 0, 0, 31}, encode("date", "2000-02-01Z"));
+        // 12345.678 is 1 2345 . 6780 in base 10000 with weight 1 and 3 decimal digits
+        assertArrayEquals(new byte[] {0, 0, 0, 14, 0, 3, 0, 1, 0, 0, 0, 3, 0, 1, 0x09, 0x29, 0x1A, 0x7C},
+                encode("decimal", "12345.678"));
+        assertArrayEquals(new byte[] {0, 0, 0, 8, 0, 0, 0, 0, 0, 0, 0, 0}, encode("integer", "0"));
+        assertArrayEquals(new byte[] {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF}, encode("int", ""));
+        assertArrayEquals(new byte[] {0, 0, 0, 0}, encode("string", ""));
+        assertEquals(PgCopyType.TEXT, PgCopyType.of(new QName("http://example.com", "int")));
+    }
+
+    private static byte[] encode(String xsdType, String value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PgCopyType.of(new QName(XMLConstants.W3C_XML_SCHEMA_NS_URI, xsdType))
+                .encode(value, new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    private static void writePhone(RecordHandler recordHandler, List<Pair<String, String>> fields,
+                                   String employeeNo) throws IOException {
+        recordHandler.write(PHONE, fields, phoneCascades(employeeNo));
+    }
+
+    private static void writeTypedPhone(TypedRecordHandler recordHandler, List<Pair<String, String>> fields,
+                                        String employeeNo) throws IOException {
+        DelimitedFileWriterTest.NoCascades cascades = phoneCascades(employeeNo);
+        TypedRecord record = recordHandler.newTypedRecord(PHONE, cascades);
+        record.set(fields, cascades.getCascadedAncestorFields());
+        recordHandler.write(PHONE, record, cascades);
+    }
+
+    private static DelimitedFileWriterTest.NoCascades phoneCascades(String employeeNo) {
+        DelimitedFileWriterTest.NoCascades employee = new DelimitedFileWriterTest.NoCascades() {
+            @Override
+            public QName recordName() {
+                return new QName(EMP_NS, "employee");
+            }
+        };
+        return new DelimitedFileWriterTest.NoCascades() {
+            @Override
+            public Iterable<Pair<String, String>> getCascadedAncestorFields() {
+                return Arrays.asList(new Pair<>("employee.employee-no", employeeNo),
+                        new Pair<>("employee.employee-name", "Jo"));
+            }
+
+            @Override
+            public QName recordName() {
+                return PHONE;
+            }
+
+            @Override
+            public RecordTypeHierarchy parentRecordType() {
+                return employee;
+            }
+        };
+    }
+}
@@ -0,0 +1,132 @@
+package com.karbherin.flatterxml.xsd;
+
+import com.karbherin.flatterxml.FlattenXml;
+import com.karbherin.flatterxml.consumer.XmlEventWorkerPool;
+import com.karbherin.flatterxml.consumer.XmlFlattenerWorkerFactory;
+import com.karbherin.flatterxml.feeder.XmlRecordEmitter;
+import com.karbherin.flatterxml.feeder.XmlRecordEventEmitter;
+import com.karbherin.flatterxml.feeder.XmlRecordStringEmitter;
+import com.karbherin.flatterxml.output.DelimitedFileWriter;
+import com.karbherin.flatterxml.output.RecordHandler;
+import com.karbherin.flatterxml.output.StatusReporter;
+import org.junit.Test;
+import org.xml.sax.SAXException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+import static com.karbherin.flatterxml.AppConstants.CascadePolicy;
+import static com.karbherin.flatterxml.helper.XmlHelpers.parseXsds;
+import static org.junit.Assert.*;
+
+public class RecordValidatorTest {
+
+    @Test
+    public void invalidRecordsAreRejectedAndValidOnesFlattened()
+            throws IOException, XMLStreamException, SAXException {
+        String outDir = "target/test/results/recordValidator";
+        Files.createDirectories(Paths.get(outDir));
+        File rejectFile = new File(outDir, "rejects.xml");
+        String[] xsdFiles = {"src/test/resources/emp.xsd"};
+        RecordHandler recordHandler = new DelimitedFileWriter("|", outDir, false, new StatusReporter(), "~");
+        RecordValidator recordValidator = RecordValidator.newInstance(xsdFiles, rejectFile);
+
+        FlattenXml flattener = new FlattenXml.FlattenXmlBuilder()
+                .setRecordWriter(recordHandler)
+                .setXsdFiles(parseXsds(xsdFiles))
+                .setCascadePolicy(CascadePolicy.XSD)
+                .setRecordValidator(recordValidator)
+                .setXmlStream(new FileInputStream("src/test/resources/emp_bad.xml"))
+                .create();
+
+        assertEquals("Rejected records are counted as read", 5, flattener.parseFlatten());
+        recordHandler.closeAllFileStreams();
+        recordValidator.close();
+
+        assertEquals(1, recordValidator.getRejectCount());
+        List<String> employee = Files.readAllLines(Paths.get(outDir, "employee.csv"));
+        assertEquals("Header and the valid records", 5, employee.size());
+        assertTrue(employee.get(4).contains("00000004|Scott, Colette|sales|75,000.00"));
+        List<String> address = Files.readAllLines(Paths.get(outDir, "address.csv"));
+        assertEquals("Addresses of the valid records", 6, address.size());
+
+        String rejects = new String(Files.readAllBytes(rejectFile.toPath()), "UTF-8");
+        assertTrue(rejects, rejects.contains("Record 5, line 97, column 14: cvc-complex-type.2.4.b"));
+        assertTrue(rejects, rejects.contains("<employee xmlns=\"http://kbps.com/emp\">"));
+        // Reject file is an XML document of the rejected records
+        XMLInputFactory.newFactory().createXMLEventReader(new FileInputStream(rejectFile))
+                .forEachRemaining(ev -> { });
+    }
+
+    @Test
+    public void rejectsOfSeveralWorkersAreLocatedInTheXmlFile()
+            throws IOException, XMLStreamException, SAXException, InterruptedException {
+        XmlRecordEmitter emitter = new XmlRecordEventEmitter.XmlEventEmitterBuilder()
+                .setXmlFile("src/test/resources/emp_bad.xml")
+                .setMarkRecordLocations(true)
+                .create();
+        String rejects = validateWithWorkers("target/test/results/recordValidatorWorkers", emitter);
+        assertTrue(rejects, rejects.contains("Record 5, line 97, column 14: cvc-complex-type.2.4.b"));
+    }
+
+    @Test
+    public void rejectsOfWorkersAreLocatedInTheRecordIfNotMarked()
+            throws IOException, XMLStreamException, SAXException, InterruptedException {
+        XmlRecordEmitter emitter = new XmlRecordStringEmitter.XmlByteStreamEmitterBuilder()
+                .setXmlFile("src/test/resources/emp_bad.xml")
+                .create();
+        String rejects = validateWithWorkers("target/test/results/recordValidatorStrings", emitter);
+        // Numbers counted by a worker would point to the wrong record in the XML file
+        assertTrue(rejects, rejects.contains("<!-- Line 6 of the record, column 14: cvc-complex-type.2.4.b"));
+        assertFalse(rejects, rejects.contains("Record "));
+    }
+
+    private String validateWithWorkers(String outDir, XmlRecordEmitter emitter)
+            throws IOException, XMLStreamException, SAXException, InterruptedException {
+        Files.createDirectories(Paths.get(outDir));
+        File rejectFile = new File(outDir, "rejects.xml");
+        String[] xsdFiles = {"src/test/resources/emp.xsd"};
+        StatusReporter statusReporter = new StatusReporter();
+        RecordHandler recordHandler = new DelimitedFileWriter("|", outDir, false, statusReporter, "~");
+        RecordValidator recordValidator = RecordValidator.newInstance(xsdFiles, rejectFile);
+
+        XmlFlattenerWorkerFactory workerFactory = XmlFlattenerWorkerFactory.newInstance(
+                "src/test/resources/emp_bad.xml", outDir, "|", null, recordHandler,
+                CascadePolicy.XSD, parseXsds(xsdFiles), null, null,
+                null, recordValidator, false, 2, statusReporter);
+        new XmlEventWorkerPool().execute(3, emitter, workerFactory);
+        recordHandler.closeAllFileStreams();
+        recordValidator.close();
+
+        assertEquals(1, recordValidator.getRejectCount());
+        assertEquals("Header and the valid records", 5,
+                Files.readAllLines(Paths.get(outDir, "employee.csv")).size());
+        return new String(Files.readAllBytes(rejectFile.toPath()), "UTF-8");
+    }
+
+    @Test
+    public void namespacesOfRecordsAreDeclaredForValidation() throws IOException, XMLStreamException, SAXException {
+        String outDir = "target/test/results/recordValidatorNs";
+        Files.createDirectories(Paths.get(outDir));
+        String[] xsdFiles = {"src/test/resources/emp_ns.xsd", "src/test/resources/phone_ns.xsd"};
+        RecordHandler recordHandler = new DelimitedFileWriter("|", outDir, false, new StatusReporter(), "~");
+        RecordValidator recordValidator = RecordValidator.newInstance(xsdFiles, new File(outDir, "rejects.xml"));
+
+        FlattenXml flattener = new FlattenXml.FlattenXmlBuilder()
+                .setRecordWriter(recordHandler)
+                .setXsdFiles(parseXsds(xsdFiles))
+                .setRecordValidator(recordValidator)
+                .setXmlStream(new FileInputStream("src/test/resources/emp_ns.xml"))
+                .create();
+        long records = flattener.parseFlatten();
+        recordHandler.closeAllFileStreams();
+        recordValidator.close();
+
+        assertTrue(records > 0);
+        assertEquals(0, recordValidator.getRejectCount());
+    }
+}
@@ -0,0 +1,91 @@
+package com.karbherin.flatterxml.xsd;
+
+import org.junit.Test;
+
+import javax.xml.namespace.QName;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static com.karbherin.flatterxml.helper.XmlHelpers.parseXsds;
+import static org.junit.Assert.*;
+
+public class SchemaCacheTest {
+
+    private static final String EMP_NS = "http://kbps.com/emp", PHONE_NS = "http://kbps.com/phone";
+
+    @Test
+    public void cachedXsdsAreLoadedUntilAnImportChanges() throws Exception {
+        Path dir = Files.createTempDirectory("xsdcache");
+        for (String xsd: new String[]{"emp_ns.xsd", "phone_ns.xsd"}) {
+            Files.copy(Paths.get("src/test/resources", xsd), dir.resolve(xsd));
+        }
+        String[] xsdFiles = {dir.resolve("emp_ns.xsd").toString()};
+        File cacheFile = dir.resolve("xsds.cache").toFile();
+
+        assertNull("No cache yet", SchemaCache.load(xsdFiles, Collections.emptySet(), cacheFile));
+        List<XmlSchema> parsed = parseXsds(xsdFiles, Collections.emptySet(), cacheFile);
+        List<XmlSchema> loaded = SchemaCache.load(xsdFiles, Collections.emptySet(), cacheFile);
+        assertNotNull(loaded);
+
+        SchemaIndex parsedIndex = SchemaIndex.of(parsed), loadedIndex = SchemaIndex.of(loaded);
+        assertEquals(parsedIndex.size(), loadedIndex.size());
+        for (QName name: new QName[]{new QName(EMP_NS, "employee"), new QName(EMP_NS, "contact"),
+                new QName(PHONE_NS, "phone"), new QName(PHONE_NS, "phone-num")}) {
+            assertEquals(describe(parsedIndex.getElementByName(name)), describe(loadedIndex.getElementByName(name)));
+        }
+        assertEquals(PHONE_NS, loaded.get(0).getSchema().getNamespaceContext().getNamespaceURI("ph"));
+        assertEquals(parsed.get(0).getElementByName("employee").getName(),
+                loaded.get(0).getElementByName("employee").getName());
+
+        // Changing an imported XSD invalidates the cache
+        Files.write(dir.resolve("phone_ns.xsd"), "\n".getBytes(), StandardOpenOption.APPEND);
+        assertNull(SchemaCache.load(xsdFiles, Collections.emptySet(), cacheFile));
+        assertNull("Cache is keyed by the XSD files given",
+                SchemaCache.load(new String[]{dir.resolve("phone_ns.xsd").toString()},
+                        Collections.emptySet(), cacheFile));
+    }
+
+    @Test
+    public void truncatedOrCorruptCacheIsParsedAgain() throws Exception {
+        Path dir = Files.createTempDirectory("xsdcache");
+        for (String xsd: new String[]{"emp_ns.xsd", "phone_ns.xsd"}) {
+            Files.copy(Paths.get("src/test/resources", xsd), dir.resolve(xsd));
+        }
+        String[] xsdFiles = {dir.resolve("emp_ns.xsd").toString()};
+        File cacheFile = dir.resolve("xsds.cache").toFile();
+        parseXsds(xsdFiles, Collections.emptySet(), cacheFile);
+        byte[] cache = Files.readAllBytes(cacheFile.toPath());
+
+        for (int length = 0; length < cache.length; length += 7) {
+            Files.write(cacheFile.toPath(), Arrays.copyOf(cache, length));
+            assertNull("Cache truncated to " + length, SchemaCache.load(xsdFiles, Collections.emptySet(), cacheFile));
+        }
+
+        // Length of the first file path, after the magic, version, empty record types and file counts, made negative
+        byte[] corrupt = cache.clone();
+        ByteBuffer.wrap(corrupt).putInt(20, -1);
+        Files.write(cacheFile.toPath(), corrupt);
+        assertNull(SchemaCache.load(xsdFiles, Collections.emptySet(), cacheFile));
+
+        // XSDs are parsed and cached again
+        assertEquals(1, parseXsds(xsdFiles, Collections.emptySet(), cacheFile).size());
+        assertNotNull(SchemaCache.load(xsdFiles, Collections.emptySet(), cacheFile));
+    }
+
+    private static String describe(XsdElement elem) {
+        return String.join("|", String.valueOf(elem.getName()), String.valueOf(elem.getType()),
+                String.valueOf(elem.getContent()), String.valueOf(elem.getMaxOccurs()),
+                String.valueOf(elem.getMinOccurs()),
+                elem.getChildElements().stream().map(child -> child.getName() + ":" + child.getType())
+                        .collect(Collectors.joining(",")),
+                String.valueOf(elem.getAttributes()));
+    }
+}
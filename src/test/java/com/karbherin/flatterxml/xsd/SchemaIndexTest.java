@@ -0,0 +1,46 @@
+package com.karbherin.flatterxml.xsd;
+
+import org.junit.Test;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamException;
+import java.io.FileNotFoundException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static com.karbherin.flatterxml.helper.XmlHelpers.parseXsds;
+import static org.junit.Assert.*;
+
+public class SchemaIndexTest {
+
+    private static final String EMP_NS = "http://kbps.com/emp", PHONE_NS = "http://kbps.com/phone";
+
+    @Test
+    public void elementsOfImportedSchemasAreIndexed() throws FileNotFoundException, XMLStreamException {
+        List<XmlSchema> xsds = parseXsds(new String[]{"src/test/resources/emp_ns.xsd"});
+        SchemaIndex index = SchemaIndex.of(xsds);
+
+        // Same elements as looked up through the schemas
+        for (QName name: Arrays.asList(new QName(EMP_NS, "employee"), new QName(PHONE_NS, "phone"))) {
+            assertNotNull(index.getElementByName(name));
+            assertSame(xsds.get(0).getElementByName(name), index.getElementByName(name));
+        }
+        assertNull(index.getElementByName(new QName(EMP_NS, "phone")));
+
+        assertEquals("Fields of a record are the child elements of simple types",
+                Arrays.asList("phone-num", "phone-type"),
+                index.getFieldElements(new QName(PHONE_NS, "phone")).stream()
+                        .map(elem -> elem.getName().getLocalPart())
+                        .collect(Collectors.toList()));
+        assertNull(index.getFieldElements(new QName(PHONE_NS, "fax")));
+    }
+
+    @Test
+    public void noXsdsGiveAnEmptyIndex() {
+        assertTrue(SchemaIndex.of(Collections.emptyList()).isEmpty());
+        assertTrue(SchemaIndex.of(null).isEmpty());
+        assertEquals(0, SchemaIndex.EMPTY.size());
+    }
+}
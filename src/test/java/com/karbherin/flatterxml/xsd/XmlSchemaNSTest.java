@@ -9,7 +9,11 @@ import javax.xml.namespace.QName;
 import javax.xml.stream.XMLEventFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.events.Namespace;
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -208,4 +212,30 @@ public class XmlSchemaNSTest {
                 contact.getChildElements().get(1).getName());
     }
 
+    @Test
+    public void test_importedSchemaParsedOnce() throws FileNotFoundException, XMLStreamException {
+        List<XmlSchema> xsds = XmlSchema.parse(Arrays.asList(
+                new File("src/test/resources/emp_ns.xsd"), new File("src/test/resources/phone_ns.xsd")));
+        assertEquals(2, xsds.size());
+        assertSame("XSD imported and given is shared",
+                xsds.get(1), xsds.get(0).importedSchemas().iterator().next());
+        assertEquals("http://kbps.com/phone", xsds.get(1).getTargetNamespace());
+    }
+
+    @Test
+    public void test_pruneToRecordType() throws FileNotFoundException, XMLStreamException {
+        List<XmlSchema> xsds = XmlSchema.parse(Collections.singletonList(new File("src/test/resources/emp_ns.xsd")),
+                Collections.singleton(new QName("address")));
+        SchemaIndex index = SchemaIndex.of(xsds);
+        String empNs = "http://kbps.com/emp";
+
+        assertNotNull("Under the record type", index.getElementByName(new QName(empNs, "reroute")));
+        assertNotNull("Enclosing the record type", index.getElementByName(new QName(empNs, "employee")));
+        assertNotNull("Field of an enclosing record", index.getElementByName(new QName(empNs, "employee-no")));
+        assertNull("Beside the record type", index.getElementByName(new QName("http://kbps.com/phone", "phone")));
+        assertEquals(Collections.singletonList(new QName(empNs, "addresses")),
+                index.getElementByName(new QName(empNs, "contact")).getChildElements().stream()
+                        .map(XsdElement::getName).collect(Collectors.toList()));
+    }
+
 }
@@ -0,0 +1,9 @@
+CREATE TABLE IF NOT EXISTS "phone" (
+    "phone-num" numeric,
+    "phone-type" text,
+    "employee.employee-no" numeric,
+    "employee.employee-name" text,
+    "phone-type#2" text
+);
+
+\copy "phone" ("phone-num", "phone-type", "employee.employee-no", "employee.employee-name", "phone-type#2") FROM 'phone.pgcopy' WITH (FORMAT binary)